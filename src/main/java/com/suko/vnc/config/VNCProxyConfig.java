@@ -0,0 +1,867 @@
+package com.suko.vnc.config;
+
+import java.util.Optional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Tuning options for the proxy data path
+ */
+@ApplicationScoped
+public class VNCProxyConfig {
+
+    // Proxy-side encoding
+    @ConfigProperty(name = "vnc.proxy.encode.zrle", defaultValue = "false")
+    boolean zrleEncoding;
+
+    @ConfigProperty(name = "vnc.proxy.encode.compression-level", defaultValue = "2")
+    int compressionLevel;
+
+    @ConfigProperty(name = "vnc.proxy.encode.parallel-threshold", defaultValue = "262144")
+    int parallelThreshold;
+
+    @ConfigProperty(name = "vnc.proxy.encode.parallelism", defaultValue = "0")
+    int parallelism;
+
+    // Server-side scaling
+    @ConfigProperty(name = "vnc.proxy.scale.enabled", defaultValue = "false")
+    boolean scaleEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.scale.max-factor", defaultValue = "4")
+    int scaleMaxFactor;
+
+    // Colour depth
+    @ConfigProperty(name = "vnc.proxy.depth.mode", defaultValue = "off")
+    String depthMode;
+
+    @ConfigProperty(name = "vnc.proxy.depth.auto-16bpp-below", defaultValue = "4000000")
+    long auto16BppBelow;
+
+    @ConfigProperty(name = "vnc.proxy.depth.auto-8bpp-below", defaultValue = "1000000")
+    long auto8BppBelow;
+
+    // Viewport-restricted updates
+    @ConfigProperty(name = "vnc.proxy.viewport.enabled", defaultValue = "false")
+    boolean viewportEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.viewport.margin", defaultValue = "128")
+    int viewportMargin;
+
+    // Update request pacing
+    @ConfigProperty(name = "vnc.proxy.pacing.max-fps", defaultValue = "0")
+    int pacingMaxFps;
+
+    @ConfigProperty(name = "vnc.proxy.pacing.lan-max-fps", defaultValue = "0")
+    int pacingLanMaxFps;
+
+    @ConfigProperty(name = "vnc.proxy.pacing.user-max-fps")
+    Optional<String> pacingUserMaxFps;
+
+    // Lagging clients
+    @ConfigProperty(name = "vnc.proxy.lag.enabled", defaultValue = "false")
+    boolean lagEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.lag.queue-high-water", defaultValue = "1048576")
+    long lagQueueHighWater;
+
+    @ConfigProperty(name = "vnc.proxy.lag.queue-low-water", defaultValue = "262144")
+    long lagQueueLowWater;
+
+    @ConfigProperty(name = "vnc.proxy.lag.stall-millis", defaultValue = "1000")
+    long lagStallMillis;
+
+    // RFB extensions toward the server
+    @ConfigProperty(name = "vnc.proxy.continuous-updates.enabled", defaultValue = "false")
+    boolean continuousUpdatesEnabled;
+
+    // Traffic accounting
+    @ConfigProperty(name = "vnc.proxy.traffic-stats.enabled", defaultValue = "false")
+    boolean trafficStatsEnabled;
+
+    // SetEncodings policy
+    @ConfigProperty(name = "vnc.proxy.encodings.policy-enabled", defaultValue = "false")
+    boolean encodingPolicyEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.preferred")
+    Optional<String> encodingPreferred;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.inject")
+    Optional<String> encodingInject;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.adaptive-levels", defaultValue = "true")
+    boolean encodingAdaptiveLevels;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.low-bandwidth", defaultValue = "262144")
+    long encodingLowBandwidth;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.high-bandwidth", defaultValue = "10485760")
+    long encodingHighBandwidth;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.high-rtt-millis", defaultValue = "150")
+    long encodingHighRttMillis;
+
+    @ConfigProperty(name = "vnc.proxy.encodings.reevaluate-millis", defaultValue = "2000")
+    long encodingReevaluateMillis;
+
+    // Input-to-update latency
+    @ConfigProperty(name = "vnc.proxy.input-latency.enabled", defaultValue = "false")
+    boolean inputLatencyEnabled;
+
+    // Event loops and the upstream socket
+    @ConfigProperty(name = "vnc.proxy.event-loop-affinity", defaultValue = "true")
+    boolean eventLoopAffinity;
+
+    @ConfigProperty(name = "vnc.proxy.upstream.tcp-no-delay", defaultValue = "true")
+    boolean upstreamTcpNoDelay;
+
+    @ConfigProperty(name = "vnc.proxy.upstream.tcp-keep-alive", defaultValue = "true")
+    boolean upstreamTcpKeepAlive;
+
+    @ConfigProperty(name = "vnc.proxy.upstream.connect-timeout-millis", defaultValue = "10000")
+    int upstreamConnectTimeoutMillis;
+
+    @ConfigProperty(name = "vnc.proxy.upstream.send-buffer-size", defaultValue = "0")
+    int upstreamSendBufferSize;
+
+    @ConfigProperty(name = "vnc.proxy.upstream.receive-buffer-size", defaultValue = "0")
+    int upstreamReceiveBufferSize;
+
+    // Compressibility sampling of browser traffic
+    @ConfigProperty(name = "vnc.proxy.compression-sampling.enabled", defaultValue = "false")
+    boolean compressionSamplingEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.compression-sampling.level", defaultValue = "1")
+    int compressionSamplingLevel;
+
+    @ConfigProperty(name = "vnc.proxy.compression-sampling.cpu-share", defaultValue = "0.02")
+    double compressionSamplingCpuShare;
+
+    @ConfigProperty(name = "vnc.proxy.compression-sampling.every", defaultValue = "8")
+    int compressionSamplingEvery;
+
+    @ConfigProperty(name = "vnc.proxy.compression-sampling.worthwhile-ratio", defaultValue = "0.7")
+    double compressionSamplingWorthwhileRatio;
+
+    // Browser round trips
+    @ConfigProperty(name = "vnc.proxy.browser-rtt.enabled", defaultValue = "true")
+    boolean browserRttEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.browser-rtt.interval-millis", defaultValue = "2000")
+    long browserRttIntervalMillis;
+
+    // Proxy-to-server round trips
+    @ConfigProperty(name = "vnc.proxy.server-rtt.enabled", defaultValue = "false")
+    boolean serverRttEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.server-rtt.interval-millis", defaultValue = "2000")
+    long serverRttIntervalMillis;
+
+    // Clipboard transfers
+    @ConfigProperty(name = "vnc.proxy.clipboard.streaming", defaultValue = "false")
+    boolean clipboardStreaming;
+
+    @ConfigProperty(name = "vnc.proxy.clipboard.max-bytes", defaultValue = "10485760")
+    long clipboardMaxBytes;
+
+    @ConfigProperty(name = "vnc.proxy.clipboard.inline-bytes", defaultValue = "65536")
+    int clipboardInlineBytes;
+
+    @ConfigProperty(name = "vnc.proxy.clipboard.bandwidth-share", defaultValue = "0.25")
+    double clipboardBandwidthShare;
+
+    @ConfigProperty(name = "vnc.proxy.clipboard.min-rate", defaultValue = "1048576")
+    long clipboardMinRate;
+
+    // Fair scheduling of traffic to the browser
+    @ConfigProperty(name = "vnc.proxy.fair-scheduling.enabled", defaultValue = "false")
+    boolean fairSchedulingEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.fair-scheduling.quantum-bytes", defaultValue = "16384")
+    int fairSchedulingQuantumBytes;
+
+    @ConfigProperty(name = "vnc.proxy.fair-scheduling.flow-window-bytes", defaultValue = "262144")
+    long fairSchedulingFlowWindowBytes;
+
+    @ConfigProperty(name = "vnc.proxy.fair-scheduling.loop-egress-rate", defaultValue = "0")
+    long fairSchedulingLoopEgressRate;
+
+    @ConfigProperty(name = "vnc.proxy.qos.classes", defaultValue = "standard=1")
+    String qosClasses;
+
+    @ConfigProperty(name = "vnc.proxy.qos.default-class", defaultValue = "standard")
+    String qosDefaultClass;
+
+    @ConfigProperty(name = "vnc.proxy.qos.user-classes")
+    Optional<String> qosUserClasses;
+
+    @ConfigProperty(name = "vnc.proxy.qos.session-max-rates")
+    Optional<String> qosSessionMaxRates;
+
+    // Admission control
+    @ConfigProperty(name = "vnc.proxy.admission.enabled", defaultValue = "false")
+    boolean admissionEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.admission.max-loop-lag-millis", defaultValue = "100")
+    long admissionMaxLoopLagMillis;
+
+    @ConfigProperty(name = "vnc.proxy.admission.max-buffered-bytes", defaultValue = "268435456")
+    long admissionMaxBufferedBytes;
+
+    @ConfigProperty(name = "vnc.proxy.admission.min-heap-free-ratio", defaultValue = "0.1")
+    double admissionMinHeapFreeRatio;
+
+    @ConfigProperty(name = "vnc.proxy.admission.min-direct-free-ratio", defaultValue = "0.1")
+    double admissionMinDirectFreeRatio;
+
+    @ConfigProperty(name = "vnc.proxy.admission.queue-timeout-millis", defaultValue = "5000")
+    long admissionQueueTimeoutMillis;
+
+    @ConfigProperty(name = "vnc.proxy.admission.max-queued", defaultValue = "16")
+    int admissionMaxQueued;
+
+    @ConfigProperty(name = "vnc.proxy.event-loop-lag.interval-millis", defaultValue = "100")
+    long eventLoopLagIntervalMillis;
+
+    @ConfigProperty(name = "vnc.proxy.event-loop-lag.long-task-millis", defaultValue = "100")
+    long eventLoopLongTaskMillis;
+
+    @ConfigProperty(name = "vnc.proxy.event-loop-lag.long-tasks-kept", defaultValue = "20")
+    int eventLoopLongTasksKept;
+
+    // Flight recordings
+    @ConfigProperty(name = "vnc.proxy.jfr.recording-enabled", defaultValue = "false")
+    boolean jfrRecordingEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.jfr.max-seconds", defaultValue = "300")
+    long jfrMaxSeconds;
+
+    @ConfigProperty(name = "vnc.proxy.jfr.settings", defaultValue = "none")
+    String jfrSettings;
+
+    @ConfigProperty(name = "vnc.proxy.jfr.operators")
+    Optional<String> jfrOperators;
+
+    // Handshake timing
+    @ConfigProperty(name = "vnc.proxy.handshake-timing.slowest-kept", defaultValue = "10")
+    int handshakeSlowestKept;
+
+    @ConfigProperty(name = "vnc.proxy.handshake-timing.slowest-window-minutes", defaultValue = "60")
+    long handshakeSlowestWindowMinutes;
+
+    // Metrics history
+    @ConfigProperty(name = "vnc.proxy.history.seconds", defaultValue = "300")
+    int historySeconds;
+
+    @ConfigProperty(name = "vnc.proxy.history.minutes", defaultValue = "60")
+    int historyMinutes;
+
+    // Per-session CPU and allocation accounting
+    @ConfigProperty(name = "vnc.proxy.cost-accounting.enabled", defaultValue = "false")
+    boolean costAccountingEnabled;
+
+    @ConfigProperty(name = "vnc.proxy.cost-accounting.top-sessions", defaultValue = "10")
+    int costAccountingTopSessions;
+
+    /**
+     * How the proxy handles colour depth
+     */
+    public enum DepthMode {
+        /** Pass the client's SetPixelFormat to the server unchanged */
+        OFF,
+        /** Keep the server on 32bpp and convert to the client's low-depth format in the proxy */
+        CONVERT,
+        /** As CONVERT, and reduce 32bpp clients to 16-bit colour precision */
+        REDUCE_16,
+        /** As CONVERT, and reduce 32bpp clients to 8-bit colour precision */
+        REDUCE_8,
+        /** As CONVERT, and pick the precision for 32bpp clients from their measured bandwidth */
+        AUTO
+    }
+
+    /**
+     * Whether the proxy asks the server for raw pixels and encodes ZRLE itself for clients that support it
+     */
+    public boolean isZrleEncoding() {
+        return zrleEncoding;
+    }
+
+    /**
+     * zlib level (0-9) used for proxy-side ZRLE
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Rectangles with at least this many pixels are encoded on the encoder pool
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Encoder pool size, 0 for one thread per available processor
+     */
+    public int getParallelism() {
+        return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Whether the proxy may downscale the framebuffer for clients with a small viewport
+     */
+    public boolean isScaleEnabled() {
+        return scaleEnabled;
+    }
+
+    /**
+     * Largest downscale factor (1, 2 or 4)
+     */
+    public int getScaleMaxFactor() {
+        return Math.max(1, Math.min(4, scaleMaxFactor));
+    }
+
+    /**
+     * Colour depth mode: off, convert, 16, 8 or auto
+     */
+    public DepthMode getDepthMode() {
+        switch (depthMode.trim().toLowerCase()) {
+            case "convert":
+                return DepthMode.CONVERT;
+            case "16":
+                return DepthMode.REDUCE_16;
+            case "8":
+                return DepthMode.REDUCE_8;
+            case "auto":
+                return DepthMode.AUTO;
+            default:
+                return DepthMode.OFF;
+        }
+    }
+
+    /**
+     * In auto mode, measured client bandwidth (bytes/s) below which 32bpp clients get 16-bit colour
+     */
+    public long getAuto16BppBelow() {
+        return auto16BppBelow;
+    }
+
+    /**
+     * In auto mode, measured client bandwidth (bytes/s) below which 32bpp clients get 8-bit colour
+     */
+    public long getAuto8BppBelow() {
+        return auto8BppBelow;
+    }
+
+    /**
+     * Whether update requests are narrowed to the part of the framebuffer the client reports as visible
+     */
+    public boolean isViewportEnabled() {
+        return viewportEnabled;
+    }
+
+    /**
+     * Prefetch margin in client pixels kept up to date around the visible region
+     */
+    public int getViewportMargin() {
+        return Math.max(0, viewportMargin);
+    }
+
+    /**
+     * Update request rate cap for a session, 0 for unlimited. A per-user entry wins over the
+     * LAN tier, which wins over the default.
+     * @param userId the authenticated user
+     * @param lan whether the client connects from a private or loopback address
+     */
+    public int getPacingMaxFps(String userId, boolean lan) {
+        if (pacingUserMaxFps.isPresent() && userId != null) {
+            for (String entry : pacingUserMaxFps.get().split(",")) {
+                String[] parts = entry.split("=");
+                if (parts.length == 2 && parts[0].trim().equals(userId)) {
+                    try {
+                        return Math.max(0, Integer.parseInt(parts[1].trim()));
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (lan && pacingLanMaxFps > 0) {
+            return pacingLanMaxFps;
+        }
+        return Math.max(0, pacingMaxFps);
+    }
+
+    /**
+     * Whether update requests are held back while the client's outbound queue is too long
+     */
+    public boolean isLagEnabled() {
+        return lagEnabled;
+    }
+
+    /**
+     * Outbound queue size (bytes) above which update requests are held
+     */
+    public long getLagQueueHighWater() {
+        return lagQueueHighWater;
+    }
+
+    /**
+     * Outbound queue size (bytes) the queue must drain to before the held request is sent
+     */
+    public long getLagQueueLowWater() {
+        return lagQueueLowWater;
+    }
+
+    /**
+     * Requests held for longer than this are sent as a non-incremental refresh
+     */
+    public long getLagStallMillis() {
+        return lagStallMillis;
+    }
+
+    /**
+     * Whether the proxy runs ContinuousUpdates and Fence with capable servers for clients that
+     * advertise ContinuousUpdates. Flow control uses the lag queue thresholds.
+     */
+    public boolean isContinuousUpdatesEnabled() {
+        return continuousUpdatesEnabled;
+    }
+
+    /**
+     * Whether the client's SetEncodings is rewritten by the encoding policy
+     */
+    public boolean isEncodingPolicyEnabled() {
+        return encodingPolicyEnabled;
+    }
+
+    /**
+     * Comma-separated encodings moved to the front of the client's list, empty to keep its order
+     */
+    public String getEncodingPreferred() {
+        return encodingPreferred.orElse("");
+    }
+
+    /**
+     * Comma-separated compression/quality levels added when the client sends none, empty for none
+     */
+    public String getEncodingInject() {
+        return encodingInject.orElse("");
+    }
+
+    /**
+     * Whether compression and quality levels follow the measured bandwidth and round trip
+     */
+    public boolean isEncodingAdaptiveLevels() {
+        return encodingAdaptiveLevels;
+    }
+
+    /**
+     * Client bandwidth (bytes/s) at or below which the lowest quality and highest compression are used
+     */
+    public long getEncodingLowBandwidth() {
+        return encodingLowBandwidth;
+    }
+
+    /**
+     * Client bandwidth (bytes/s) at or above which the highest quality and lowest compression are used
+     */
+    public long getEncodingHighBandwidth() {
+        return encodingHighBandwidth;
+    }
+
+    /**
+     * Round-trip time above which compression is kept high regardless of bandwidth
+     */
+    public long getEncodingHighRttMillis() {
+        return encodingHighRttMillis;
+    }
+
+    /**
+     * Minimum time between two adaptive level changes
+     */
+    public long getEncodingReevaluateMillis() {
+        return encodingReevaluateMillis;
+    }
+
+    /**
+     * Whether traffic is counted per RFB message type and rectangle encoding
+     */
+    public boolean isTrafficStatsEnabled() {
+        return trafficStatsEnabled;
+    }
+
+    /**
+     * Whether large server clipboard transfers are streamed to the browser as control messages
+     */
+    public boolean isClipboardStreaming() {
+        return clipboardStreaming;
+    }
+
+    /**
+     * Largest clipboard transfer passed on in either direction while streaming, 0 for no limit
+     */
+    public long getClipboardMaxBytes() {
+        return clipboardMaxBytes;
+    }
+
+    /**
+     * Clipboard transfers up to this size stay on the RFB stream
+     */
+    public int getClipboardInlineBytes() {
+        return clipboardInlineBytes;
+    }
+
+    /**
+     * Share of the measured client bandwidth a streamed clipboard transfer may use
+     */
+    public double getClipboardBandwidthShare() {
+        return clipboardBandwidthShare;
+    }
+
+    /**
+     * Streaming rate (bytes/s) used at least, also while the client bandwidth is unknown
+     */
+    public long getClipboardMinRate() {
+        return clipboardMinRate;
+    }
+
+    /**
+     * Whether the time from browser input to the next framebuffer update is measured
+     */
+    public boolean isInputLatencyEnabled() {
+        return inputLatencyEnabled;
+    }
+
+    /**
+     * Whether the round-trip time to the VNC server is probed with RFB fences
+     */
+    public boolean isServerRttEnabled() {
+        return serverRttEnabled;
+    }
+
+    /**
+     * Time between two round-trip probes
+     */
+    public long getServerRttIntervalMillis() {
+        return serverRttIntervalMillis;
+    }
+
+    /**
+     * Whether the round-trip time to the browser is measured with WebSocket pings
+     */
+    public boolean isBrowserRttEnabled() {
+        return browserRttEnabled;
+    }
+
+    /**
+     * Time between two WebSocket pings to the browser
+     */
+    public long getBrowserRttIntervalMillis() {
+        return browserRttIntervalMillis;
+    }
+
+    /**
+     * Whether outbound batches are sampled to see how well they would deflate
+     */
+    public boolean isCompressionSamplingEnabled() {
+        return compressionSamplingEnabled;
+    }
+
+    /**
+     * Deflate level the samples are compressed with (1-9)
+     */
+    public int getCompressionSamplingLevel() {
+        return compressionSamplingLevel;
+    }
+
+    /**
+     * Share of each event loop's time that sampling may use
+     */
+    public double getCompressionSamplingCpuShare() {
+        return compressionSamplingCpuShare;
+    }
+
+    /**
+     * Every how many outbound batches one is sampled
+     */
+    public int getCompressionSamplingEvery() {
+        return compressionSamplingEvery;
+    }
+
+    /**
+     * Deflated-to-original size ratio at or below which deflate is reported as worthwhile
+     */
+    public double getCompressionSamplingWorthwhileRatio() {
+        return compressionSamplingWorthwhileRatio;
+    }
+
+    /**
+     * Whether each session's VNC server socket is connected on its WebSocket's event loop
+     */
+    public boolean isEventLoopAffinity() {
+        return eventLoopAffinity;
+    }
+
+    /**
+     * Whether Nagle's algorithm is disabled on the VNC server socket
+     */
+    public boolean isUpstreamTcpNoDelay() {
+        return upstreamTcpNoDelay;
+    }
+
+    /**
+     * Whether TCP keep-alive is enabled on the VNC server socket
+     */
+    public boolean isUpstreamTcpKeepAlive() {
+        return upstreamTcpKeepAlive;
+    }
+
+    /**
+     * Timeout for connecting to the VNC server
+     */
+    public int getUpstreamConnectTimeoutMillis() {
+        return upstreamConnectTimeoutMillis;
+    }
+
+    /**
+     * Socket send buffer size toward the VNC server, 0 for the OS default
+     */
+    public int getUpstreamSendBufferSize() {
+        return upstreamSendBufferSize;
+    }
+
+    /**
+     * Socket receive buffer size from the VNC server, 0 for the OS default
+     */
+    public int getUpstreamReceiveBufferSize() {
+        return upstreamReceiveBufferSize;
+    }
+
+    /**
+     * Whether traffic to the browser is scheduled fairly across the sessions of an event loop
+     */
+    public boolean isFairSchedulingEnabled() {
+        return fairSchedulingEnabled;
+    }
+
+    /**
+     * Bytes a session of weight 1 may send per scheduling turn
+     */
+    public long getFairSchedulingQuantumBytes() {
+        return Math.max(1, fairSchedulingQuantumBytes);
+    }
+
+    /**
+     * Bytes a session may have in WebSocket writes before it stops taking turns
+     */
+    public long getFairSchedulingFlowWindowBytes() {
+        return Math.max(1, fairSchedulingFlowWindowBytes);
+    }
+
+    /**
+     * Bytes per second each event loop may send to browsers, 0 for unlimited
+     */
+    public long getFairSchedulingLoopEgressRate() {
+        return Math.max(0, fairSchedulingLoopEgressRate);
+    }
+
+    /**
+     * QoS class of a user: their entry in the user classes if it names a known class, else the default
+     */
+    public String getQosClass(String userId) {
+        String qosClass = userId != null ? entry(qosUserClasses.orElse(""), userId) : null;
+        if (qosClass == null || entry(qosClasses, qosClass) == null) {
+            return qosDefaultClass;
+        }
+        return qosClass;
+    }
+
+    /**
+     * Scheduling weight of a QoS class, 1 if it has none
+     */
+    public int getQosWeight(String qosClass) {
+        return (int) Math.max(1, parseLong(entry(qosClasses, qosClass), 1));
+    }
+
+    /**
+     * Rate cap (bytes/s) for each session of a QoS class, 0 for unlimited
+     */
+    public long getQosSessionMaxRate(String qosClass) {
+        return Math.max(0, parseLong(entry(qosSessionMaxRates.orElse(""), qosClass), 0));
+    }
+
+    /**
+     * Whether new sessions are admitted only while the node is under its load thresholds
+     */
+    public boolean isAdmissionEnabled() {
+        return admissionEnabled;
+    }
+
+    /**
+     * Event loop lag above which new sessions are held back, 0 to ignore lag
+     */
+    public long getAdmissionMaxLoopLagMillis() {
+        return admissionMaxLoopLagMillis;
+    }
+
+    /**
+     * Bytes buffered for browsers and VNC servers above which new sessions are held back, 0 to ignore
+     */
+    public long getAdmissionMaxBufferedBytes() {
+        return admissionMaxBufferedBytes;
+    }
+
+    /**
+     * Share of the heap that must be free for a new session
+     */
+    public double getAdmissionMinHeapFreeRatio() {
+        return admissionMinHeapFreeRatio;
+    }
+
+    /**
+     * Share of the direct memory limit that must be free for a new session
+     */
+    public double getAdmissionMinDirectFreeRatio() {
+        return admissionMinDirectFreeRatio;
+    }
+
+    /**
+     * How long a new session may wait for the load to drop, 0 to reject right away
+     */
+    public long getAdmissionQueueTimeoutMillis() {
+        return admissionQueueTimeoutMillis;
+    }
+
+    /**
+     * New sessions that may wait at the same time; more are rejected right away
+     */
+    public int getAdmissionMaxQueued() {
+        return admissionMaxQueued;
+    }
+
+    /**
+     * Interval of the timer that measures event loop lag, 0 to not measure
+     */
+    public long getEventLoopLagIntervalMillis() {
+        return eventLoopLagIntervalMillis;
+    }
+
+    /**
+     * Handler run time on an event loop above which the task is reported with its stack, 0 to not time handlers
+     */
+    public long getEventLoopLongTaskMillis() {
+        return eventLoopLongTaskMillis;
+    }
+
+    /**
+     * Number of recent long tasks kept for the performance API
+     */
+    public int getEventLoopLongTasksKept() {
+        return Math.max(0, eventLoopLongTasksKept);
+    }
+
+    /**
+     * Whether flight recordings can be started and downloaded through the REST API
+     */
+    public boolean isJfrRecordingEnabled() {
+        return jfrRecordingEnabled;
+    }
+
+    /**
+     * Longest flight recording that can be started
+     */
+    public long getJfrMaxSeconds() {
+        return Math.max(1, jfrMaxSeconds);
+    }
+
+    /**
+     * JDK settings recorded along with the proxy's events: default, profile, or none for the proxy's events only
+     */
+    public String getJfrSettings() {
+        return jfrSettings;
+    }
+
+    /**
+     * Whether this user may start and download flight recordings, which cover every session on
+     * the node: only users listed in vnc.proxy.jfr.operators
+     */
+    public boolean isJfrOperator(String userId) {
+        if (jfrOperators.isEmpty() || userId == null) {
+            return false;
+        }
+        for (String operator : jfrOperators.get().split(",")) {
+            if (operator.trim().equals(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * How many of the slowest recent handshakes are kept with their step breakdown
+     */
+    public int getHandshakeSlowestKept() {
+        return Math.max(0, handshakeSlowestKept);
+    }
+
+    /**
+     * How long a slow handshake stays in the list of slowest handshakes
+     */
+    public long getHandshakeSlowestWindowMinutes() {
+        return Math.max(1, handshakeSlowestWindowMinutes);
+    }
+
+    /**
+     * Per-second samples kept of the proxy and of each session, 0 for none
+     */
+    public int getHistorySeconds() {
+        return Math.max(0, historySeconds);
+    }
+
+    /**
+     * Per-minute samples kept of the proxy and of each session, 0 for none
+     */
+    public int getHistoryMinutes() {
+        return Math.max(0, historyMinutes);
+    }
+
+    /**
+     * Whether CPU time and allocated bytes are measured per session around its handlers
+     */
+    public boolean isCostAccountingEnabled() {
+        return costAccountingEnabled;
+    }
+
+    /**
+     * How many of the most expensive sessions the performance API lists
+     */
+    public int getCostAccountingTopSessions() {
+        return Math.max(0, costAccountingTopSessions);
+    }
+
+    /**
+     * Value for a key in a comma-separated key=value list, null if it is not there
+     */
+    private static String entry(String entries, String key) {
+        for (String entry : entries.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length == 2 && parts[0].trim().equals(key)) {
+                return parts[1].trim();
+            }
+        }
+        return null;
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.suko.vnc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A stretch of time a session's traffic was held back
+ */
+@Name("com.suko.vnc.Backpressure")
+@Label("VNC Backpressure Pause")
+@Category({"VNC Proxy", "Data Path"})
+@Description("The server stream paused for a parallel encode (encoder), or update requests held while the browser catches up (client-lag)")
+@Enabled(false)
+@StackTrace(false)
+public class VNCBackpressureEvent extends Event {
+
+    @Label("Session")
+    public String session;
+
+    @Label("Reason")
+    public String reason;
+}
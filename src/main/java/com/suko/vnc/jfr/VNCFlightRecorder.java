@@ -0,0 +1,140 @@
+package com.suko.vnc.jfr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Time-bounded JDK Flight Recorder recordings with the proxy's own events enabled.
+ *
+ * The proxy's events are disabled unless a recording enables them, so outside a recording they
+ * cost a check of a constant flag. One recording runs at a time; it stops on its own after its
+ * duration and stays available for download until the next one starts.
+ */
+@ApplicationScoped
+public class VNCFlightRecorder {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCFlightRecorder.class);
+
+    private static final List<Class<? extends Event>> EVENTS = List.of(
+            VNCHandshakeEvent.class, VNCFlushEvent.class, VNCBackpressureEvent.class, VNCSessionEvent.class);
+
+    // JDK events that would put the process's secrets (VNC passwords from the environment or
+    // -D options) into a downloadable file; off whatever the settings say
+    private static final List<String> SECRET_EVENTS = List.of(
+            "jdk.InitialEnvironmentVariable", "jdk.InitialSystemProperty", "jdk.JVMInformation",
+            "jdk.InitialSecurityProperty");
+
+    @Inject
+    VNCProxyConfig config;
+
+    private Recording recording;
+    private Path file;
+
+    /**
+     * How a session appears in events: a prefix only, session IDs are credentials
+     */
+    public static String sessionLabel(String sessionId) {
+        return sessionId != null ? sessionId.substring(0, Math.min(8, sessionId.length())) : null;
+    }
+
+    /**
+     * Start a recording
+     * @param seconds duration, capped at the configured maximum
+     * @return the recording's id
+     * @throws IllegalStateException if a recording is still running
+     */
+    public synchronized long start(long seconds) throws IOException, ParseException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            throw new IllegalStateException("A recording is already running");
+        }
+        discard();
+        String settings = config.getJfrSettings();
+        // An empty recording has no JDK events enabled
+        Recording started = "none".equals(settings) ? new Recording() : new Recording(Configuration.getConfiguration(settings));
+        for (String event : SECRET_EVENTS) {
+            started.disable(event);
+        }
+        for (Class<? extends Event> event : EVENTS) {
+            started.enable(event);
+        }
+        long duration = Math.max(1, Math.min(seconds, config.getJfrMaxSeconds()));
+        file = Files.createTempFile("vnc-proxy-", ".jfr");
+        started.setName("vnc-proxy");
+        started.setDuration(Duration.ofSeconds(duration));
+        started.setDestination(file);
+        started.start();
+        recording = started;
+        log.info("Started flight recording {} for {} s with {} settings", started.getId(), duration, settings);
+        return started.getId();
+    }
+
+    /**
+     * The recording so far, or all of it once it has stopped
+     * @return the recording's bytes, null if there is no recording with this id
+     */
+    public synchronized byte[] dump(long id) throws IOException {
+        if (recording == null || recording.getId() != id) {
+            return null;
+        }
+        if (recording.getState() == RecordingState.RUNNING) {
+            Path snapshot = Files.createTempFile("vnc-proxy-snapshot-", ".jfr");
+            try {
+                recording.dump(snapshot);
+                return Files.readAllBytes(snapshot);
+            } finally {
+                Files.deleteIfExists(snapshot);
+            }
+        }
+        return Files.exists(file) ? Files.readAllBytes(file) : new byte[0];
+    }
+
+    /**
+     * The current or last recording, for JSON output
+     */
+    public synchronized Map<String, Object> status() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", config.isJfrRecordingEnabled());
+        if (recording != null) {
+            map.put("id", recording.getId());
+            map.put("state", recording.getState().name());
+            map.put("startTime", recording.getStartTime() != null ? recording.getStartTime().toString() : null);
+            map.put("durationSeconds", recording.getDuration() != null ? recording.getDuration().toSeconds() : 0);
+        }
+        return map;
+    }
+
+    @PreDestroy
+    synchronized void discard() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Could not delete flight recording {}", file, e);
+            }
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.suko.vnc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A batch written to the browser or the VNC server
+ */
+@Name("com.suko.vnc.Flush")
+@Label("VNC Batch Flush")
+@Category({"VNC Proxy", "Data Path"})
+@Description("A batch handed to the WebSocket or the VNC server socket, and how long its first byte waited in the batch")
+@Enabled(false)
+@StackTrace(false)
+public class VNCFlushEvent extends Event {
+
+    @Label("Session")
+    public String session;
+
+    @Label("Direction")
+    @Description("to-client or to-server")
+    public String direction;
+
+    @Label("Trigger")
+    @Description("size, deadline, large-message, timer, close or explicit")
+    public String trigger;
+
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Residency")
+    @Description("Time from the first byte entering the batch to the flush")
+    @Timespan
+    public long residency;
+}
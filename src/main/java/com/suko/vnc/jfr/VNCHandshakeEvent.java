@@ -0,0 +1,30 @@
+package com.suko.vnc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One phase of a session's handshake with the VNC server, from entering the phase to leaving it
+ */
+@Name("com.suko.vnc.Handshake")
+@Label("VNC Handshake Phase")
+@Category({"VNC Proxy", "Handshake"})
+@Description("Time a session spent in one handshake phase: connect, version, security, vnc-auth, security-result or server-init")
+@Enabled(false)
+@StackTrace(false)
+public class VNCHandshakeEvent extends Event {
+
+    @Label("Session")
+    public String session;
+
+    @Label("Backend")
+    public String backend;
+
+    @Label("Phase")
+    public String phase;
+}
@@ -0,0 +1,45 @@
+package com.suko.vnc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A session opened or closed; on close with its totals
+ */
+@Name("com.suko.vnc.Session")
+@Label("VNC Session")
+@Category({"VNC Proxy", "Session"})
+@Description("A VNC session opened or closed, with byte totals and lifetime on close")
+@Enabled(false)
+@StackTrace(false)
+public class VNCSessionEvent extends Event {
+
+    @Label("Session")
+    public String session;
+
+    @Label("User")
+    public String user;
+
+    @Label("Action")
+    @Description("open or close")
+    public String action;
+
+    @Label("Bytes Received")
+    @DataAmount
+    public long bytesReceived;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Lifetime")
+    @Timespan(Timespan.MILLISECONDS)
+    public long lifetime;
+}
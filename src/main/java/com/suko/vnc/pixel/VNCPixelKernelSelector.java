@@ -0,0 +1,51 @@
+package com.suko.vnc.pixel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the pixel kernels once per JVM. The vector implementation is only touched
+ * reflectively, so the class never links when jdk.incubator.vector is missing.
+ */
+final class VNCPixelKernelSelector {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCPixelKernelSelector.class);
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNELS = "com.suko.vnc.pixel.VNCVectorPixelKernels";
+
+    static final VNCPixelKernels SELECTED = select();
+
+    private VNCPixelKernelSelector() {
+    }
+
+    private static VNCPixelKernels select() {
+        if (!Boolean.parseBoolean(System.getProperty("vnc.pixel.vector", "true"))) {
+            log.info("Pixel kernels: scalar (vector kernels disabled)");
+            return VNCScalarPixelKernels.INSTANCE;
+        }
+        try {
+            VNCPixelKernels kernels = loadVector();
+            log.info("Pixel kernels: {}", kernels.name());
+            return kernels;
+        } catch (UnsupportedOperationException e) {
+            log.info("Pixel kernels: scalar ({})", e.getMessage());
+            return VNCScalarPixelKernels.INSTANCE;
+        }
+    }
+
+    static VNCPixelKernels loadVector() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            throw new UnsupportedOperationException(VECTOR_MODULE + " not present, start with --add-modules " + VECTOR_MODULE);
+        }
+        try {
+            Class<?> type = Class.forName(VECTOR_KERNELS);
+            if (!(boolean) type.getMethod("isSupported").invoke(null)) {
+                throw new UnsupportedOperationException("no 256-bit vector support on this CPU");
+            }
+            return (VNCPixelKernels) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedOperationException("vector kernels unavailable: " + e, e);
+        }
+    }
+}
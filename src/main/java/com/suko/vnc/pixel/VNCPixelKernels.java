@@ -0,0 +1,89 @@
+package com.suko.vnc.pixel;
+
+import com.suko.vnc.rfb.VNCPixelFormat;
+
+/**
+ * Tight per-pixel loops used by the proxy when it touches framebuffer data.
+ *
+ * Two implementations exist: a plain scalar one and one built on jdk.incubator.vector.
+ * {@link #get()} picks the vector kernels at startup when the incubator module is present
+ * (started with --add-modules jdk.incubator.vector) and the CPU has 256-bit vectors, and
+ * falls back to the scalar kernels otherwise. Both produce identical output.
+ *
+ * All pixel buffers are byte arrays in wire layout. Offsets and strides are in bytes.
+ */
+public interface VNCPixelKernels {
+
+    /**
+     * Kernels selected for this JVM
+     */
+    static VNCPixelKernels get() {
+        return VNCPixelKernelSelector.SELECTED;
+    }
+
+    static VNCPixelKernels scalar() {
+        return VNCScalarPixelKernels.INSTANCE;
+    }
+
+    /**
+     * Vector kernels, regardless of what {@link #get()} selected
+     * @throws UnsupportedOperationException if the incubator module is not available
+     */
+    static VNCPixelKernels vector() {
+        return VNCPixelKernelSelector.loadVector();
+    }
+
+    /**
+     * Whether {@link #convert32To16} / {@link #convert32To8} can convert between the formats:
+     * a 32bpp true-colour source with 8-bit channels and a true-colour target whose channel
+     * maxima are 2^n-1
+     */
+    static boolean canConvert(VNCPixelFormat from, VNCPixelFormat to) {
+        return from.trueColour && from.bitsPerPixel == 32
+                && from.redMax == 255 && from.greenMax == 255 && from.blueMax == 255
+                && to.trueColour && (to.bitsPerPixel == 16 || to.bitsPerPixel == 8)
+                && isMask(to.redMax) && isMask(to.greenMax) && isMask(to.blueMax);
+    }
+
+    private static boolean isMask(int max) {
+        return max > 0 && max <= 255 && (max & (max + 1)) == 0;
+    }
+
+    String name();
+
+    /**
+     * Convert 32bpp pixels to a 16bpp target format
+     */
+    void convert32To16(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels,
+                       VNCPixelFormat from, VNCPixelFormat to);
+
+    /**
+     * Convert 32bpp pixels to an 8bpp target format (e.g. BGR233)
+     */
+    void convert32To8(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels,
+                      VNCPixelFormat from, VNCPixelFormat to);
+
+    /**
+     * Drop the low bits of every channel of 32bpp pixels in place, keeping as many bits per
+     * channel as the precision format has. The pixels stay in their 32bpp format.
+     */
+    void reduce32(byte[] pixels, int offset, int count, VNCPixelFormat format, VNCPixelFormat precision);
+
+    /**
+     * Compare two rectangles of rowBytes x rows that share the same stride
+     */
+    boolean tileEquals(byte[] a, int aOffset, byte[] b, int bOffset, int stride, int rowBytes, int rows);
+
+    /**
+     * Hash a rectangle of rowBytes x rows, for cheap change detection between frames
+     */
+    int tileHash(byte[] pixels, int offset, int stride, int rowBytes, int rows);
+
+    /**
+     * Halve a 32bpp image in both directions, averaging each 2x2 block per byte channel
+     * @param dstWidth width of the output in pixels (source width / 2, rounded down)
+     * @param dstHeight height of the output in pixels (source height / 2, rounded down)
+     */
+    void downscale2x(byte[] src, int srcOffset, int srcStride,
+                     byte[] dst, int dstOffset, int dstStride, int dstWidth, int dstHeight);
+}
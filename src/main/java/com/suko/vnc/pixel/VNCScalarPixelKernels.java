@@ -0,0 +1,191 @@
+package com.suko.vnc.pixel;
+
+import com.suko.vnc.rfb.VNCPixelFormat;
+
+/**
+ * Portable pixel kernels, one pixel (or byte) per loop iteration
+ */
+final class VNCScalarPixelKernels implements VNCPixelKernels {
+
+    static final VNCScalarPixelKernels INSTANCE = new VNCScalarPixelKernels();
+
+    // Tile hash: 8 interleaved 32-bit lanes over 32-byte chunks, so the vector kernels can
+    // compute the same value with one 256-bit multiply-add per chunk
+    static final int HASH_LANES = 8;
+    static final int HASH_CHUNK = HASH_LANES * 4;
+    static final int HASH_PRIME = 0x9E3779B1;
+    static final int HASH_MIX = 0x85EBCA6B;
+
+    static final int CHANNEL_MASK = 0x00FF00FF;
+    static final int ROUNDING = 0x00020002;
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void convert32To16(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels,
+                              VNCPixelFormat from, VNCPixelFormat to) {
+        convert32To16(src, srcOffset, dst, dstOffset, 0, pixels, from, to);
+    }
+
+    static void convert32To16(byte[] src, int srcOffset, byte[] dst, int dstOffset, int start, int end,
+                              VNCPixelFormat from, VNCPixelFormat to) {
+        for (int i = start; i < end; i++) {
+            int pixel = convert(readPixel(src, srcOffset + i * 4, from.bigEndian), from, to);
+            int d = dstOffset + i * 2;
+            if (to.bigEndian) {
+                dst[d] = (byte) (pixel >>> 8);
+                dst[d + 1] = (byte) pixel;
+            } else {
+                dst[d] = (byte) pixel;
+                dst[d + 1] = (byte) (pixel >>> 8);
+            }
+        }
+    }
+
+    @Override
+    public void convert32To8(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels,
+                             VNCPixelFormat from, VNCPixelFormat to) {
+        convert32To8(src, srcOffset, dst, dstOffset, 0, pixels, from, to);
+    }
+
+    static void convert32To8(byte[] src, int srcOffset, byte[] dst, int dstOffset, int start, int end,
+                             VNCPixelFormat from, VNCPixelFormat to) {
+        for (int i = start; i < end; i++) {
+            dst[dstOffset + i] = (byte) convert(readPixel(src, srcOffset + i * 4, from.bigEndian), from, to);
+        }
+    }
+
+    private static int convert(int pixel, VNCPixelFormat from, VNCPixelFormat to) {
+        int r = (pixel >>> from.redShift & 0xFF) >>> loss(to.redMax);
+        int g = (pixel >>> from.greenShift & 0xFF) >>> loss(to.greenMax);
+        int b = (pixel >>> from.blueShift & 0xFF) >>> loss(to.blueMax);
+        return r << to.redShift | g << to.greenShift | b << to.blueShift;
+    }
+
+    /**
+     * Bits dropped when narrowing an 8-bit channel to the given maximum
+     */
+    static int loss(int max) {
+        return 8 - Integer.bitCount(max);
+    }
+
+    static int readPixel(byte[] src, int offset, boolean bigEndian) {
+        int b0 = src[offset] & 0xFF;
+        int b1 = src[offset + 1] & 0xFF;
+        int b2 = src[offset + 2] & 0xFF;
+        int b3 = src[offset + 3] & 0xFF;
+        return bigEndian
+                ? b0 << 24 | b1 << 16 | b2 << 8 | b3
+                : b3 << 24 | b2 << 16 | b1 << 8 | b0;
+    }
+
+    @Override
+    public void reduce32(byte[] pixels, int offset, int count, VNCPixelFormat format, VNCPixelFormat precision) {
+        reduce32(pixels, offset, 0, count * 4, reductionMask(format, precision));
+    }
+
+    static void reduce32(byte[] pixels, int offset, int start, int end, byte[] mask) {
+        for (int i = start; i < end; i++) {
+            pixels[offset + i] &= mask[i & 3];
+        }
+    }
+
+    /**
+     * Per-byte AND mask, in wire order, that keeps the top bits of each channel
+     */
+    static byte[] reductionMask(VNCPixelFormat format, VNCPixelFormat precision) {
+        int keep = ~0;
+        keep &= ~(((1 << loss(precision.redMax)) - 1) << format.redShift);
+        keep &= ~(((1 << loss(precision.greenMax)) - 1) << format.greenShift);
+        keep &= ~(((1 << loss(precision.blueMax)) - 1) << format.blueShift);
+        byte[] mask = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int shift = format.bigEndian ? 24 - 8 * i : 8 * i;
+            mask[i] = (byte) (keep >>> shift);
+        }
+        return mask;
+    }
+
+    @Override
+    public boolean tileEquals(byte[] a, int aOffset, byte[] b, int bOffset, int stride, int rowBytes, int rows) {
+        for (int y = 0; y < rows; y++) {
+            int ra = aOffset + y * stride;
+            int rb = bOffset + y * stride;
+            for (int x = 0; x < rowBytes; x++) {
+                if (a[ra + x] != b[rb + x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int tileHash(byte[] pixels, int offset, int stride, int rowBytes, int rows) {
+        int[] lanes = new int[HASH_LANES];
+        int tail = 0;
+        int chunked = rowBytes - rowBytes % HASH_CHUNK;
+        for (int y = 0; y < rows; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < chunked; x += HASH_CHUNK) {
+                for (int lane = 0; lane < HASH_LANES; lane++) {
+                    lanes[lane] = lanes[lane] * HASH_PRIME + readPixel(pixels, row + x + lane * 4, false);
+                }
+            }
+            tail = hashTail(pixels, row + chunked, rowBytes - chunked, tail);
+        }
+        return finishHash(lanes, tail);
+    }
+
+    static int hashTail(byte[] pixels, int offset, int length, int tail) {
+        for (int i = 0; i < length; i++) {
+            tail = tail * 31 + (pixels[offset + i] & 0xFF);
+        }
+        return tail;
+    }
+
+    static int finishHash(int[] lanes, int tail) {
+        int h = tail;
+        for (int lane : lanes) {
+            h = h * HASH_MIX + lane;
+        }
+        h ^= h >>> 16;
+        h *= HASH_MIX;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    @Override
+    public void downscale2x(byte[] src, int srcOffset, int srcStride,
+                            byte[] dst, int dstOffset, int dstStride, int dstWidth, int dstHeight) {
+        for (int y = 0; y < dstHeight; y++) {
+            downscaleRow(src, srcOffset + 2 * y * srcStride, srcStride, dst, dstOffset + y * dstStride, 0, dstWidth);
+        }
+    }
+
+    /**
+     * Average 2x2 blocks for output pixels [start, end) of one row. Two channels are summed
+     * at a time in 16-bit fields of an int, which leaves room for four 8-bit values.
+     */
+    static void downscaleRow(byte[] src, int row, int srcStride, byte[] dst, int out, int start, int end) {
+        for (int x = start; x < end; x++) {
+            int s = row + x * 8;
+            int p0 = readPixel(src, s, false);
+            int p1 = readPixel(src, s + 4, false);
+            int p2 = readPixel(src, s + srcStride, false);
+            int p3 = readPixel(src, s + srcStride + 4, false);
+            int low = (p0 & CHANNEL_MASK) + (p1 & CHANNEL_MASK) + (p2 & CHANNEL_MASK) + (p3 & CHANNEL_MASK);
+            int high = (p0 >>> 8 & CHANNEL_MASK) + (p1 >>> 8 & CHANNEL_MASK)
+                    + (p2 >>> 8 & CHANNEL_MASK) + (p3 >>> 8 & CHANNEL_MASK);
+            int pixel = (low + ROUNDING) >>> 2 & CHANNEL_MASK | ((high + ROUNDING) >>> 2 & CHANNEL_MASK) << 8;
+            int d = out + x * 4;
+            dst[d] = (byte) pixel;
+            dst[d + 1] = (byte) (pixel >>> 8);
+            dst[d + 2] = (byte) (pixel >>> 16);
+            dst[d + 3] = (byte) (pixel >>> 24);
+        }
+    }
+}
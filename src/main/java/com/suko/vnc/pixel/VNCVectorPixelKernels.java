@@ -0,0 +1,186 @@
+package com.suko.vnc.pixel;
+
+import static com.suko.vnc.pixel.VNCScalarPixelKernels.CHANNEL_MASK;
+import static com.suko.vnc.pixel.VNCScalarPixelKernels.HASH_CHUNK;
+import static com.suko.vnc.pixel.VNCScalarPixelKernels.HASH_LANES;
+import static com.suko.vnc.pixel.VNCScalarPixelKernels.HASH_PRIME;
+import static com.suko.vnc.pixel.VNCScalarPixelKernels.ROUNDING;
+
+import com.suko.vnc.rfb.VNCPixelFormat;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pixel kernels on 256-bit vectors (8 pixels per step). Only loaded through
+ * {@link VNCPixelKernelSelector}; the JVM needs --add-modules jdk.incubator.vector.
+ * Tails shorter than one vector go through the scalar code so results are identical.
+ */
+final class VNCVectorPixelKernels implements VNCPixelKernels {
+
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_256;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_128;
+    private static final VectorSpecies<Byte> BYTES_QUARTER = ByteVector.SPECIES_64;
+
+    private static final int LANES = INTS.length();
+    private static final int STEP = BYTES.length();
+
+    // Lane i + 1 into lane i, and the even lanes of two vectors packed into one
+    private static final VectorShuffle<Integer> NEXT_LANE = VectorShuffle.fromOp(INTS, i -> (i + 1) % LANES);
+    private static final VectorShuffle<Integer> EVEN_LANES = VectorShuffle.fromOp(INTS, i -> 2 * i);
+
+    public static boolean isSupported() {
+        return IntVector.SPECIES_PREFERRED.vectorBitSize() >= 256;
+    }
+
+    @Override
+    public String name() {
+        return "vector (" + INTS.vectorBitSize() + "-bit)";
+    }
+
+    @Override
+    public void convert32To16(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels,
+                              VNCPixelFormat from, VNCPixelFormat to) {
+        int i = 0;
+        for (; i + LANES <= pixels; i += LANES) {
+            ShortVector out = (ShortVector) convert(src, srcOffset + i * 4, from, to)
+                    .convertShape(VectorOperators.I2S, SHORTS, 0);
+            if (to.bigEndian) {
+                out = out.lanewise(VectorOperators.REVERSE_BYTES);
+            }
+            out.reinterpretAsBytes().intoArray(dst, dstOffset + i * 2);
+        }
+        VNCScalarPixelKernels.convert32To16(src, srcOffset, dst, dstOffset, i, pixels, from, to);
+    }
+
+    @Override
+    public void convert32To8(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels,
+                             VNCPixelFormat from, VNCPixelFormat to) {
+        int i = 0;
+        for (; i + LANES <= pixels; i += LANES) {
+            ByteVector out = (ByteVector) convert(src, srcOffset + i * 4, from, to)
+                    .convertShape(VectorOperators.I2B, BYTES_QUARTER, 0);
+            out.intoArray(dst, dstOffset + i);
+        }
+        VNCScalarPixelKernels.convert32To8(src, srcOffset, dst, dstOffset, i, pixels, from, to);
+    }
+
+    private static IntVector convert(byte[] src, int offset, VNCPixelFormat from, VNCPixelFormat to) {
+        IntVector pixel = load(src, offset);
+        if (from.bigEndian) {
+            pixel = pixel.lanewise(VectorOperators.REVERSE_BYTES);
+        }
+        IntVector r = channel(pixel, from.redShift, to.redMax, to.redShift);
+        IntVector g = channel(pixel, from.greenShift, to.greenMax, to.greenShift);
+        IntVector b = channel(pixel, from.blueShift, to.blueMax, to.blueShift);
+        return r.or(g).or(b);
+    }
+
+    private static IntVector channel(IntVector pixel, int fromShift, int toMax, int toShift) {
+        return pixel.lanewise(VectorOperators.LSHR, fromShift)
+                .and(0xFF)
+                .lanewise(VectorOperators.LSHR, VNCScalarPixelKernels.loss(toMax))
+                .lanewise(VectorOperators.LSHL, toShift);
+    }
+
+    /**
+     * Eight little-endian ints from the byte array
+     */
+    private static IntVector load(byte[] src, int offset) {
+        return ByteVector.fromArray(BYTES, src, offset).reinterpretAsInts();
+    }
+
+    @Override
+    public void reduce32(byte[] pixels, int offset, int count, VNCPixelFormat format, VNCPixelFormat precision) {
+        byte[] mask = VNCScalarPixelKernels.reductionMask(format, precision);
+        byte[] pattern = new byte[STEP];
+        for (int i = 0; i < STEP; i++) {
+            pattern[i] = mask[i & 3];
+        }
+        ByteVector maskVector = ByteVector.fromArray(BYTES, pattern, 0);
+        int bytes = count * 4;
+        int i = 0;
+        for (; i + STEP <= bytes; i += STEP) {
+            ByteVector.fromArray(BYTES, pixels, offset + i).and(maskVector).intoArray(pixels, offset + i);
+        }
+        VNCScalarPixelKernels.reduce32(pixels, offset, i, bytes, mask);
+    }
+
+    @Override
+    public boolean tileEquals(byte[] a, int aOffset, byte[] b, int bOffset, int stride, int rowBytes, int rows) {
+        int vectorBytes = rowBytes - rowBytes % STEP;
+        for (int y = 0; y < rows; y++) {
+            int ra = aOffset + y * stride;
+            int rb = bOffset + y * stride;
+            for (int x = 0; x < vectorBytes; x += STEP) {
+                ByteVector va = ByteVector.fromArray(BYTES, a, ra + x);
+                ByteVector vb = ByteVector.fromArray(BYTES, b, rb + x);
+                if (va.compare(VectorOperators.NE, vb).anyTrue()) {
+                    return false;
+                }
+            }
+            for (int x = vectorBytes; x < rowBytes; x++) {
+                if (a[ra + x] != b[rb + x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int tileHash(byte[] pixels, int offset, int stride, int rowBytes, int rows) {
+        IntVector lanes = IntVector.zero(INTS);
+        int tail = 0;
+        int chunked = rowBytes - rowBytes % HASH_CHUNK;
+        for (int y = 0; y < rows; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < chunked; x += HASH_CHUNK) {
+                lanes = lanes.mul(HASH_PRIME).add(load(pixels, row + x));
+            }
+            tail = VNCScalarPixelKernels.hashTail(pixels, row + chunked, rowBytes - chunked, tail);
+        }
+        int[] values = new int[HASH_LANES];
+        lanes.intoArray(values, 0);
+        return VNCScalarPixelKernels.finishHash(values, tail);
+    }
+
+    @Override
+    public void downscale2x(byte[] src, int srcOffset, int srcStride,
+                            byte[] dst, int dstOffset, int dstStride, int dstWidth, int dstHeight) {
+        // Each step reads 16 source pixels from two rows and writes 8 output pixels
+        int vectorWidth = dstWidth - dstWidth % LANES;
+        for (int y = 0; y < dstHeight; y++) {
+            int row = srcOffset + 2 * y * srcStride;
+            int out = dstOffset + y * dstStride;
+            for (int x = 0; x < vectorWidth; x += LANES) {
+                int s = row + x * 8;
+                IntVector left = blockAverages(load(src, s), load(src, s + srcStride));
+                IntVector right = blockAverages(load(src, s + STEP), load(src, s + srcStride + STEP));
+                left.rearrange(EVEN_LANES, right).reinterpretAsBytes().intoArray(dst, out + x * 4);
+            }
+            VNCScalarPixelKernels.downscaleRow(src, row, srcStride, dst, out, vectorWidth, dstWidth);
+        }
+    }
+
+    /**
+     * Averaged 2x2 blocks of eight source pixels; the results land in the even lanes
+     */
+    private static IntVector blockAverages(IntVector top, IntVector bottom) {
+        IntVector low = top.and(CHANNEL_MASK).add(bottom.and(CHANNEL_MASK));
+        IntVector high = top.lanewise(VectorOperators.LSHR, 8).and(CHANNEL_MASK)
+                .add(bottom.lanewise(VectorOperators.LSHR, 8).and(CHANNEL_MASK));
+        low = low.add(low.rearrange(NEXT_LANE));
+        high = high.add(high.rearrange(NEXT_LANE));
+        return average(low).or(average(high).lanewise(VectorOperators.LSHL, 8));
+    }
+
+    private static IntVector average(IntVector sums) {
+        return sums.add(ROUNDING).lanewise(VectorOperators.LSHR, 2).and(CHANNEL_MASK);
+    }
+}
@@ -1,15 +1,32 @@
 package com.suko.vnc.rest;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import com.suko.vnc.config.VNCProxyConfig;
+import com.suko.vnc.rfb.VNCEncodings;
+import com.suko.vnc.rfb.VNCTrafficStats;
+import com.suko.vnc.websocket.VNCAdmissionController;
+import com.suko.vnc.websocket.VNCCompressionSampler;
 import com.suko.vnc.websocket.VNCConnection;
 import com.suko.vnc.websocket.VNCConnectionManager;
+import com.suko.vnc.websocket.VNCEgressScheduler;
+import com.suko.vnc.websocket.VNCEventLoopMonitor;
+import com.suko.vnc.websocket.VNCHandshakeStats;
+import com.suko.vnc.websocket.VNCInputLatencyTracker;
+import com.suko.vnc.websocket.VNCMetricsHistory;
 import com.suko.vnc.websocket.VNCPerformanceMonitor;
+import com.suko.vnc.websocket.VNCRttEstimator;
+import com.suko.vnc.websocket.VNCServerRttProbe;
+import com.suko.vnc.websocket.VNCSessionCost;
+import com.suko.vnc.websocket.VNCUpdatePacer;
 import com.suko.vnc.security.VNCAuthService;
 
 import jakarta.inject.Inject;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
@@ -29,6 +46,24 @@ public class VNCPerformanceResource {
     @Inject
     VNCAuthService authService;
     
+    @Inject
+    VNCEgressScheduler egressScheduler;
+    
+    @Inject
+    VNCAdmissionController admissionController;
+    
+    @Inject
+    VNCEventLoopMonitor eventLoopMonitor;
+    
+    @Inject
+    VNCHandshakeStats handshakeStats;
+    
+    @Inject
+    VNCMetricsHistory metricsHistory;
+    
+    @Inject
+    VNCProxyConfig proxyConfig;
+    
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response getPerformanceStats(@QueryParam("sessionId") String sessionId) {
@@ -71,6 +106,88 @@ public class VNCPerformanceResource {
                         connStats.put("lastLatencyUpdate", conn.lastLatencyUpdate);
                         connStats.put("clientBufferSize", conn.clientHandler != null ? conn.clientHandler.getBufferSize() : 0);
                         connStats.put("serverBufferSize", conn.serverHandler != null ? conn.serverHandler.getBufferSize() : 0);
+                        connStats.put("proxyEncodedRects", conn.proxyEncodedRects);
+                        connStats.put("proxyEncodedParallelRects", conn.proxyEncodedParallelRects);
+                        connStats.put("proxyEncodingRatio", conn.getProxyEncodingRatio());
+                        connStats.put("depthConvertedRects", conn.depthConvertedRects);
+                        connStats.put("depthBytesSaved", conn.depthBytesIn - conn.depthBytesOut);
+                        connStats.put("reducedDepth", conn.reducedDepth);
+                        connStats.put("clientBandwidth", conn.clientBandwidth);
+                        connStats.put("scaleFactor", conn.scaleFactor);
+                        connStats.put("scaleBytesSaved", conn.scaleBytesIn - conn.scaleBytesOut);
+                        connStats.put("scaleCpuMillis", conn.scaleNanos / 1_000_000);
+                        connStats.put("viewportRestrictedRequests", conn.viewportRestrictedRequests);
+                        connStats.put("viewportRefreshes", conn.viewportRefreshes);
+                        connStats.put("viewportPixelsSkipped", conn.viewportPixelsSkipped);
+                        connStats.put("framebufferUpdates", conn.framebufferUpdates);
+                        connStats.put("pacingMaxFps", conn.pacingMaxFps);
+                        connStats.put("pacingHeldRequests", conn.pacingHeldRequests);
+                        VNCUpdatePacer pacer = conn.updatePacer;
+                        if (pacer != null) {
+                            connStats.put("pacingHeldMillis", pacer.getHeldNanos() / 1_000_000);
+                            connStats.put("pacingCollapsedRequests", pacer.getCollapsedRequests());
+                            connStats.put("pacingServerUpdatesAvoided", pacer.getUpdatesAvoided());
+                            connStats.put("pacingBytesAvoided", conn.getPacingBytesAvoided());
+                        }
+                        connStats.put("clientQueuedBytes", conn.clientHandler != null ? conn.clientHandler.getQueuedBytes() : 0);
+                        connStats.put("maxClientQueuedBytes", conn.maxQueuedBytes);
+                        connStats.put("lagHeldRequests", conn.lagHeldRequests);
+                        connStats.put("lagEpisodes", conn.lagEpisodes);
+                        connStats.put("lagRefreshes", conn.lagRefreshes);
+                        connStats.put("continuousUpdates", conn.protocolHandler != null && conn.protocolHandler.isContinuousUpdatesActive());
+                        connStats.put("continuousAbsorbedRequests", conn.continuousAbsorbedRequests);
+                        connStats.put("continuousPauses", conn.continuousPauses);
+                        connStats.put("fencesAnswered", conn.fencesAnswered);
+                        connStats.put("fencesDeferred", conn.fencesDeferred);
+                        connStats.put("inputFastLaneWrites", conn.inputFastLaneWrites);
+                        connStats.put("tailFlushes", conn.tailFlushes);
+                        connStats.put("serverEncodings", encodingNames(conn.serverEncodings));
+                        connStats.put("encodingPolicyChanges", conn.encodingPolicyChanges);
+                        Thread eventLoopThread = conn.eventLoopThread;
+                        connStats.put("eventLoop", eventLoopThread != null ? eventLoopThread.getName() : null);
+                        connStats.put("offLoopClientMessages", conn.offLoopClientMessages);
+                        connStats.put("clipboardStreams", conn.clipboardStreams);
+                        connStats.put("clipboardStreamBytes", conn.clipboardStreamBytes);
+                        connStats.put("clipboardReceived", conn.clipboardReceived);
+                        connStats.put("clipboardDropped", conn.clipboardDropped);
+                        connStats.put("clipboardLossy", conn.clipboardLossy);
+                        connStats.put("serverExtendedClipboard", conn.serverExtendedClipboard);
+                        connStats.put("handshake", conn.handshakeTimer.toMap());
+                        VNCSessionCost cost = conn.cost;
+                        if (cost != null) {
+                            connStats.put("cost", cost.toMap());
+                        }
+                        Map<String, Object> batching = new HashMap<>();
+                        batching.put("to-client", conn.clientBatches.toMap());
+                        batching.put("to-server", conn.serverBatches.toMap());
+                        connStats.put("batching", batching);
+                        VNCTrafficStats traffic = conn.trafficStats;
+                        if (traffic != null) {
+                            connStats.put("traffic", traffic.toMap());
+                        }
+                        VNCCompressionSampler compression = conn.compressionSampler;
+                        if (compression != null) {
+                            connStats.put("compression", compression.toMap());
+                        }
+                        VNCEgressScheduler.Flow egressFlow = conn.egressFlow;
+                        if (egressFlow != null) {
+                            connStats.put("qos", egressFlow.toMap());
+                        }
+                        VNCRttEstimator browserRtt = conn.browserRtt;
+                        if (browserRtt != null && browserRtt.getHistogram().getCount() > 0) {
+                            connStats.put("browserRtt", browserRtt.toMap());
+                        }
+                        VNCServerRttProbe serverRtt = conn.serverRtt;
+                        if (serverRtt != null && serverRtt.getRtt().getHistogram().getCount() > 0) {
+                            connStats.put("serverRtt", serverRtt.getRtt().toMap());
+                            // Browser leg is reported one-way
+                            connStats.put("endToEndRttMillis", 2 * conn.browserToProxyLatency + serverRtt.getRtt().getSmoothedMicros() / 1000.0);
+                        }
+                        VNCInputLatencyTracker inputLatency = conn.inputLatency;
+                        if (inputLatency != null) {
+                            connStats.put("inputLatency", inputLatency.getHistogram().toMap());
+                        }
+                        connStats.put("lagAverageRecoveryMillis", conn.lagEpisodes > 0 ? conn.lagHeldNanos / conn.lagEpisodes / 1_000_000 : 0);
                         return connStats;
                     }
                 ));
@@ -98,6 +215,30 @@ public class VNCPerformanceResource {
             response.put("userAverageLatency", userAverageLatency);
             response.put("userThroughput", userThroughput);
             response.put("connections", connectionDetails);
+            VNCTrafficStats totalTraffic = performanceMonitor.getTrafficTotals();
+            if (!totalTraffic.isEmpty()) {
+                response.put("totalTraffic", totalTraffic.toMap());
+            }
+            Map<String, Object> batching = new HashMap<>();
+            performanceMonitor.getBatchTotals().forEach((direction, batches) -> batching.put(direction, batches.toMap()));
+            response.put("batching", batching);
+            Map<String, Object> inputLatencyByBackend = new HashMap<>();
+            performanceMonitor.getInputLatencyByBackend().forEach((backend, histogram) ->
+                    inputLatencyByBackend.put(backend, histogram.toMap()));
+            if (!inputLatencyByBackend.isEmpty()) {
+                response.put("inputLatencyByBackend", inputLatencyByBackend);
+            }
+            response.put("handshakes", handshakeStats.toMap());
+            List<Map<String, Object>> heaviestSessions = performanceMonitor.getHeaviestSessions(proxyConfig.getCostAccountingTopSessions());
+            if (!heaviestSessions.isEmpty()) {
+                response.put("heaviestSessions", heaviestSessions);
+            }
+            response.put("admission", admissionController.toMap());
+            response.put("eventLoops", eventLoopMonitor.toMap(connectionManager.getActiveConnections().values()));
+            Map<String, Map<String, Object>> qosClasses = egressScheduler.getClassStats();
+            if (!qosClasses.isEmpty()) {
+                response.put("qosClasses", qosClasses);
+            }
             
             return Response.ok(response).build();
             
@@ -107,6 +248,33 @@ public class VNCPerformanceResource {
         }
     }
     
+    /**
+     * Recent history of the proxy and of the caller's sessions, for charting
+     * @param range seconds back from now
+     * @param points most points per series; samples are merged to fit
+     */
+    @GET
+    @Path("/history")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getHistory(@QueryParam("sessionId") String sessionId,
+                               @QueryParam("range") @DefaultValue("300") long range,
+                               @QueryParam("points") @DefaultValue("300") int points) {
+        if (sessionId == null || sessionId.trim().isEmpty()) {
+            Map<String, String> error = Map.of("error", "Session ID is required");
+            return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+        }
+        VNCAuthService.VNCSession session = authService.getSession(sessionId);
+        if (session == null) {
+            Map<String, String> error = Map.of("error", "Invalid or expired session");
+            return Response.status(Response.Status.UNAUTHORIZED).entity(error).build();
+        }
+        if (range <= 0 || points <= 0) {
+            Map<String, String> error = Map.of("error", "range and points must be positive");
+            return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+        }
+        return Response.ok(metricsHistory.getHistory(range, Math.min(points, 3600), getUserConnections(sessionId).keySet())).build();
+    }
+    
     @GET
     @Path("/summary")
     @Produces(MediaType.TEXT_PLAIN)
@@ -182,4 +350,14 @@ public class VNCPerformanceResource {
             })
             .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
     }
-} 
\ No newline at end of file
+    
+    private static List<String> encodingNames(int[] encodings) {
+        List<String> names = new ArrayList<>();
+        if (encodings != null) {
+            for (int encoding : encodings) {
+                names.add(VNCEncodings.name(encoding));
+            }
+        }
+        return names;
+    }
+}
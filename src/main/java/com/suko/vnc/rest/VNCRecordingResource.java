@@ -0,0 +1,121 @@
+package com.suko.vnc.rest;
+
+import java.util.Map;
+
+import com.suko.vnc.config.VNCProxyConfig;
+import com.suko.vnc.jfr.VNCFlightRecorder;
+import com.suko.vnc.security.VNCAuthService;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Start a time-bounded flight recording with the proxy's events and download it
+ */
+@Path("/api/vnc/performance/recording")
+public class VNCRecordingResource {
+
+    @Inject
+    VNCFlightRecorder flightRecorder;
+
+    @Inject
+    VNCAuthService authService;
+
+    @Inject
+    VNCProxyConfig config;
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response start(@QueryParam("sessionId") String sessionId, @QueryParam("seconds") Long seconds) {
+        Response denied = checkAccess(sessionId);
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            flightRecorder.start(seconds != null ? seconds : 60);
+            return Response.ok(flightRecorder.status()).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.CONFLICT).entity(Map.of("error", e.getMessage())).build();
+        } catch (Exception e) {
+            Map<String, String> error = Map.of("error", "Failed to start recording: " + e.getMessage());
+            return Response.serverError().entity(error).build();
+        }
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response status(@QueryParam("sessionId") String sessionId) {
+        Response denied = checkAccess(sessionId);
+        if (denied != null) {
+            return denied;
+        }
+        return Response.ok(flightRecorder.status()).build();
+    }
+
+    @GET
+    @Path("/{id}")
+    @Produces({MediaType.APPLICATION_OCTET_STREAM, MediaType.APPLICATION_JSON})
+    public Response dump(@PathParam("id") long id, @QueryParam("sessionId") String sessionId) {
+        Response denied = checkAccess(sessionId);
+        if (denied != null) {
+            return denied;
+        }
+        try {
+            byte[] recording = flightRecorder.dump(id);
+            if (recording == null) {
+                return Response.status(Response.Status.NOT_FOUND)
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(Map.of("error", "No such recording"))
+                    .build();
+            }
+            return Response.ok(recording, MediaType.APPLICATION_OCTET_STREAM)
+                .header("Content-Disposition", "attachment; filename=\"vnc-proxy-" + id + ".jfr\"")
+                .build();
+        } catch (Exception e) {
+            return Response.serverError()
+                .type(MediaType.APPLICATION_JSON)
+                .entity(Map.of("error", "Failed to dump recording: " + e.getMessage()))
+                .build();
+        }
+    }
+
+    /**
+     * Recordings hold data of every session on the node: only for a valid session of an operator,
+     * and only when enabled in the configuration
+     */
+    private Response checkAccess(String sessionId) {
+        if (sessionId == null || sessionId.trim().isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(Map.of("error", "Session ID is required"))
+                .build();
+        }
+        VNCAuthService.VNCSession session = authService.getSession(sessionId);
+        if (session == null) {
+            return Response.status(Response.Status.UNAUTHORIZED)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(Map.of("error", "Invalid or expired session"))
+                .build();
+        }
+        if (!config.isJfrOperator(session.getUserId())) {
+            return Response.status(Response.Status.FORBIDDEN)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(Map.of("error", "Flight recordings are for operators only"))
+                .build();
+        }
+        if (!config.isJfrRecordingEnabled()) {
+            return Response.status(Response.Status.FORBIDDEN)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(Map.of("error", "Flight recordings are disabled"))
+                .build();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,198 @@
+package com.suko.vnc.rfb;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Incremental parser for the client-to-server RFB stream once the handshake is done.
+ *
+ * Every complete message is offered to the listener, which returns the bytes to send in its
+ * place. Messages that come back unchanged are coalesced so that a WebSocket frame nobody
+ * rewrites still reaches the server as a single write. Unknown message types switch the reader
+ * to passthrough mode for the rest of the session.
+ *
+ * Feed it from the thread that receives WebSocket messages. {@link #inject} may be called from
+ * any thread; feeding and injecting are serialized so injected bytes land between two messages.
+ */
+public class VNCClientMessageReader {
+
+    public static final int SET_PIXEL_FORMAT = 0;
+    public static final int SET_ENCODINGS = 2;
+    public static final int FRAMEBUFFER_UPDATE_REQUEST = 3;
+    public static final int KEY_EVENT = 4;
+    public static final int POINTER_EVENT = 5;
+    public static final int CLIENT_CUT_TEXT = 6;
+    public static final int ENABLE_CONTINUOUS_UPDATES = 150;
+    public static final int CLIENT_FENCE = 248;
+    public static final int XVP = 250;
+    public static final int SET_DESKTOP_SIZE = 251;
+    public static final int QEMU = 255;
+
+    /**
+     * Callbacks for parsed client messages
+     */
+    public interface Listener {
+
+        /**
+         * A complete client message
+         * @return {@code message} itself to forward it unchanged, replacement bytes, or null to drop it
+         */
+        Buffer onMessage(int type, Buffer message);
+
+        /**
+         * Bytes to send to the server, in stream order
+         */
+        void forward(Buffer data);
+
+        /**
+         * The reader lost track of message boundaries and is now forwarding verbatim
+         */
+        default void onDesync(String reason) {
+        }
+    }
+
+    private final Listener listener;
+    private Buffer carry;
+    private boolean passthrough;
+
+    public VNCClientMessageReader(Listener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    /**
+     * Send proxy-generated client messages to the server between two client messages
+     * @return false if the reader is in passthrough mode and the stream cannot be interleaved
+     */
+    public synchronized boolean inject(Buffer data) {
+        if (passthrough) {
+            return false;
+        }
+        // Partial messages stay in carry until complete, so the upstream is at a boundary here
+        listener.forward(data);
+        return true;
+    }
+
+    /**
+     * Feed the next chunk of the client stream
+     */
+    public synchronized void feed(Buffer data) {
+        if (passthrough) {
+            listener.forward(data);
+            return;
+        }
+        Buffer in = carry == null ? data : carry.appendBuffer(data);
+        carry = null;
+        int pos = 0;
+        int segmentStart = 0;
+        while (pos < in.length()) {
+            int length = messageLength(in, pos);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0) {
+                passthrough = true;
+                listener.onDesync("unknown client message type " + in.getUnsignedByte(pos));
+                break;
+            }
+            Buffer message = in.slice(pos, pos + length);
+            Buffer replacement = listener.onMessage(in.getUnsignedByte(pos), message);
+            if (replacement != message) {
+                if (pos > segmentStart) {
+                    listener.forward(in.slice(segmentStart, pos));
+                }
+                if (replacement != null && replacement.length() > 0) {
+                    listener.forward(replacement);
+                }
+                segmentStart = pos + length;
+            }
+            pos += length;
+        }
+        if (passthrough) {
+            pos = in.length();
+        }
+        if (pos > segmentStart) {
+            listener.forward(in.slice(segmentStart, pos));
+        }
+        if (pos < in.length()) {
+            carry = in.getBuffer(pos, in.length());
+        }
+    }
+
+    /**
+     * Length of the message starting at pos, 0 if more data is needed, -1 if the type is unknown
+     */
+    private static int messageLength(Buffer in, int pos) {
+        int available = in.length() - pos;
+        int type = in.getUnsignedByte(pos);
+        int length;
+        switch (type) {
+            case SET_PIXEL_FORMAT:
+                length = 20;
+                break;
+            case SET_ENCODINGS:
+                if (available < 4) {
+                    return 0;
+                }
+                length = 4 + 4 * in.getUnsignedShort(pos + 2);
+                break;
+            case FRAMEBUFFER_UPDATE_REQUEST:
+            case ENABLE_CONTINUOUS_UPDATES:
+                length = 10;
+                break;
+            case KEY_EVENT:
+                length = 8;
+                break;
+            case POINTER_EVENT:
+                length = 6;
+                break;
+            case CLIENT_CUT_TEXT:
+                if (available < 8) {
+                    return 0;
+                }
+                // Extended clipboard sends a negative length
+                long textLength = Math.abs((long) in.getInt(pos + 4));
+                if (textLength > Integer.MAX_VALUE - 8) {
+                    return -1;
+                }
+                length = 8 + (int) textLength;
+                break;
+            case CLIENT_FENCE:
+                if (available < 9) {
+                    return 0;
+                }
+                length = 9 + in.getUnsignedByte(pos + 8);
+                break;
+            case XVP:
+                length = 4;
+                break;
+            case SET_DESKTOP_SIZE:
+                if (available < 8) {
+                    return 0;
+                }
+                length = 8 + 16 * in.getUnsignedByte(pos + 6);
+                break;
+            case QEMU:
+                if (available < 2) {
+                    return 0;
+                }
+                int subtype = in.getUnsignedByte(pos + 1);
+                if (subtype == 0) {
+                    length = 12; // extended key event
+                } else if (subtype == 1) {
+                    if (available < 4) {
+                        return 0;
+                    }
+                    length = in.getUnsignedShort(pos + 2) == 2 ? 10 : 4; // audio
+                } else {
+                    return -1;
+                }
+                break;
+            default:
+                return -1;
+        }
+        return available >= length ? length : 0;
+    }
+}
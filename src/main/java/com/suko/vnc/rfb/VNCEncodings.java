@@ -0,0 +1,144 @@
+package com.suko.vnc.rfb;
+
+/**
+ * RFB encoding and pseudo-encoding numbers understood by the proxy
+ */
+public final class VNCEncodings {
+
+    public static final int RAW = 0;
+    public static final int COPY_RECT = 1;
+    public static final int RRE = 2;
+    public static final int HEXTILE = 5;
+    public static final int TIGHT = 7;
+    public static final int ZRLE = 16;
+    public static final int H264 = 50;
+    public static final int TIGHT_PNG = -260;
+
+    // Pseudo-encodings
+    public static final int DESKTOP_SIZE = -223;
+    public static final int LAST_RECT = -224;
+    public static final int POINTER_POS = -232;
+    public static final int CURSOR = -239;
+    public static final int X_CURSOR = -240;
+    public static final int QEMU_EXTENDED_KEY_EVENT = -258;
+    public static final int QEMU_LED_STATE = -261;
+    public static final int DESKTOP_NAME = -307;
+    public static final int EXTENDED_DESKTOP_SIZE = -308;
+    public static final int FENCE = -312;
+    public static final int CONTINUOUS_UPDATES = -313;
+    public static final int VMWARE_LED_STATE = 0x574D5668;
+    public static final int COMPRESS_LEVEL_0 = -256;
+    public static final int COMPRESS_LEVEL_9 = -247;
+    public static final int QUALITY_LEVEL_0 = -32;
+    public static final int QUALITY_LEVEL_9 = -23;
+
+    private static final int[] NAMED = {
+        RAW, COPY_RECT, RRE, HEXTILE, TIGHT, ZRLE, H264, TIGHT_PNG, DESKTOP_SIZE, LAST_RECT,
+        POINTER_POS, CURSOR, X_CURSOR, QEMU_EXTENDED_KEY_EVENT, QEMU_LED_STATE, DESKTOP_NAME,
+        EXTENDED_DESKTOP_SIZE, FENCE, CONTINUOUS_UPDATES, VMWARE_LED_STATE
+    };
+
+    private VNCEncodings() {
+    }
+
+    /**
+     * Whether the proxy knows how to find the end of a rectangle of this encoding
+     * without decoding it
+     */
+    public static boolean isFramable(int encoding) {
+        switch (encoding) {
+            case RAW:
+            case COPY_RECT:
+            case RRE:
+            case HEXTILE:
+            case TIGHT:
+            case ZRLE:
+            case H264:
+            case TIGHT_PNG:
+            case DESKTOP_SIZE:
+            case LAST_RECT:
+            case POINTER_POS:
+            case CURSOR:
+            case X_CURSOR:
+            case QEMU_EXTENDED_KEY_EVENT:
+            case QEMU_LED_STATE:
+            case DESKTOP_NAME:
+            case EXTENDED_DESKTOP_SIZE:
+            case FENCE:
+            case CONTINUOUS_UPDATES:
+            case VMWARE_LED_STATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether this is a pseudo-encoding, i.e. a capability flag rather than a way of sending pixels
+     */
+    public static boolean isPseudo(int encoding) {
+        return (encoding < 0 && encoding != TIGHT_PNG) || encoding == VMWARE_LED_STATE;
+    }
+
+    /**
+     * Parse an encoding from its name (as returned by {@link #name(int)}, case and punctuation
+     * ignored, so "desktop-size" works) or its number
+     * @throws IllegalArgumentException if the encoding is unknown
+     */
+    public static int parse(String value) {
+        String key = value.trim().toLowerCase().replaceAll("[^a-z0-9]", "");
+        for (int encoding : NAMED) {
+            if (name(encoding).toLowerCase().replaceAll("[^a-z0-9]", "").equals(key)) {
+                return encoding;
+            }
+        }
+        for (int level = 0; level <= 9; level++) {
+            if (key.equals("compresslevel" + level)) {
+                return COMPRESS_LEVEL_0 + level;
+            }
+            if (key.equals("qualitylevel" + level)) {
+                return QUALITY_LEVEL_0 + level;
+            }
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown encoding: " + value);
+        }
+    }
+
+    /**
+     * Get a human-readable name for an encoding
+     */
+    public static String name(int encoding) {
+        if (encoding >= COMPRESS_LEVEL_0 && encoding <= COMPRESS_LEVEL_9) {
+            return "CompressLevel" + (encoding - COMPRESS_LEVEL_0);
+        }
+        if (encoding >= QUALITY_LEVEL_0 && encoding <= QUALITY_LEVEL_9) {
+            return "QualityLevel" + (encoding - QUALITY_LEVEL_0);
+        }
+        switch (encoding) {
+            case RAW: return "Raw";
+            case COPY_RECT: return "CopyRect";
+            case RRE: return "RRE";
+            case HEXTILE: return "Hextile";
+            case TIGHT: return "Tight";
+            case ZRLE: return "ZRLE";
+            case H264: return "H.264";
+            case TIGHT_PNG: return "TightPNG";
+            case DESKTOP_SIZE: return "DesktopSize";
+            case LAST_RECT: return "LastRect";
+            case POINTER_POS: return "PointerPos";
+            case CURSOR: return "Cursor";
+            case X_CURSOR: return "XCursor";
+            case QEMU_EXTENDED_KEY_EVENT: return "QEMUExtendedKeyEvent";
+            case QEMU_LED_STATE: return "QEMULedState";
+            case DESKTOP_NAME: return "DesktopName";
+            case EXTENDED_DESKTOP_SIZE: return "ExtendedDesktopSize";
+            case FENCE: return "Fence";
+            case CONTINUOUS_UPDATES: return "ContinuousUpdates";
+            case VMWARE_LED_STATE: return "VMwareLedState";
+            default: return "Unknown(" + encoding + ")";
+        }
+    }
+}
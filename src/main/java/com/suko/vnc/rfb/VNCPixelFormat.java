@@ -0,0 +1,164 @@
+package com.suko.vnc.rfb;
+
+import java.util.Objects;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * RFB PIXEL_FORMAT structure (16 bytes on the wire)
+ */
+public final class VNCPixelFormat {
+
+    public static final int SIZE = 16;
+
+    /** 32bpp little-endian, 8 bits per channel (what most servers use natively) */
+    public static final VNCPixelFormat RGB888 = new VNCPixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+    /** 16bpp little-endian 5-6-5 */
+    public static final VNCPixelFormat RGB565 = new VNCPixelFormat(16, 16, false, true, 31, 63, 31, 11, 5, 0);
+    /** 8bpp 2-3-3, blue in the top bits */
+    public static final VNCPixelFormat BGR233 = new VNCPixelFormat(8, 8, false, true, 7, 7, 3, 0, 3, 6);
+
+    public final int bitsPerPixel;
+    public final int depth;
+    public final boolean bigEndian;
+    public final boolean trueColour;
+    public final int redMax;
+    public final int greenMax;
+    public final int blueMax;
+    public final int redShift;
+    public final int greenShift;
+    public final int blueShift;
+
+    public VNCPixelFormat(int bitsPerPixel, int depth, boolean bigEndian, boolean trueColour,
+                          int redMax, int greenMax, int blueMax,
+                          int redShift, int greenShift, int blueShift) {
+        this.bitsPerPixel = bitsPerPixel;
+        this.depth = depth;
+        this.bigEndian = bigEndian;
+        this.trueColour = trueColour;
+        this.redMax = redMax;
+        this.greenMax = greenMax;
+        this.blueMax = blueMax;
+        this.redShift = redShift;
+        this.greenShift = greenShift;
+        this.blueShift = blueShift;
+    }
+
+    /**
+     * Parse a pixel format starting at the given offset
+     */
+    public static VNCPixelFormat read(Buffer buffer, int offset) {
+        return new VNCPixelFormat(
+            buffer.getUnsignedByte(offset),
+            buffer.getUnsignedByte(offset + 1),
+            buffer.getUnsignedByte(offset + 2) != 0,
+            buffer.getUnsignedByte(offset + 3) != 0,
+            buffer.getUnsignedShort(offset + 4),
+            buffer.getUnsignedShort(offset + 6),
+            buffer.getUnsignedShort(offset + 8),
+            buffer.getUnsignedByte(offset + 10),
+            buffer.getUnsignedByte(offset + 11),
+            buffer.getUnsignedByte(offset + 12));
+    }
+
+    /**
+     * Append the 16-byte wire representation to the given buffer
+     */
+    public Buffer write(Buffer buffer) {
+        buffer.appendByte((byte) bitsPerPixel);
+        buffer.appendByte((byte) depth);
+        buffer.appendByte((byte) (bigEndian ? 1 : 0));
+        buffer.appendByte((byte) (trueColour ? 1 : 0));
+        buffer.appendUnsignedShort(redMax);
+        buffer.appendUnsignedShort(greenMax);
+        buffer.appendUnsignedShort(blueMax);
+        buffer.appendByte((byte) redShift);
+        buffer.appendByte((byte) greenShift);
+        buffer.appendByte((byte) blueShift);
+        buffer.appendBytes(new byte[3]); // padding
+        return buffer;
+    }
+
+    public int bytesPerPixel() {
+        return bitsPerPixel / 8;
+    }
+
+    /**
+     * Whether all colour bits fit in three of the four bytes of a 32bpp pixel,
+     * which lets ZRLE and Tight send compressed 3-byte pixels (CPIXEL / TPIXEL)
+     */
+    public boolean isCompact24() {
+        if (!trueColour || bitsPerPixel != 32 || depth > 24) {
+            return false;
+        }
+        return fitsInLeastSignificant24() || fitsInMostSignificant24();
+    }
+
+    /**
+     * Size of a ZRLE CPIXEL in this format
+     */
+    public int compactPixelSize() {
+        return isCompact24() ? 3 : bytesPerPixel();
+    }
+
+    /**
+     * Byte offset of the three significant bytes inside a 4-byte pixel as laid out on the wire
+     */
+    public int compactPixelOffset() {
+        if (!isCompact24()) {
+            return 0;
+        }
+        boolean low = fitsInLeastSignificant24();
+        // little-endian puts the least significant byte first
+        return bigEndian == low ? 1 : 0;
+    }
+
+    /**
+     * Size of a Tight TPIXEL in this format (Tight only compacts 8-bit-per-channel 24-bit colour)
+     */
+    public int tightPixelSize() {
+        boolean tight24 = trueColour && bitsPerPixel == 32 && depth == 24
+                && redMax == 255 && greenMax == 255 && blueMax == 255;
+        return tight24 ? 3 : bytesPerPixel();
+    }
+
+    private boolean fitsInLeastSignificant24() {
+        return topBit(redMax, redShift) <= 24 && topBit(greenMax, greenShift) <= 24 && topBit(blueMax, blueShift) <= 24;
+    }
+
+    private boolean fitsInMostSignificant24() {
+        return redShift >= 8 && greenShift >= 8 && blueShift >= 8;
+    }
+
+    private static int topBit(int max, int shift) {
+        return 32 - Integer.numberOfLeadingZeros(max) + shift;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VNCPixelFormat)) {
+            return false;
+        }
+        VNCPixelFormat other = (VNCPixelFormat) o;
+        return bitsPerPixel == other.bitsPerPixel && depth == other.depth
+                && bigEndian == other.bigEndian && trueColour == other.trueColour
+                && redMax == other.redMax && greenMax == other.greenMax && blueMax == other.blueMax
+                && redShift == other.redShift && greenShift == other.greenShift && blueShift == other.blueShift;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bitsPerPixel, depth, bigEndian, trueColour,
+                redMax, greenMax, blueMax, redShift, greenShift, blueShift);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dbpp depth %d %s %s rgb max %d/%d/%d shift %d/%d/%d",
+                bitsPerPixel, depth, bigEndian ? "BE" : "LE", trueColour ? "true-colour" : "colour-map",
+                redMax, greenMax, blueMax, redShift, greenShift, blueShift);
+    }
+}
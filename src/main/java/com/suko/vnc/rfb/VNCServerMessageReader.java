@@ -0,0 +1,681 @@
+package com.suko.vnc.rfb;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Incremental parser for the server-to-client RFB stream once the handshake is done.
+ *
+ * The reader finds message and rectangle boundaries without decoding pixel data, so the proxy
+ * can observe, drop or rewrite individual messages while forwarding everything else untouched.
+ * Unchanged bytes are coalesced and handed to {@link Listener#forward(Buffer)} in stream order.
+ * If the stream contains something the reader cannot frame it switches to passthrough mode and
+ * forwards the rest of the session verbatim.
+ *
+ * Not thread-safe: feed it from the event loop that owns the VNC socket.
+ */
+public class VNCServerMessageReader {
+
+    public static final int FRAMEBUFFER_UPDATE = 0;
+    public static final int SET_COLOUR_MAP_ENTRIES = 1;
+    public static final int BELL = 2;
+    public static final int SERVER_CUT_TEXT = 3;
+    public static final int END_OF_CONTINUOUS_UPDATES = 150;
+    public static final int SERVER_FENCE = 248;
+    public static final int XVP = 250;
+
+    private static final int MAX_SERVER_NAME_LENGTH = 64 * 1024;
+
+    /**
+     * What to do with the bytes of a message or rectangle
+     */
+    public enum Action {
+        /** Pass the bytes through unchanged */
+        FORWARD,
+        /** Hold the bytes back and hand the complete payload to the listener */
+        COLLECT,
+        /** Swallow the bytes */
+        DROP
+    }
+
+    /**
+     * Callbacks for parsed stream events. Replacement bytes produced from collected payloads
+     * must be written to the same sink that {@link #forward(Buffer)} writes to.
+     */
+    public interface Listener {
+
+        /**
+         * Bytes to pass through unchanged
+         */
+        void forward(Buffer data);
+
+        /**
+         * The complete ServerInit message. It is not forwarded automatically.
+         */
+        void onServerInit(Buffer message, VNCPixelFormat format, int width, int height);
+
+        /**
+         * Start of a FramebufferUpdate. COLLECT is treated as FORWARD.
+         */
+        default Action onUpdateBegin(int rectCount) {
+            return Action.FORWARD;
+        }
+
+        /**
+         * Rectangle header of the current FramebufferUpdate. The return value is ignored when
+         * the whole update is being dropped.
+         */
+        default Action onRect(int x, int y, int width, int height, int encoding) {
+            return Action.FORWARD;
+        }
+
+        /**
+         * Payload (without the 12-byte header) of a rectangle that was collected
+         */
+        default void onRectCollected(int x, int y, int width, int height, int encoding, Buffer payload) {
+        }
+
+        /**
+         * End of the current FramebufferUpdate
+         */
+        default void onUpdateEnd() {
+        }
+
+        /**
+         * Start of any other server message
+         * @param length total message length in bytes, including the type byte
+         */
+        default Action onMessage(int type, long length) {
+            return Action.FORWARD;
+        }
+
+        /**
+         * A complete message that was collected
+         */
+        default void onMessageCollected(int type, Buffer message) {
+        }
+
+        /**
+         * The reader lost track of message boundaries and is now forwarding verbatim
+         */
+        default void onDesync(String reason) {
+        }
+    }
+
+    private enum State {
+        SERVER_INIT,
+        MESSAGE,
+        MESSAGE_BODY,
+        RECT_HEADER,
+        RECT_PAYLOAD,
+        HEXTILE_TILE,
+        TIGHT_HEADER,
+        BULK,
+        PASSTHROUGH
+    }
+
+    private final Listener listener;
+    private volatile VNCPixelFormat pixelFormat;
+    private State state;
+
+    // Current input and the start of the not yet forwarded segment
+    private Buffer in;
+    private int pos;
+    private int segmentStart;
+    private Buffer carry;
+
+    // Suspension support for asynchronous processing of collected payloads
+    private boolean suspended;
+    private boolean feeding;
+    private Buffer held;
+
+    // Current message
+    private int messageType;
+    private Action messageAction = Action.FORWARD;
+    private Action mode = Action.FORWARD;
+    private long remaining;
+    private State afterBulk;
+    private Buffer collected;
+
+    // Current FramebufferUpdate
+    private int rectsLeft;
+    private int rectX;
+    private int rectY;
+    private int rectWidth;
+    private int rectHeight;
+    private int rectEncoding;
+    private Action rectAction = Action.FORWARD;
+    private int tileX;
+    private int tileY;
+
+    // Traffic accounting, null when off
+    private VNCTrafficStats traffic;
+    private long itemBytes;
+
+    /**
+     * Create a reader positioned at the ServerInit message
+     */
+    public VNCServerMessageReader(Listener listener) {
+        this.listener = listener;
+        this.state = State.SERVER_INIT;
+    }
+
+    /**
+     * Pixel format the server uses for rectangle data. Set from ServerInit and whenever a
+     * SetPixelFormat is sent to the server.
+     */
+    public void setPixelFormat(VNCPixelFormat pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
+    public VNCPixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+
+    /**
+     * Count forwarded messages and rectangles. Collected ones are up to the listener, which
+     * knows what it sends in their place.
+     */
+    public void setTrafficStats(VNCTrafficStats traffic) {
+        this.traffic = traffic;
+    }
+
+    public boolean isPassthrough() {
+        return state == State.PASSTHROUGH;
+    }
+
+    /**
+     * Stop processing after the current callback returns. Any unprocessed input is held until
+     * {@link #resume()} is called.
+     */
+    public void suspend() {
+        suspended = true;
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Continue with the held input
+     */
+    public void resume() {
+        suspended = false;
+        if (!feeding && held != null) {
+            Buffer pending = held;
+            held = null;
+            feed(pending);
+        }
+    }
+
+    /**
+     * Write extra bytes to the output at the current stream position. Only valid from inside a
+     * listener callback that is called at a message boundary ({@link Listener#onUpdateBegin(int)},
+     * {@link Listener#onMessage(int, long)}), so the bytes land between two messages.
+     */
+    public void inject(Buffer data) {
+        flushForward();
+        listener.forward(data);
+    }
+
+    /**
+     * Feed the next chunk of the server stream
+     */
+    public void feed(Buffer data) {
+        if (suspended || feeding) {
+            held = held == null ? data.copy() : held.appendBuffer(data);
+            return;
+        }
+        in = carry == null ? data : carry.appendBuffer(data);
+        carry = null;
+        pos = 0;
+        segmentStart = 0;
+        feeding = true;
+        try {
+            while (!suspended && step()) {
+                // keep going while complete structures are available
+            }
+            flushForward();
+            if (pos < in.length()) {
+                Buffer rest = in.getBuffer(pos, in.length());
+                if (suspended) {
+                    held = held == null ? rest : rest.appendBuffer(held);
+                } else {
+                    carry = rest;
+                }
+            }
+        } finally {
+            feeding = false;
+            in = null;
+        }
+        if (!suspended && held != null) {
+            resume();
+        }
+    }
+
+    /**
+     * Process one structure. Returns false when more input is needed.
+     */
+    private boolean step() {
+        switch (state) {
+            case SERVER_INIT:
+                return readServerInit();
+            case MESSAGE:
+                return readMessageHeader();
+            case MESSAGE_BODY:
+            case BULK:
+                return readBulk();
+            case RECT_HEADER:
+                return readRectHeader();
+            case RECT_PAYLOAD:
+                return readRectPayloadHeader();
+            case HEXTILE_TILE:
+                return readHextileTile();
+            case TIGHT_HEADER:
+                return readTightHeader();
+            case PASSTHROUGH:
+            default:
+                pos = in.length();
+                return false;
+        }
+    }
+
+    private boolean readServerInit() {
+        if (!available(24)) {
+            return false;
+        }
+        long nameLength = in.getUnsignedInt(pos + 20);
+        if (nameLength > MAX_SERVER_NAME_LENGTH) {
+            return desync("ServerInit name length " + nameLength);
+        }
+        int total = 24 + (int) nameLength;
+        if (!available(total)) {
+            return false;
+        }
+        flushForward();
+        Buffer message = in.getBuffer(pos, pos + total);
+        pos += total;
+        segmentStart = pos;
+        int width = message.getUnsignedShort(0);
+        int height = message.getUnsignedShort(2);
+        pixelFormat = VNCPixelFormat.read(message, 4);
+        state = State.MESSAGE;
+        listener.onServerInit(message, pixelFormat, width, height);
+        return true;
+    }
+
+    private boolean readMessageHeader() {
+        if (!available(1)) {
+            return false;
+        }
+        messageType = in.getUnsignedByte(pos);
+        switch (messageType) {
+            case FRAMEBUFFER_UPDATE:
+                if (!available(4)) {
+                    return false;
+                }
+                rectsLeft = in.getUnsignedShort(pos + 2);
+                messageAction = listener.onUpdateBegin(rectsLeft);
+                if (messageAction == Action.COLLECT) {
+                    messageAction = Action.FORWARD;
+                }
+                mode = messageAction;
+                consume(4);
+                if (traffic != null && messageAction == Action.FORWARD) {
+                    traffic.serverMessage(FRAMEBUFFER_UPDATE, 4);
+                }
+                state = State.RECT_HEADER;
+                return true;
+            case SET_COLOUR_MAP_ENTRIES:
+                if (!available(6)) {
+                    return false;
+                }
+                return beginMessage(6L + 6L * in.getUnsignedShort(pos + 4));
+            case BELL:
+            case END_OF_CONTINUOUS_UPDATES:
+                return beginMessage(1);
+            case SERVER_CUT_TEXT:
+                if (!available(8)) {
+                    return false;
+                }
+                // Extended clipboard sends a negative length
+                return beginMessage(8L + Math.abs((long) in.getInt(pos + 4)));
+            case SERVER_FENCE:
+                if (!available(9)) {
+                    return false;
+                }
+                return beginMessage(9L + in.getUnsignedByte(pos + 8));
+            case XVP:
+                return beginMessage(4);
+            default:
+                return desync("unknown server message type " + messageType);
+        }
+    }
+
+    private boolean beginMessage(long length) {
+        messageAction = listener.onMessage(messageType, length);
+        mode = messageAction;
+        if (mode == Action.COLLECT) {
+            collected = Buffer.buffer((int) Math.min(length, 64 * 1024));
+        }
+        remaining = length;
+        itemBytes = 0;
+        state = State.MESSAGE_BODY;
+        return true;
+    }
+
+    private boolean readBulk() {
+        int n = (int) Math.min(remaining, in.length() - pos);
+        consume(n);
+        remaining -= n;
+        if (remaining > 0) {
+            return false;
+        }
+        if (state == State.MESSAGE_BODY) {
+            endMessage();
+        } else {
+            state = afterBulk;
+            if (state == State.RECT_HEADER) {
+                endRect();
+            }
+        }
+        return true;
+    }
+
+    private void endMessage() {
+        Buffer message = collected;
+        Action action = mode;
+        collected = null;
+        mode = Action.FORWARD;
+        messageAction = Action.FORWARD;
+        state = State.MESSAGE;
+        if (traffic != null && action == Action.FORWARD) {
+            traffic.serverMessage(messageType, itemBytes);
+        }
+        if (action == Action.COLLECT) {
+            listener.onMessageCollected(messageType, message);
+        }
+    }
+
+    private boolean readRectHeader() {
+        if (rectsLeft == 0) {
+            endUpdate();
+            return true;
+        }
+        if (!available(12)) {
+            return false;
+        }
+        rectX = in.getUnsignedShort(pos);
+        rectY = in.getUnsignedShort(pos + 2);
+        rectWidth = in.getUnsignedShort(pos + 4);
+        rectHeight = in.getUnsignedShort(pos + 6);
+        rectEncoding = in.getInt(pos + 8);
+        if (rectEncoding == VNCEncodings.LAST_RECT) {
+            consume(12);
+            if (traffic != null && messageAction == Action.FORWARD) {
+                traffic.rect(rectEncoding, 12);
+            }
+            rectsLeft = 0;
+            endUpdate();
+            return true;
+        }
+        if (!VNCEncodings.isFramable(rectEncoding)) {
+            return desync("unsupported rectangle encoding " + VNCEncodings.name(rectEncoding));
+        }
+        Action action = listener.onRect(rectX, rectY, rectWidth, rectHeight, rectEncoding);
+        rectAction = messageAction == Action.DROP ? Action.DROP : action;
+        rectsLeft--;
+        // The header is never part of a collected payload
+        mode = rectAction == Action.COLLECT ? Action.DROP : rectAction;
+        itemBytes = 0;
+        consume(12);
+        mode = rectAction;
+        if (rectAction == Action.COLLECT) {
+            collected = Buffer.buffer();
+        }
+        state = State.RECT_PAYLOAD;
+        return true;
+    }
+
+    private boolean readRectPayloadHeader() {
+        int bpp = pixelFormat.bytesPerPixel();
+        long area = (long) rectWidth * rectHeight;
+        switch (rectEncoding) {
+            case VNCEncodings.RAW:
+                return bulk(area * bpp, State.RECT_HEADER);
+            case VNCEncodings.COPY_RECT:
+                return bulk(4, State.RECT_HEADER);
+            case VNCEncodings.RRE:
+                if (!available(4)) {
+                    return false;
+                }
+                return bulk(4L + bpp + in.getUnsignedInt(pos) * (bpp + 8), State.RECT_HEADER);
+            case VNCEncodings.ZRLE:
+                if (!available(4)) {
+                    return false;
+                }
+                return bulk(4L + in.getUnsignedInt(pos), State.RECT_HEADER);
+            case VNCEncodings.H264:
+                if (!available(8)) {
+                    return false;
+                }
+                return bulk(8L + in.getUnsignedInt(pos), State.RECT_HEADER);
+            case VNCEncodings.HEXTILE:
+                tileX = 0;
+                tileY = 0;
+                state = area == 0 ? State.RECT_HEADER : State.HEXTILE_TILE;
+                if (area == 0) {
+                    endRect();
+                }
+                return true;
+            case VNCEncodings.TIGHT:
+            case VNCEncodings.TIGHT_PNG:
+                state = State.TIGHT_HEADER;
+                return true;
+            case VNCEncodings.CURSOR:
+                return bulk(area * bpp + (long) ((rectWidth + 7) / 8) * rectHeight, State.RECT_HEADER);
+            case VNCEncodings.X_CURSOR:
+                return bulk(area > 0 ? 6L + 2L * ((rectWidth + 7) / 8) * rectHeight : 0, State.RECT_HEADER);
+            case VNCEncodings.DESKTOP_NAME:
+                if (!available(4)) {
+                    return false;
+                }
+                return bulk(4L + in.getUnsignedInt(pos), State.RECT_HEADER);
+            case VNCEncodings.EXTENDED_DESKTOP_SIZE:
+                if (!available(1)) {
+                    return false;
+                }
+                return bulk(4L + 16L * in.getUnsignedByte(pos), State.RECT_HEADER);
+            case VNCEncodings.QEMU_LED_STATE:
+                return bulk(1, State.RECT_HEADER);
+            case VNCEncodings.VMWARE_LED_STATE:
+                return bulk(4, State.RECT_HEADER);
+            default:
+                // DesktopSize, PointerPos, QEMU extended key, Fence and ContinuousUpdates carry no data
+                return bulk(0, State.RECT_HEADER);
+        }
+    }
+
+    private boolean readHextileTile() {
+        if (!available(1)) {
+            return false;
+        }
+        int bpp = pixelFormat.bytesPerPixel();
+        int tileWidth = Math.min(16, rectWidth - tileX);
+        int tileHeight = Math.min(16, rectHeight - tileY);
+        int subencoding = in.getUnsignedByte(pos);
+        long length;
+        if ((subencoding & 0x01) != 0) {
+            length = 1L + (long) tileWidth * tileHeight * bpp;
+        } else {
+            int header = 1;
+            if ((subencoding & 0x02) != 0) header += bpp;
+            if ((subencoding & 0x04) != 0) header += bpp;
+            if ((subencoding & 0x08) != 0) {
+                header += 1;
+                if (!available(header)) {
+                    return false;
+                }
+                int subrects = in.getUnsignedByte(pos + header - 1);
+                int subrectSize = (subencoding & 0x10) != 0 ? bpp + 2 : 2;
+                length = header + (long) subrects * subrectSize;
+            } else {
+                length = header;
+            }
+        }
+        tileX += 16;
+        if (tileX >= rectWidth) {
+            tileX = 0;
+            tileY += 16;
+        }
+        return bulk(length, tileY >= rectHeight ? State.RECT_HEADER : State.HEXTILE_TILE);
+    }
+
+    private boolean readTightHeader() {
+        if (!available(1)) {
+            return false;
+        }
+        int control = in.getUnsignedByte(pos);
+        int compression = control >> 4;
+        int tpixel = pixelFormat.tightPixelSize();
+        if (compression == 0x08) {
+            // FillCompression
+            return bulk(1 + tpixel, State.RECT_HEADER);
+        }
+        if (compression == 0x09 || compression == 0x0A) {
+            // JpegCompression / PngCompression
+            return compactLengthBulk(1);
+        }
+        if (compression > 0x0A) {
+            return desync("invalid Tight compression control " + control);
+        }
+        // BasicCompression
+        int header = 1;
+        int filter = 0;
+        if ((control & 0x40) != 0) {
+            if (!available(2)) {
+                return false;
+            }
+            filter = in.getUnsignedByte(pos + 1);
+            header = 2;
+        }
+        long uncompressed;
+        switch (filter) {
+            case 0: // copy
+            case 2: // gradient
+                uncompressed = (long) rectWidth * rectHeight * tpixel;
+                break;
+            case 1: // palette
+                if (!available(header + 1)) {
+                    return false;
+                }
+                int colours = in.getUnsignedByte(pos + header) + 1;
+                header += 1 + colours * tpixel;
+                uncompressed = colours == 2
+                        ? (long) ((rectWidth + 7) / 8) * rectHeight
+                        : (long) rectWidth * rectHeight;
+                break;
+            default:
+                return desync("invalid Tight filter " + filter);
+        }
+        if (uncompressed < 12) {
+            return bulk(header + uncompressed, State.RECT_HEADER);
+        }
+        return compactLengthBulk(header);
+    }
+
+    /**
+     * Bulk-consume a Tight compact length followed by that many bytes, after a header of the given size
+     */
+    private boolean compactLengthBulk(int header) {
+        long length = 0;
+        int size = 0;
+        for (int shift = 0; shift <= 14; shift += 7) {
+            if (!available(header + size + 1)) {
+                return false;
+            }
+            int b = in.getUnsignedByte(pos + header + size);
+            size++;
+            if (shift == 14) {
+                length |= (long) b << shift;
+                break;
+            }
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return bulk(header + size + length, State.RECT_HEADER);
+    }
+
+    private boolean bulk(long length, State next) {
+        remaining = length;
+        afterBulk = next;
+        state = State.BULK;
+        if (length == 0) {
+            state = next;
+            if (next == State.RECT_HEADER) {
+                endRect();
+            }
+        }
+        return true;
+    }
+
+    private void endRect() {
+        Buffer payload = collected;
+        Action action = rectAction;
+        collected = null;
+        rectAction = Action.FORWARD;
+        mode = messageAction;
+        if (traffic != null && action == Action.FORWARD) {
+            traffic.rect(rectEncoding, itemBytes);
+        }
+        if (action == Action.COLLECT) {
+            listener.onRectCollected(rectX, rectY, rectWidth, rectHeight, rectEncoding, payload);
+        }
+    }
+
+    private void endUpdate() {
+        mode = Action.FORWARD;
+        messageAction = Action.FORWARD;
+        state = State.MESSAGE;
+        listener.onUpdateEnd();
+    }
+
+    private boolean desync(String reason) {
+        flushForward();
+        mode = Action.FORWARD;
+        state = State.PASSTHROUGH;
+        collected = null;
+        listener.onDesync(reason);
+        pos = in.length();
+        return false;
+    }
+
+    private boolean available(int n) {
+        return in.length() - pos >= n;
+    }
+
+    /**
+     * Consume n bytes of input under the current mode
+     */
+    private void consume(int n) {
+        itemBytes += n;
+        if (mode == Action.FORWARD) {
+            pos += n;
+            return;
+        }
+        flushForward();
+        if (mode == Action.COLLECT && n > 0) {
+            collected.appendBuffer(in, pos, n);
+        }
+        pos += n;
+        segmentStart = pos;
+    }
+
+    private void flushForward() {
+        if (pos > segmentStart) {
+            listener.forward(in.slice(segmentStart, pos));
+        }
+        segmentStart = pos;
+    }
+}
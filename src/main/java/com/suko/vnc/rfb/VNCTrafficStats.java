@@ -0,0 +1,154 @@
+package com.suko.vnc.rfb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-session RFB traffic broken down by message type and rectangle encoding.
+ *
+ * Server-to-client bytes are counted as the client receives them: forwarded messages and
+ * rectangles by the server's type and encoding, proxy-generated rectangles by the encoding the
+ * proxy chose. Client-to-server bytes are counted by message type as the client sent them.
+ * FramebufferUpdate bytes include the rectangles.
+ *
+ * Counters are plain long arrays with fixed slots. Server-side slots are written only from the
+ * server stream and client-side slots only from the client stream; readers may see slightly
+ * stale values.
+ */
+public final class VNCTrafficStats {
+
+    private static final int[] SERVER_TYPES = {
+        VNCServerMessageReader.FRAMEBUFFER_UPDATE, VNCServerMessageReader.SET_COLOUR_MAP_ENTRIES,
+        VNCServerMessageReader.BELL, VNCServerMessageReader.SERVER_CUT_TEXT,
+        VNCServerMessageReader.END_OF_CONTINUOUS_UPDATES, VNCServerMessageReader.SERVER_FENCE
+    };
+    private static final String[] SERVER_NAMES = {
+        "FramebufferUpdate", "SetColourMapEntries", "Bell", "ServerCutText", "EndOfContinuousUpdates", "ServerFence", "Other"
+    };
+
+    private static final int[] ENCODINGS = {
+        VNCEncodings.RAW, VNCEncodings.COPY_RECT, VNCEncodings.RRE, VNCEncodings.HEXTILE, VNCEncodings.TIGHT,
+        VNCEncodings.ZRLE, VNCEncodings.H264, VNCEncodings.TIGHT_PNG, VNCEncodings.CURSOR, VNCEncodings.X_CURSOR,
+        VNCEncodings.DESKTOP_SIZE, VNCEncodings.EXTENDED_DESKTOP_SIZE
+    };
+    private static final String OTHER_ENCODING = "Other";
+
+    private static final int[] CLIENT_TYPES = {
+        VNCClientMessageReader.SET_PIXEL_FORMAT, VNCClientMessageReader.SET_ENCODINGS,
+        VNCClientMessageReader.FRAMEBUFFER_UPDATE_REQUEST, VNCClientMessageReader.KEY_EVENT,
+        VNCClientMessageReader.POINTER_EVENT, VNCClientMessageReader.CLIENT_CUT_TEXT,
+        VNCClientMessageReader.CLIENT_FENCE
+    };
+    private static final String[] CLIENT_NAMES = {
+        "SetPixelFormat", "SetEncodings", "FramebufferUpdateRequest", "KeyEvent", "PointerEvent", "ClientCutText", "ClientFence", "Other"
+    };
+
+    private final long[] serverMessages = new long[SERVER_NAMES.length];
+    private final long[] serverBytes = new long[SERVER_NAMES.length];
+    private final long[] rects = new long[ENCODINGS.length + 1];
+    private final long[] rectBytes = new long[ENCODINGS.length + 1];
+    private final long[] clientMessages = new long[CLIENT_NAMES.length];
+    private final long[] clientBytes = new long[CLIENT_NAMES.length];
+
+    /**
+     * A server message (other than a rectangle) reached the client
+     */
+    public void serverMessage(int type, long bytes) {
+        int slot = slot(SERVER_TYPES, type);
+        serverMessages[slot]++;
+        serverBytes[slot] += bytes;
+    }
+
+    /**
+     * A rectangle reached the client
+     * @param bytes header and payload
+     */
+    public void rect(int encoding, long bytes) {
+        int slot = slot(ENCODINGS, encoding);
+        rects[slot]++;
+        rectBytes[slot] += bytes;
+        serverBytes[0] += bytes;
+    }
+
+    /**
+     * A client message arrived
+     */
+    public void clientMessage(int type, long bytes) {
+        int slot = slot(CLIENT_TYPES, type);
+        clientMessages[slot]++;
+        clientBytes[slot] += bytes;
+    }
+
+    /**
+     * Whether no message was counted yet
+     */
+    public boolean isEmpty() {
+        for (int i = 0; i < serverMessages.length; i++) {
+            if (serverMessages[i] > 0) {
+                return false;
+            }
+        }
+        for (int i = 0; i < clientMessages.length; i++) {
+            if (clientMessages[i] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add another session's counters to these
+     */
+    public synchronized void add(VNCTrafficStats other) {
+        addAll(serverMessages, other.serverMessages);
+        addAll(serverBytes, other.serverBytes);
+        addAll(rects, other.rects);
+        addAll(rectBytes, other.rectBytes);
+        addAll(clientMessages, other.clientMessages);
+        addAll(clientBytes, other.clientBytes);
+    }
+
+    /**
+     * Non-zero counters as nested maps, for JSON output
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("serverMessages", counters(SERVER_NAMES, serverMessages, serverBytes, "messages"));
+        String[] encodingNames = new String[ENCODINGS.length + 1];
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            encodingNames[i] = VNCEncodings.name(ENCODINGS[i]);
+        }
+        encodingNames[ENCODINGS.length] = OTHER_ENCODING;
+        map.put("rects", counters(encodingNames, rects, rectBytes, "rects"));
+        map.put("clientMessages", counters(CLIENT_NAMES, clientMessages, clientBytes, "messages"));
+        return map;
+    }
+
+    private static Map<String, Map<String, Long>> counters(String[] names, long[] counts, long[] bytes, String countName) {
+        Map<String, Map<String, Long>> map = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (counts[i] > 0) {
+                Map<String, Long> entry = new LinkedHashMap<>();
+                entry.put(countName, counts[i]);
+                entry.put("bytes", bytes[i]);
+                map.put(names[i], entry);
+            }
+        }
+        return map;
+    }
+
+    private static int slot(int[] keys, int key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return keys.length;
+    }
+
+    private static void addAll(long[] into, long[] from) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] += from[i];
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.suko.vnc.rfb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+/**
+ * Proxy-side ZRLE encoder for raw rectangles.
+ *
+ * ZRLE uses one zlib stream per connection. The encoder splits a rectangle into bands of one
+ * tile row (64 pixels high), builds the uncompressed tile data of each band and deflates every
+ * band separately as raw deflate ending in a sync flush, primed with the tail of the preceding
+ * data as preset dictionary. The concatenated bands form a valid continuation of the client's
+ * zlib stream, so large rectangles can be encoded on several cores and still be reassembled in
+ * order.
+ *
+ * One instance per session. Calls must not overlap; the caller serialises them.
+ */
+public class VNCZrleEncoder {
+
+    public static final int TILE_SIZE = 64;
+
+    private static final int WINDOW_SIZE = 32 * 1024;
+    private static final byte[] ZLIB_HEADER = { 0x78, 0x01 };
+
+    // One raw deflater per level and thread. Changing the level of a reused Deflater drops
+    // the input of the first deflate call after a reset, so levels are never switched.
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[10]);
+
+    private final int compressionLevel;
+    private boolean streamStarted = false;
+    private byte[] history = new byte[0];
+
+    public VNCZrleEncoder(int compressionLevel) {
+        this.compressionLevel = Math.max(0, Math.min(9, compressionLevel));
+    }
+
+    /**
+     * Whether this encoder has written to the client's ZRLE stream. Once it has, the server
+     * must never send ZRLE to that client itself.
+     */
+    public boolean isStreamStarted() {
+        return streamStarted;
+    }
+
+    /**
+     * Encode a raw rectangle on the calling thread
+     * @param pixels raw pixel data in the given format, row-major
+     * @return the ZRLE rectangle payload (length prefix and zlib data)
+     */
+    public byte[] encode(byte[] pixels, int width, int height, VNCPixelFormat format) {
+        int bands = (height + TILE_SIZE - 1) / TILE_SIZE;
+        byte[][] raw = new byte[bands][];
+        for (int band = 0; band < bands; band++) {
+            raw[band] = encodeBand(pixels, width, height, band, format);
+        }
+        byte[][] compressed = new byte[bands][];
+        for (int band = 0; band < bands; band++) {
+            compressed[band] = deflate(raw[band], dictionaryFor(raw, band));
+        }
+        return finish(raw, compressed);
+    }
+
+    /**
+     * Encode a raw rectangle with its bands spread over the given pool.
+     * The returned future completes on a pool thread.
+     */
+    public CompletableFuture<byte[]> encodeAsync(byte[] pixels, int width, int height, VNCPixelFormat format, ForkJoinPool pool) {
+        return CompletableFuture.supplyAsync(() -> encodeParallel(pixels, width, height, format), pool);
+    }
+
+    /**
+     * Encode a raw rectangle, forking one task per band. Must run inside a ForkJoinPool
+     * (or it falls back to the common pool).
+     */
+    public byte[] encodeParallel(byte[] pixels, int width, int height, VNCPixelFormat format) {
+        int bands = (height + TILE_SIZE - 1) / TILE_SIZE;
+        byte[][] raw = new byte[bands][];
+        byte[][] compressed = new byte[bands][];
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bands);
+        for (int i = 0; i < bands; i++) {
+            final int band = i;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                raw[band] = encodeBand(pixels, width, height, band, format);
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        // Dictionaries depend on the previous band, so compression starts once all bands are built
+        tasks.clear();
+        for (int i = 0; i < bands; i++) {
+            final int band = i;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                compressed[band] = deflate(raw[band], dictionaryFor(raw, band));
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        return finish(raw, compressed);
+    }
+
+    /**
+     * Build the uncompressed ZRLE tile data for one tile row
+     */
+    private static byte[] encodeBand(byte[] pixels, int width, int height, int band, VNCPixelFormat format) {
+        int bpp = format.bytesPerPixel();
+        int cpixel = format.compactPixelSize();
+        int cpixelOffset = format.compactPixelOffset();
+        int top = band * TILE_SIZE;
+        int bandHeight = Math.min(TILE_SIZE, height - top);
+        int tiles = (width + TILE_SIZE - 1) / TILE_SIZE;
+
+        // Worst case: every tile raw, plus one subencoding byte per tile
+        byte[] out = new byte[width * bandHeight * cpixel + tiles];
+        int o = 0;
+        for (int left = 0; left < width; left += TILE_SIZE) {
+            int tileWidth = Math.min(TILE_SIZE, width - left);
+            int first = (top * width + left) * bpp;
+            if (isSolid(pixels, width, bpp, left, top, tileWidth, bandHeight, first)) {
+                out[o++] = 1; // solid
+                System.arraycopy(pixels, first + cpixelOffset, out, o, cpixel);
+                o += cpixel;
+            } else {
+                out[o++] = 0; // raw
+                for (int y = 0; y < bandHeight; y++) {
+                    int row = ((top + y) * width + left) * bpp;
+                    if (cpixel == bpp) {
+                        System.arraycopy(pixels, row, out, o, tileWidth * bpp);
+                        o += tileWidth * bpp;
+                    } else {
+                        for (int x = 0; x < tileWidth; x++) {
+                            int p = row + x * bpp + cpixelOffset;
+                            out[o++] = pixels[p];
+                            out[o++] = pixels[p + 1];
+                            out[o++] = pixels[p + 2];
+                        }
+                    }
+                }
+            }
+        }
+        return o == out.length ? out : Arrays.copyOf(out, o);
+    }
+
+    private static boolean isSolid(byte[] pixels, int width, int bpp, int left, int top, int tileWidth, int tileHeight, int first) {
+        for (int y = 0; y < tileHeight; y++) {
+            int row = ((top + y) * width + left) * bpp;
+            for (int i = 0; i < tileWidth * bpp; i++) {
+                if (pixels[row + i] != pixels[first + i % bpp]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dictionary for a band: the data that immediately precedes it in the zlib stream
+     */
+    private byte[] dictionaryFor(byte[][] raw, int band) {
+        return band == 0 ? history : raw[band - 1];
+    }
+
+    private byte[] deflate(byte[] input, byte[] dictionary) {
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[compressionLevel];
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel, true);
+            deflaters[compressionLevel] = deflater;
+        } else {
+            deflater.reset();
+        }
+        if (dictionary.length > 0) {
+            int length = Math.min(WINDOW_SIZE, dictionary.length);
+            deflater.setDictionary(dictionary, dictionary.length - length, length);
+        }
+        deflater.setInput(input);
+        byte[] out = new byte[input.length / 2 + 64];
+        int written = 0;
+        while (true) {
+            int n = deflater.deflate(out, written, out.length - written, Deflater.SYNC_FLUSH);
+            written += n;
+            if (written < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        return Arrays.copyOf(out, written);
+    }
+
+    /**
+     * Concatenate the bands into a ZRLE payload and remember the stream tail
+     */
+    private byte[] finish(byte[][] raw, byte[][] compressed) {
+        int header = streamStarted ? 0 : ZLIB_HEADER.length;
+        int length = header;
+        for (byte[] band : compressed) {
+            length += band.length;
+        }
+        byte[] payload = new byte[4 + length];
+        payload[0] = (byte) (length >>> 24);
+        payload[1] = (byte) (length >>> 16);
+        payload[2] = (byte) (length >>> 8);
+        payload[3] = (byte) length;
+        int o = 4;
+        if (!streamStarted) {
+            System.arraycopy(ZLIB_HEADER, 0, payload, o, ZLIB_HEADER.length);
+            o += ZLIB_HEADER.length;
+            streamStarted = true;
+        }
+        for (byte[] band : compressed) {
+            System.arraycopy(band, 0, payload, o, band.length);
+            o += band.length;
+        }
+        history = tail(raw);
+        return payload;
+    }
+
+    private byte[] tail(byte[][] raw) {
+        byte[] window = new byte[WINDOW_SIZE];
+        int filled = 0;
+        for (int band = raw.length - 1; band >= 0 && filled < WINDOW_SIZE; band--) {
+            int take = Math.min(WINDOW_SIZE - filled, raw[band].length);
+            System.arraycopy(raw[band], raw[band].length - take, window, WINDOW_SIZE - filled - take, take);
+            filled += take;
+        }
+        if (filled < WINDOW_SIZE) {
+            // Short rectangle: keep part of the older history as well
+            int take = Math.min(WINDOW_SIZE - filled, history.length);
+            System.arraycopy(history, history.length - take, window, WINDOW_SIZE - filled - take, take);
+            filled += take;
+        }
+        return filled == WINDOW_SIZE ? window : Arrays.copyOfRange(window, WINDOW_SIZE - filled, WINDOW_SIZE);
+    }
+}
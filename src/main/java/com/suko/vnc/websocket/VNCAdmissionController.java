@@ -0,0 +1,251 @@
+package com.suko.vnc.websocket;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import io.netty.util.internal.PlatformDependent;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.core.Vertx;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Decides whether a new VNC session may start, from the load the node is under right now:
+ * event loop lag, bytes buffered for browsers and VNC servers across all sessions, and heap and
+ * direct memory headroom. An overloaded node lets a few new sessions wait for the load to drop
+ * and turns the rest away, rather than degrading every session it already has.
+ */
+@ApplicationScoped
+public class VNCAdmissionController {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCAdmissionController.class);
+
+    // How often a waiting session checks the load again
+    private static final long RECHECK_MILLIS = 100;
+
+    // Heap pool that survives collections (old/tenured generation), null if there is none
+    private static final MemoryPoolMXBean OLD_GENERATION = findOldGeneration();
+
+    @Inject
+    VNCProxyConfig config;
+
+    @Inject
+    Vertx vertx;
+
+    @Inject
+    VNCEventLoopMonitor eventLoopMonitor;
+
+    @Inject
+    VNCConnectionManager connectionManager;
+
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong admittedAfterWait = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final Map<String, AtomicLong> rejectedByReason = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private volatile String lastOverload;
+
+    /**
+     * Wait until the node can take another session or give up, for at most the queue timeout.
+     * Waiting sessions re-check the load on a timer of the subscribing context, so no thread is
+     * held while they wait.
+     * @return null if the session may start, else why it may not
+     */
+    public Uni<String> admit(String sessionId) {
+        String overload = overload();
+        if (overload == null) {
+            admitted.incrementAndGet();
+            return Uni.createFrom().nullItem();
+        }
+        long timeout = config.getAdmissionQueueTimeoutMillis();
+        if (timeout <= 0 || waiting.incrementAndGet() > config.getAdmissionMaxQueued()) {
+            if (timeout > 0) {
+                waiting.decrementAndGet();
+            }
+            return Uni.createFrom().item(reject(sessionId, overload, "queue full"));
+        }
+        log.info("Session waiting for admission ({}) for session: {}", overload, sessionId);
+        long start = System.nanoTime();
+        long deadline = start + timeout * 1_000_000L;
+        AtomicBoolean done = new AtomicBoolean(false);
+        return Uni.createFrom().emitter(emitter -> {
+            long timerId = vertx.setPeriodic(RECHECK_MILLIS, id -> {
+                String current = overload();
+                if ((current != null && System.nanoTime() < deadline) || !done.compareAndSet(false, true)) {
+                    return;
+                }
+                vertx.cancelTimer(id);
+                endWait(start);
+                if (current != null) {
+                    emitter.complete(reject(sessionId, current, "timed out"));
+                    return;
+                }
+                admitted.incrementAndGet();
+                admittedAfterWait.incrementAndGet();
+                emitter.complete(null);
+            });
+            emitter.onTermination(() -> {
+                // The client went away while waiting
+                if (done.compareAndSet(false, true)) {
+                    vertx.cancelTimer(timerId);
+                    endWait(start);
+                }
+            });
+        });
+    }
+
+    private void endWait(long start) {
+        waiting.decrementAndGet();
+        waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private String reject(String sessionId, String overload, String outcome) {
+        rejected.incrementAndGet();
+        rejectedByReason.computeIfAbsent(overload.substring(0, overload.indexOf(' ')), r -> new AtomicLong()).incrementAndGet();
+        log.warn("Session rejected, proxy overloaded ({}, {}) for session: {}", overload, outcome, sessionId);
+        return "Proxy overloaded, try again later: " + overload;
+    }
+
+    /**
+     * The first threshold the node is over, null if none
+     */
+    private String overload() {
+        String overload = checkOverload();
+        if (overload != null) {
+            lastOverload = overload;
+        }
+        return overload;
+    }
+
+    private String checkOverload() {
+        long maxLag = config.getAdmissionMaxLoopLagMillis();
+        double lag = eventLoopMonitor.getMaxLagMillis();
+        if (maxLag > 0 && lag > maxLag) {
+            return String.format("lag %.0f ms over %d ms", lag, maxLag);
+        }
+        long maxBuffered = config.getAdmissionMaxBufferedBytes();
+        long buffered = maxBuffered > 0 ? getBufferedBytes() : 0;
+        if (maxBuffered > 0 && buffered > maxBuffered) {
+            return String.format("buffered %d bytes over %d", buffered, maxBuffered);
+        }
+        double heapFree = getHeapFreeRatio();
+        if (heapFree < config.getAdmissionMinHeapFreeRatio()) {
+            return String.format("heap %.0f%% free", heapFree * 100);
+        }
+        double directFree = getDirectFreeRatio();
+        if (directFree < config.getAdmissionMinDirectFreeRatio()) {
+            return String.format("direct %.0f%% free", directFree * 100);
+        }
+        return null;
+    }
+
+    /**
+     * Bytes queued for browsers and for VNC servers over all sessions
+     */
+    public long getBufferedBytes() {
+        long buffered = 0;
+        for (VNCConnection connection : connectionManager.getActiveConnections().values()) {
+            VNCClientHandler client = connection.clientHandler;
+            if (client != null) {
+                buffered += client.getQueuedBytes();
+            }
+            VNCServerHandler server = connection.serverHandler;
+            if (server != null) {
+                buffered += server.getBufferSize();
+            }
+        }
+        return buffered;
+    }
+
+    /**
+     * Share of the maximum heap that is not in use. Counting everything allocated would include
+     * garbage the next collection frees, so this is the old generation's occupancy after its
+     * last collection: what is actually live. Before the first collection, or without a
+     * separate old generation, the current heap use is all there is.
+     */
+    public static double getHeapFreeRatio() {
+        Runtime runtime = Runtime.getRuntime();
+        MemoryPoolMXBean pool = OLD_GENERATION;
+        MemoryUsage usage = pool != null ? pool.getCollectionUsage() : null;
+        if (usage == null || usage.getUsed() == 0) {
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            return 1.0 - (double) used / runtime.maxMemory();
+        }
+        long max = usage.getMax() > 0 ? usage.getMax() : runtime.maxMemory();
+        return Math.max(0, 1.0 - (double) usage.getUsed() / max);
+    }
+
+    private static MemoryPoolMXBean findOldGeneration() {
+        MemoryPoolMXBean old = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = pool.getName();
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()
+                    || name.contains("Eden") || name.contains("Survivor") || name.contains("Young")) {
+                continue;
+            }
+            // G1/Parallel "Old Gen", Serial "Tenured Gen", or a single-generation heap (ZGC, Shenandoah)
+            if (old == null || name.contains("Old") || name.contains("Tenured")) {
+                old = pool;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Share of the direct memory limit that is not in use: Netty's own count when it keeps one,
+     * else the JVM's direct buffer pool
+     */
+    public static double getDirectFreeRatio() {
+        long max = PlatformDependent.maxDirectMemory();
+        if (max <= 0) {
+            return 1.0;
+        }
+        long used = PlatformDependent.usedDirectMemory();
+        if (used < 0) {
+            used = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    used = pool.getMemoryUsed();
+                }
+            }
+        }
+        return Math.max(0, 1.0 - (double) used / max);
+    }
+
+    /**
+     * Decisions and the load they are based on, for JSON output
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", config.isAdmissionEnabled());
+        map.put("admitted", admitted.get());
+        map.put("admittedAfterWait", admittedAfterWait.get());
+        map.put("rejected", rejected.get());
+        Map<String, Long> byReason = new LinkedHashMap<>();
+        rejectedByReason.forEach((reason, count) -> byReason.put(reason, count.get()));
+        map.put("rejectedByReason", byReason);
+        map.put("waiting", waiting.get());
+        map.put("waitMillis", waitNanos.get() / 1_000_000);
+        map.put("lastOverload", lastOverload);
+        map.put("loopLagMillis", eventLoopMonitor.getMaxLagMillis());
+        map.put("bufferedBytes", getBufferedBytes());
+        map.put("heapFreeRatio", Math.round(getHeapFreeRatio() * 1000) / 1000.0);
+        map.put("directFreeRatio", Math.round(getDirectFreeRatio() * 1000) / 1000.0);
+        return map;
+    }
+}
@@ -0,0 +1,136 @@
+package com.suko.vnc.websocket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What batching costs in one direction: how long the first byte of each batch waited in the send
+ * buffer (residency), how big batches get, and what made each one go out. Residency is latency
+ * batching adds on top of the write; flushes on size or large messages add little, flushes on
+ * the deadline or the timer show traffic that waited for company that never came.
+ */
+public class VNCBatchStats {
+
+    /**
+     * Why a batch was flushed
+     */
+    public enum Trigger {
+        /** The batch reached the maximum batch size */
+        SIZE("size"),
+        /** Data arrived after the batch timeout since the last flush */
+        DEADLINE("deadline"),
+        /** A message large enough to go out right away */
+        LARGE_MESSAGE("large-message"),
+        /** The periodic or tail flush timer found data waiting */
+        TIMER("timer"),
+        /** The session closed */
+        CLOSE("close"),
+        /** Flushed by the protocol handler, e.g. after injecting a request */
+        EXPLICIT("explicit");
+
+        private final String label;
+
+        Trigger(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Trigger[] TRIGGERS = Trigger.values();
+
+    private final VNCLatencyHistogram residency = new VNCLatencyHistogram();
+    // Bytes, recorded in a latency histogram for its log-linear buckets
+    private final VNCLatencyHistogram sizes = new VNCLatencyHistogram();
+    private final VNCLatencyHistogram[] residencyByTrigger = new VNCLatencyHistogram[TRIGGERS.length];
+    private final long[] batches = new long[TRIGGERS.length];
+    private final long[] bytes = new long[TRIGGERS.length];
+
+    public VNCBatchStats() {
+        for (int i = 0; i < TRIGGERS.length; i++) {
+            residencyByTrigger[i] = new VNCLatencyHistogram();
+        }
+    }
+
+    /**
+     * A batch was flushed
+     * @param residencyNanos time since its first byte was added
+     */
+    public void record(Trigger trigger, int size, long residencyNanos) {
+        long micros = residencyNanos / 1000;
+        residency.record(micros);
+        sizes.record(size);
+        residencyByTrigger[trigger.ordinal()].record(micros);
+        synchronized (this) {
+            batches[trigger.ordinal()]++;
+            bytes[trigger.ordinal()] += size;
+        }
+    }
+
+    /**
+     * Add the batches of another session
+     */
+    public void add(VNCBatchStats other) {
+        residency.add(other.residency);
+        sizes.add(other.sizes);
+        long[] otherBatches;
+        long[] otherBytes;
+        synchronized (other) {
+            otherBatches = other.batches.clone();
+            otherBytes = other.bytes.clone();
+        }
+        for (int i = 0; i < TRIGGERS.length; i++) {
+            residencyByTrigger[i].add(other.residencyByTrigger[i]);
+        }
+        synchronized (this) {
+            for (int i = 0; i < TRIGGERS.length; i++) {
+                batches[i] += otherBatches[i];
+                bytes[i] += otherBytes[i];
+            }
+        }
+    }
+
+    /**
+     * Residency of all batches, in microseconds
+     */
+    public VNCLatencyHistogram getResidency() {
+        return residency;
+    }
+
+    public long getBatches() {
+        return sizes.getCount();
+    }
+
+    /**
+     * Residency, batch sizes and flushes by trigger, for JSON output
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> sizeMap = new LinkedHashMap<>();
+        sizeMap.put("count", sizes.getCount());
+        sizeMap.put("p50Bytes", sizes.percentile(50));
+        sizeMap.put("p90Bytes", sizes.percentile(90));
+        sizeMap.put("p99Bytes", sizes.percentile(99));
+        sizeMap.put("maxBytes", sizes.percentile(100));
+        Map<String, Object> byTrigger = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Trigger trigger : TRIGGERS) {
+                int i = trigger.ordinal();
+                if (batches[i] == 0) {
+                    continue;
+                }
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("batches", batches[i]);
+                map.put("bytes", bytes[i]);
+                map.put("residency", residencyByTrigger[i].toMap());
+                byTrigger.put(trigger.getLabel(), map);
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("residency", residency.toMap());
+        map.put("size", sizeMap);
+        map.put("triggers", byTrigger);
+        return map;
+    }
+}
@@ -3,12 +3,20 @@ package com.suko.vnc.websocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.suko.vnc.jfr.VNCFlightRecorder;
+import com.suko.vnc.jfr.VNCFlushEvent;
+import com.suko.vnc.jfr.VNCSessionEvent;
+
 import io.quarkus.websockets.next.WebSocketConnection;
 import io.quarkus.websockets.next.CloseReason;
+import io.smallrye.mutiny.subscription.UniSubscriber;
+import io.smallrye.mutiny.subscription.UniSubscription;
+import io.vertx.core.Context;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.mutiny.core.Vertx;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 /**
  * Handles WebSocket client communication for VNC proxy with performance optimizations
@@ -25,6 +33,8 @@ public class VNCClientHandler {
     
     // Performance optimization: batch sending
     private Buffer sendBuffer = Buffer.buffer();
+    // When the first byte of the current batch was added
+    private long batchStartNanos = 0;
     private long lastSendTime = 0;
     private static final long BATCH_TIMEOUT_MS = 5; // 5ms batch timeout
     private static final int MAX_BATCH_SIZE = 8192; // 8KB max batch size
@@ -34,12 +44,43 @@ public class VNCClientHandler {
     private static final long FLUSH_INTERVAL_MS = 10; // 10ms periodic flush interval
     private final AtomicBoolean isClosed = new AtomicBoolean(false);
     
+    // Bytes handed to the WebSocket whose write has not completed yet
+    private final AtomicLong outstandingBytes = new AtomicLong(0);
+    private volatile Runnable drainHandler;
+    private volatile long drainThreshold;
+    
+    // Browser round trips, measured with WebSocket ping frames; null when not measured
+    private VNCRttEstimator browserRtt;
+    private Long pingTimerId = null;
+    // Payload of the one outstanding ping, reused: it carries the send time
+    private final Buffer pingPayload = Buffer.buffer(8).appendLong(0);
+    private long pingSentAt = 0;
+    private static final long PING_LOST_NANOS = 30_000_000_000L;
+    // Completion of every ping: stateless, so one per session serves all of them
+    private final UniSubscriber<Void> pingSubscriber = new PingSubscriber();
+    // Time source for ping timestamps, replaced in tests
+    LongSupplier clock = System::nanoTime;
+    
+    // Samples how well outbound batches would deflate, null when not sampling
+    private volatile VNCCompressionSampler compressionSampler;
+    
+    // Fair share of the event loop's egress, null when batches are written right away
+    private volatile VNCEgressScheduler.Flow egressFlow;
+    
     public VNCClientHandler(WebSocketConnection webSocketConnection, String sessionId, VNCConnection connection, Vertx vertx) {
         this.webSocketConnection = webSocketConnection;
         this.sessionId = sessionId;
         this.connection = connection;
         this.vertx = vertx;
         
+        VNCSessionEvent event = new VNCSessionEvent();
+        if (event.isEnabled()) {
+            event.session = VNCFlightRecorder.sessionLabel(sessionId);
+            event.user = connection.authSession != null ? connection.authSession.getUserId() : null;
+            event.action = "open";
+            event.commit();
+        }
+        
         // Start periodic flush timer
         startFlushTimer();
     }
@@ -58,7 +99,17 @@ public class VNCClientHandler {
                             log.debug("Periodic flush triggered for session: {}, buffer size: {} bytes", 
                                     sessionId, sendBuffer.length());
                         }
-                        flushSendBuffer();
+                        VNCSessionCost cost = connection.cost;
+                        if (cost != null) {
+                            cost.begin();
+                        }
+                        try {
+                            flushSendBuffer(VNCBatchStats.Trigger.TIMER, false);
+                        } finally {
+                            if (cost != null) {
+                                cost.end();
+                            }
+                        }
                     }
                 }
             });
@@ -86,14 +137,17 @@ public class VNCClientHandler {
         long startTime = System.nanoTime();
         
         // Add to send buffer
+        if (sendBuffer.length() == 0) {
+            batchStartNanos = startTime;
+        }
         sendBuffer.appendBuffer(buffer);
         
         // Check if we should send immediately
-        boolean shouldSend = shouldSendNow(buffer.length());
+        VNCBatchStats.Trigger trigger = flushTrigger(buffer.length());
         
-        if (shouldSend) {
+        if (trigger != null) {
             int totalDataSize = sendBuffer.length();
-            flushSendBuffer();
+            flushSendBuffer(trigger, false);
             long endTime = System.nanoTime();
             long latency = (endTime - startTime) / 1_000_000; // Convert to milliseconds
             // Update stats only when data is actually sent
@@ -137,6 +191,10 @@ public class VNCClientHandler {
      * @param updateStats whether to update stats for this flush operation
      */
     public void flushSendBuffer(boolean updateStats) {
+        flushSendBuffer(VNCBatchStats.Trigger.EXPLICIT, updateStats);
+    }
+    
+    private void flushSendBuffer(VNCBatchStats.Trigger trigger, boolean updateStats) {
         if (sendBuffer.length() > 0) {
             Buffer toSend = sendBuffer.copy();
             int dataSize = toSend.length();
@@ -145,8 +203,53 @@ public class VNCClientHandler {
             // Update lastSendTime when we actually send data
             lastSendTime = System.currentTimeMillis();
             
-            webSocketConnection.sendBinary(toSend).subscribe().with(
+            long residency = System.nanoTime() - batchStartNanos;
+            connection.clientBatches.record(trigger, dataSize, residency);
+            VNCFlushEvent event = new VNCFlushEvent();
+            if (event.isEnabled()) {
+                event.session = VNCFlightRecorder.sessionLabel(sessionId);
+                event.direction = "to-client";
+                event.trigger = trigger.getLabel();
+                event.bytes = dataSize;
+                event.residency = residency;
+                event.commit();
+            }
+            
+            VNCCompressionSampler sampler = compressionSampler;
+            if (sampler != null) {
+                sampler.sample(toSend);
+            }
+            
+            long outstanding = outstandingBytes.addAndGet(dataSize);
+            if (outstanding > connection.maxQueuedBytes) {
+                connection.maxQueuedBytes = outstanding;
+            }
+            
+            VNCEgressScheduler.Flow flow = egressFlow;
+            if (flow != null) {
+                // Written when the session's turn comes; counted now
+                flow.enqueue(toSend);
+                if (updateStats) {
+                    connection.updateStats(0, dataSize);
+                }
+                return;
+            }
+            write(toSend, updateStats, null);
+        }
+    }
+    
+    /**
+     * Hand a batch to the WebSocket
+     * @param written run once the write completed or failed, may be null
+     */
+    private void write(Buffer toSend, boolean updateStats, Runnable written) {
+        int dataSize = toSend.length();
+        webSocketConnection.sendBinary(toSend).subscribe().with(
                 success -> {
+                    onWriteCompleted(dataSize);
+                    if (written != null) {
+                        written.run();
+                    }
                     long messageIdValue = messageId.incrementAndGet();
                     if (log.isDebugEnabled()) {
                         log.debug("Sent batch message {} to client for session: {}, size: {} bytes", 
@@ -158,34 +261,140 @@ public class VNCClientHandler {
                         connection.updateStats(0, dataSize);
                     }
                 },
-                failure -> log.error("Failed to send binary data to client for session: {}", sessionId, failure)
+                failure -> {
+                    onWriteCompleted(dataSize);
+                    if (written != null) {
+                        written.run();
+                    }
+                    log.error("Failed to send binary data to client for session: {}", sessionId, failure);
+                }
             );
+    }
+    
+    private void onWriteCompleted(int dataSize) {
+        long outstanding = outstandingBytes.addAndGet(-dataSize);
+        Runnable handler = drainHandler;
+        if (handler != null && outstanding <= drainThreshold) {
+            handler.run();
         }
     }
     
+    /**
+     * Bytes queued for the client: batched but not flushed, plus flushed but not yet written
+     */
+    public long getQueuedBytes() {
+        return outstandingBytes.get() + sendBuffer.length();
+    }
+    
+    /**
+     * Run a handler whenever a write completes and at most threshold bytes are still outstanding
+     */
+    public void setDrainHandler(long threshold, Runnable handler) {
+        this.drainThreshold = threshold;
+        this.drainHandler = handler;
+    }
+    
     /**
      * Determine if we should send the buffer now based on size and timing
+     * @return why the buffer should go out now, null if it should wait
      */
-    private boolean shouldSendNow(int newDataSize) {
+    private VNCBatchStats.Trigger flushTrigger(int newDataSize) {
         long currentTime = System.currentTimeMillis();
         
         // Send immediately if:
         // 1. Buffer is getting too large
         if (sendBuffer.length() + newDataSize >= MAX_BATCH_SIZE) {
-            return true;
+            return VNCBatchStats.Trigger.SIZE;
         }
         
         // 2. Enough time has passed since last send
         if (currentTime - lastSendTime >= BATCH_TIMEOUT_MS) {
-            return true;
+            return VNCBatchStats.Trigger.DEADLINE;
         }
         
         // 3. This is a large message (send immediately)
         if (newDataSize >= VNCConnection.BUFFER_THRESHOLD) {
-            return true;
+            return VNCBatchStats.Trigger.LARGE_MESSAGE;
         }
         
-        return false;
+        return null;
+    }
+    
+    /**
+     * Measure the browser round trip with a WebSocket ping every interval. Browsers answer pings
+     * with pongs on their own, so this needs nothing from the client and no extra connection.
+     */
+    public synchronized void startRttProbes(long intervalMillis) {
+        if (pingTimerId != null) {
+            return;
+        }
+        browserRtt = new VNCRttEstimator();
+        connection.browserRtt = browserRtt;
+        pingTimerId = vertx.setPeriodic(intervalMillis, timerId -> sendPing());
+    }
+    
+    synchronized void sendPing() {
+        if (isClosed()) {
+            return;
+        }
+        long now = clock.getAsLong();
+        if (pingSentAt != 0 && now - pingSentAt < PING_LOST_NANOS) {
+            // One ping at a time, so its payload can be reused
+            return;
+        }
+        pingSentAt = now;
+        pingPayload.setLong(0, now);
+        webSocketConnection.sendPing(pingPayload).subscribe().withSubscriber(pingSubscriber);
+    }
+    
+    /**
+     * Only logs a failed ping: a lost one is noticed by its pong never arriving
+     */
+    private final class PingSubscriber implements UniSubscriber<Void> {
+        
+        @Override
+        public void onSubscribe(UniSubscription subscription) {
+        }
+        
+        @Override
+        public void onItem(Void item) {
+        }
+        
+        @Override
+        public void onFailure(Throwable failure) {
+            log.debug("Failed to send ping for session: {}", sessionId, failure);
+        }
+    }
+    
+    /**
+     * Sample the compressibility of outbound batches
+     */
+    public void setCompressionSampler(VNCCompressionSampler sampler) {
+        this.compressionSampler = sampler;
+        connection.compressionSampler = sampler;
+    }
+    
+    /**
+     * Schedule outbound batches fairly with the other sessions of the event loop
+     */
+    public void setEgressScheduler(VNCEgressScheduler scheduler, String userId, Context context) {
+        VNCEgressScheduler.Flow flow = scheduler.register(sessionId, userId, context, (batch, written) -> write(batch, false, written));
+        connection.egressFlow = flow;
+        egressFlow = flow;
+    }
+    
+    /**
+     * A pong frame arrived from the browser
+     */
+    public synchronized void onPong(Buffer data) {
+        if (browserRtt == null || pingSentAt == 0 || data.length() != 8 || data.getLong(0) != pingSentAt) {
+            return;
+        }
+        browserRtt.record((clock.getAsLong() - pingSentAt) / 1000);
+        pingSentAt = 0;
+        // One-way, as the latency fields are reported
+        connection.setBrowserToProxyLatency(browserRtt.getSmoothedMicros() / 2000);
+        connection.setLastLatencyUpdate(System.currentTimeMillis());
     }
     
     /**
@@ -197,10 +406,38 @@ public class VNCClientHandler {
         
         // Stop the flush timer
         stopFlushTimer();
+        synchronized (this) {
+            if (pingTimerId != null) {
+                vertx.cancelTimer(pingTimerId);
+                pingTimerId = null;
+            }
+        }
         
         // Flush any pending data before closing
-        flushSendBuffer(true);
+        flushSendBuffer(VNCBatchStats.Trigger.CLOSE, true);
         
+        VNCSessionEvent event = new VNCSessionEvent();
+        if (event.isEnabled()) {
+            event.session = VNCFlightRecorder.sessionLabel(sessionId);
+            event.user = connection.authSession != null ? connection.authSession.getUserId() : null;
+            event.action = "close";
+            event.bytesReceived = connection.bytesReceived;
+            event.bytesSent = connection.bytesSent;
+            event.lifetime = connection.getConnectionDuration();
+            event.commit();
+        }
+        
+        VNCEgressScheduler.Flow flow = egressFlow;
+        if (flow != null) {
+            // Batches still waiting for their turn go out first
+            egressFlow = null;
+            flow.close(() -> closeWebSocket(code, reason));
+        } else {
+            closeWebSocket(code, reason);
+        }
+    }
+    
+    private void closeWebSocket(int code, String reason) {
         if (webSocketConnection != null && !webSocketConnection.isClosed()) {
             try {
                 webSocketConnection.close(new CloseReason(code, reason));
@@ -0,0 +1,190 @@
+package com.suko.vnc.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.suko.vnc.rfb.VNCClientMessageReader;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * One large clipboard transfer moved off the RFB stream.
+ *
+ * A cut-text message is a single RFB message, so while a multi-megabyte one is being written
+ * nothing else on the RFB stream moves. Large transfers go as control messages instead, in
+ * chunks paced to a share of the client's bandwidth, and framebuffer updates and input keep
+ * flowing between the chunks. Only the latest clipboard matters, so a new transfer
+ * replaces one that is still in progress.
+ *
+ * Also holds the conversions between cut-text messages and text, and the size limit, which
+ * only applies with streaming: without it, cut text passes through as it always has.
+ */
+public class VNCClipboardStream {
+
+    // Extended clipboard (negative length) flags
+    private static final int EXTENDED_TEXT = 0x00000001;
+    private static final int EXTENDED_CAPS = 0x01000000;
+    private static final int EXTENDED_PROVIDE = 0x08000000;
+
+    /**
+     * Largest extended clipboard capabilities message body: flags and one size per format
+     */
+    public static final int EXTENDED_CAPS_MAX_BYTES = 4 + 4 * 16;
+
+    private final long id;
+    private final String text;
+    private int offset = 0;
+
+    public VNCClipboardStream(long id, String text) {
+        this.id = id;
+        this.text = text;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public boolean isDone() {
+        return offset >= text.length();
+    }
+
+    /**
+     * The next part of the text, at most maxChars long
+     */
+    public String nextChunk(int maxChars) {
+        int end = (int) Math.min(text.length(), (long) offset + Math.max(1, maxChars));
+        if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+            // Keep surrogate pairs together
+            end++;
+        }
+        String chunk = text.substring(offset, end);
+        offset = end;
+        return chunk;
+    }
+
+    /**
+     * Whether a clipboard transfer of this many bytes is over the limit
+     * @param maxBytes configured limit, 0 for none
+     */
+    public static boolean exceedsLimit(boolean streaming, long maxBytes, long bytes) {
+        return streaming && maxBytes > 0 && bytes > maxBytes;
+    }
+
+    /**
+     * Whether a complete ServerCutText is the extended clipboard capabilities message of a
+     * server that accepts text provided by the client
+     */
+    public static boolean isExtendedCapabilities(Buffer message) {
+        if (message.length() < 12 || message.getInt(4) >= 0) {
+            return false;
+        }
+        int flags = message.getInt(8);
+        return (flags & EXTENDED_CAPS) != 0 && (flags & EXTENDED_PROVIDE) != 0 && (flags & EXTENDED_TEXT) != 0;
+    }
+
+    /**
+     * Whether the plain cut-text message carries this text unchanged
+     */
+    public static boolean isLatin1(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Text carried by a complete ServerCutText message: plain Latin-1, or an extended clipboard
+     * "provide" with UTF-8 text
+     * @return null if the message carries no text (other extended clipboard actions)
+     */
+    public static String decodeServerCutText(Buffer message) {
+        int length = message.getInt(4);
+        if (length >= 0) {
+            return message.getString(8, 8 + length, StandardCharsets.ISO_8859_1.name());
+        }
+        int flags = message.getInt(8);
+        if ((flags & EXTENDED_PROVIDE) == 0 || (flags & EXTENDED_TEXT) == 0) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(message.getBytes(12, message.length()));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[64 * 1024];
+            while (!inflater.finished() && !inflater.needsInput()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && inflater.needsDictionary()) {
+                    return null;
+                }
+                out.write(chunk, 0, n);
+            }
+            Buffer formats = Buffer.buffer(out.toByteArray());
+            if (formats.length() < 4) {
+                return null;
+            }
+            // Text is the first format; it is null-terminated
+            int size = (int) Math.min(formats.getUnsignedInt(0), formats.length() - 4L);
+            if (size > 0 && formats.getByte(4 + size - 1) == 0) {
+                size--;
+            }
+            return formats.getString(4, 4 + size, StandardCharsets.UTF_8.name());
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A ClientCutText message
+     * @param extended the server accepts extended clipboard text: send the text as UTF-8 in a
+     *                 "provide" message. Otherwise it goes in a plain message, where characters
+     *                 outside Latin-1 become '?' ({@link #isLatin1(String)}).
+     */
+    public static Buffer encodeClientCutText(String text, boolean extended) {
+        if (extended) {
+            return encodeExtendedText(text);
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        Buffer message = Buffer.buffer(8 + bytes.length);
+        message.appendByte((byte) VNCClientMessageReader.CLIENT_CUT_TEXT);
+        message.appendBytes(new byte[3]); // padding
+        message.appendInt(bytes.length);
+        message.appendBytes(bytes);
+        return message;
+    }
+
+    private static Buffer encodeExtendedText(String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        // Size, text, terminating null; every message is a fresh zlib stream
+        Buffer formats = Buffer.buffer(utf8.length + 5).appendInt(utf8.length + 1).appendBytes(utf8).appendByte((byte) 0);
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 2 + 64);
+        try {
+            deflater.setInput(formats.getBytes());
+            deflater.finish();
+            byte[] chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            deflater.end();
+        }
+        Buffer message = Buffer.buffer(12 + out.size());
+        message.appendByte((byte) VNCClientMessageReader.CLIENT_CUT_TEXT);
+        message.appendBytes(new byte[3]); // padding
+        message.appendInt(-(4 + out.size()));
+        message.appendInt(EXTENDED_PROVIDE | EXTENDED_TEXT);
+        message.appendBytes(out.toByteArray());
+        return message;
+    }
+}
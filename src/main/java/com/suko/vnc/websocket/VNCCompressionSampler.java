@@ -0,0 +1,147 @@
+package com.suko.vnc.websocket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * How well a session's outbound WebSocket traffic would deflate, and at what CPU cost.
+ *
+ * permessage-deflate is negotiated for the whole server at the WebSocket handshake
+ * (quarkus.websockets-next.server.compression-supported) and the WebSocket API offers no way to
+ * skip it for single frames, so the proxy cannot switch it per frame or per session. Instead it
+ * deflates a sample of the outbound batches the way the extension would and reports, per session,
+ * the ratio, the CPU time it took and whether deflate would pay off: Tight and ZRLE traffic barely
+ * shrinks, Raw, Hextile and cut text often do.
+ *
+ * Sampling is limited to a share of each event loop's time, so it never competes with forwarding.
+ */
+public class VNCCompressionSampler {
+
+    // Largest part of a batch that is deflated
+    private static final int MAX_SAMPLE = 64 * 1024;
+    // CPU time an event loop can save up for sampling
+    private static final long MAX_BUDGET_NANOS = 5_000_000;
+    // Samples needed before deflate is recommended either way
+    private static final int MIN_SAMPLES = 8;
+
+    private static final ThreadLocal<Budget> BUDGETS = ThreadLocal.withInitial(Budget::new);
+    // Sampled part of the batch and deflate output, reused by every sample on the thread
+    private static final ThreadLocal<byte[]> INPUT = ThreadLocal.withInitial(() -> new byte[MAX_SAMPLE]);
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_SAMPLE]);
+    // Raw deflate, as permessage-deflate uses it
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    private final int level;
+    private final double cpuShare;
+    private final int sampleEvery;
+    private final double worthwhileRatio;
+
+    private long batches = 0;
+    private long samples = 0;
+    private long sampledBytes = 0;
+    private long deflatedBytes = 0;
+    private long sampleNanos = 0;
+    private long skipped = 0;
+
+    public VNCCompressionSampler(int level, double cpuShare, int sampleEvery, double worthwhileRatio) {
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.cpuShare = Math.max(0, cpuShare);
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.worthwhileRatio = worthwhileRatio;
+    }
+
+    /**
+     * A batch is about to be sent to the browser
+     */
+    public void sample(Buffer batch) {
+        synchronized (this) {
+            if (++batches % sampleEvery != 0) {
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        Budget budget = BUDGETS.get();
+        if (!budget.available(start, cpuShare)) {
+            synchronized (this) {
+                skipped++;
+            }
+            return;
+        }
+        int length = Math.min(batch.length(), MAX_SAMPLE);
+        byte[] input = INPUT.get();
+        batch.getBytes(0, length, input, 0);
+        byte[] output = SCRATCH.get();
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(input, 0, length);
+        long deflated = 0;
+        int n;
+        do {
+            n = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+            deflated += n;
+        } while (n == output.length || !deflater.needsInput());
+        long elapsed = System.nanoTime() - start;
+        budget.spend(elapsed);
+        synchronized (this) {
+            samples++;
+            sampledBytes += length;
+            // permessage-deflate strips the 4-byte sync flush trailer
+            deflatedBytes += Math.max(0, deflated - 4);
+            sampleNanos += elapsed;
+        }
+    }
+
+    /**
+     * Deflated size of the sampled bytes relative to their original size, 1 before any sample
+     */
+    public synchronized double getRatio() {
+        return sampledBytes > 0 ? (double) deflatedBytes / sampledBytes : 1.0;
+    }
+
+    /**
+     * Whether the samples shrink enough for deflate to be worth its CPU time for this session
+     */
+    public synchronized boolean isDeflateWorthwhile() {
+        return samples >= MIN_SAMPLES && getRatio() <= worthwhileRatio;
+    }
+
+    /**
+     * Counters for JSON output
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("samples", samples);
+        map.put("sampledBytes", sampledBytes);
+        map.put("deflatedBytes", deflatedBytes);
+        map.put("ratio", Math.round(getRatio() * 1000) / 1000.0);
+        map.put("cpuMillis", sampleNanos / 1_000_000.0);
+        map.put("nanosPerKilobyte", sampledBytes > 0 ? sampleNanos * 1024 / sampledBytes : 0);
+        map.put("skippedOverBudget", skipped);
+        map.put("deflateWorthwhile", isDeflateWorthwhile());
+        return map;
+    }
+
+    /**
+     * Sampling CPU time left on one event loop: refills at the configured share of wall time
+     */
+    private static final class Budget {
+        private long nanos = MAX_BUDGET_NANOS;
+        private long last = 0;
+
+        boolean available(long now, double share) {
+            if (last != 0) {
+                nanos = Math.min(MAX_BUDGET_NANOS, nanos + (long) ((now - last) * share));
+            }
+            last = now;
+            return nanos > 0;
+        }
+
+        void spend(long elapsed) {
+            nanos -= elapsed;
+        }
+    }
+}
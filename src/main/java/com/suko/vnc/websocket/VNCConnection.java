@@ -1,7 +1,12 @@
 package com.suko.vnc.websocket;
 
+import com.suko.vnc.jfr.VNCFlightRecorder;
+import com.suko.vnc.jfr.VNCHandshakeEvent;
+import com.suko.vnc.rfb.VNCPixelFormat;
+import com.suko.vnc.rfb.VNCTrafficStats;
 import com.suko.vnc.security.VNCAuthService;
 import io.quarkus.websockets.next.WebSocketConnection;
+import io.vertx.core.Context;
 import io.vertx.core.net.NetSocket;
 import io.vertx.core.buffer.Buffer;
 
@@ -47,6 +52,120 @@ public class VNCConnection {
     public byte[] vncResponse;
     public boolean vncAuthCompleted = false;
     
+    // RFB session parameters, known once ServerInit has been seen
+    public volatile VNCPixelFormat pixelFormat;
+    public int framebufferWidth;
+    public int framebufferHeight;
+    public volatile int[] clientEncodings;
+    
+    // Client viewport in CSS pixels, reported when the WebSocket opens (0 if unknown)
+    public volatile int viewportWidth;
+    public volatile int viewportHeight;
+    
+    // Proxy-side encoding stats
+    public long proxyEncodedRects = 0;
+    public long proxyEncodedParallelRects = 0;
+    public long proxyEncodedBytesIn = 0;
+    public long proxyEncodedBytesOut = 0;
+    
+    // Colour depth conversion stats
+    public long depthConvertedRects = 0;
+    public long depthBytesIn = 0;
+    public long depthBytesOut = 0;
+    public volatile int reducedDepth = 0;
+    public volatile long clientBandwidth = 0;
+    
+    // Server-side scaling stats
+    public volatile int scaleFactor = 1;
+    public long scaledRects = 0;
+    public long scaleBytesIn = 0;
+    public long scaleBytesOut = 0;
+    public long scaleNanos = 0;
+    
+    // Viewport-restricted updates
+    public long viewportRestrictedRequests = 0;
+    public long viewportRefreshes = 0;
+    public long viewportPixelsSkipped = 0;
+    
+    // Update pacing stats
+    public volatile int pacingMaxFps = 0;
+    public long pacingHeldRequests = 0;
+    // Update request pacing, null when unlimited
+    public volatile VNCUpdatePacer updatePacer;
+    public long framebufferUpdates = 0;
+    public long framebufferUpdateBytes = 0;
+    
+    // Lagging client stats
+    public volatile long maxQueuedBytes = 0;
+    public long lagHeldRequests = 0;
+    public long lagEpisodes = 0;
+    public long lagRefreshes = 0;
+    public long lagHeldNanos = 0;
+    
+    // ContinuousUpdates / Fence stats
+    public long continuousAbsorbedRequests = 0;
+    public long continuousPauses = 0;
+    // Fence replies written to the server, and server fences whose reply waited for the browser
+    public long fencesAnswered = 0;
+    public long fencesDeferred = 0;
+    
+    // Batching in each direction: residency, batch sizes, flush triggers
+    public final VNCBatchStats clientBatches = new VNCBatchStats();
+    public final VNCBatchStats serverBatches = new VNCBatchStats();
+    
+    // Client-to-server input fast lane
+    public long inputFastLaneWrites = 0;
+    public long tailFlushes = 0;
+    
+    // Encodings the server was asked for
+    public volatile int[] serverEncodings;
+    public long encodingPolicyChanges = 0;
+    
+    // Traffic by message type and encoding, null when accounting is off
+    public volatile VNCTrafficStats trafficStats;
+    
+    // Input-to-update latency, null when not measured
+    public volatile VNCInputLatencyTracker inputLatency;
+    
+    // WebSocket ping round trips to the browser, null when not measured
+    public volatile VNCRttEstimator browserRtt;
+    
+    // Compressibility of the traffic to the browser, null when not sampled
+    public volatile VNCCompressionSampler compressionSampler;
+    
+    // Fair-scheduling flow of the traffic to the browser, null when not scheduled
+    public volatile VNCEgressScheduler.Flow egressFlow;
+    
+    // CPU time and allocation of this session's handlers, null when not measured
+    public volatile VNCSessionCost cost;
+    
+    // Fence round trips to the VNC server, null when not measured
+    public volatile VNCServerRttProbe serverRtt;
+    
+    // Event loop of the VNC server socket, and client messages that arrived on another thread
+    public volatile Thread eventLoopThread;
+    // Context the browser's messages are handled on, null until the WebSocket is open
+    public volatile Context context;
+    public long offLoopClientMessages = 0;
+    
+    // VNC server this session is proxied to, as host:port
+    public volatile String backend;
+    
+    // Whether the browser reads control text frames next to the RFB stream (VNCControlChannel),
+    // known from the first one it sends
+    public volatile boolean controlMessages = false;
+    
+    // Clipboard transfers
+    public long clipboardStreams = 0;
+    public long clipboardStreamBytes = 0;
+    public long clipboardReceived = 0;
+    public long clipboardDropped = 0;
+    // Browser clipboard text that lost characters outside Latin-1 on its way to the server
+    public long clipboardLossy = 0;
+    
+    // The server announced extended clipboard support, so it takes UTF-8 clipboard text
+    public volatile boolean serverExtendedClipboard = false;
+    
     // Pending data that needs to be sent when VNC socket becomes available
     public Buffer pendingClientProtocolVersion;
     
@@ -55,11 +174,19 @@ public class VNCConnection {
     public VNCServerHandler serverHandler;
     public VNCProtocolHandler protocolHandler;
     
+    // How long each step of the handshake took
+    public final VNCHandshakeTimer handshakeTimer = new VNCHandshakeTimer();
+    
+    // Handshake phase being recorded, null outside a flight recording and after ServerInit
+    private VNCHandshakeEvent handshakeEvent;
+    private boolean handshakeFinished = false;
+    
     public VNCConnection(VNCAuthService.VNCSession authSession) {
         this.authSession = authSession;
         this.connectionStartTime = System.currentTimeMillis();
         this.lastActivityTime = System.currentTimeMillis();
         this.state = VNCConnectionState.CONNECTING;
+        beginHandshakePhase();
     }
     
     public void updateStats(long received, long sent) {
@@ -87,7 +214,57 @@ public class VNCConnection {
     }
     
     public void setState(VNCConnectionState newState) {
+        VNCConnectionState previous = this.state;
         this.state = newState;
+        if (newState != previous) {
+            VNCHandshakeStep step = VNCHandshakeStep.endedBy(previous);
+            if (step != null) {
+                handshakeTimer.mark(step);
+            }
+            if (newState == VNCConnectionState.DISCONNECTED) {
+                handshakeTimer.abort();
+            }
+            synchronized (this) {
+                endHandshakePhase(previous);
+                if (newState != VNCConnectionState.DISCONNECTED) {
+                    beginHandshakePhase();
+                }
+            }
+        }
+    }
+    
+    /**
+     * ServerInit went to the client: the handshake is over
+     */
+    public void finishHandshake() {
+        handshakeTimer.mark(VNCHandshakeStep.SERVER_INIT);
+        synchronized (this) {
+            endHandshakePhase(VNCConnectionState.CONNECTED);
+            handshakeFinished = true;
+        }
+    }
+    
+    private void beginHandshakePhase() {
+        if (handshakeFinished) {
+            return;
+        }
+        VNCHandshakeEvent event = new VNCHandshakeEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            handshakeEvent = event;
+        }
+    }
+    
+    private void endHandshakePhase(VNCConnectionState phase) {
+        VNCHandshakeEvent event = handshakeEvent;
+        handshakeEvent = null;
+        if (event != null && phase.getPhase() != null) {
+            event.end();
+            event.session = VNCFlightRecorder.sessionLabel(authSession != null ? authSession.getSessionId() : null);
+            event.backend = backend;
+            event.phase = phase.getPhase();
+            event.commit();
+        }
     }
     
     /**
@@ -190,6 +367,24 @@ public class VNCConnection {
         return duration > 0 ? (double) (bytesReceived + bytesSent) / (duration / 1000.0) : 0.0;
     }
     
+    /**
+     * Ratio of proxy-encoded output bytes to the raw input bytes (0 when nothing was encoded)
+     */
+    public double getProxyEncodingRatio() {
+        return proxyEncodedBytesIn > 0 ? (double) proxyEncodedBytesOut / proxyEncodedBytesIn : 0.0;
+    }
+    
+    /**
+     * Bytes the server did not have to send for the updates pacing avoided, estimated from the
+     * session's mean FramebufferUpdate size. Changes an avoided update would have carried still
+     * go out in the next one, so this is at most what was saved.
+     */
+    public long getPacingBytesAvoided() {
+        VNCUpdatePacer pacer = updatePacer;
+        return pacer != null && framebufferUpdates > 0
+                ? pacer.getUpdatesAvoided() * (framebufferUpdateBytes / framebufferUpdates) : 0;
+    }
+    
     /**
      * Check if connection is idle (no activity for more than 30 seconds)
      */
@@ -4,21 +4,30 @@ package com.suko.vnc.websocket;
  * Represents the different states of a VNC connection
  */
 public enum VNCConnectionState {
-    CONNECTING("Connecting to VNC server"),
-    PROTOCOL_VERSION("Exchanging RFB protocol version"),
-    SECURITY("Exchanging security types"),
-    VNC_AUTH("VNC Authentication challenge-response"),
-    AUTH("Authenticating with VNC server"),
-    CONNECTED("Connected and ready"),
-    DISCONNECTED("Disconnected");
+    CONNECTING("Connecting to VNC server", "connect"),
+    PROTOCOL_VERSION("Exchanging RFB protocol version", "version"),
+    SECURITY("Exchanging security types", "security"),
+    VNC_AUTH("VNC Authentication challenge-response", "vnc-auth"),
+    AUTH("Authenticating with VNC server", "security-result"),
+    CONNECTED("Connected and ready", "server-init"),
+    DISCONNECTED("Disconnected", null);
     
     private final String description;
+    private final String phase;
     
-    VNCConnectionState(String description) {
+    VNCConnectionState(String description, String phase) {
         this.description = description;
+        this.phase = phase;
     }
     
     public String getDescription() {
         return description;
     }
+    
+    /**
+     * Handshake phase of the time spent in this state; CONNECTED counts until ServerInit
+     */
+    public String getPhase() {
+        return phase;
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,212 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.suko.vnc.rfb.VNCClientMessageReader;
+import com.suko.vnc.rfb.VNCEncodings;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * ContinuousUpdates and Fence on the proxy-to-server leg.
+ *
+ * When the client advertises ContinuousUpdates, it accepts updates it did not ask for, so the
+ * proxy enables continuous updates toward the server itself as soon as the server confirms
+ * support (with EndOfContinuousUpdates). The server then streams changes without waiting for a
+ * FramebufferUpdateRequest round trip per frame; the client's incremental requests are absorbed.
+ * The client never sees EndOfContinuousUpdates or server fences, so it stays in plain
+ * request/response mode toward the proxy.
+ *
+ * Flow control: servers pace continuous updates by how quickly their fences are answered. The
+ * proxy answers a server fence only once the browser's outbound queue has drained, so the server
+ * settles at the browser's bandwidth rather than the proxy's. If the browser falls further behind,
+ * continuous updates are switched off until it catches up.
+ *
+ * Synchronized: server messages and drain events arrive on different threads.
+ */
+public class VNCContinuousUpdates {
+
+    public static final int FENCE_BLOCK_BEFORE = 1;
+    public static final int FENCE_BLOCK_AFTER = 2;
+    public static final int FENCE_SYNC_NEXT = 4;
+    public static final int FENCE_REQUEST = 0x80000000;
+    private static final int FENCE_SUPPORTED = FENCE_BLOCK_BEFORE | FENCE_BLOCK_AFTER | FENCE_SYNC_NEXT;
+
+    private final long highWater;
+    private final long lowWater;
+
+    private boolean clientCapable = false;
+    private int clientFenceRequests = 0;
+    private boolean serverSupported = false;
+    private volatile boolean active = false;
+    private boolean paused = false;
+    private final Deque<Buffer> deferredFences = new ArrayDeque<>();
+
+    public VNCContinuousUpdates(long highWater, long lowWater) {
+        this.highWater = highWater;
+        this.lowWater = Math.min(lowWater, highWater);
+    }
+
+    public long getLowWater() {
+        return lowWater;
+    }
+
+    /**
+     * The client's SetEncodings: only clients that advertise ContinuousUpdates get pushed updates
+     */
+    public synchronized void onClientEncodings(int[] encodings) {
+        clientCapable = false;
+        for (int encoding : encodings) {
+            if (encoding == VNCEncodings.CONTINUOUS_UPDATES) {
+                clientCapable = true;
+            }
+        }
+    }
+
+    /**
+     * Whether the proxy handles the server's EndOfContinuousUpdates and fences for this client
+     */
+    public synchronized boolean isIntercepting() {
+        return clientCapable;
+    }
+
+    /**
+     * Whether the server is streaming updates, so incremental client requests are not needed
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * The server sent EndOfContinuousUpdates: the first one announces support, later ones
+     * confirm that updates were switched off
+     * @return EnableContinuousUpdates to send to the server, or null
+     */
+    public synchronized Buffer onEndOfContinuousUpdates(int width, int height) {
+        if (!serverSupported) {
+            serverSupported = true;
+            if (clientCapable) {
+                active = true;
+                return enable(true, width, height);
+            }
+            return null;
+        }
+        if (!paused) {
+            // The server stopped on its own
+            active = false;
+        }
+        return null;
+    }
+
+    /**
+     * Whether a ServerFence answers a fence the browser sent, so it belongs to the browser
+     */
+    public synchronized boolean isReplyForClient(Buffer message) {
+        if ((message.getInt(4) & FENCE_REQUEST) != 0 || clientFenceRequests == 0) {
+            return false;
+        }
+        clientFenceRequests--;
+        return true;
+    }
+
+    /**
+     * A ServerFence request (the complete message)
+     * @param queuedBytes bytes still waiting to be written to the browser
+     * @return the ClientFence reply to send now, or null if there is none or it was deferred
+     */
+    public synchronized Buffer onServerFence(Buffer message, long queuedBytes) {
+        int flags = message.getInt(4);
+        if ((flags & FENCE_REQUEST) == 0) {
+            // A reply, but the proxy itself sends no fence requests
+            return null;
+        }
+        Buffer reply = fenceReply(message);
+        if (queuedBytes > lowWater || !deferredFences.isEmpty()) {
+            deferredFences.add(reply);
+            return null;
+        }
+        return reply;
+    }
+
+    /**
+     * A FramebufferUpdate is about to be forwarded
+     * @return EnableContinuousUpdates(false) to send to the server if the browser is too far behind
+     */
+    public synchronized Buffer onUpdate(long queuedBytes, int width, int height) {
+        if (!active || paused || queuedBytes <= highWater) {
+            return null;
+        }
+        paused = true;
+        return enable(false, width, height);
+    }
+
+    /**
+     * The browser's outbound queue drained below the low-water mark
+     * @return messages to send to the server: deferred fence replies, then re-enabling updates
+     */
+    public synchronized List<Buffer> onClientDrained(int width, int height) {
+        List<Buffer> messages = new ArrayList<>(deferredFences);
+        deferredFences.clear();
+        if (paused) {
+            paused = false;
+            messages.add(enable(true, width, height));
+        }
+        return messages;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * The framebuffer changed size
+     * @return EnableContinuousUpdates covering the new size, or null if updates are not streaming
+     */
+    public synchronized Buffer onResize(int width, int height) {
+        return active && !paused ? enable(true, width, height) : null;
+    }
+
+    /**
+     * The browser sent a ClientFence, which is forwarded to the server
+     */
+    public synchronized void onClientFence(Buffer message) {
+        if ((message.getInt(4) & FENCE_REQUEST) != 0) {
+            clientFenceRequests++;
+        }
+    }
+
+    private static Buffer enable(boolean enable, int width, int height) {
+        Buffer message = Buffer.buffer(10);
+        message.appendByte((byte) VNCClientMessageReader.ENABLE_CONTINUOUS_UPDATES);
+        message.appendByte((byte) (enable ? 1 : 0));
+        message.appendUnsignedShort(0);
+        message.appendUnsignedShort(0);
+        message.appendUnsignedShort(width);
+        message.appendUnsignedShort(height);
+        return message;
+    }
+
+    /**
+     * The ClientFence answering a ServerFence request: the flags the proxy honours (it has nothing
+     * to synchronize, so all of them trivially) and the same payload
+     */
+    static Buffer fenceReply(Buffer request) {
+        return fence(request.getInt(4) & FENCE_SUPPORTED, request.getBuffer(9, request.length()));
+    }
+
+    /**
+     * Fence message (the client and server forms share the layout and type number)
+     */
+    static Buffer fence(int flags, Buffer payload) {
+        Buffer message = Buffer.buffer(9 + payload.length());
+        message.appendByte((byte) VNCClientMessageReader.CLIENT_FENCE);
+        message.appendBytes(new byte[3]); // padding
+        message.appendInt(flags);
+        message.appendByte((byte) payload.length());
+        message.appendBuffer(payload);
+        return message;
+    }
+}
@@ -0,0 +1,111 @@
+package com.suko.vnc.websocket;
+
+/**
+ * Browser state the RFB stream cannot carry, sent as WebSocket text frames on the session's own
+ * /websockify connection. noVNC only reads the binary frames, so the RFB stream and these
+ * messages share one socket and one event loop instead of a second WebSocket per session.
+ *
+ * A message is its type followed by space-separated fields:
+ * <pre>
+ * hello                        the browser reads control messages from the proxy
+ * viewport X Y WIDTH HEIGHT    framebuffer region the browser shows, in client pixels
+ * clipboard-begin ID LENGTH    large clipboard text, in both directions
+ * clipboard-chunk ID TEXT
+ * clipboard-end ID
+ * clipboard-notice TEXT        a clipboard transfer was dropped or changed, to the browser
+ * </pre>
+ * Numbers are parsed in place, without splitting the message.
+ */
+public final class VNCControlChannel {
+
+    private static final String HELLO = "hello";
+    private static final String VIEWPORT = "viewport ";
+    private static final String CLIPBOARD = "clipboard-";
+    private static final String CLIPBOARD_BEGIN = "clipboard-begin ";
+    private static final String CLIPBOARD_CHUNK = "clipboard-chunk ";
+    private static final String CLIPBOARD_END = "clipboard-end ";
+    private static final String CLIPBOARD_NOTICE = "clipboard-notice ";
+
+    private VNCControlChannel() {
+    }
+
+    /**
+     * Whether a text frame is a control message rather than RFB data sent as text
+     */
+    public static boolean isControlMessage(String message) {
+        return message.equals(HELLO) || message.startsWith(VIEWPORT) || message.startsWith(CLIPBOARD);
+    }
+
+    /**
+     * Hand a control message from the browser to the session
+     * @return false if the message is malformed
+     */
+    public static boolean dispatch(String message, VNCConnection connection, VNCProtocolHandler handler) {
+        // Whatever the browser sends here, it can also read
+        connection.controlMessages = true;
+        try {
+            if (message.equals(HELLO)) {
+                return true;
+            }
+            if (message.startsWith(VIEWPORT)) {
+                int p = VIEWPORT.length();
+                int end = fieldEnd(message, p);
+                int x = Integer.parseInt(message, p, end, 10);
+                end = fieldEnd(message, p = end + 1);
+                int y = Integer.parseInt(message, p, end, 10);
+                end = fieldEnd(message, p = end + 1);
+                int width = Integer.parseInt(message, p, end, 10);
+                end = fieldEnd(message, p = end + 1);
+                int height = Integer.parseInt(message, p, end, 10);
+                if (width > 0 && height > 0) {
+                    handler.updateVisibleRegion(Math.max(0, x), Math.max(0, y), width, height);
+                }
+                return true;
+            }
+            if (message.startsWith(CLIPBOARD_BEGIN)) {
+                int p = CLIPBOARD_BEGIN.length();
+                int end = fieldEnd(message, p);
+                long id = Long.parseLong(message, p, end, 10);
+                end = fieldEnd(message, p = end + 1);
+                handler.receiveClipboardBegin(id, Long.parseLong(message, p, end, 10));
+                return true;
+            }
+            if (message.startsWith(CLIPBOARD_CHUNK)) {
+                int p = CLIPBOARD_CHUNK.length();
+                int end = fieldEnd(message, p);
+                long id = Long.parseLong(message, p, end, 10);
+                handler.receiveClipboardChunk(id, end < message.length() ? message.substring(end + 1) : "");
+                return true;
+            }
+            if (message.startsWith(CLIPBOARD_END)) {
+                int p = CLIPBOARD_END.length();
+                handler.receiveClipboardEnd(Long.parseLong(message, p, fieldEnd(message, p), 10));
+                return true;
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return false;
+        }
+        return false;
+    }
+
+    public static String clipboardBegin(long id, long length) {
+        return CLIPBOARD_BEGIN + id + ' ' + length;
+    }
+
+    public static String clipboardChunk(long id, String text) {
+        return CLIPBOARD_CHUNK + id + ' ' + text;
+    }
+
+    public static String clipboardEnd(long id) {
+        return CLIPBOARD_END + id;
+    }
+
+    public static String clipboardNotice(String text) {
+        return CLIPBOARD_NOTICE + text;
+    }
+
+    private static int fieldEnd(String message, int from) {
+        int end = message.indexOf(' ', from);
+        return end < 0 ? message.length() : end;
+    }
+}
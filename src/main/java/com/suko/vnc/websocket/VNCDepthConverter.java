@@ -0,0 +1,242 @@
+package com.suko.vnc.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+import com.suko.vnc.config.VNCProxyConfig.DepthMode;
+import com.suko.vnc.pixel.VNCPixelKernels;
+import com.suko.vnc.rfb.VNCClientMessageReader;
+import com.suko.vnc.rfb.VNCPixelFormat;
+import com.suko.vnc.rfb.VNCServerMessageReader;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Per-session colour depth handling.
+ *
+ * When a client asks for 16bpp, 8bpp or colour-map pixels, the proxy keeps the VNC server on
+ * 32bpp (many servers ignore or mishandle low-depth requests) and converts raw rectangles to the
+ * client's format itself. Colour-map clients get a fixed 3-3-2 palette. Clients that stay on
+ * 32bpp can have their colour precision reduced instead, which makes proxy-side ZRLE output
+ * much smaller; the precision is either fixed by configuration or chosen from the bandwidth
+ * measured between an update and the client's next update request.
+ */
+public class VNCDepthConverter {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCDepthConverter.class);
+
+    private static final VNCPixelKernels kernels = VNCPixelKernels.get();
+
+    // Updates smaller than this mostly measure round-trip time, not bandwidth
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final double SAMPLE_WEIGHT = 0.25;
+    // Go back to more colours only when bandwidth is clearly above the threshold
+    private static final double HYSTERESIS = 1.5;
+
+    private final String sessionId;
+    private final VNCConnection connection;
+    private final DepthMode mode;
+    private final long auto16BppBelow;
+    private final long auto8BppBelow;
+
+    private volatile VNCPixelFormat serverFormat;
+    private volatile VNCPixelFormat upstreamFormat;
+    private volatile VNCPixelFormat targetFormat;
+    private volatile boolean colourMapPending = false;
+    private volatile VNCPixelFormat reduction;
+    private volatile boolean conversionRequired = false;
+
+    // Bandwidth sampling: written on the server loop, read when the next request arrives
+    private volatile long updateStartNanos;
+    private volatile long updateBytes;
+    private volatile boolean awaitingRequest = false;
+    private volatile double bandwidth = 0;
+
+    public VNCDepthConverter(String sessionId, VNCConnection connection, VNCProxyConfig config) {
+        this.sessionId = sessionId;
+        this.connection = connection;
+        this.mode = config.getDepthMode();
+        this.auto16BppBelow = config.getAuto16BppBelow();
+        this.auto8BppBelow = config.getAuto8BppBelow();
+        if (mode == DepthMode.REDUCE_16) {
+            reduction = VNCPixelFormat.RGB565;
+        } else if (mode == DepthMode.REDUCE_8) {
+            reduction = VNCPixelFormat.BGR233;
+        }
+        connection.reducedDepth = reduction == null ? 0 : reduction.bitsPerPixel;
+    }
+
+    public void onServerInit(VNCPixelFormat format) {
+        serverFormat = format;
+    }
+
+    /**
+     * Convert low-depth requests even when the depth mode is off, because another stage
+     * (such as scaling) needs 32bpp from the server
+     */
+    public void setConversionRequired(boolean conversionRequired) {
+        this.conversionRequired = conversionRequired;
+    }
+
+    /**
+     * Decide how to serve the client's SetPixelFormat
+     * @return the SetPixelFormat to send to the server instead, or null to forward the client's own
+     */
+    public Buffer onClientPixelFormat(VNCPixelFormat requested) {
+        targetFormat = null;
+        colourMapPending = false;
+        if ((mode == DepthMode.OFF && !conversionRequired) || requested.bitsPerPixel == 32) {
+            return null;
+        }
+        VNCPixelFormat upstream = serverFormat != null && serverFormat.bitsPerPixel == 32
+                && VNCPixelKernels.canConvert(serverFormat, VNCPixelFormat.BGR233)
+                ? serverFormat : VNCPixelFormat.RGB888;
+        if (!requested.trueColour && requested.bitsPerPixel == 8) {
+            targetFormat = VNCPixelFormat.BGR233;
+            colourMapPending = true;
+        } else if (VNCPixelKernels.canConvert(upstream, requested)) {
+            targetFormat = requested;
+        } else {
+            log.info("Cannot convert to {}, passing it to the server for session: {}", requested, sessionId);
+            return null;
+        }
+        upstreamFormat = upstream;
+        log.info("Converting {} to {} in the proxy for session: {}", upstream, requested, sessionId);
+        Buffer message = Buffer.buffer(4 + VNCPixelFormat.SIZE);
+        message.appendByte((byte) VNCClientMessageReader.SET_PIXEL_FORMAT);
+        message.appendBytes(new byte[3]); // padding
+        return upstream.write(message);
+    }
+
+    public boolean isConverting() {
+        return targetFormat != null;
+    }
+
+    /**
+     * The format the server sends while the proxy converts
+     */
+    public VNCPixelFormat getUpstreamFormat() {
+        return upstreamFormat;
+    }
+
+    /**
+     * The format rectangles are converted to, or null when not converting
+     */
+    public VNCPixelFormat getTargetFormat() {
+        return targetFormat;
+    }
+
+    /**
+     * SetColourMapEntries for a colour-map client that has not received its palette yet
+     */
+    public Buffer takeColourMap() {
+        if (!colourMapPending) {
+            return null;
+        }
+        colourMapPending = false;
+        Buffer message = Buffer.buffer(6 + 256 * 6);
+        message.appendByte((byte) VNCServerMessageReader.SET_COLOUR_MAP_ENTRIES);
+        message.appendByte((byte) 0); // padding
+        message.appendUnsignedShort(0); // first colour
+        message.appendUnsignedShort(256);
+        for (int i = 0; i < 256; i++) {
+            message.appendUnsignedShort((i & 7) * 65535 / 7);
+            message.appendUnsignedShort((i >> 3 & 7) * 65535 / 7);
+            message.appendUnsignedShort((i >> 6 & 3) * 65535 / 3);
+        }
+        return message;
+    }
+
+    /**
+     * Convert 32bpp pixels to the target format
+     */
+    public byte[] convert(byte[] pixels, int count, VNCPixelFormat from, VNCPixelFormat to) {
+        byte[] converted = new byte[count * to.bytesPerPixel()];
+        if (to.bitsPerPixel == 16) {
+            kernels.convert32To16(pixels, 0, converted, 0, count, from, to);
+        } else {
+            kernels.convert32To8(pixels, 0, converted, 0, count, from, to);
+        }
+        connection.depthConvertedRects++;
+        connection.depthBytesIn += pixels.length;
+        connection.depthBytesOut += converted.length;
+        return converted;
+    }
+
+    /**
+     * Convert a Cursor pseudo-rectangle payload (pixels followed by the bitmask)
+     */
+    public byte[] convertCursor(byte[] payload, int count, VNCPixelFormat from, VNCPixelFormat to) {
+        byte[] pixels = convert(payload, count, from, to);
+        int mask = payload.length - count * from.bytesPerPixel();
+        byte[] cursor = new byte[pixels.length + mask];
+        System.arraycopy(pixels, 0, cursor, 0, pixels.length);
+        System.arraycopy(payload, payload.length - mask, cursor, pixels.length, mask);
+        return cursor;
+    }
+
+    /**
+     * Reduce the colour precision of 32bpp pixels in place if this session is reduced
+     * @return whether the pixels were changed
+     */
+    public boolean reduce(byte[] pixels, int count, VNCPixelFormat format) {
+        VNCPixelFormat precision = reduction;
+        if (precision == null || !VNCPixelKernels.canConvert(format, precision)) {
+            return false;
+        }
+        kernels.reduce32(pixels, 0, count, format, precision);
+        return true;
+    }
+
+    /**
+     * A FramebufferUpdate of the given size has been handed to the client
+     */
+    public void onUpdateSent(long startNanos, long bytes) {
+        updateStartNanos = startNanos;
+        updateBytes = bytes;
+        awaitingRequest = bytes >= MIN_SAMPLE_BYTES;
+    }
+
+    /**
+     * The client asked for the next update, so it has received and drawn the previous one
+     */
+    public void onUpdateRequest() {
+        if (!awaitingRequest) {
+            return;
+        }
+        awaitingRequest = false;
+        long elapsed = System.nanoTime() - updateStartNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        double sample = updateBytes * 1_000_000_000.0 / elapsed;
+        bandwidth = bandwidth == 0 ? sample : bandwidth + SAMPLE_WEIGHT * (sample - bandwidth);
+        connection.clientBandwidth = (long) bandwidth;
+        if (mode == DepthMode.AUTO) {
+            adjustReduction();
+        }
+    }
+
+    private void adjustReduction() {
+        VNCPixelFormat current = reduction;
+        VNCPixelFormat next = current;
+        if (bandwidth < auto8BppBelow) {
+            next = VNCPixelFormat.BGR233;
+        } else if (bandwidth < auto16BppBelow) {
+            if (current == null || bandwidth > auto8BppBelow * HYSTERESIS) {
+                next = VNCPixelFormat.RGB565;
+            }
+        } else if (bandwidth > auto16BppBelow * HYSTERESIS) {
+            next = null;
+        } else if (current == VNCPixelFormat.BGR233) {
+            next = VNCPixelFormat.RGB565;
+        }
+        if (next != current) {
+            reduction = next;
+            connection.reducedDepth = next == null ? 0 : next.bitsPerPixel;
+            log.info("Measured {} KB/s, colour precision now {} for session: {}",
+                    (long) bandwidth / 1024, next == null ? "full" : next.bitsPerPixel + "-bit", sessionId);
+        }
+    }
+}
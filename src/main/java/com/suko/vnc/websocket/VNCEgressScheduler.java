@@ -0,0 +1,403 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Deficit round robin over the sessions whose WebSockets share an event loop.
+ *
+ * Each session's flushed batches wait in its flow; the loop hands them to the WebSocket in turns,
+ * a quantum of bytes times the weight of the session's QoS class per turn. A session gets a turn
+ * only while it has fewer than a window of bytes still being written, so a client that reads
+ * slowly stops taking turns instead of filling the loop's write queues. Optional limits: a
+ * per-session rate cap for each class and an egress rate for each loop (the node's uplink divided
+ * by the event loops), both token buckets; the per-class weights only decide who goes first when
+ * one of them holds traffic back.
+ *
+ * Each loop's state is confined to its thread; flows take batches from any thread and hand the
+ * scheduling over to the loop.
+ */
+@ApplicationScoped
+public class VNCEgressScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCEgressScheduler.class);
+
+    // Retry interval while traffic is held by a rate limit
+    private static final long RETRY_MILLIS = 5;
+    // Token buckets hold at most this much time's worth of bytes
+    private static final long BURST_NANOS = 100_000_000L;
+
+    @Inject
+    VNCProxyConfig config;
+
+    private final Map<Thread, Loop> loops = new ConcurrentHashMap<>();
+    private final Map<String, ClassStats> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Writes one batch to a session's WebSocket
+     */
+    public interface Writer {
+        /**
+         * @param written run once the write completed or failed
+         */
+        void write(Buffer batch, Runnable written);
+    }
+
+    /**
+     * A flow for a session's traffic to the browser
+     * @param context the WebSocket's context: its event loop does the scheduling
+     */
+    public Flow register(String sessionId, String userId, Context context, Writer writer) {
+        String qosClass = config.getQosClass(userId);
+        Flow flow = new Flow(qosClass, config.getQosWeight(qosClass), config.getQosSessionMaxRate(qosClass),
+                context, writer, classes.computeIfAbsent(qosClass, c -> new ClassStats()));
+        log.info("Scheduling traffic to the browser in QoS class {} (weight {}, cap {} bytes/s) for session: {}",
+                qosClass, flow.weight, flow.maxRate, sessionId);
+        return flow;
+    }
+
+    /**
+     * Throughput and queueing delay of each QoS class that has had a session
+     */
+    public Map<String, Map<String, Object>> getClassStats() {
+        Map<String, Map<String, Object>> stats = new TreeMap<>();
+        long now = System.nanoTime();
+        classes.forEach((qosClass, classStats) -> stats.put(qosClass, classStats.toMap(now)));
+        return stats;
+    }
+
+    private Loop loopFor(Thread thread, Vertx vertx) {
+        return loops.computeIfAbsent(thread, t -> new Loop(vertx));
+    }
+
+    private static long topUp(long tokens, long elapsedNanos, long rate) {
+        long burst = Math.max(rate * BURST_NANOS / 1_000_000_000L, 1);
+        // Long idle periods are capped so the product cannot overflow
+        long elapsed = Math.min(elapsedNanos, BURST_NANOS);
+        return Math.min(burst, tokens + elapsed * rate / 1_000_000_000L);
+    }
+
+    /**
+     * One session's batches waiting for their turn
+     */
+    public final class Flow {
+        private final String qosClass;
+        private final int weight;
+        private final long maxRate;
+        private final Context context;
+        private final Writer writer;
+        private final ClassStats classStats;
+        private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong(0);
+        private final VNCLatencyHistogram queueDelay = new VNCLatencyHistogram();
+        private volatile Thread loopThread;
+        private volatile boolean closed = false;
+        private volatile long throttled = 0;
+
+        // Confined to the loop
+        private Loop loop;
+        private boolean active = false;
+        private long deficit = 0;
+        // Its turn was cut short by the loop's egress limit
+        private boolean midTurn = false;
+        private long inFlight = 0;
+        private long tokens;
+        private long refilledAt = System.nanoTime();
+
+        private Flow(String qosClass, int weight, long maxRate, Context context, Writer writer, ClassStats classStats) {
+            this.qosClass = qosClass;
+            this.weight = weight;
+            this.maxRate = maxRate;
+            this.context = context;
+            this.writer = writer;
+            this.classStats = classStats;
+            this.tokens = maxRate > 0 ? topUp(0, BURST_NANOS, maxRate) : 0;
+            classStats.sessionOpened();
+        }
+
+        /**
+         * Queue a batch for the browser; it is written when the session's turn comes
+         */
+        public void enqueue(Buffer batch) {
+            if (closed) {
+                writer.write(batch, () -> {});
+                return;
+            }
+            queue.add(new Pending(batch, System.nanoTime()));
+            queuedBytes.addAndGet(batch.length());
+            onLoop(() -> loop.activate(this));
+        }
+
+        /**
+         * Write whatever is still queued, in order, then run the handler; the flow takes no more turns
+         */
+        public void close(Runnable then) {
+            onLoop(() -> {
+                if (!closed) {
+                    closed = true;
+                    classStats.sessionClosed();
+                }
+                Pending pending;
+                while ((pending = queue.poll()) != null) {
+                    queuedBytes.addAndGet(-pending.batch.length());
+                    writer.write(pending.batch, () -> {});
+                }
+                then.run();
+            });
+        }
+
+        public String getQosClass() {
+            return qosClass;
+        }
+
+        /**
+         * Bytes flushed by the session and waiting for its turn
+         */
+        public long getQueuedBytes() {
+            return queuedBytes.get();
+        }
+
+        /**
+         * Class, limits, queue and queueing delay for JSON output
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("class", qosClass);
+            map.put("weight", weight);
+            map.put("maxRate", maxRate);
+            map.put("queuedBytes", queuedBytes.get());
+            map.put("throttled", throttled);
+            map.put("queueDelay", queueDelay.toMap());
+            return map;
+        }
+
+        private void onLoop(Runnable task) {
+            if (Thread.currentThread() == loopThread) {
+                task.run();
+                return;
+            }
+            context.runOnContext(v -> {
+                if (loop == null) {
+                    loop = loopFor(Thread.currentThread(), context.owner());
+                    loopThread = Thread.currentThread();
+                }
+                task.run();
+            });
+        }
+
+        /**
+         * Top up the rate cap's tokens
+         * @return whether the session may send now
+         */
+        private boolean refill(long now) {
+            if (maxRate <= 0) {
+                return true;
+            }
+            tokens = topUp(tokens, now - refilledAt, maxRate);
+            refilledAt = now;
+            return tokens > 0;
+        }
+    }
+
+    /**
+     * The flows of one event loop, and its egress limit
+     */
+    private final class Loop {
+        private final Vertx vertx;
+        private final ArrayDeque<Flow> active = new ArrayDeque<>();
+        private final ArrayDeque<Flow> waiting = new ArrayDeque<>();
+        private long egressTokens;
+        private long egressRefilledAt = System.nanoTime();
+        private boolean running = false;
+        private boolean retryArmed = false;
+
+        Loop(Vertx vertx) {
+            this.vertx = vertx;
+            long egressRate = config.getFairSchedulingLoopEgressRate();
+            this.egressTokens = egressRate > 0 ? topUp(0, BURST_NANOS, egressRate) : 0;
+        }
+
+        void activate(Flow flow) {
+            if (!flow.active && !flow.closed) {
+                flow.active = true;
+                active.addLast(flow);
+            }
+            schedule();
+        }
+
+        void onWritten(Flow flow, long size) {
+            flow.inFlight -= size;
+            schedule();
+        }
+
+        /**
+         * Give turns until every flow is empty or held back
+         */
+        void schedule() {
+            // Writes may complete synchronously and call back in here
+            if (running) {
+                return;
+            }
+            running = true;
+            try {
+                long now = System.nanoTime();
+                long quantum = config.getFairSchedulingQuantumBytes();
+                long window = config.getFairSchedulingFlowWindowBytes();
+                long egressRate = config.getFairSchedulingLoopEgressRate();
+                if (egressRate > 0) {
+                    egressTokens = topUp(egressTokens, now - egressRefilledAt, egressRate);
+                    egressRefilledAt = now;
+                }
+                boolean limited = false;
+                while (!active.isEmpty()) {
+                    if (egressRate > 0 && egressTokens <= 0) {
+                        limited = true;
+                        break;
+                    }
+                    Flow flow = active.pollFirst();
+                    Pending head = flow.queue.peek();
+                    if (flow.closed || head == null) {
+                        flow.active = false;
+                        flow.deficit = 0;
+                        flow.midTurn = false;
+                        continue;
+                    }
+                    if (flow.inFlight >= window) {
+                        // Its next write completion schedules again
+                        waiting.addLast(flow);
+                        continue;
+                    }
+                    if (!flow.refill(now)) {
+                        flow.throttled++;
+                        limited = true;
+                        waiting.addLast(flow);
+                        continue;
+                    }
+                    if (!flow.midTurn) {
+                        flow.deficit += quantum * flow.weight;
+                    }
+                    flow.midTurn = false;
+                    while (head != null && head.batch.length() <= flow.deficit && flow.inFlight < window
+                            && (flow.maxRate <= 0 || flow.tokens > 0) && (egressRate <= 0 || egressTokens > 0)) {
+                        flow.queue.poll();
+                        send(flow, head, now);
+                        head = flow.queue.peek();
+                    }
+                    if (head == null) {
+                        flow.active = false;
+                        flow.deficit = 0;
+                    } else if (egressRate > 0 && egressTokens <= 0 && head.batch.length() <= flow.deficit) {
+                        // Finishes its turn when the loop may send again
+                        flow.midTurn = true;
+                        active.addFirst(flow);
+                    } else {
+                        active.addLast(flow);
+                    }
+                }
+                active.addAll(waiting);
+                waiting.clear();
+                if (limited && !retryArmed) {
+                    retryArmed = true;
+                    vertx.setTimer(RETRY_MILLIS, id -> {
+                        retryArmed = false;
+                        schedule();
+                    });
+                }
+            } finally {
+                running = false;
+            }
+        }
+
+        private void send(Flow flow, Pending pending, long now) {
+            long size = pending.batch.length();
+            flow.deficit -= size;
+            flow.inFlight += size;
+            flow.tokens -= size;
+            egressTokens -= size;
+            flow.queuedBytes.addAndGet(-size);
+            long delayMicros = (now - pending.enqueuedAt) / 1000;
+            flow.queueDelay.record(delayMicros);
+            flow.classStats.record(size, delayMicros, now);
+            flow.writer.write(pending.batch, () -> flow.onLoop(() -> onWritten(flow, size)));
+        }
+    }
+
+    private static final class Pending {
+        final Buffer batch;
+        final long enqueuedAt;
+
+        Pending(Buffer batch, long enqueuedAt) {
+            this.batch = batch;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Traffic of one QoS class over all loops
+     */
+    private static final class ClassStats {
+        private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+        private final VNCLatencyHistogram queueDelay = new VNCLatencyHistogram();
+        private long sessions = 0;
+        private long bytes = 0;
+        private long batches = 0;
+        private long windowStart = System.nanoTime();
+        private long windowBytes = 0;
+        private double bytesPerSecond = 0;
+
+        synchronized void sessionOpened() {
+            sessions++;
+        }
+
+        synchronized void sessionClosed() {
+            sessions--;
+        }
+
+        synchronized void record(long size, long delayMicros, long now) {
+            queueDelay.record(delayMicros);
+            bytes += size;
+            batches++;
+            roll(now);
+            windowBytes += size;
+        }
+
+        synchronized Map<String, Object> toMap(long now) {
+            roll(now);
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("sessions", sessions);
+            map.put("bytes", bytes);
+            map.put("batches", batches);
+            map.put("bytesPerSecond", Math.round(bytesPerSecond));
+            map.put("queueDelay", queueDelay.toMap());
+            return map;
+        }
+
+        private void roll(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed < RATE_WINDOW_NANOS) {
+                return;
+            }
+            // A window without traffic after this one means the rate dropped to nothing
+            bytesPerSecond = elapsed < 2 * RATE_WINDOW_NANOS ? windowBytes * 1e9 / elapsed : 0;
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.suko.vnc.websocket;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Work-stealing pool shared by all sessions for CPU-heavy encoding work, so a large update
+ * is spread over the idle cores instead of stalling the session's event loop
+ */
+@ApplicationScoped
+public class VNCEncoderPool {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCEncoderPool.class);
+
+    @Inject
+    VNCProxyConfig config;
+
+    private ForkJoinPool pool;
+
+    @PostConstruct
+    void init() {
+        int parallelism = config.getParallelism();
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("vnc-encoder-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        log.info("VNC encoder pool started with parallelism {}", parallelism);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+}
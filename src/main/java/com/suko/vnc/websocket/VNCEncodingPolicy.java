@@ -0,0 +1,204 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.suko.vnc.rfb.VNCEncodings;
+
+/**
+ * Per-session rewrite of the client's SetEncodings before it reaches the server.
+ *
+ * - Preferred encodings the client supports are moved to the front, in the configured order;
+ *   the rest keep the client's order.
+ * - Configured compression and JPEG quality levels are added if the client sent none of its own.
+ *   Only pseudo-encodings that never make the server send something the client has to parse can
+ *   be injected ({@link #isInjectable(int)}): the proxy cannot draw a cursor shape into the
+ *   framebuffer or show a resize to a client that did not ask for Cursor or DesktopSize, so
+ *   those are left as the client announced them.
+ * - With adaptive levels, the compression and JPEG quality pseudo-encodings are chosen from the
+ *   measured client bandwidth and round-trip time, never exceeding the quality or going below
+ *   the compression the client asked for. Levels are re-evaluated as the measurements change.
+ *
+ * evaluate() runs on the server thread, apply() under the client stream's lock.
+ */
+public class VNCEncodingPolicy {
+
+    // Levels only move by this much at once unless nothing was chosen yet
+    private static final int HYSTERESIS = 2;
+    // Compression level used at least when the round trip is slow
+    private static final int HIGH_RTT_MIN_COMPRESS = 6;
+
+    private final int[] preferred;
+    private final int[] inject;
+    private final boolean adaptive;
+    private final long lowBandwidth;
+    private final long highBandwidth;
+    private final long highRttMillis;
+    private final long intervalNanos;
+
+    private volatile int[] clientEncodings = new int[0];
+    private volatile int compressLevel = -1;
+    private volatile int qualityLevel = -1;
+    private long lastEvaluation;
+    private boolean evaluated = false;
+
+    public VNCEncodingPolicy(int[] preferred, int[] inject, boolean adaptive, long lowBandwidth,
+            long highBandwidth, long highRttMillis, long intervalMillis) {
+        for (int encoding : inject) {
+            if (!isInjectable(encoding)) {
+                throw new IllegalArgumentException("cannot inject " + VNCEncodings.name(encoding)
+                        + " for clients that did not ask for it");
+            }
+        }
+        this.preferred = preferred;
+        this.inject = inject;
+        this.adaptive = adaptive;
+        this.lowBandwidth = Math.max(1, lowBandwidth);
+        this.highBandwidth = Math.max(this.lowBandwidth + 1, highBandwidth);
+        this.highRttMillis = highRttMillis;
+        this.intervalNanos = intervalMillis * 1_000_000L;
+    }
+
+    /**
+     * The encodings to send to the server for the client's SetEncodings
+     */
+    public int[] apply(int[] client) {
+        clientEncodings = client;
+        List<Integer> upstream = new ArrayList<>(client.length + inject.length + 2);
+        for (int encoding : preferred) {
+            if (contains(client, encoding) && !upstream.contains(encoding)) {
+                upstream.add(encoding);
+            }
+        }
+        int compress = compressLevel;
+        int quality = qualityLevel;
+        for (int encoding : client) {
+            if ((compress >= 0 && isCompressLevel(encoding)) || (quality >= 0 && isQualityLevel(encoding))) {
+                continue;
+            }
+            if (!upstream.contains(encoding)) {
+                upstream.add(encoding);
+            }
+        }
+        for (int encoding : inject) {
+            if ((isCompressLevel(encoding) && (compress >= 0 || hasCompressLevel(client)))
+                    || (isQualityLevel(encoding) && (quality >= 0 || hasQualityLevel(client)))) {
+                continue;
+            }
+            if (!upstream.contains(encoding)) {
+                upstream.add(encoding);
+            }
+        }
+        if (compress >= 0) {
+            upstream.add(VNCEncodings.COMPRESS_LEVEL_0 + compress);
+        }
+        if (quality >= 0) {
+            upstream.add(VNCEncodings.QUALITY_LEVEL_0 + quality);
+        }
+        int[] result = new int[upstream.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = upstream.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Whether a pseudo-encoding can be added behind the client's back: only the compression and
+     * quality levels, which change how the server encodes but add nothing to the stream
+     */
+    public static boolean isInjectable(int encoding) {
+        return isCompressLevel(encoding) || isQualityLevel(encoding);
+    }
+
+    /**
+     * Re-evaluate the adaptive levels, at most once per interval
+     * @param bandwidth measured client bandwidth in bytes/s, 0 if unknown
+     * @param rttMillis browser round-trip time, 0 if unknown
+     * @return true if the levels changed and the server needs a new SetEncodings
+     */
+    public synchronized boolean evaluate(long bandwidth, long rttMillis, long now) {
+        if (!adaptive || bandwidth <= 0 || (evaluated && now - lastEvaluation < intervalNanos)) {
+            return false;
+        }
+        evaluated = true;
+        lastEvaluation = now;
+
+        double score = Math.log((double) bandwidth / lowBandwidth) / Math.log((double) highBandwidth / lowBandwidth);
+        score = Math.max(0, Math.min(1, score));
+        int quality = (int) Math.round(score * 9);
+        int compress = (int) Math.round((1 - score) * 9);
+        if (highRttMillis > 0 && rttMillis > highRttMillis) {
+            // Every extra packet costs a round trip's worth of delay at the client
+            compress = Math.max(compress, HIGH_RTT_MIN_COMPRESS);
+        }
+        int[] client = clientEncodings;
+        int clientQuality = level(client, VNCEncodings.QUALITY_LEVEL_0, VNCEncodings.QUALITY_LEVEL_9);
+        int clientCompress = level(client, VNCEncodings.COMPRESS_LEVEL_0, VNCEncodings.COMPRESS_LEVEL_9);
+        if (clientQuality >= 0) {
+            quality = Math.min(quality, clientQuality);
+        }
+        if (clientCompress >= 0) {
+            compress = Math.max(compress, clientCompress);
+        }
+
+        boolean changed = false;
+        if (qualityLevel < 0 || Math.abs(quality - qualityLevel) >= HYSTERESIS) {
+            changed |= quality != qualityLevel;
+            qualityLevel = quality;
+        }
+        if (compressLevel < 0 || Math.abs(compress - compressLevel) >= HYSTERESIS) {
+            changed |= compress != compressLevel;
+            compressLevel = compress;
+        }
+        return changed;
+    }
+
+    /**
+     * Compression level sent to the server, -1 if the client's own is used
+     */
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    /**
+     * JPEG quality level sent to the server, -1 if the client's own is used
+     */
+    public int getQualityLevel() {
+        return qualityLevel;
+    }
+
+    private static int level(int[] encodings, int first, int last) {
+        int level = -1;
+        for (int encoding : encodings) {
+            if (encoding >= first && encoding <= last) {
+                level = encoding - first;
+            }
+        }
+        return level;
+    }
+
+    private static boolean hasCompressLevel(int[] encodings) {
+        return level(encodings, VNCEncodings.COMPRESS_LEVEL_0, VNCEncodings.COMPRESS_LEVEL_9) >= 0;
+    }
+
+    private static boolean hasQualityLevel(int[] encodings) {
+        return level(encodings, VNCEncodings.QUALITY_LEVEL_0, VNCEncodings.QUALITY_LEVEL_9) >= 0;
+    }
+
+    private static boolean isCompressLevel(int encoding) {
+        return encoding >= VNCEncodings.COMPRESS_LEVEL_0 && encoding <= VNCEncodings.COMPRESS_LEVEL_9;
+    }
+
+    private static boolean isQualityLevel(int encoding) {
+        return encoding >= VNCEncodings.QUALITY_LEVEL_0 && encoding <= VNCEncodings.QUALITY_LEVEL_9;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,379 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import io.quarkus.runtime.Startup;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * How late each Vert.x event loop runs its timers: a periodic timer on every loop notes how much
+ * later than due each tick fires. A loop busy with a long task, or with more work than it can keep
+ * up with, shows as lag; it is what every session on that loop waits on top of its own work.
+ *
+ * Handlers that run on a loop can also be timed as tasks, by name. A task running longer than the
+ * long-task threshold is counted against its handler and session, and a watchdog thread takes the
+ * loop thread's stack while it is still running, so the report shows where the time went (a hex
+ * dump, the DES challenge, a large update) and not only that it was spent.
+ */
+@Startup
+@ApplicationScoped
+public class VNCEventLoopMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCEventLoopMonitor.class);
+
+    // Lag is reported as the highest of the last ticks within this window
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    // Frames kept of a captured stack
+    private static final int STACK_DEPTH = 24;
+
+    @Inject
+    VNCProxyConfig config;
+
+    @Inject
+    Vertx vertx;
+
+    private final List<Loop> loops = new ArrayList<>();
+    private final Map<Thread, Loop> loopsByThread = new ConcurrentHashMap<>();
+    // Most recent long tasks, oldest first
+    private final ArrayDeque<LongTask> longTasks = new ArrayDeque<>();
+    private long longTaskNanos;
+    private ScheduledExecutorService watchdog;
+
+    @PostConstruct
+    void init() {
+        long interval = config.getEventLoopLagIntervalMillis();
+        if (interval <= 0) {
+            return;
+        }
+        try {
+            // Verticles are spread over the loops round robin: stop once a loop comes round again
+            List<Thread> seen = new ArrayList<>();
+            while (true) {
+                Loop loop = new Loop(interval);
+                String deploymentId = vertx.deployVerticle(loop).toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+                if (seen.contains(loop.thread)) {
+                    vertx.undeploy(deploymentId);
+                    break;
+                }
+                seen.add(loop.thread);
+                loops.add(loop);
+                loopsByThread.put(loop.thread, loop);
+            }
+            log.info("Measuring event loop lag every {} ms on {} event loops", interval, loops.size());
+        } catch (Exception e) {
+            log.warn("Event loop lag is not measured", e);
+        }
+        long longTaskMillis = config.getEventLoopLongTaskMillis();
+        if (longTaskMillis > 0 && !loops.isEmpty()) {
+            longTaskNanos = longTaskMillis * 1_000_000L;
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "vnc-event-loop-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, longTaskMillis / 2);
+            watchdog.scheduleAtFixedRate(this::captureLongTasks, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+        for (Loop loop : loops) {
+            vertx.undeploy(loop.deploymentID());
+        }
+    }
+
+    /**
+     * Start timing a handler on the current thread
+     * @return the start time to pass to {@link #endTask}, 0 when not timed (not on a monitored
+     *         loop, or inside another timed task)
+     */
+    public long beginTask(String handler, String sessionId) {
+        if (longTaskNanos == 0) {
+            return 0;
+        }
+        Loop loop = loopsByThread.get(Thread.currentThread());
+        if (loop == null || loop.taskStart != 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        loop.taskHandler = handler;
+        loop.taskSession = sessionId;
+        loop.taskStart = start;
+        return start;
+    }
+
+    /**
+     * A handler timed with {@link #beginTask} returned
+     */
+    public void endTask(long start) {
+        if (start == 0) {
+            return;
+        }
+        Loop loop = loopsByThread.get(Thread.currentThread());
+        if (loop == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        String handler = loop.taskHandler;
+        String sessionId = loop.taskSession;
+        loop.taskStart = 0;
+        loop.handler(handler).record(elapsed, elapsed >= longTaskNanos);
+        if (elapsed < longTaskNanos) {
+            return;
+        }
+        LongTask task;
+        synchronized (loop) {
+            // The watchdog may have caught it in the act
+            task = loop.captured != null && loop.captured.start == start ? loop.captured : null;
+            loop.captured = null;
+        }
+        if (task == null) {
+            task = new LongTask(loop.thread.getName(), handler, sessionId, start, null);
+        }
+        task.millis = elapsed / 1_000_000.0;
+        synchronized (longTasks) {
+            longTasks.addLast(task);
+            while (longTasks.size() > config.getEventLoopLongTasksKept()) {
+                longTasks.removeFirst();
+            }
+        }
+        log.warn("Event loop {} busy for {} ms in {} for session: {}", task.loop, String.format("%.1f", task.millis), handler, sessionId);
+    }
+
+    /**
+     * Take the stack of every loop whose current task has run past the threshold
+     */
+    private void captureLongTasks() {
+        long now = System.nanoTime();
+        for (Loop loop : loops) {
+            long start = loop.taskStart;
+            if (start == 0 || now - start < longTaskNanos) {
+                continue;
+            }
+            synchronized (loop) {
+                if (loop.captured != null && loop.captured.start == start) {
+                    continue;
+                }
+            }
+            StackTraceElement[] stack = loop.thread.getStackTrace();
+            // Only keep it if the same task is still running
+            if (loop.taskStart != start) {
+                continue;
+            }
+            List<String> frames = new ArrayList<>();
+            for (int i = 0; i < Math.min(STACK_DEPTH, stack.length); i++) {
+                frames.add(stack[i].toString());
+            }
+            synchronized (loop) {
+                loop.captured = new LongTask(loop.thread.getName(), loop.taskHandler, loop.taskSession, start, frames);
+            }
+        }
+    }
+
+    /**
+     * Highest recent lag of any event loop in milliseconds, 0 when not measured
+     */
+    public double getMaxLagMillis() {
+        long now = System.nanoTime();
+        long max = 0;
+        for (Loop loop : loops) {
+            max = Math.max(max, loop.recentLag(now));
+        }
+        return max / 1_000_000.0;
+    }
+
+    /**
+     * Recent lag of each event loop in milliseconds, by thread name
+     */
+    public Map<String, Double> getLagMillisByLoop() {
+        long now = System.nanoTime();
+        Map<String, Double> lags = new TreeMap<>();
+        for (Loop loop : loops) {
+            lags.put(loop.thread.getName(), loop.recentLag(now) / 1_000_000.0);
+        }
+        return lags;
+    }
+
+    /**
+     * Per loop: lag now and its histogram, sessions and handler times; plus the recent long tasks
+     * @param connections the active sessions, counted on the loop of their VNC server socket
+     */
+    public Map<String, Object> toMap(Collection<VNCConnection> connections) {
+        long now = System.nanoTime();
+        Map<Thread, Integer> sessions = new HashMap<>();
+        for (VNCConnection connection : connections) {
+            Thread thread = connection.eventLoopThread;
+            if (thread != null) {
+                sessions.merge(thread, 1, Integer::sum);
+            }
+        }
+        Map<String, Object> byLoop = new TreeMap<>();
+        for (Loop loop : loops) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("lagMillis", loop.recentLag(now) / 1_000_000.0);
+            map.put("sessions", sessions.getOrDefault(loop.thread, 0));
+            map.put("lag", loop.lagHistogram.toMap());
+            Map<String, Object> handlers = new TreeMap<>();
+            loop.handlers.forEach((handler, stats) -> handlers.put(handler, stats.toMap()));
+            if (!handlers.isEmpty()) {
+                map.put("handlers", handlers);
+            }
+            byLoop.put(loop.thread.getName(), map);
+        }
+        List<Map<String, Object>> recent = new ArrayList<>();
+        synchronized (longTasks) {
+            for (LongTask task : longTasks) {
+                recent.add(task.toMap());
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("loops", byLoop);
+        map.put("longTaskMillis", longTaskNanos / 1_000_000);
+        map.put("longTasks", recent);
+        return map;
+    }
+
+    /**
+     * The lag timer and task state of one event loop
+     */
+    private static final class Loop extends AbstractVerticle {
+        final long intervalMillis;
+        final long intervalNanos;
+        final VNCLatencyHistogram lagHistogram = new VNCLatencyHistogram();
+        final Map<String, HandlerStats> handlers = new ConcurrentHashMap<>();
+        volatile Thread thread;
+        // Task running now, 0 when none; written by the loop, read by the watchdog
+        volatile long taskStart = 0;
+        volatile String taskHandler;
+        volatile String taskSession;
+        // Stack the watchdog took of the running task
+        LongTask captured;
+        private long lastTick = 0;
+        private long windowStart = 0;
+        private long windowLag = 0;
+        private long previousWindowLag = 0;
+
+        Loop(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+            this.intervalNanos = intervalMillis * 1_000_000L;
+        }
+
+        @Override
+        public void start() {
+            thread = Thread.currentThread();
+            vertx.setPeriodic(intervalMillis, id -> tick(System.nanoTime()));
+        }
+
+        HandlerStats handler(String name) {
+            return handlers.computeIfAbsent(name, n -> new HandlerStats());
+        }
+
+        synchronized void tick(long now) {
+            if (lastTick != 0) {
+                long lag = Math.max(0, now - lastTick - intervalNanos);
+                lagHistogram.record(lag / 1000);
+                if (now - windowStart >= WINDOW_NANOS) {
+                    previousWindowLag = windowLag;
+                    windowStart = now;
+                    windowLag = 0;
+                }
+                windowLag = Math.max(windowLag, lag);
+            }
+            lastTick = now;
+        }
+
+        /**
+         * Lag over the last one to two windows; a loop stuck right now counts as lagging by how long
+         * its next tick is overdue
+         */
+        synchronized long recentLag(long now) {
+            if (lastTick == 0) {
+                return 0;
+            }
+            long overdue = Math.max(0, now - lastTick - intervalNanos);
+            return Math.max(overdue, Math.max(windowLag, previousWindowLag));
+        }
+    }
+
+    /**
+     * Run times of one handler on one loop
+     */
+    private static final class HandlerStats {
+        private final VNCLatencyHistogram histogram = new VNCLatencyHistogram();
+        private long longTasks = 0;
+
+        synchronized void record(long nanos, boolean longTask) {
+            histogram.record(nanos / 1000);
+            if (longTask) {
+                longTasks++;
+            }
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = histogram.toMap();
+            map.put("longTasks", longTasks);
+            return map;
+        }
+    }
+
+    /**
+     * A task that held a loop past the threshold
+     */
+    private static final class LongTask {
+        final String loop;
+        final String handler;
+        final String sessionId;
+        final long start;
+        final long at;
+        final List<String> stack;
+        double millis;
+
+        LongTask(String loop, String handler, String sessionId, long start, List<String> stack) {
+            this.loop = loop;
+            this.handler = handler;
+            this.sessionId = sessionId;
+            this.start = start;
+            this.at = System.currentTimeMillis() - (System.nanoTime() - start) / 1_000_000;
+            this.stack = stack;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("loop", loop);
+            map.put("handler", handler);
+            // Session IDs are credentials: only a prefix, as in the performance report
+            map.put("session", sessionId != null ? sessionId.substring(0, Math.min(8, sessionId.length())) : null);
+            map.put("at", at);
+            map.put("millis", millis);
+            if (stack != null) {
+                map.put("stack", stack);
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.suko.vnc.websocket;
+
+import com.suko.vnc.pixel.VNCPixelKernels;
+import com.suko.vnc.rfb.VNCPixelFormat;
+
+/**
+ * Per-session shadow framebuffer for server-side downscaling.
+ *
+ * The server keeps sending full-resolution raw rectangles, which are written into a 32bpp
+ * shadow copy of the framebuffer. Each changed area is widened to whole scale blocks and
+ * box-filtered from the shadow, so rectangle edges that do not line up with the scale factor
+ * still average the right neighbours. The factor is a power of two (2 or 4).
+ *
+ * Only touched from the event loop that owns the VNC socket, except for the coordinate
+ * mapping helpers.
+ */
+public final class VNCFramebufferScaler {
+
+    private static final VNCPixelKernels kernels = VNCPixelKernels.get();
+
+    private final int factor;
+    private volatile int fullWidth;
+    private volatile int fullHeight;
+    private byte[] shadow;
+
+    /**
+     * A downscaled area, in client coordinates
+     */
+    public static final class Region {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final byte[] pixels;
+
+        Region(int x, int y, int width, int height, byte[] pixels) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    public VNCFramebufferScaler(int factor, int width, int height) {
+        this.factor = factor;
+        resize(width, height);
+    }
+
+    /**
+     * Factor for a client whose viewport is the given size in CSS pixels: the scale at which the
+     * whole framebuffer fits the viewport, min(viewportWidth / width, viewportHeight / height),
+     * snapped to the largest power of two (up to maxFactor) that still shows at least as many
+     * pixels as the browser can display at that scale. A portrait phone on a landscape desktop
+     * is scaled by its width.
+     * @return 1 when scaling would not help
+     */
+    public static int chooseFactor(int width, int height, int viewportWidth, int viewportHeight, int maxFactor) {
+        if (viewportWidth <= 0 || viewportHeight <= 0 || width <= 0 || height <= 0) {
+            return 1;
+        }
+        double fit = Math.min((double) viewportWidth / width, (double) viewportHeight / height);
+        int factor = 1;
+        while (factor * 2 <= maxFactor && fit * factor * 2 <= 1) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Whether rectangles in this format can be box-filtered byte by byte
+     */
+    public static boolean canScale(VNCPixelFormat format) {
+        return format.trueColour && format.bitsPerPixel == 32
+                && format.redMax == 255 && format.greenMax == 255 && format.blueMax == 255
+                && format.redShift % 8 == 0 && format.greenShift % 8 == 0 && format.blueShift % 8 == 0;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    public int getScaledWidth() {
+        return fullWidth / factor;
+    }
+
+    public int getScaledHeight() {
+        return fullHeight / factor;
+    }
+
+    /**
+     * The server changed the framebuffer size
+     */
+    public void resize(int width, int height) {
+        fullWidth = width;
+        fullHeight = height;
+        shadow = new byte[width * height * 4];
+    }
+
+    /**
+     * Client coordinate to full-resolution coordinate along the x axis
+     */
+    public int toFullX(int x) {
+        return Math.min(x * factor, Math.max(0, fullWidth - 1));
+    }
+
+    public int toFullY(int y) {
+        return Math.min(y * factor, Math.max(0, fullHeight - 1));
+    }
+
+    /**
+     * Client extent to full-resolution extent, clipped to the framebuffer
+     */
+    public int toFullWidth(int x, int width) {
+        return Math.max(0, Math.min((x + width) * factor, fullWidth) - x * factor);
+    }
+
+    public int toFullHeight(int y, int height) {
+        return Math.max(0, Math.min((y + height) * factor, fullHeight) - y * factor);
+    }
+
+    /**
+     * Whether a rectangle maps exactly onto whole scale blocks
+     */
+    public boolean isAligned(int x, int y, int width, int height) {
+        int mask = factor - 1;
+        return ((x | y | width | height) & mask) == 0;
+    }
+
+    public void applyRaw(int x, int y, int width, int height, byte[] pixels) {
+        int w = Math.min(width, fullWidth - x);
+        int h = Math.min(height, fullHeight - y);
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(pixels, row * width * 4, shadow, ((y + row) * fullWidth + x) * 4, w * 4);
+        }
+    }
+
+    public void applyCopyRect(int x, int y, int width, int height, int srcX, int srcY) {
+        int w = Math.min(width, Math.min(fullWidth - x, fullWidth - srcX));
+        int h = Math.min(height, Math.min(fullHeight - y, fullHeight - srcY));
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        int stride = fullWidth * 4;
+        if (srcY < y) {
+            // Overlapping move downwards: copy bottom-up
+            for (int row = h - 1; row >= 0; row--) {
+                System.arraycopy(shadow, (srcY + row) * stride + srcX * 4, shadow, (y + row) * stride + x * 4, w * 4);
+            }
+        } else {
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(shadow, (srcY + row) * stride + srcX * 4, shadow, (y + row) * stride + x * 4, w * 4);
+            }
+        }
+    }
+
+    /**
+     * Downscale the area covering a full-resolution rectangle, widened to whole blocks and
+     * clipped to the scaled framebuffer. The region may be empty.
+     */
+    public Region region(int x, int y, int width, int height) {
+        int sx0 = x / factor;
+        int sy0 = y / factor;
+        int sx1 = Math.min((x + width + factor - 1) / factor, getScaledWidth());
+        int sy1 = Math.min((y + height + factor - 1) / factor, getScaledHeight());
+        int sw = Math.max(0, sx1 - sx0);
+        int sh = Math.max(0, sy1 - sy0);
+        byte[] out = new byte[sw * sh * 4];
+        if (sw == 0 || sh == 0) {
+            return new Region(Math.min(sx0, getScaledWidth()), Math.min(sy0, getScaledHeight()), sw, sh, out);
+        }
+        int stride = fullWidth * 4;
+        int offset = (sy0 * factor * fullWidth + sx0 * factor) * 4;
+        if (factor == 2) {
+            kernels.downscale2x(shadow, offset, stride, out, 0, sw * 4, sw, sh);
+        } else {
+            // 4x: two 2x passes through an intermediate buffer
+            int hw = sw * 2;
+            int hh = sh * 2;
+            byte[] half = new byte[hw * hh * 4];
+            kernels.downscale2x(shadow, offset, stride, half, 0, hw * 4, hw, hh);
+            kernels.downscale2x(half, 0, hw * 4, out, 0, sw * 4, sw, sh);
+        }
+        return new Region(sx0, sy0, sw, sh, out);
+    }
+}
@@ -0,0 +1,172 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Handshake times per VNC server: a histogram of the whole handshake and of each step, and the
+ * slowest recent handshakes with their step breakdown, so a slow time to first frame can be put
+ * down to the network, the server's authentication or a browser that is slow to answer.
+ */
+@ApplicationScoped
+public class VNCHandshakeStats {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCHandshakeStats.class);
+
+    @Inject
+    VNCProxyConfig config;
+
+    private final Map<String, Backend> backends = new ConcurrentHashMap<>();
+    // Slowest handshakes within the window, slowest first
+    private final List<Slow> slowest = new ArrayList<>();
+
+    /**
+     * Report a session's handshake to these stats once it is done
+     */
+    public void track(String sessionId, VNCConnection connection) {
+        connection.handshakeTimer.onDone(timer -> record(sessionId, connection.backend, timer));
+    }
+
+    /**
+     * A handshake completed, or its session closed before it did
+     */
+    public void record(String sessionId, String backend, VNCHandshakeTimer timer) {
+        String name = backend != null ? backend : "unknown";
+        backends.computeIfAbsent(name, b -> new Backend()).record(timer);
+        long totalNanos = timer.getTotalNanos();
+        if (!timer.isCompleted()) {
+            log.info("Handshake with {} failed after {} ms: {} for session: {}", name, totalNanos / 1_000_000, timer.toMap(), sessionId);
+        }
+        int kept = config.getHandshakeSlowestKept();
+        if (kept == 0) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - config.getHandshakeSlowestWindowMinutes() * 60_000;
+        synchronized (slowest) {
+            slowest.removeIf(slow -> slow.timer.getStartMillis() < oldest);
+            if (slowest.size() >= kept && slowest.get(slowest.size() - 1).totalNanos >= totalNanos) {
+                return;
+            }
+            slowest.add(new Slow(sessionId, name, timer, totalNanos));
+            slowest.sort(Comparator.comparingLong((Slow slow) -> slow.totalNanos).reversed());
+            while (slowest.size() > kept) {
+                slowest.remove(slowest.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Handshake time of each VNC server, for the periodic report
+     */
+    public Map<String, VNCLatencyHistogram> getTotalByBackend() {
+        Map<String, VNCLatencyHistogram> totals = new TreeMap<>();
+        backends.forEach((backend, stats) -> totals.put(backend, stats.total));
+        return totals;
+    }
+
+    /**
+     * Per VNC server histograms and the slowest recent handshakes, for JSON output
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> byBackend = new TreeMap<>();
+        backends.forEach((backend, stats) -> byBackend.put(backend, stats.toMap()));
+        List<Map<String, Object>> slow = new ArrayList<>();
+        long oldest = System.currentTimeMillis() - config.getHandshakeSlowestWindowMinutes() * 60_000;
+        synchronized (slowest) {
+            for (Slow entry : slowest) {
+                if (entry.timer.getStartMillis() >= oldest) {
+                    slow.add(entry.toMap());
+                }
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("byBackend", byBackend);
+        map.put("slowest", slow);
+        return map;
+    }
+
+    /**
+     * Handshakes with one VNC server
+     */
+    private static final class Backend {
+        final VNCLatencyHistogram total = new VNCLatencyHistogram();
+        final Map<VNCHandshakeStep, VNCLatencyHistogram> steps = new ConcurrentHashMap<>();
+        long completed = 0;
+        long failed = 0;
+
+        void record(VNCHandshakeTimer timer) {
+            for (VNCHandshakeStep step : VNCHandshakeStep.values()) {
+                long nanos = timer.getStepNanos(step);
+                if (nanos >= 0) {
+                    steps.computeIfAbsent(step, s -> new VNCLatencyHistogram()).record(nanos / 1000);
+                }
+            }
+            synchronized (this) {
+                if (timer.isCompleted()) {
+                    completed++;
+                } else {
+                    failed++;
+                    return;
+                }
+            }
+            total.record(timer.getTotalNanos() / 1000);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            synchronized (this) {
+                map.put("completed", completed);
+                map.put("failed", failed);
+            }
+            map.put("total", total.toMap());
+            Map<String, Object> byStep = new LinkedHashMap<>();
+            for (VNCHandshakeStep step : VNCHandshakeStep.values()) {
+                VNCLatencyHistogram histogram = steps.get(step);
+                if (histogram != null) {
+                    byStep.put(step.getLabel(), histogram.toMap());
+                }
+            }
+            map.put("steps", byStep);
+            return map;
+        }
+    }
+
+    /**
+     * One of the slowest recent handshakes
+     */
+    private static final class Slow {
+        final String sessionId;
+        final String backend;
+        final VNCHandshakeTimer timer;
+        final long totalNanos;
+
+        Slow(String sessionId, String backend, VNCHandshakeTimer timer, long totalNanos) {
+            this.sessionId = sessionId;
+            this.backend = backend;
+            this.timer = timer;
+            this.totalNanos = totalNanos;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            // Session IDs are credentials: only a prefix, as in the performance report
+            map.put("session", sessionId != null ? sessionId.substring(0, Math.min(8, sessionId.length())) : null);
+            map.put("backend", backend);
+            map.putAll(timer.toMap());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.suko.vnc.websocket;
+
+/**
+ * The waits of an RFB handshake through the proxy, in order, and who each one waits on
+ */
+public enum VNCHandshakeStep {
+    CONNECT("connect", "network"),
+    SERVER_VERSION("server-version", "server"),
+    BROWSER_VERSION("browser-version", "browser"),
+    SERVER_SECURITY("server-security", "server"),
+    BROWSER_SECURITY("browser-security", "browser"),
+    VNC_AUTH("vnc-auth", "server"),
+    SECURITY_RESULT("security-result", "server"),
+    BROWSER_INIT("browser-init", "browser"),
+    SERVER_INIT("server-init", "server");
+
+    private final String label;
+    private final String waitsOn;
+
+    VNCHandshakeStep(String label, String waitsOn) {
+        this.label = label;
+        this.waitsOn = waitsOn;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * network, server or browser
+     */
+    public String getWaitsOn() {
+        return waitsOn;
+    }
+
+    /**
+     * The step that ends when a connection leaves a state, null if none does
+     */
+    public static VNCHandshakeStep endedBy(VNCConnectionState leaving) {
+        switch (leaving) {
+            case CONNECTING:
+                return CONNECT;
+            case PROTOCOL_VERSION:
+                return BROWSER_VERSION;
+            case SECURITY:
+                return BROWSER_SECURITY;
+            case VNC_AUTH:
+                return VNC_AUTH;
+            case AUTH:
+                return SECURITY_RESULT;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.suko.vnc.websocket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Monotonic timestamps of the steps of one session's handshake, from the WebSocket opening to
+ * ServerInit. Each step is the time since the previous one ended, so the steps add up to the
+ * whole handshake and show whether it went to the network, the server or the browser.
+ */
+public class VNCHandshakeTimer {
+
+    private static final VNCHandshakeStep[] STEPS = VNCHandshakeStep.values();
+
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    // When each step ended, 0 if it has not (yet)
+    private final long[] endNanos = new long[STEPS.length];
+    private final long[] stepNanos = new long[STEPS.length];
+    private long lastNanos = startNanos;
+    private VNCHandshakeStep lastStep;
+    // When the session closed before ServerInit, 0 if it did not
+    private long abortNanos = 0;
+    private volatile boolean done = false;
+    private boolean completed = false;
+    private Consumer<VNCHandshakeTimer> onDone;
+
+    /**
+     * Called once when the handshake completes or the session closes before it does
+     */
+    public synchronized void onDone(Consumer<VNCHandshakeTimer> onDone) {
+        this.onDone = onDone;
+    }
+
+    /**
+     * A step ended now; later marks of the same step are ignored
+     */
+    public void mark(VNCHandshakeStep step) {
+        if (done) {
+            return;
+        }
+        Consumer<VNCHandshakeTimer> listener = null;
+        synchronized (this) {
+            int i = step.ordinal();
+            if (done || endNanos[i] != 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            endNanos[i] = now;
+            stepNanos[i] = now - lastNanos;
+            lastNanos = now;
+            lastStep = step;
+            if (step == VNCHandshakeStep.SERVER_INIT) {
+                done = true;
+                completed = true;
+                listener = onDone;
+            }
+        }
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    /**
+     * Whether a step has ended
+     */
+    public synchronized boolean isMarked(VNCHandshakeStep step) {
+        return endNanos[step.ordinal()] != 0;
+    }
+
+    /**
+     * The session closed: a handshake still running is reported as failed
+     */
+    public void abort() {
+        Consumer<VNCHandshakeTimer> listener;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            abortNanos = System.nanoTime();
+            listener = onDone;
+        }
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Whether ServerInit reached the browser
+     */
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Time from the WebSocket opening to ServerInit, to the close of a failed handshake, or to
+     * now while running
+     */
+    public synchronized long getTotalNanos() {
+        if (!done) {
+            return System.nanoTime() - startNanos;
+        }
+        return (completed ? lastNanos : abortNanos) - startNanos;
+    }
+
+    /**
+     * Duration of a step, -1 if it did not end
+     */
+    public synchronized long getStepNanos(VNCHandshakeStep step) {
+        int i = step.ordinal();
+        return endNanos[i] != 0 ? stepNanos[i] : -1;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Step breakdown for JSON output: milliseconds per step that ended and per party waited on
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> steps = new LinkedHashMap<>();
+        Map<String, Long> waitedOnNanos = new LinkedHashMap<>();
+        for (VNCHandshakeStep step : STEPS) {
+            int i = step.ordinal();
+            if (endNanos[i] != 0) {
+                steps.put(step.getLabel(), millis(stepNanos[i]));
+                waitedOnNanos.merge(step.getWaitsOn(), stepNanos[i], Long::sum);
+            }
+        }
+        Map<String, Double> waitedOn = new LinkedHashMap<>();
+        waitedOnNanos.forEach((party, nanos) -> waitedOn.put(party, millis(nanos)));
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("at", startMillis);
+        map.put("completed", completed);
+        map.put("totalMillis", millis(getTotalNanos()));
+        map.put("steps", steps);
+        map.put("waitedOn", waitedOn);
+        if (abortNanos != 0) {
+            // Where a failed handshake stopped, and how long it sat there
+            map.put("closedAfter", lastStep != null ? lastStep.getLabel() : null);
+            map.put("closedAfterMillis", millis(abortNanos - lastNanos));
+        }
+        return map;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 100_000.0) / 10.0;
+    }
+}
@@ -0,0 +1,56 @@
+package com.suko.vnc.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Input-to-update latency as the proxy sees it: from a key press or pointer button change
+ * arriving from the browser to the end of the next FramebufferUpdate forwarded to it.
+ *
+ * Only the oldest unanswered input is timed, and only updates that begin after it count as its
+ * answer; inputs arriving while an update is in flight wait for the following one. Pointer
+ * motion is not timed, as the browser draws the cursor itself and the server often sends nothing
+ * for it. An input that goes unanswered for long most likely changed nothing on screen, so it is
+ * not matched to whatever unrelated update comes next.
+ *
+ * onInput() runs on the client stream, the update callbacks on the server stream.
+ */
+public class VNCInputLatencyTracker {
+
+    private static final long UNANSWERED_NANOS = 5_000_000_000L;
+
+    private final VNCLatencyHistogram histogram = new VNCLatencyHistogram();
+
+    // Arrival of the oldest unanswered input, 0 if there is none
+    private final AtomicLong pendingInput = new AtomicLong();
+    // Input answered by the update in progress, 0 if there is none; server stream only
+    private long matchedInput = 0;
+
+    /**
+     * An input event arrived from the browser
+     */
+    public void onInput(long now) {
+        pendingInput.compareAndSet(0, now);
+    }
+
+    /**
+     * A FramebufferUpdate from the server begins
+     */
+    public void onUpdateBegin(long now) {
+        long input = pendingInput.getAndSet(0);
+        matchedInput = input != 0 && now - input < UNANSWERED_NANOS ? input : 0;
+    }
+
+    /**
+     * The FramebufferUpdate was forwarded to the browser
+     */
+    public void onUpdateEnd(long now) {
+        if (matchedInput != 0) {
+            histogram.record((now - matchedInput) / 1000);
+            matchedInput = 0;
+        }
+    }
+
+    public VNCLatencyHistogram getHistogram() {
+        return histogram;
+    }
+}
@@ -0,0 +1,91 @@
+package com.suko.vnc.websocket;
+
+/**
+ * Holds back update requests while the browser is behind on what was already sent.
+ *
+ * When the outbound WebSocket queue is above the high-water mark, the client's
+ * FramebufferUpdateRequests are not forwarded; their regions are merged into one dirty bounding
+ * box instead. Once the queue drains below the low-water mark a single request for that box
+ * goes to the server, which then sends one update with the latest pixels rather than every
+ * intermediate frame. If the stall lasted longer than the stall limit, or the client asked for
+ * a full refresh meanwhile, the request is non-incremental.
+ *
+ * Requests are held rather than updates dropped: ZRLE and Tight rectangles share zlib state
+ * with the client, so discarding them would corrupt its decoder.
+ *
+ * Synchronized: requests arrive on the client thread, drain events on the WebSocket's.
+ */
+public class VNCLagGate {
+
+    /**
+     * The request to send once the queue has drained
+     */
+    public static final class Release {
+        public final VNCRect area;
+        public final boolean incremental;
+        /** How long requests were held */
+        public final long heldNanos;
+
+        Release(VNCRect area, boolean incremental, long heldNanos) {
+            this.area = area;
+            this.incremental = incremental;
+            this.heldNanos = heldNanos;
+        }
+    }
+
+    private final long highWater;
+    private final long lowWater;
+    private final long stallNanos;
+
+    private VNCRect held;
+    private boolean refreshRequested;
+    private long heldSince;
+
+    public VNCLagGate(long highWater, long lowWater, long stallMillis) {
+        this.highWater = highWater;
+        this.lowWater = Math.min(lowWater, highWater);
+        this.stallNanos = stallMillis * 1_000_000L;
+    }
+
+    public long getLowWater() {
+        return lowWater;
+    }
+
+    /**
+     * Offer a client request
+     * @param queuedBytes bytes sent to the client but not yet written out
+     * @return true if the request was held, false to forward it now
+     */
+    public synchronized boolean hold(VNCRect request, boolean incremental, long queuedBytes, long now) {
+        if (held == null) {
+            if (queuedBytes <= highWater) {
+                return false;
+            }
+            held = request;
+            heldSince = now;
+        } else {
+            held = held.union(request);
+        }
+        refreshRequested |= !incremental;
+        return true;
+    }
+
+    public synchronized boolean isHolding() {
+        return held != null;
+    }
+
+    /**
+     * Take the merged request if the queue has drained far enough
+     * @return null if nothing is held or the client is still behind
+     */
+    public synchronized Release release(long queuedBytes, long now) {
+        if (held == null || queuedBytes > lowWater) {
+            return null;
+        }
+        long heldNanos = now - heldSince;
+        Release release = new Release(held, !refreshRequested && heldNanos < stallNanos, heldNanos);
+        held = null;
+        refreshRequested = false;
+        return release;
+    }
+}
@@ -0,0 +1,148 @@
+package com.suko.vnc.websocket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Log-linear latency histogram in microseconds.
+ *
+ * Each power of two is split into 8 buckets, so a percentile is off by at most 12.5%, and the
+ * whole range up to hours fits in a fixed array: recording never allocates.
+ *
+ * Synchronized: samples come from the server stream, reads from the REST and reporting threads.
+ */
+public class VNCLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Add one sample
+     */
+    public synchronized void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add all samples of another histogram
+     */
+    public void add(VNCLatencyHistogram other) {
+        long[] otherCounts;
+        long otherCount;
+        long otherSum;
+        long otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherCount = other.count;
+            otherSum = other.sum;
+            otherMax = other.max;
+        }
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            sum += otherSum;
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    /**
+     * Samples recorded since an earlier copy of this histogram was taken (with add), such as
+     * those of the last interval. Its maximum is the upper bound of the highest bucket that got
+     * new samples.
+     */
+    public VNCLatencyHistogram since(VNCLatencyHistogram earlier) {
+        long[] earlierCounts;
+        long earlierCount;
+        long earlierSum;
+        synchronized (earlier) {
+            earlierCounts = earlier.counts.clone();
+            earlierCount = earlier.count;
+            earlierSum = earlier.sum;
+        }
+        VNCLatencyHistogram interval = new VNCLatencyHistogram();
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long added = counts[i] - earlierCounts[i];
+                if (added > 0) {
+                    interval.counts[i] = added;
+                    interval.max = Math.min(max, upperBound(i));
+                }
+            }
+            interval.count = count - earlierCount;
+            interval.sum = sum - earlierSum;
+        }
+        return interval;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Sample value at the given percentile (0-100), as the upper bound of its bucket
+     * @return 0 if there are no samples
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Count, mean, percentiles and maximum in milliseconds, for JSON output
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", count);
+        map.put("meanMillis", count > 0 ? millis(sum / count) : 0.0);
+        map.put("p50Millis", millis(percentile(50)));
+        map.put("p90Millis", millis(percentile(90)));
+        map.put("p99Millis", millis(percentile(99)));
+        map.put("maxMillis", millis(max));
+        return map;
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (msb - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + sub) << (msb - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,258 @@
+package com.suko.vnc.websocket;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.suko.vnc.config.VNCProxyConfig;
+
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Recent history of the proxy and of each session: throughput, message rate and latency
+ * percentiles per second and per minute, so a dashboard can chart what happened over the last
+ * hour rather than lifetime averages in which an hour-old burst still shows.
+ *
+ * Every second the cumulative counters and latency histograms are compared with the previous
+ * sample; every minute with the sample of a minute ago. Each series is a fixed-size ring, so a
+ * session costs the same memory however long it runs.
+ */
+@ApplicationScoped
+public class VNCMetricsHistory {
+
+    private static final String[] SESSION_SERIES = {
+        "bytesReceivedPerSecond", "bytesSentPerSecond", "messagesPerSecond",
+        "inputLatencyP50Millis", "inputLatencyP99Millis", "clientResidencyP99Millis"
+    };
+    private static final boolean[] SESSION_LATENCY = {false, false, false, true, true, true};
+    private static final String[] GLOBAL_SERIES = {
+        "bytesReceivedPerSecond", "bytesSentPerSecond", "messagesPerSecond",
+        "inputLatencyP50Millis", "inputLatencyP99Millis", "clientResidencyP99Millis",
+        "sessions", "maxLoopLagMillis"
+    };
+    private static final boolean[] GLOBAL_LATENCY = {false, false, false, true, true, true, false, true};
+
+    @Inject
+    VNCProxyConfig config;
+
+    @Inject
+    VNCConnectionManager connectionManager;
+
+    @Inject
+    VNCPerformanceMonitor performanceMonitor;
+
+    @Inject
+    VNCEventLoopMonitor eventLoopMonitor;
+
+    private volatile Source global;
+    private final Map<String, Source> sessions = new ConcurrentHashMap<>();
+    private long lastTick = 0;
+    private long lastMinute = -1;
+
+    /**
+     * Take the per-second sample, and the per-minute one when a minute has begun
+     */
+    @Scheduled(every = "1s", identity = "metrics-history", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void sample() {
+        if (config.getHistorySeconds() == 0 && config.getHistoryMinutes() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long minute = now / 60_000;
+        boolean newMinute = lastMinute != -1 && minute != lastMinute;
+        if (lastMinute == -1 || newMinute) {
+            lastMinute = minute;
+        }
+        Map<String, VNCConnection> active = connectionManager.getActiveConnections();
+        sessions.keySet().retainAll(active.keySet());
+
+        VNCLatencyHistogram input = new VNCLatencyHistogram();
+        VNCLatencyHistogram residency = new VNCLatencyHistogram();
+        VNCLatencyHistogram minuteInput = new VNCLatencyHistogram();
+        VNCLatencyHistogram minuteResidency = new VNCLatencyHistogram();
+        active.forEach((sessionId, connection) -> {
+            Source source = sessions.computeIfAbsent(sessionId,
+                    id -> new Source(SESSION_SERIES, SESSION_LATENCY, lastTick != 0 ? lastTick : now, true));
+            VNCInputLatencyTracker tracker = connection.inputLatency;
+            VNCLatencyHistogram sessionInput = tracker != null ? tracker.getHistogram() : null;
+            VNCLatencyHistogram sessionResidency = connection.clientBatches.getResidency();
+            Interval second = source.secondBase.advance(now, connection.bytesReceived, connection.bytesSent,
+                    connection.messageCount, sessionInput, sessionResidency);
+            source.seconds.add(now, second.row(0));
+            input.add(second.input);
+            residency.add(second.residency);
+            if (newMinute) {
+                Interval interval = source.minuteBase.advance(now, connection.bytesReceived, connection.bytesSent,
+                        connection.messageCount, sessionInput, sessionResidency);
+                source.minutes.add(now, interval.row(0));
+                minuteInput.add(interval.input);
+                minuteResidency.add(interval.residency);
+            }
+        });
+
+        VNCPerformanceMonitor.PerformanceStats stats = performanceMonitor.getPerformanceStats();
+        long lagMicros = (long) (eventLoopMonitor.getMaxLagMillis() * 1000);
+        if (global == null) {
+            Source first = new Source(GLOBAL_SERIES, GLOBAL_LATENCY, now, false);
+            first.secondBase.reset(now, stats.totalBytesReceived, stats.totalBytesSent, stats.totalMessages);
+            first.minuteBase.reset(now, stats.totalBytesReceived, stats.totalBytesSent, stats.totalMessages);
+            global = first;
+        } else {
+            Interval second = global.secondBase.advance(now, stats.totalBytesReceived, stats.totalBytesSent,
+                    stats.totalMessages, input, residency);
+            long[] row = second.row(2);
+            row[6] = active.size();
+            row[7] = lagMicros;
+            global.seconds.add(now, row);
+            if (newMinute) {
+                Interval interval = global.minuteBase.advance(now, stats.totalBytesReceived, stats.totalBytesSent,
+                        stats.totalMessages, minuteInput, minuteResidency);
+                row = interval.row(2);
+                row[6] = active.size();
+                row[7] = lagMicros;
+                global.minutes.add(now, row);
+            }
+        }
+        lastTick = now;
+    }
+
+    /**
+     * History of the proxy and of the given sessions over the last rangeSeconds, merged into at
+     * most the given number of points. Per-second samples are used while they cover the range,
+     * per-minute ones beyond.
+     */
+    public Map<String, Object> getHistory(long rangeSeconds, int points, Collection<String> sessionIds) {
+        long range = Math.max(1, rangeSeconds) * 1000;
+        boolean perSecond = range <= config.getHistorySeconds() * 1000L;
+        long resolution = perSecond ? 1000 : 60_000;
+        long step = Math.max(resolution, (range / Math.max(1, points) + resolution - 1) / resolution * resolution);
+        long since = System.currentTimeMillis() - range;
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("resolution", perSecond ? "second" : "minute");
+        Source source = global;
+        if (source != null) {
+            map.put("global", (perSecond ? source.seconds : source.minutes).toMap(since, step));
+        }
+        Map<String, Object> bySession = new LinkedHashMap<>();
+        for (String sessionId : sessionIds) {
+            Source session = sessions.get(sessionId);
+            if (session != null) {
+                // Session IDs are credentials: only a prefix, as in the performance report
+                bySession.put(sessionId.substring(0, Math.min(8, sessionId.length())),
+                        (perSecond ? session.seconds : session.minutes).toMap(since, step));
+            }
+        }
+        map.put("sessions", bySession);
+        return map;
+    }
+
+    /**
+     * The rings of the proxy or of one session, and where each resolution's last sample left off
+     */
+    private final class Source {
+        final VNCTimeSeries seconds;
+        final VNCTimeSeries minutes;
+        final Baseline secondBase;
+        final Baseline minuteBase;
+
+        Source(String[] names, boolean[] latency, long start, boolean cumulative) {
+            seconds = new VNCTimeSeries(names, latency, config.getHistorySeconds());
+            minutes = new VNCTimeSeries(names, latency, config.getHistoryMinutes());
+            secondBase = new Baseline(start, cumulative);
+            minuteBase = new Baseline(start, cumulative);
+        }
+    }
+
+    /**
+     * Cumulative counters and histograms as of the previous sample
+     */
+    private static final class Baseline {
+        // Whether the histograms passed in are cumulative, rather than already one interval's
+        final boolean cumulative;
+        long time;
+        long received;
+        long sent;
+        long messages;
+        VNCLatencyHistogram input = new VNCLatencyHistogram();
+        VNCLatencyHistogram residency = new VNCLatencyHistogram();
+
+        Baseline(long time, boolean cumulative) {
+            this.time = time;
+            this.cumulative = cumulative;
+        }
+
+        void reset(long now, long received, long sent, long messages) {
+            this.time = now;
+            this.received = received;
+            this.sent = sent;
+            this.messages = messages;
+        }
+
+        /**
+         * What happened since the previous sample; this sample becomes the baseline of the next
+         * @param input input latency, null when not tracked; for the proxy, the sessions'
+         *        intervals already merged, as is residency
+         */
+        Interval advance(long now, long received, long sent, long messages,
+                VNCLatencyHistogram input, VNCLatencyHistogram residency) {
+            Interval interval = new Interval();
+            interval.millis = Math.max(1, now - time);
+            interval.received = received - this.received;
+            interval.sent = sent - this.sent;
+            interval.messages = messages - this.messages;
+            reset(now, received, sent, messages);
+            if (!cumulative) {
+                interval.input = input;
+                interval.residency = residency;
+                return interval;
+            }
+            interval.input = input != null ? input.since(this.input) : new VNCLatencyHistogram();
+            interval.residency = residency.since(this.residency);
+            this.input = copy(input);
+            this.residency = copy(residency);
+            return interval;
+        }
+
+        private static VNCLatencyHistogram copy(VNCLatencyHistogram histogram) {
+            VNCLatencyHistogram copy = new VNCLatencyHistogram();
+            if (histogram != null) {
+                copy.add(histogram);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Counters and latencies of one interval
+     */
+    private static final class Interval {
+        long millis;
+        long received;
+        long sent;
+        long messages;
+        VNCLatencyHistogram input;
+        VNCLatencyHistogram residency;
+
+        /**
+         * The session series of this interval, with room for extra values after them
+         */
+        long[] row(int extra) {
+            long[] row = new long[SESSION_SERIES.length + extra];
+            row[0] = Math.max(0, received) * 1000 / millis;
+            row[1] = Math.max(0, sent) * 1000 / millis;
+            row[2] = Math.max(0, messages) * 1000 / millis;
+            row[3] = percentile(input, 50);
+            row[4] = percentile(input, 99);
+            row[5] = percentile(residency, 99);
+            return row;
+        }
+
+        private static long percentile(VNCLatencyHistogram histogram, double percentile) {
+            return histogram.getCount() > 0 ? histogram.percentile(percentile) : -1;
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package com.suko.vnc.websocket;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.suko.vnc.rfb.VNCTrafficStats;
+
 import io.quarkus.scheduler.Scheduled;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 
 /**
  * Performance monitoring service for VNC proxy
@@ -20,6 +28,18 @@ public class VNCPerformanceMonitor {
     
     private final Map<String, VNCConnection> connections = new ConcurrentHashMap<>();
     
+    @Inject
+    VNCEgressScheduler egressScheduler;
+    
+    @Inject
+    VNCAdmissionController admissionController;
+    
+    @Inject
+    VNCEventLoopMonitor eventLoopMonitor;
+    
+    @Inject
+    VNCHandshakeStats handshakeStats;
+    
     // Global performance metrics
     private final AtomicLong totalConnections = new AtomicLong(0);
     private final AtomicLong totalBytesReceived = new AtomicLong(0);
@@ -27,6 +47,16 @@ public class VNCPerformanceMonitor {
     private final AtomicLong totalMessages = new AtomicLong(0);
     private final AtomicLong totalLatency = new AtomicLong(0);
     
+    // Traffic counters of closed connections
+    private final VNCTrafficStats closedTraffic = new VNCTrafficStats();
+    
+    // Batching of closed connections, to the browser and to the VNC server
+    private final VNCBatchStats closedClientBatches = new VNCBatchStats();
+    private final VNCBatchStats closedServerBatches = new VNCBatchStats();
+    
+    // Input-to-update latency of closed connections, by VNC server
+    private final Map<String, VNCLatencyHistogram> closedInputLatency = new ConcurrentHashMap<>();
+    
     /**
      * Register a connection for monitoring
      */
@@ -47,6 +77,15 @@ public class VNCPerformanceMonitor {
             totalBytesSent.addAndGet(connection.bytesSent);
             totalMessages.addAndGet(connection.messageCount);
             totalLatency.addAndGet(connection.totalLatency);
+            if (connection.trafficStats != null) {
+                closedTraffic.add(connection.trafficStats);
+            }
+            closedClientBatches.add(connection.clientBatches);
+            closedServerBatches.add(connection.serverBatches);
+            if (connection.inputLatency != null) {
+                closedInputLatency.computeIfAbsent(backendOf(connection), b -> new VNCLatencyHistogram())
+                        .add(connection.inputLatency.getHistogram());
+            }
             
             log.info("Unregistered connection from monitoring: {}", sessionId);
         }
@@ -110,6 +149,89 @@ public class VNCPerformanceMonitor {
         );
     }
     
+    /**
+     * Traffic by message type and encoding, summed over active and closed connections
+     */
+    public VNCTrafficStats getTrafficTotals() {
+        VNCTrafficStats totals = new VNCTrafficStats();
+        synchronized (closedTraffic) {
+            totals.add(closedTraffic);
+        }
+        for (VNCConnection connection : connections.values()) {
+            VNCTrafficStats traffic = connection.trafficStats;
+            if (traffic != null) {
+                totals.add(traffic);
+            }
+        }
+        return totals;
+    }
+    
+    /**
+     * Batching of active and closed connections, by direction (to-client, to-server)
+     */
+    public Map<String, VNCBatchStats> getBatchTotals() {
+        VNCBatchStats toClient = new VNCBatchStats();
+        VNCBatchStats toServer = new VNCBatchStats();
+        toClient.add(closedClientBatches);
+        toServer.add(closedServerBatches);
+        for (VNCConnection connection : connections.values()) {
+            toClient.add(connection.clientBatches);
+            toServer.add(connection.serverBatches);
+        }
+        Map<String, VNCBatchStats> totals = new TreeMap<>();
+        totals.put("to-client", toClient);
+        totals.put("to-server", toServer);
+        return totals;
+    }
+    
+    /**
+     * Input-to-update latency of closed and active connections, by VNC server
+     */
+    public Map<String, VNCLatencyHistogram> getInputLatencyByBackend() {
+        Map<String, VNCLatencyHistogram> byBackend = new TreeMap<>();
+        closedInputLatency.forEach((backend, histogram) ->
+                byBackend.computeIfAbsent(backend, b -> new VNCLatencyHistogram()).add(histogram));
+        for (VNCConnection connection : connections.values()) {
+            VNCInputLatencyTracker inputLatency = connection.inputLatency;
+            if (inputLatency != null) {
+                byBackend.computeIfAbsent(backendOf(connection), b -> new VNCLatencyHistogram())
+                        .add(inputLatency.getHistogram());
+            }
+        }
+        return byBackend;
+    }
+    
+    /**
+     * The sessions that used the most CPU time over the last minute or two, most expensive first
+     */
+    public List<Map<String, Object>> getHeaviestSessions(int limit) {
+        List<Map.Entry<String, VNCSessionCost>> measured = new ArrayList<>();
+        connections.forEach((sessionId, connection) -> {
+            VNCSessionCost cost = connection.cost;
+            if (cost != null) {
+                measured.add(Map.entry(sessionId, cost));
+            }
+        });
+        measured.sort(Comparator.comparingDouble((Map.Entry<String, VNCSessionCost> entry) ->
+                entry.getValue().getRecentCpuPercent()).reversed());
+        List<Map<String, Object>> heaviest = new ArrayList<>();
+        for (Map.Entry<String, VNCSessionCost> entry : measured.subList(0, Math.min(limit, measured.size()))) {
+            String sessionId = entry.getKey();
+            Map<String, Object> map = new LinkedHashMap<>();
+            // Session IDs are credentials: only a prefix, as in the per-connection report
+            map.put("session", sessionId.substring(0, Math.min(8, sessionId.length())));
+            VNCConnection connection = connections.get(sessionId);
+            map.put("backend", connection != null ? backendOf(connection) : null);
+            map.putAll(entry.getValue().toMap());
+            heaviest.add(map);
+        }
+        return heaviest;
+    }
+    
+    private static String backendOf(VNCConnection connection) {
+        return connection.backend != null ? connection.backend : "unknown";
+    }
+    
     /**
      * Report performance metrics every 30 seconds using Quarkus scheduler
      */
@@ -125,6 +247,47 @@ public class VNCPerformanceMonitor {
         log.info("Total Messages: {}", stats.totalMessages);
         log.info("Average Latency: {} ms", String.format("%.4f", stats.averageLatency));
         log.info("Total Throughput: {} MB/s", String.format("%.2f", stats.totalThroughput / (1024.0 * 1024.0)));
+        VNCTrafficStats traffic = getTrafficTotals();
+        if (!traffic.isEmpty()) {
+            log.info("Traffic: {}", traffic.toMap());
+        }
+        long sampled = 0;
+        long worthwhile = 0;
+        for (VNCConnection connection : connections.values()) {
+            VNCCompressionSampler sampler = connection.compressionSampler;
+            if (sampler != null) {
+                sampled++;
+                if (sampler.isDeflateWorthwhile()) {
+                    worthwhile++;
+                }
+            }
+        }
+        if (sampled > 0) {
+            log.info("Compression sampling: deflate worthwhile for {} of {} sessions", worthwhile, sampled);
+        }
+        getBatchTotals().forEach((direction, batches) -> {
+            if (batches.getBatches() > 0) {
+                log.info("Batching {}: {}", direction, batches.toMap());
+            }
+        });
+        List<Map<String, Object>> heaviest = getHeaviestSessions(3);
+        if (!heaviest.isEmpty()) {
+            log.info("Most expensive sessions: {}", heaviest);
+        }
+        log.info("Admission: {}", admissionController.toMap());
+        log.info("Event loop lag: {}", eventLoopMonitor.getLagMillisByLoop());
+        egressScheduler.getClassStats().forEach((qosClass, classStats) ->
+                log.info("QoS class {}: {}", qosClass, classStats));
+        getInputLatencyByBackend().forEach((backend, histogram) -> {
+            if (histogram.getCount() > 0) {
+                log.info("Input-to-update latency for {}: {}", backend, histogram.toMap());
+            }
+        });
+        handshakeStats.getTotalByBackend().forEach((backend, histogram) -> {
+            if (histogram.getCount() > 0) {
+                log.info("Handshake time for {}: {}", backend, histogram.toMap());
+            }
+        });
         
         // Report per-connection stats
         if (!connections.isEmpty()) {
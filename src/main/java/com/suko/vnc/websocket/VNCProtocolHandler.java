@@ -1,5 +1,9 @@
 package com.suko.vnc.websocket;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import javax.crypto.Cipher;
 import javax.crypto.spec.DESKeySpec;
 import javax.crypto.SecretKeyFactory;
@@ -7,7 +11,23 @@ import javax.crypto.SecretKeyFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.suko.vnc.config.VNCProxyConfig;
+import com.suko.vnc.jfr.VNCBackpressureEvent;
+import com.suko.vnc.jfr.VNCFlightRecorder;
+import com.suko.vnc.rfb.VNCClientMessageReader;
+import com.suko.vnc.rfb.VNCEncodings;
+import com.suko.vnc.rfb.VNCPixelFormat;
+import com.suko.vnc.rfb.VNCServerMessageReader;
+import com.suko.vnc.rfb.VNCTrafficStats;
+import com.suko.vnc.rfb.VNCZrleEncoder;
+import com.suko.vnc.security.VNCAuthService;
+
+import io.quarkus.websockets.next.WebSocketConnection;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
 
 /**
  * Handles RFB protocol logic for VNC proxy
@@ -16,17 +36,173 @@ public class VNCProtocolHandler {
     
     private static final Logger log = LoggerFactory.getLogger(VNCProtocolHandler.class);
     
+    // Interval between two chunks of a streamed clipboard transfer
+    private static final long CLIPBOARD_TICK_MILLIS = 20;
+    
     private final String sessionId;
     private final VNCConnection connection;
     private final VNCClientHandler clientHandler;
     private final VNCServerHandler serverHandler;
+    private final VNCProxyConfig config;
+    private final VNCEncoderPool encoderPool;
+    
+    // RFB message framing for the CONNECTED phase
+    private final VNCServerMessageReader serverReader;
+    private final VNCClientMessageReader clientReader;
+    
+    // Proxy-side ZRLE encoding: the server sends raw pixels and the proxy compresses them
+    private VNCZrleEncoder zrleEncoder;
+    private volatile boolean zrleActive = false;
+    private volatile boolean serverSentZrle = false;
+    
+    // Pixel format conversion and colour depth reduction
+    private final VNCDepthConverter depth;
+    
+    // Server-side downscaling, set up at ServerInit when the client's viewport is small
+    private volatile VNCFramebufferScaler scaler;
+    
+    // Visible region reported by the client, null when viewport-restricted updates are off
+    private final VNCViewportTracker viewport;
+    
+    // Update request rate cap, null when unlimited
+    private final VNCUpdatePacer pacer;
+    
+    // Holds update requests while the client is behind, null when disabled
+    private final VNCLagGate lagGate;
+    // Flight recorder event of the current hold, null when not recording
+    private VNCBackpressureEvent lagEvent;
+    
+    // ContinuousUpdates and Fence toward the server, null when disabled
+    private final VNCContinuousUpdates continuous;
+    
+    // SetEncodings rewriting, null when the client's list is used as sent
+    private final VNCEncodingPolicy encodingPolicy;
+    
+    // Traffic by message type and encoding, null when accounting is off
+    private final VNCTrafficStats traffic;
+    
+    // Input-to-update latency, null when not measured
+    private final VNCInputLatencyTracker inputLatency;
+    
+    // Fence round trips to the server, null when not measured
+    private final VNCServerRttProbe serverRtt;
+    
+    // Server clipboard text being streamed as control messages, touched on the server thread only
+    private VNCClipboardStream clipboardOut;
+    private long clipboardTimer = -1;
+    private long clipboardIds = 0;
+    
+    // Browser clipboard text arriving as control messages
+    private final Object clipboardInLock = new Object();
+    private StringBuilder clipboardIn;
+    private long clipboardInId;
+    
+    // Current FramebufferUpdate, for bandwidth sampling
+    private boolean inUpdate = false;
+    private long updateStartNanos;
+    private long updateBytes;
     
     public VNCProtocolHandler(String sessionId, VNCConnection connection, 
-                             VNCClientHandler clientHandler, VNCServerHandler serverHandler) {
+                             VNCClientHandler clientHandler, VNCServerHandler serverHandler,
+                             VNCProxyConfig config, VNCEncoderPool encoderPool) {
         this.sessionId = sessionId;
         this.connection = connection;
         this.clientHandler = clientHandler;
         this.serverHandler = serverHandler;
+        this.config = config;
+        this.encoderPool = encoderPool;
+        this.serverReader = new VNCServerMessageReader(new ServerStreamListener());
+        this.clientReader = new VNCClientMessageReader(new ClientStreamListener());
+        this.depth = new VNCDepthConverter(sessionId, connection, config);
+        this.viewport = config.isViewportEnabled() ? new VNCViewportTracker(config.getViewportMargin()) : null;
+        this.pacer = createPacer();
+        this.lagGate = config.isLagEnabled()
+                ? new VNCLagGate(config.getLagQueueHighWater(), config.getLagQueueLowWater(), config.getLagStallMillis())
+                : null;
+        this.continuous = config.isContinuousUpdatesEnabled()
+                ? new VNCContinuousUpdates(config.getLagQueueHighWater(), config.getLagQueueLowWater())
+                : null;
+        if (lagGate != null || continuous != null) {
+            clientHandler.setDrainHandler(Math.min(config.getLagQueueLowWater(), config.getLagQueueHighWater()), this::onClientDrained);
+        }
+        this.encodingPolicy = createEncodingPolicy();
+        if (config.isTrafficStatsEnabled() || encodingPolicy != null) {
+            // The policy's effect is only visible in the per-encoding counts
+            this.traffic = new VNCTrafficStats();
+            serverReader.setTrafficStats(traffic);
+            connection.trafficStats = traffic;
+        } else {
+            this.traffic = null;
+        }
+        this.inputLatency = config.isInputLatencyEnabled() ? new VNCInputLatencyTracker() : null;
+        connection.inputLatency = inputLatency;
+        this.serverRtt = config.isServerRttEnabled() ? new VNCServerRttProbe(config.getServerRttIntervalMillis()) : null;
+        connection.serverRtt = serverRtt;
+    }
+    
+    /**
+     * Whether the server is streaming continuous updates to the proxy for this session
+     */
+    public boolean isContinuousUpdatesActive() {
+        return continuous != null && continuous.isActive();
+    }
+    
+    /**
+     * The browser's outbound queue drained below the low-water mark
+     */
+    private void onClientDrained() {
+        if (lagGate != null) {
+            releaseLaggedRequest();
+        }
+        if (continuous != null && connection.state == VNCConnectionState.CONNECTED) {
+            List<Buffer> messages = continuous.onClientDrained(connection.framebufferWidth, connection.framebufferHeight);
+            for (Buffer message : messages) {
+                if (injectToServer(message) && message.getUnsignedByte(0) == VNCClientMessageReader.CLIENT_FENCE) {
+                    // A deferred fence reply is only answered now
+                    connection.fencesAnswered++;
+                }
+            }
+        }
+    }
+    
+    private VNCEncodingPolicy createEncodingPolicy() {
+        if (!config.isEncodingPolicyEnabled()) {
+            return null;
+        }
+        try {
+            return new VNCEncodingPolicy(parseEncodings(config.getEncodingPreferred()),
+                    parseEncodings(config.getEncodingInject()), config.isEncodingAdaptiveLevels(),
+                    config.getEncodingLowBandwidth(), config.getEncodingHighBandwidth(),
+                    config.getEncodingHighRttMillis(), config.getEncodingReevaluateMillis());
+        } catch (IllegalArgumentException e) {
+            log.warn("Encoding policy disabled ({}) for session: {}", e.getMessage(), sessionId);
+            return null;
+        }
+    }
+    
+    private static int[] parseEncodings(String list) {
+        List<Integer> encodings = new ArrayList<>();
+        for (String name : list.split(",")) {
+            if (!name.isBlank()) {
+                encodings.add(VNCEncodings.parse(name));
+            }
+        }
+        return encodings.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    private VNCUpdatePacer createPacer() {
+        VNCAuthService.VNCSession session = connection.authSession;
+        String userId = session != null ? session.getUserId() : null;
+        boolean lan = session != null && VNCUpdatePacer.isLocalAddress(session.getClientIP());
+        int maxFps = config.getPacingMaxFps(userId, lan);
+        if (maxFps <= 0) {
+            return null;
+        }
+        connection.pacingMaxFps = maxFps;
+        log.info("Pacing update requests to {} per second ({} tier) for session: {}", maxFps, lan ? "LAN" : "default", sessionId);
+        VNCUpdatePacer pacer = new VNCUpdatePacer(maxFps);
+        connection.updatePacer = pacer;
+        return pacer;
     }
     
     /**
@@ -50,8 +226,8 @@ public class VNCProtocolHandler {
                 handleAuth(buffer);
                 break;
             case CONNECTED:
-                // Forward data to WebSocket client
-                clientHandler.sendBinary(buffer);
+                // Frame server messages and forward them to the WebSocket client
+                serverReader.feed(buffer);
                 break;
             default:
                 log.warn("Received data in unexpected state: {} for session: {}", connection.state, sessionId);
@@ -74,8 +250,10 @@ public class VNCProtocolHandler {
                 handleClientSecurity(buffer);
                 break;
             case CONNECTED:
-                // Normal data forwarding
-                serverHandler.sendData(buffer);
+                // The first client bytes after SecurityResult are its ClientInit
+                connection.handshakeTimer.mark(VNCHandshakeStep.BROWSER_INIT);
+                // Frame client messages and forward them to the VNC server
+                clientReader.feed(buffer);
                 break;
             default:
                 log.warn("Received client data in unexpected state: {} for session: {}", connection.state, sessionId);
@@ -96,6 +274,7 @@ public class VNCProtocolHandler {
                 log.info("VNC server version: {} for session: {}", serverVersion, sessionId);
                 
                 // Forward the server version to the WebSocket client
+                connection.handshakeTimer.mark(VNCHandshakeStep.SERVER_VERSION);
                 clientHandler.sendBinary(buffer);
                 
                 log.info("Protocol version forwarded to client for session: {}", sessionId);
@@ -186,6 +365,7 @@ public class VNCProtocolHandler {
                         securityTypes[i] = buffer.getUnsignedByte(1 + i);
                     }
                     connection.serverSecurityTypes = securityTypes;
+                    connection.handshakeTimer.mark(VNCHandshakeStep.SERVER_SECURITY);
                     
                     // Log available security types
                     StringBuilder securityTypesStr = new StringBuilder();
@@ -351,6 +531,1094 @@ public class VNCProtocolHandler {
         }
     }
     
+    /**
+     * Track the client's SetEncodings and rewrite it when the proxy encodes on the client's behalf
+     */
+    private Buffer handleSetEncodings(Buffer message) {
+        int count = message.getUnsignedShort(2);
+        int[] encodings = new int[count];
+        for (int i = 0; i < count; i++) {
+            encodings[i] = message.getInt(4 + 4 * i);
+        }
+        connection.clientEncodings = encodings;
+        if (continuous != null) {
+            continuous.onClientEncodings(encodings);
+        }
+        log.info("Client encodings for session {}: {}", sessionId, encodingNames(encodings));
+        Buffer rewritten = serverEncodings(encodings);
+        return rewritten != null ? rewritten : message;
+    }
+    
+    /**
+     * The client's encodings after the encoding policy and the proxy's own rewriting
+     * @return null if the client's list can be used unchanged
+     */
+    private Buffer serverEncodings(int[] encodings) {
+        int[] effective = encodingPolicy != null ? encodingPolicy.apply(encodings) : encodings;
+        if (serverRtt != null && !contains(effective, VNCEncodings.FENCE)) {
+            // The server only sends and answers fences for clients that advertise Fence
+            effective = Arrays.copyOf(effective, effective.length + 1);
+            effective[effective.length - 1] = VNCEncodings.FENCE;
+        }
+        Buffer rewritten = upstreamEncodings(effective);
+        if (rewritten == null && effective != encodings) {
+            rewritten = buildSetEncodings(toList(effective));
+        }
+        if (rewritten == null) {
+            connection.serverEncodings = encodings;
+        } else {
+            int[] sent = new int[rewritten.getUnsignedShort(2)];
+            for (int i = 0; i < sent.length; i++) {
+                sent[i] = rewritten.getInt(4 + 4 * i);
+            }
+            connection.serverEncodings = sent;
+        }
+        return rewritten;
+    }
+    
+    /**
+     * Send the server a fresh SetEncodings when the policy's levels changed
+     */
+    private void reevaluateEncodings() {
+        VNCRttEstimator browserRtt = connection.browserRtt;
+        long rtt = browserRtt != null ? browserRtt.getSmoothedMicros() / 1000 : 2 * connection.browserToProxyLatency;
+        if (!encodingPolicy.evaluate(connection.clientBandwidth, rtt, System.nanoTime())) {
+            return;
+        }
+        // Under the client stream's lock, so a SetEncodings from the client cannot interleave
+        synchronized (clientReader) {
+            int[] encodings = connection.clientEncodings;
+            if (encodings == null) {
+                return;
+            }
+            Buffer rewritten = serverEncodings(encodings);
+            if (rewritten != null && injectToServer(rewritten)) {
+                connection.encodingPolicyChanges++;
+                log.info("Encoding levels now compress {} quality {} (bandwidth {} B/s, RTT {}ms) for session: {}",
+                        encodingPolicy.getCompressLevel(), encodingPolicy.getQualityLevel(),
+                        connection.clientBandwidth, rtt, sessionId);
+            }
+        }
+    }
+    
+    /**
+     * Whether the browser sees pixels the proxy rewrote (converted depth, scaled, or ZRLE on a
+     * zlib stream the proxy owns), so bytes passed on verbatim would corrupt the session
+     */
+    private boolean isRewritingPixels() {
+        return zrleActive || depth.isConverting() || scaler != null
+                || (zrleEncoder != null && zrleEncoder.isStreamStarted());
+    }
+    
+    private static String encodingNames(int[] encodings) {
+        StringBuilder names = new StringBuilder();
+        for (int encoding : encodings) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(VNCEncodings.name(encoding));
+        }
+        return names.toString();
+    }
+    
+    /**
+     * The SetEncodings the server should see for the client's encodings
+     * @return null if the client's list can be used unchanged
+     */
+    private Buffer upstreamEncodings(int[] encodings) {
+        boolean clientZrle = contains(encodings, VNCEncodings.ZRLE);
+        
+        zrleActive = config.isZrleEncoding() && clientZrle && !serverSentZrle;
+        if (zrleActive && zrleEncoder == null) {
+            zrleEncoder = new VNCZrleEncoder(config.getCompressionLevel());
+            log.info("Proxy-side ZRLE encoding enabled for session: {}", sessionId);
+        }
+        
+        if (zrleActive || depth.isConverting() || scaler != null) {
+            // Ask the server for raw pixels, keeping CopyRect and the pseudo-encodings we can frame
+            List<Integer> upstream = new ArrayList<>();
+            if (contains(encodings, VNCEncodings.COPY_RECT)) {
+                upstream.add(VNCEncodings.COPY_RECT);
+            }
+            upstream.add(VNCEncodings.RAW);
+            for (int encoding : encodings) {
+                if (VNCEncodings.isPseudo(encoding) && VNCEncodings.isFramable(encoding)
+                        && !(scaler != null && encoding == VNCEncodings.EXTENDED_DESKTOP_SIZE)) {
+                    // A scaled client cannot resize the remote session, so it only gets DesktopSize
+                    upstream.add(encoding);
+                }
+            }
+            return buildSetEncodings(upstream);
+        }
+        
+        if (clientZrle && zrleEncoder != null && zrleEncoder.isStreamStarted()) {
+            // The client's ZRLE zlib stream belongs to the proxy now, the server must not write to it
+            List<Integer> upstream = new ArrayList<>();
+            for (int encoding : encodings) {
+                if (encoding != VNCEncodings.ZRLE) {
+                    upstream.add(encoding);
+                }
+            }
+            return buildSetEncodings(upstream);
+        }
+        return null;
+    }
+    
+    /**
+     * Serve the client's SetPixelFormat, converting in the proxy where the depth policy allows
+     */
+    private Buffer handleSetPixelFormat(Buffer message) {
+        VNCPixelFormat requested = VNCPixelFormat.read(message, 4);
+        boolean wasConverting = depth.isConverting();
+        Buffer upstream = depth.onClientPixelFormat(requested);
+        serverReader.setPixelFormat(upstream != null ? depth.getUpstreamFormat() : requested);
+        connection.pixelFormat = requested;
+        log.info("Client set pixel format {} for session: {}", requested, sessionId);
+        
+        Buffer result = upstream != null ? upstream : message;
+        int[] encodings = connection.clientEncodings;
+        if (encodings != null && wasConverting != depth.isConverting()) {
+            // Raw-only upstream encodings depend on whether the proxy converts
+            Buffer rewritten = serverEncodings(encodings);
+            result = result.copy().appendBuffer(rewritten != null ? rewritten : buildSetEncodings(toList(encodings)));
+        }
+        return result;
+    }
+    
+    private static List<Integer> toList(int[] values) {
+        List<Integer> list = new ArrayList<>(values.length);
+        for (int v : values) {
+            list.add(v);
+        }
+        return list;
+    }
+    
+    private static Buffer buildSetEncodings(List<Integer> encodings) {
+        Buffer message = Buffer.buffer(4 + 4 * encodings.size());
+        message.appendByte((byte) VNCClientMessageReader.SET_ENCODINGS);
+        message.appendByte((byte) 0); // padding
+        message.appendUnsignedShort(encodings.size());
+        for (int encoding : encodings) {
+            message.appendInt(encoding);
+        }
+        return message;
+    }
+    
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Encode a collected raw rectangle as ZRLE. Large rectangles go to the encoder pool while the
+     * server stream is paused, so output stays in order without blocking the event loop.
+     */
+    private void encodeRect(int x, int y, int width, int height, byte[] pixels, VNCPixelFormat format) {
+        Context context = Vertx.currentContext();
+        NetSocket socket = connection.vncSocket;
+        
+        if ((long) width * height >= config.getParallelThreshold() && context != null && socket != null) {
+            serverReader.suspend();
+            socket.pause();
+            VNCBackpressureEvent pause = backpressureEvent("encoder");
+            zrleEncoder.encodeAsync(pixels, width, height, format, encoderPool.getPool())
+                .whenComplete((encoded, failure) -> context.runOnContext(v -> {
+                    if (failure != null) {
+                        log.error("Parallel ZRLE encoding failed for session: {}", sessionId, failure);
+                        clientHandler.close(1011, "Encoding failed");
+                        return;
+                    }
+                    VNCSessionCost cost = connection.cost;
+                    if (cost != null) {
+                        cost.begin();
+                    }
+                    try {
+                        connection.proxyEncodedParallelRects++;
+                        sendZrleRect(x, y, width, height, pixels.length, encoded);
+                        if (pause != null) {
+                            pause.commit();
+                        }
+                        // Resuming goes on with the server data that arrived meanwhile
+                        serverReader.resume();
+                        if (!serverReader.isSuspended() && connection.vncSocket != null) {
+                            connection.vncSocket.resume();
+                        }
+                    } finally {
+                        if (cost != null) {
+                            cost.end();
+                        }
+                    }
+                }));
+            return;
+        }
+        
+        sendZrleRect(x, y, width, height, pixels.length, zrleEncoder.encode(pixels, width, height, format));
+    }
+    
+    private void sendZrleRect(int x, int y, int width, int height, int rawLength, byte[] encoded) {
+        connection.proxyEncodedRects++;
+        connection.proxyEncodedBytesIn += rawLength;
+        connection.proxyEncodedBytesOut += encoded.length;
+        
+        sendRect(x, y, width, height, VNCEncodings.ZRLE, encoded);
+    }
+    
+    private void sendRect(int x, int y, int width, int height, int encoding, byte[] payload) {
+        Buffer rect = Buffer.buffer(12 + payload.length);
+        rect.appendUnsignedShort(x);
+        rect.appendUnsignedShort(y);
+        rect.appendUnsignedShort(width);
+        rect.appendUnsignedShort(height);
+        rect.appendInt(encoding);
+        rect.appendBytes(payload);
+        if (traffic != null) {
+            traffic.rect(encoding, rect.length());
+        }
+        sendToClient(rect);
+    }
+    
+    /**
+     * Send bytes of the CONNECTED phase to the client, counting the size of the current update
+     */
+    private void sendToClient(Buffer data) {
+        if (inUpdate) {
+            updateBytes += data.length();
+        }
+        clientHandler.sendBinary(data);
+    }
+    
+    /**
+     * Convert, reduce and/or ZRLE-encode a collected rectangle
+     */
+    private void processRect(int x, int y, int width, int height, int encoding, Buffer payload) {
+        VNCPixelFormat serverFormat = serverReader.getPixelFormat();
+        byte[] pixels = payload.getBytes();
+        
+        if (encoding == VNCEncodings.CURSOR) {
+            VNCPixelFormat target = depth.getTargetFormat();
+            sendRect(x, y, width, height, encoding,
+                    target != null ? depth.convertCursor(pixels, width * height, serverFormat, target) : pixels);
+            return;
+        }
+        if (scaler != null) {
+            scaleRect(x, y, width, height, encoding, pixels);
+            return;
+        }
+        sendPixels(x, y, width, height, pixels, serverFormat);
+    }
+    
+    /**
+     * Apply a full-resolution rectangle to the shadow framebuffer and send its scaled equivalent
+     */
+    private void scaleRect(int x, int y, int width, int height, int encoding, byte[] payload) {
+        VNCFramebufferScaler s = scaler;
+        int factor = s.getFactor();
+        switch (encoding) {
+            case VNCEncodings.DESKTOP_SIZE:
+            case VNCEncodings.EXTENDED_DESKTOP_SIZE:
+                s.resize(width, height);
+                connection.framebufferWidth = width;
+                connection.framebufferHeight = height;
+                sendRect(0, 0, s.getScaledWidth(), s.getScaledHeight(), VNCEncodings.DESKTOP_SIZE, new byte[0]);
+                return;
+            case VNCEncodings.COPY_RECT:
+                int srcX = (payload[0] & 0xFF) << 8 | (payload[1] & 0xFF);
+                int srcY = (payload[2] & 0xFF) << 8 | (payload[3] & 0xFF);
+                s.applyCopyRect(x, y, width, height, srcX, srcY);
+                if (s.isAligned(x, y, width, height) && s.isAligned(srcX, srcY, 0, 0)) {
+                    byte[] source = { (byte) (srcX / factor >> 8), (byte) (srcX / factor),
+                            (byte) (srcY / factor >> 8), (byte) (srcY / factor) };
+                    sendRect(x / factor, y / factor, width / factor, height / factor, encoding, source);
+                    return;
+                }
+                break;
+            default:
+                s.applyRaw(x, y, width, height, payload);
+                connection.scaleBytesIn += payload.length;
+                break;
+        }
+        
+        long start = System.nanoTime();
+        VNCFramebufferScaler.Region region = s.region(x, y, width, height);
+        connection.scaleNanos += System.nanoTime() - start;
+        connection.scaledRects++;
+        connection.scaleBytesOut += region.pixels.length;
+        sendPixels(region.x, region.y, region.width, region.height, region.pixels, serverReader.getPixelFormat());
+    }
+    
+    /**
+     * Send 32bpp (or server-format) pixels as Raw or ZRLE, converting or reducing depth on the way
+     */
+    private void sendPixels(int x, int y, int width, int height, byte[] pixels, VNCPixelFormat serverFormat) {
+        VNCPixelFormat target = depth.getTargetFormat();
+        int count = width * height;
+        VNCPixelFormat format = serverFormat;
+        if (target != null) {
+            pixels = depth.convert(pixels, count, serverFormat, target);
+            format = target;
+        } else if (zrleActive) {
+            // Reduced precision only pays off when the proxy compresses the result
+            depth.reduce(pixels, count, format);
+        }
+        
+        if (zrleActive && count > 0) {
+            encodeRect(x, y, width, height, pixels, format);
+        } else {
+            sendRect(x, y, width, height, VNCEncodings.RAW, pixels);
+        }
+    }
+    
+    /**
+     * Decide on server-side scaling from the client's viewport and rewrite the ServerInit size
+     */
+    private Buffer setUpScaling(Buffer serverInit, VNCPixelFormat format, int width, int height) {
+        if (!config.isScaleEnabled()) {
+            return serverInit;
+        }
+        int factor = VNCFramebufferScaler.chooseFactor(width, height,
+                connection.viewportWidth, connection.viewportHeight, config.getScaleMaxFactor());
+        if (factor == 1) {
+            return serverInit;
+        }
+        if (!VNCFramebufferScaler.canScale(format)) {
+            log.info("Cannot scale server pixel format {} for session: {}", format, sessionId);
+            return serverInit;
+        }
+        VNCFramebufferScaler s = new VNCFramebufferScaler(factor, width, height);
+        // Scaling needs 32bpp from the server whatever the client asks for
+        depth.setConversionRequired(true);
+        scaler = s;
+        connection.scaleFactor = factor;
+        log.info("Scaling {}x{} down to {}x{} for viewport {}x{} in session: {}", width, height,
+                s.getScaledWidth(), s.getScaledHeight(), connection.viewportWidth, connection.viewportHeight, sessionId);
+        
+        Buffer rewritten = serverInit.copy();
+        rewritten.setUnsignedShort(0, s.getScaledWidth());
+        rewritten.setUnsignedShort(2, s.getScaledHeight());
+        return rewritten;
+    }
+    
+    private Buffer scaleUpdateRequest(Buffer message) {
+        VNCFramebufferScaler s = scaler;
+        int x = message.getUnsignedShort(2);
+        int y = message.getUnsignedShort(4);
+        int width = message.getUnsignedShort(6);
+        int height = message.getUnsignedShort(8);
+        Buffer rewritten = message.copy();
+        rewritten.setUnsignedShort(2, s.toFullX(x));
+        rewritten.setUnsignedShort(4, s.toFullY(y));
+        rewritten.setUnsignedShort(6, s.toFullWidth(x, width));
+        rewritten.setUnsignedShort(8, s.toFullHeight(y, height));
+        return rewritten;
+    }
+    
+    /**
+     * The client reported the framebuffer region it shows, in client coordinates. Areas that
+     * come into range are requested from the server straight away, since a client waiting on an
+     * incremental update would otherwise keep showing stale pixels there.
+     */
+    public void updateVisibleRegion(int x, int y, int width, int height) {
+        if (viewport == null) {
+            return;
+        }
+        VNCRect region = new VNCRect(x, y, width, height);
+        List<VNCRect> exposed = viewport.setVisible(region, clientFramebufferWidth(), clientFramebufferHeight());
+        log.debug("Visible region {} for session: {}", region, sessionId);
+        if (exposed.isEmpty() || connection.state != VNCConnectionState.CONNECTED) {
+            return;
+        }
+        Buffer requests = Buffer.buffer();
+        for (VNCRect rect : exposed) {
+            requests.appendBuffer(mapUpdateRequest(buildUpdateRequest(rect, false)));
+        }
+        if (injectToServer(requests)) {
+            connection.viewportRefreshes += exposed.size();
+        }
+    }
+    
+    /**
+     * Send proxy-generated requests to the server from outside the client stream
+     * @return false if the client stream cannot be interleaved
+     */
+    private boolean injectToServer(Buffer requests) {
+        synchronized (clientReader) {
+            // Flush under the reader's lock: the batch may otherwise wait for the next client message
+            if (!clientReader.inject(requests)) {
+                return false;
+            }
+            serverHandler.flushSendBuffer();
+            return true;
+        }
+    }
+    
+    /**
+     * Hold a client FramebufferUpdateRequest while the client's outbound queue is too long
+     * @return null if the request was held
+     */
+    private Buffer gateUpdateRequest(Buffer message) {
+        boolean incremental = message.getUnsignedByte(1) != 0;
+        VNCRect request = new VNCRect(message.getUnsignedShort(2), message.getUnsignedShort(4),
+                message.getUnsignedShort(6), message.getUnsignedShort(8));
+        boolean wasHolding = lagGate.isHolding();
+        if (!lagGate.hold(request, incremental, clientHandler.getQueuedBytes(), System.nanoTime())) {
+            return pacer != null ? paceUpdateRequest(message) : upstreamUpdateRequest(message);
+        }
+        connection.lagHeldRequests++;
+        if (!wasHolding) {
+            log.debug("Client is {} bytes behind, holding update requests for session: {}",
+                    clientHandler.getQueuedBytes(), sessionId);
+            lagEvent = backpressureEvent("client-lag");
+        }
+        // The queue may have drained before the request was held
+        releaseLaggedRequest();
+        return null;
+    }
+    
+    /**
+     * Start timing a backpressure pause
+     * @return the event to commit when the pause ends, null when the event is not recorded
+     */
+    private VNCBackpressureEvent backpressureEvent(String reason) {
+        VNCBackpressureEvent event = new VNCBackpressureEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.session = VNCFlightRecorder.sessionLabel(sessionId);
+        event.reason = reason;
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Send the merged held request once the client has caught up
+     */
+    private void releaseLaggedRequest() {
+        if (!lagGate.isHolding() || connection.state != VNCConnectionState.CONNECTED) {
+            return;
+        }
+        synchronized (clientReader) {
+            VNCLagGate.Release release = lagGate.release(clientHandler.getQueuedBytes(), System.nanoTime());
+            if (release == null) {
+                return;
+            }
+            if (lagEvent != null) {
+                lagEvent.commit();
+                lagEvent = null;
+            }
+            if (injectToServer(upstreamUpdateRequest(buildUpdateRequest(release.area, release.incremental)))) {
+                connection.lagEpisodes++;
+                connection.lagHeldNanos += release.heldNanos;
+                if (!release.incremental) {
+                    connection.lagRefreshes++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Forward a client FramebufferUpdateRequest now, or hold it until the session's pacing
+     * interval is over, merged with any other request that arrives meanwhile
+     */
+    private Buffer paceUpdateRequest(Buffer message) {
+        boolean incremental = message.getUnsignedByte(1) != 0;
+        VNCRect request = new VNCRect(message.getUnsignedShort(2), message.getUnsignedShort(4),
+                message.getUnsignedShort(6), message.getUnsignedShort(8));
+        long delay = pacer.offer(request, incremental, System.nanoTime());
+        if (delay == 0) {
+            return upstreamUpdateRequest(message);
+        }
+        if (delay < 0) {
+            return null;
+        }
+        Context context = Vertx.currentContext();
+        if (context == null) {
+            // No event loop to time the release on
+            pacer.release(System.nanoTime());
+            return upstreamUpdateRequest(message);
+        }
+        connection.pacingHeldRequests++;
+        context.owner().setTimer(Math.max(1, delay / 1_000_000), id -> releaseHeldRequest());
+        return null;
+    }
+    
+    private void releaseHeldRequest() {
+        if (connection.state != VNCConnectionState.CONNECTED) {
+            return;
+        }
+        synchronized (clientReader) {
+            VNCRect held = pacer.release(System.nanoTime());
+            if (held != null) {
+                injectToServer(upstreamUpdateRequest(buildUpdateRequest(held, true)));
+            }
+        }
+    }
+    
+    /**
+     * A client FramebufferUpdateRequest as the server should see it
+     */
+    private Buffer upstreamUpdateRequest(Buffer message) {
+        return viewport != null ? restrictUpdateRequest(message) : mapUpdateRequest(message);
+    }
+    
+    /**
+     * Narrow a client FramebufferUpdateRequest to the visible region, refreshing any part of it
+     * that was outside the area requested last time
+     */
+    private Buffer restrictUpdateRequest(Buffer message) {
+        boolean incremental = message.getUnsignedByte(1) != 0;
+        VNCRect request = new VNCRect(message.getUnsignedShort(2),
+                message.getUnsignedShort(4), message.getUnsignedShort(6), message.getUnsignedShort(8));
+        VNCViewportTracker.Requests requests = viewport.restrict(request, incremental,
+                clientFramebufferWidth(), clientFramebufferHeight());
+        if (requests == null) {
+            return mapUpdateRequest(message);
+        }
+        Buffer rewritten = Buffer.buffer();
+        for (VNCRect rect : requests.refresh) {
+            rewritten.appendBuffer(mapUpdateRequest(buildUpdateRequest(rect, false)));
+        }
+        rewritten.appendBuffer(mapUpdateRequest(buildUpdateRequest(requests.area, incremental)));
+        connection.viewportRestrictedRequests++;
+        connection.viewportRefreshes += requests.refresh.size();
+        connection.viewportPixelsSkipped += request.area() - requests.area.area();
+        return rewritten;
+    }
+    
+    /**
+     * FramebufferUpdateRequest for a client-coordinate rectangle
+     */
+    private static Buffer buildUpdateRequest(VNCRect rect, boolean incremental) {
+        Buffer message = Buffer.buffer(10);
+        message.appendByte((byte) VNCClientMessageReader.FRAMEBUFFER_UPDATE_REQUEST);
+        message.appendByte((byte) (incremental ? 1 : 0));
+        message.appendUnsignedShort(rect.x);
+        message.appendUnsignedShort(rect.y);
+        message.appendUnsignedShort(rect.width);
+        message.appendUnsignedShort(rect.height);
+        return message;
+    }
+    
+    /**
+     * Map a client-coordinate FramebufferUpdateRequest onto the server's framebuffer
+     */
+    private Buffer mapUpdateRequest(Buffer message) {
+        return scaler != null ? scaleUpdateRequest(message) : message;
+    }
+    
+    private int clientFramebufferWidth() {
+        VNCFramebufferScaler s = scaler;
+        return s != null ? s.getScaledWidth() : connection.framebufferWidth;
+    }
+    
+    private int clientFramebufferHeight() {
+        VNCFramebufferScaler s = scaler;
+        return s != null ? s.getScaledHeight() : connection.framebufferHeight;
+    }
+    
+    private Buffer scalePointerEvent(Buffer message) {
+        VNCFramebufferScaler s = scaler;
+        Buffer rewritten = message.copy();
+        rewritten.setUnsignedShort(2, s.toFullX(message.getUnsignedShort(2)));
+        rewritten.setUnsignedShort(4, s.toFullY(message.getUnsignedShort(4)));
+        return rewritten;
+    }
+    
+    /**
+     * Probe the server's round-trip time every interval for as long as the session lasts
+     */
+    private void startServerRttProbes() {
+        Context context = Vertx.currentContext();
+        if (context == null) {
+            return;
+        }
+        context.owner().setPeriodic(config.getServerRttIntervalMillis(), id -> {
+            if (connection.state == VNCConnectionState.DISCONNECTED) {
+                context.owner().cancelTimer(id);
+                return;
+            }
+            if (connection.state != VNCConnectionState.CONNECTED) {
+                return;
+            }
+            Buffer probe = serverRtt.nextProbe(System.nanoTime());
+            if (probe != null) {
+                injectToServer(probe);
+            }
+        });
+    }
+    
+    /**
+     * A ServerFence the proxy did not take for itself, with the client not intercepted by
+     * continuous updates
+     */
+    private void passServerFence(Buffer message) {
+        int[] clientEncodings = connection.clientEncodings;
+        if (clientEncodings != null && contains(clientEncodings, VNCEncodings.FENCE)) {
+            if (traffic != null) {
+                traffic.serverMessage(VNCServerMessageReader.SERVER_FENCE, message.length());
+            }
+            sendToClient(message);
+        } else if ((message.getInt(4) & VNCContinuousUpdates.FENCE_REQUEST) != 0) {
+            // Fence was only advertised for the probes, so the proxy answers in the client's place
+            if (injectToServer(VNCContinuousUpdates.fenceReply(message))) {
+                connection.fencesAnswered++;
+            }
+        }
+    }
+    
+    /**
+     * Whether a clipboard transfer of this many bytes is over the configured limit. The limit
+     * only applies with streaming.
+     */
+    private boolean isClipboardTooLarge(long bytes) {
+        return VNCClipboardStream.exceedsLimit(config.isClipboardStreaming(), config.getClipboardMaxBytes(), bytes);
+    }
+    
+    /**
+     * Count and log a clipboard transfer over the limit, and tell the browser about it
+     */
+    private void clipboardDropped(long bytes, String from) {
+        connection.clipboardDropped++;
+        log.warn("Dropping {} byte clipboard transfer from the {} for session: {}", bytes, from, sessionId);
+        if (controlOpen()) {
+            sendControl(VNCControlChannel.clipboardNotice("Clipboard of " + bytes + " bytes from the " + from
+                    + " is over the " + config.getClipboardMaxBytes() + " byte limit and was not passed on"));
+        }
+    }
+    
+    /**
+     * What to do with a ServerCutText of the given total length
+     */
+    private VNCServerMessageReader.Action clipboardAction(long length) {
+        long bytes = length - 8;
+        if (isClipboardTooLarge(bytes)) {
+            clipboardDropped(bytes, "server");
+            return VNCServerMessageReader.Action.DROP;
+        }
+        if (config.isClipboardStreaming() && bytes > config.getClipboardInlineBytes() && controlOpen()) {
+            return VNCServerMessageReader.Action.COLLECT;
+        }
+        if (!connection.serverExtendedClipboard && bytes <= VNCClipboardStream.EXTENDED_CAPS_MAX_BYTES) {
+            // Could be the extended clipboard capabilities, which tell whether the server takes UTF-8
+            return VNCServerMessageReader.Action.COLLECT;
+        }
+        return VNCServerMessageReader.Action.FORWARD;
+    }
+    
+    /**
+     * A ServerCutText was collected: note the server's extended clipboard support, then stream
+     * large text as control messages, or send the message inline if that is not possible
+     */
+    private void onServerCutText(Buffer message) {
+        if (VNCClipboardStream.isExtendedCapabilities(message)) {
+            connection.serverExtendedClipboard = true;
+        }
+        String text = message.length() - 8 > config.getClipboardInlineBytes()
+                ? VNCClipboardStream.decodeServerCutText(message) : null;
+        if (text == null || !startClipboardStream(text)) {
+            if (traffic != null) {
+                traffic.serverMessage(VNCServerMessageReader.SERVER_CUT_TEXT, message.length());
+            }
+            sendToClient(message);
+        }
+    }
+    
+    private boolean startClipboardStream(String text) {
+        Context context = Vertx.currentContext();
+        if (!controlOpen() || context == null) {
+            return false;
+        }
+        if (clipboardTimer >= 0) {
+            // Only the latest clipboard matters
+            context.owner().cancelTimer(clipboardTimer);
+            log.debug("Clipboard transfer {} replaced for session: {}", clipboardOut.getId(), sessionId);
+        }
+        clipboardOut = new VNCClipboardStream(++clipboardIds, text);
+        connection.clipboardStreams++;
+        sendControl(VNCControlChannel.clipboardBegin(clipboardOut.getId(), text.length()));
+        clipboardTimer = context.owner().setPeriodic(CLIPBOARD_TICK_MILLIS, id -> pumpClipboard());
+        log.debug("Streaming {} characters of clipboard text for session: {}", text.length(), sessionId);
+        return true;
+    }
+    
+    /**
+     * Send the next chunk of the streamed clipboard, sized to its share of the client's bandwidth,
+     * or to all of it while no framebuffer data is waiting for the client
+     */
+    private void pumpClipboard() {
+        VNCClipboardStream stream = clipboardOut;
+        if (stream == null || !controlOpen() || connection.state != VNCConnectionState.CONNECTED) {
+            stopClipboardStream();
+            return;
+        }
+        double share = clientHandler.getQueuedBytes() == 0 ? 1.0 : config.getClipboardBandwidthShare();
+        long rate = Math.max(config.getClipboardMinRate(), (long) (connection.clientBandwidth * share));
+        String chunk = stream.nextChunk((int) Math.min(Integer.MAX_VALUE, rate * CLIPBOARD_TICK_MILLIS / 1000));
+        connection.clipboardStreamBytes += chunk.length();
+        sendControl(VNCControlChannel.clipboardChunk(stream.getId(), chunk));
+        if (stream.isDone()) {
+            sendControl(VNCControlChannel.clipboardEnd(stream.getId()));
+            stopClipboardStream();
+        }
+    }
+    
+    private void stopClipboardStream() {
+        Context context = Vertx.currentContext();
+        if (clipboardTimer >= 0 && context != null) {
+            context.owner().cancelTimer(clipboardTimer);
+        }
+        clipboardTimer = -1;
+        clipboardOut = null;
+    }
+    
+    /**
+     * Whether control messages can be sent to the browser
+     */
+    private boolean controlOpen() {
+        WebSocketConnection webSocket = connection.webSocketConnection;
+        return connection.controlMessages && webSocket != null && !webSocket.isClosed();
+    }
+    
+    private void sendControl(String text) {
+        WebSocketConnection webSocket = connection.webSocketConnection;
+        if (webSocket == null) {
+            return;
+        }
+        webSocket.sendText(text).subscribe().with(
+            success -> { },
+            failure -> log.debug("Failed to send clipboard data for session: {}", sessionId, failure)
+        );
+    }
+    
+    /**
+     * The browser starts sending clipboard text as control messages
+     * @param length announced length in characters
+     */
+    public void receiveClipboardBegin(long id, long length) {
+        synchronized (clipboardInLock) {
+            clipboardIn = null;
+            if (isClipboardTooLarge(length)) {
+                clipboardDropped(length, "browser");
+                return;
+            }
+            clipboardIn = new StringBuilder((int) Math.min(Math.max(0, length), 1024 * 1024));
+            clipboardInId = id;
+        }
+    }
+    
+    /**
+     * A part of the browser's clipboard text
+     */
+    public void receiveClipboardChunk(long id, String data) {
+        synchronized (clipboardInLock) {
+            if (clipboardIn == null || id != clipboardInId) {
+                return;
+            }
+            clipboardIn.append(data);
+            if (isClipboardTooLarge(clipboardIn.length())) {
+                clipboardDropped(clipboardIn.length(), "browser");
+                clipboardIn = null;
+            }
+        }
+    }
+    
+    /**
+     * The browser's clipboard text is complete: hand it to the server as ClientCutText
+     */
+    public void receiveClipboardEnd(long id) {
+        String text;
+        synchronized (clipboardInLock) {
+            if (clipboardIn == null || id != clipboardInId) {
+                return;
+            }
+            text = clipboardIn.toString();
+            clipboardIn = null;
+        }
+        if (connection.state != VNCConnectionState.CONNECTED) {
+            return;
+        }
+        boolean extended = connection.serverExtendedClipboard;
+        if (!extended && !VNCClipboardStream.isLatin1(text)) {
+            connection.clipboardLossy++;
+            log.debug("Clipboard text outside Latin-1 sent to a server without extended clipboard for session: {}", sessionId);
+            sendControl(VNCControlChannel.clipboardNotice(
+                    "The remote desktop only takes Latin-1 clipboard text, other characters were replaced by '?'"));
+        }
+        if (injectToServer(VNCClipboardStream.encodeClientCutText(text, extended))) {
+            connection.clipboardReceived++;
+            log.debug("Received {} characters of clipboard text as control messages for session: {}", text.length(), sessionId);
+        }
+    }
+    
+    /**
+     * Server-to-client stream events in the CONNECTED phase
+     */
+    private class ServerStreamListener implements VNCServerMessageReader.Listener {
+        
+        @Override
+        public void forward(Buffer data) {
+            sendToClient(data);
+        }
+        
+        @Override
+        public void onServerInit(Buffer message, VNCPixelFormat format, int width, int height) {
+            depth.onServerInit(format);
+            connection.pixelFormat = format;
+            connection.framebufferWidth = width;
+            connection.framebufferHeight = height;
+            connection.finishHandshake();
+            log.info("ServerInit {}x{} ({}) for session: {}", width, height, format, sessionId);
+            clientHandler.sendBinary(setUpScaling(message, format, width, height));
+            if (serverRtt != null) {
+                startServerRttProbes();
+            }
+        }
+        
+        @Override
+        public VNCServerMessageReader.Action onUpdateBegin(int rectCount) {
+            Buffer colourMap = depth.takeColourMap();
+            if (colourMap != null) {
+                serverReader.inject(colourMap);
+            }
+            inUpdate = true;
+            updateStartNanos = System.nanoTime();
+            updateBytes = 0;
+            if (inputLatency != null) {
+                inputLatency.onUpdateBegin(updateStartNanos);
+            }
+            if (continuous != null) {
+                Buffer disable = continuous.onUpdate(clientHandler.getQueuedBytes(),
+                        connection.framebufferWidth, connection.framebufferHeight);
+                if (disable != null && injectToServer(disable)) {
+                    connection.continuousPauses++;
+                    log.debug("Client is behind, pausing continuous updates for session: {}", sessionId);
+                }
+            }
+            return VNCServerMessageReader.Action.FORWARD;
+        }
+        
+        @Override
+        public VNCServerMessageReader.Action onMessage(int type, long length) {
+            if (type == VNCServerMessageReader.SERVER_CUT_TEXT) {
+                return clipboardAction(length);
+            }
+            if (type == VNCServerMessageReader.SERVER_FENCE && serverRtt != null) {
+                return VNCServerMessageReader.Action.COLLECT;
+            }
+            if (continuous == null || !continuous.isIntercepting()) {
+                return VNCServerMessageReader.Action.FORWARD;
+            }
+            switch (type) {
+                case VNCServerMessageReader.END_OF_CONTINUOUS_UPDATES:
+                    Buffer enable = continuous.onEndOfContinuousUpdates(connection.framebufferWidth, connection.framebufferHeight);
+                    if (enable != null && injectToServer(enable)) {
+                        log.info("Streaming continuous updates from the server for session: {}", sessionId);
+                    }
+                    return VNCServerMessageReader.Action.DROP;
+                case VNCServerMessageReader.SERVER_FENCE:
+                    return VNCServerMessageReader.Action.COLLECT;
+                default:
+                    return VNCServerMessageReader.Action.FORWARD;
+            }
+        }
+        
+        @Override
+        public void onMessageCollected(int type, Buffer message) {
+            if (type == VNCServerMessageReader.SERVER_CUT_TEXT) {
+                onServerCutText(message);
+                return;
+            }
+            if (type != VNCServerMessageReader.SERVER_FENCE) {
+                return;
+            }
+            if (serverRtt != null) {
+                if (serverRtt.onServerFence(message, System.nanoTime())) {
+                    // One-way, as the browser side is reported
+                    connection.setProxyToVNCLatency(serverRtt.getRtt().getSmoothedMicros() / 2000);
+                    return;
+                }
+                if (continuous == null || !continuous.isIntercepting()) {
+                    passServerFence(message);
+                    return;
+                }
+            }
+            if (continuous.isReplyForClient(message)) {
+                if (traffic != null) {
+                    traffic.serverMessage(type, message.length());
+                }
+                sendToClient(message);
+                return;
+            }
+            Buffer reply = continuous.onServerFence(message, clientHandler.getQueuedBytes());
+            if (reply != null) {
+                if (injectToServer(reply)) {
+                    connection.fencesAnswered++;
+                }
+            } else if ((message.getInt(4) & VNCContinuousUpdates.FENCE_REQUEST) != 0) {
+                // Answered, and counted, once the browser has drained
+                connection.fencesDeferred++;
+            }
+        }
+        
+        @Override
+        public VNCServerMessageReader.Action onRect(int x, int y, int width, int height, int encoding) {
+            if (encoding == VNCEncodings.ZRLE) {
+                serverSentZrle = true;
+            }
+            if (viewport != null && (encoding == VNCEncodings.DESKTOP_SIZE || encoding == VNCEncodings.EXTENDED_DESKTOP_SIZE)) {
+                viewport.reset();
+            }
+            if (continuous != null && (encoding == VNCEncodings.DESKTOP_SIZE || encoding == VNCEncodings.EXTENDED_DESKTOP_SIZE)) {
+                Buffer resized = continuous.onResize(width, height);
+                if (resized != null) {
+                    injectToServer(resized);
+                }
+            }
+            if (scaler != null && (encoding == VNCEncodings.DESKTOP_SIZE || encoding == VNCEncodings.EXTENDED_DESKTOP_SIZE)) {
+                return VNCServerMessageReader.Action.COLLECT;
+            }
+            if (width == 0 || height == 0) {
+                return VNCServerMessageReader.Action.FORWARD;
+            }
+            boolean converting = depth.isConverting();
+            if (scaler != null && (encoding == VNCEncodings.RAW || encoding == VNCEncodings.COPY_RECT)) {
+                return VNCServerMessageReader.Action.COLLECT;
+            }
+            if (encoding == VNCEncodings.RAW && (zrleActive || converting)) {
+                return VNCServerMessageReader.Action.COLLECT;
+            }
+            if (encoding == VNCEncodings.CURSOR && converting) {
+                return VNCServerMessageReader.Action.COLLECT;
+            }
+            return VNCServerMessageReader.Action.FORWARD;
+        }
+        
+        @Override
+        public void onRectCollected(int x, int y, int width, int height, int encoding, Buffer payload) {
+            processRect(x, y, width, height, encoding, payload);
+        }
+        
+        @Override
+        public void onUpdateEnd() {
+            inUpdate = false;
+            connection.framebufferUpdates++;
+            connection.framebufferUpdateBytes += updateBytes;
+            depth.onUpdateSent(updateStartNanos, updateBytes);
+            if (inputLatency != null) {
+                inputLatency.onUpdateEnd(System.nanoTime());
+            }
+            if (encodingPolicy != null) {
+                reevaluateEncodings();
+            }
+        }
+        
+        @Override
+        public void onDesync(String reason) {
+            if (isRewritingPixels()) {
+                log.error("Lost RFB framing from server ({}) while rewriting pixels, closing session: {}", reason, sessionId);
+                clientHandler.close(1011, "Lost RFB framing from server");
+                return;
+            }
+            log.warn("Lost RFB framing from server ({}), forwarding verbatim for session: {}", reason, sessionId);
+        }
+    }
+    
+    /**
+     * Client-to-server stream events in the CONNECTED phase
+     */
+    private class ClientStreamListener implements VNCClientMessageReader.Listener {
+        
+        // Pointer button mask of the last PointerEvent, to tell clicks from motion
+        private int lastButtonMask = 0;
+        
+        @Override
+        public Buffer onMessage(int type, Buffer message) {
+            if (traffic != null) {
+                traffic.clientMessage(type, message.length());
+            }
+            switch (type) {
+                case VNCClientMessageReader.SET_PIXEL_FORMAT:
+                    return handleSetPixelFormat(message);
+                case VNCClientMessageReader.SET_ENCODINGS:
+                    return handleSetEncodings(message);
+                case VNCClientMessageReader.FRAMEBUFFER_UPDATE_REQUEST:
+                    depth.onUpdateRequest();
+                    if (continuous != null && continuous.isActive() && message.getUnsignedByte(1) != 0) {
+                        // The server streams changes already
+                        connection.continuousAbsorbedRequests++;
+                        return null;
+                    }
+                    if (lagGate != null) {
+                        return gateUpdateRequest(message);
+                    }
+                    return pacer != null ? paceUpdateRequest(message) : upstreamUpdateRequest(message);
+                case VNCClientMessageReader.KEY_EVENT:
+                    if (inputLatency != null && message.getUnsignedByte(1) != 0) {
+                        inputLatency.onInput(System.nanoTime());
+                    }
+                    serverHandler.sendInput(message, true);
+                    return null;
+                case VNCClientMessageReader.QEMU:
+                    if (message.getUnsignedByte(1) != 0) {
+                        return message;
+                    }
+                    // QEMU extended key event
+                    if (inputLatency != null && message.getUnsignedShort(2) != 0) {
+                        inputLatency.onInput(System.nanoTime());
+                    }
+                    serverHandler.sendInput(message, true);
+                    return null;
+                case VNCClientMessageReader.POINTER_EVENT:
+                    int buttons = message.getUnsignedByte(1);
+                    boolean buttonChange = buttons != lastButtonMask;
+                    lastButtonMask = buttons;
+                    if (inputLatency != null && buttonChange) {
+                        inputLatency.onInput(System.nanoTime());
+                    }
+                    serverHandler.sendInput(scaler != null ? scalePointerEvent(message) : message, buttonChange);
+                    return null;
+                case VNCClientMessageReader.CLIENT_CUT_TEXT:
+                    if (isClipboardTooLarge(message.length() - 8)) {
+                        clipboardDropped(message.length() - 8, "browser");
+                        return null;
+                    }
+                    return message;
+                case VNCClientMessageReader.ENABLE_CONTINUOUS_UPDATES:
+                    // Continuous updates toward the server belong to the proxy when it intercepts them
+                    return continuous != null && continuous.isIntercepting() ? null : message;
+                case VNCClientMessageReader.CLIENT_FENCE:
+                    if (continuous != null) {
+                        continuous.onClientFence(message);
+                    }
+                    return message;
+                case VNCClientMessageReader.SET_DESKTOP_SIZE:
+                    // The client sees a scaled desktop, its size requests make no sense to the server
+                    return scaler != null ? null : message;
+                default:
+                    return message;
+            }
+        }
+        
+        @Override
+        public void forward(Buffer data) {
+            serverHandler.sendData(data);
+        }
+        
+        @Override
+        public void onDesync(String reason) {
+            if (isRewritingPixels()) {
+                // A verbatim SetPixelFormat or SetEncodings would undo what the proxy asked the server for
+                log.error("Lost RFB framing from client ({}) while rewriting pixels, closing session: {}", reason, sessionId);
+                clientHandler.close(1011, "Lost RFB framing from client");
+                return;
+            }
+            log.warn("Lost RFB framing from client ({}), forwarding verbatim for session: {}", reason, sessionId);
+        }
+    }
+    
     /**
      * Get a human-readable name for a security type
      */
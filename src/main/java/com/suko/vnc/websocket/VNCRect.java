@@ -0,0 +1,89 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An axis-aligned framebuffer rectangle, possibly empty
+ */
+public final class VNCRect {
+    public final int x;
+    public final int y;
+    public final int width;
+    public final int height;
+
+    public VNCRect(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+    }
+
+    public boolean isEmpty() {
+        return width == 0 || height == 0;
+    }
+
+    public long area() {
+        return (long) width * height;
+    }
+
+    public VNCRect grow(int margin) {
+        return new VNCRect(x - margin, y - margin, width + 2 * margin, height + 2 * margin);
+    }
+
+    public VNCRect intersect(VNCRect other) {
+        int x0 = Math.max(x, other.x);
+        int y0 = Math.max(y, other.y);
+        int x1 = Math.min(x + width, other.x + other.width);
+        int y1 = Math.min(y + height, other.y + other.height);
+        return new VNCRect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Smallest rectangle containing both
+     */
+    public VNCRect union(VNCRect other) {
+        if (isEmpty()) {
+            return other;
+        }
+        if (other.isEmpty()) {
+            return this;
+        }
+        int x0 = Math.min(x, other.x);
+        int y0 = Math.min(y, other.y);
+        int x1 = Math.max(x + width, other.x + other.width);
+        int y1 = Math.max(y + height, other.y + other.height);
+        return new VNCRect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * This rectangle minus another, as up to four non-overlapping bands
+     */
+    public List<VNCRect> subtract(VNCRect other) {
+        List<VNCRect> parts = new ArrayList<>(4);
+        VNCRect overlap = intersect(other);
+        if (overlap.isEmpty()) {
+            if (!isEmpty()) {
+                parts.add(this);
+            }
+            return parts;
+        }
+        addIfNotEmpty(parts, new VNCRect(x, y, width, overlap.y - y));
+        addIfNotEmpty(parts, new VNCRect(x, overlap.y + overlap.height, width, y + height - overlap.y - overlap.height));
+        addIfNotEmpty(parts, new VNCRect(x, overlap.y, overlap.x - x, overlap.height));
+        addIfNotEmpty(parts, new VNCRect(overlap.x + overlap.width, overlap.y,
+                x + width - overlap.x - overlap.width, overlap.height));
+        return parts;
+    }
+
+    private static void addIfNotEmpty(List<VNCRect> parts, VNCRect rect) {
+        if (!rect.isEmpty()) {
+            parts.add(rect);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "+" + x + "+" + y;
+    }
+}
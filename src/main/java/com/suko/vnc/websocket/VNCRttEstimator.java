@@ -0,0 +1,75 @@
+package com.suko.vnc.websocket;
+
+import java.util.Map;
+
+/**
+ * Round-trip time samples of one path: smoothed value and jitter as TCP estimates them
+ * (RFC 6298: gains 1/8 and 1/4), last and minimum sample, and a histogram of all of them.
+ *
+ * Records without allocating; samples and reads may come from different threads.
+ */
+public class VNCRttEstimator {
+
+    private final VNCLatencyHistogram histogram = new VNCLatencyHistogram();
+
+    private volatile long lastMicros = 0;
+    private volatile long minMicros = 0;
+    private volatile long smoothedMicros = 0;
+    private volatile long jitterMicros = 0;
+
+    /**
+     * Add one round-trip sample
+     */
+    public synchronized void record(long micros) {
+        long sample = Math.max(1, micros);
+        histogram.record(sample);
+        lastMicros = sample;
+        if (smoothedMicros == 0) {
+            smoothedMicros = sample;
+            jitterMicros = sample / 2;
+            minMicros = sample;
+            return;
+        }
+        jitterMicros += (Math.abs(smoothedMicros - sample) - jitterMicros) / 4;
+        smoothedMicros += (sample - smoothedMicros) / 8;
+        minMicros = Math.min(minMicros, sample);
+    }
+
+    /**
+     * Smoothed round-trip time in microseconds, 0 before the first sample
+     */
+    public long getSmoothedMicros() {
+        return smoothedMicros;
+    }
+
+    /**
+     * Mean deviation of the samples from the smoothed value, in microseconds
+     */
+    public long getJitterMicros() {
+        return jitterMicros;
+    }
+
+    public long getLastMicros() {
+        return lastMicros;
+    }
+
+    public long getMinMicros() {
+        return minMicros;
+    }
+
+    public VNCLatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Histogram summary plus the smoothed, jitter, last and minimum values in milliseconds
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = histogram.toMap();
+        map.put("smoothedMillis", smoothedMicros / 1000.0);
+        map.put("jitterMillis", jitterMicros / 1000.0);
+        map.put("lastMillis", lastMicros / 1000.0);
+        map.put("minMillis", minMicros / 1000.0);
+        return map;
+    }
+}
@@ -3,11 +3,19 @@ package com.suko.vnc.websocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.suko.vnc.jfr.VNCFlightRecorder;
+import com.suko.vnc.jfr.VNCFlushEvent;
+
+import io.vertx.core.Context;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
 import io.vertx.core.Handler;
 import io.vertx.mutiny.core.Vertx;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 /**
  * Handles VNC server communication for VNC proxy with performance optimizations
@@ -30,51 +38,84 @@ public class VNCServerHandler {
     
     // Performance optimization: batch sending
     private Buffer sendBuffer = Buffer.buffer();
-    private long lastSendTime = 0;
+    // Length of sendBuffer for readers off the session's event loop (admission, REST)
+    private volatile int bufferedBytes = 0;
+    // When the first byte of the current batch was added
+    private long batchStartNanos = 0;
+    private long lastSendNanos = 0;
     private static final long BATCH_TIMEOUT_MS = 2; // 2ms batch timeout for server (faster than client)
+    private static final long BATCH_TIMEOUT_NANOS = BATCH_TIMEOUT_MS * 1_000_000L;
     private static final int MAX_BATCH_SIZE = 16384; // 16KB max batch size for server
     
-    // Connection optimization
-    private static NetClient sharedNetClient;
-    private static final Object clientLock = new Object();
+    // Input lane: key and pointer events, written ahead of the batched bulk data
+    private Buffer inputBuffer = Buffer.buffer();
+    
+    // Flushes whatever is still batched once traffic stops, -1 when not armed
+    private long tailFlushTimer = -1;
+    // tailFlushTimer while the timer is being set from the session's context
+    private static final long TAIL_FLUSH_ARMING = -2;
+    
+    // Time source for the batching deadline, replaced in tests
+    LongSupplier clock = System::nanoTime;
+    
+    // Connection optimization: one shared NetClient per distinct set of socket options
+    private static final Map<String, NetClient> netClients = new ConcurrentHashMap<>();
+    
+    // Socket options for the connection to the VNC server
+    private final NetClientOptions upstreamOptions;
     
     public VNCServerHandler(String sessionId, VNCConnection connection, 
                            String vncServerHost, int vncServerPort, 
                            String vncServerPassword, Vertx vertx) {
+        this(sessionId, connection, vncServerHost, vncServerPort, vncServerPassword, vertx,
+                new NetClientOptions().setTcpNoDelay(true));
+    }
+    
+    public VNCServerHandler(String sessionId, VNCConnection connection, 
+                           String vncServerHost, int vncServerPort, 
+                           String vncServerPassword, Vertx vertx, NetClientOptions upstreamOptions) {
         this.sessionId = sessionId;
         this.connection = connection;
         this.vncServerHost = vncServerHost;
         this.vncServerPort = vncServerPort;
         this.vncServerPassword = vncServerPassword;
         this.vertx = vertx;
+        this.upstreamOptions = upstreamOptions;
     }
     
     /**
-     * Get or create a shared NetClient for connection pooling
+     * Get or create the shared NetClient for these options. A NetClient is not tied to an event
+     * loop: each socket lives on the loop of the context it was connected from, so sessions only
+     * need separate clients when their socket options differ.
      */
-    private NetClient getOrCreateNetClient() {
-        if (sharedNetClient == null) {
-            synchronized (clientLock) {
-                if (sharedNetClient == null) {
-                    sharedNetClient = vertx.getDelegate().createNetClient();
-                    // Basic configuration for high performance
-                    // Note: Advanced socket options are set at the socket level
-                }
-            }
-        }
-        return sharedNetClient;
+    private NetClient getOrCreateNetClient(NetClientOptions options) {
+        return netClients.computeIfAbsent(options.toJson().encode(), key -> vertx.getDelegate().createNetClient(options));
     }
     
     /**
-     * Connect to the VNC server with optimized settings
+     * Connect to the VNC server with this handler's socket options
      */
     public void connect(Runnable onSuccess, Runnable onFailure) {
-        NetClient netClient = getOrCreateNetClient();
+        connect(null, onSuccess, onFailure);
+    }
+    
+    /**
+     * Connect to the VNC server
+     * @param eventLoop context whose event loop the socket should live on (the client WebSocket's,
+     *                  so both ends of the session are served by one thread), null for any
+     */
+    public void connect(Context eventLoop, Runnable onSuccess, Runnable onFailure) {
+        if (eventLoop != null && eventLoop.isEventLoopContext() && io.vertx.core.Vertx.currentContext() != eventLoop) {
+            eventLoop.runOnContext(v -> connect(eventLoop, onSuccess, onFailure));
+            return;
+        }
+        NetClient netClient = getOrCreateNetClient(upstreamOptions);
         
         long startTime = System.nanoTime();
         
         netClient.connect(vncServerPort, vncServerHost)
             .onSuccess(vncSocket -> {
+                connection.eventLoopThread = Thread.currentThread();
                 long endTime = System.nanoTime();
                 long connectionTime = (endTime - startTime) / 1_000_000; // Convert to milliseconds
                 
@@ -114,33 +155,138 @@ public class VNCServerHandler {
      * Send data to the VNC server with buffering and batching
      */
     public void sendData(Buffer buffer) {
+        if (offSessionLoop()) {
+            connection.context.runOnContext(v -> sendData(buffer));
+            return;
+        }
         if (connection.vncSocket == null) {
             log.warn("Cannot send data to VNC server - socket is null for session: {}", sessionId);
             return;
         }
         
-        long startTime = System.nanoTime();
+        long startTime = clock.getAsLong();
         
         // Add to send buffer
+        if (sendBuffer.length() == 0) {
+            batchStartNanos = startTime;
+        }
         sendBuffer.appendBuffer(buffer);
+        bufferedBytes = sendBuffer.length();
         
         // Check if we should send immediately
-        boolean shouldSend = shouldSendNow(buffer.length());
+        VNCBatchStats.Trigger trigger = flushTrigger(sendBuffer.length() - buffer.length(), buffer.length(), startTime);
         
-        if (shouldSend) {
+        if (trigger != null) {
             int totalDataSize = sendBuffer.length();
-            flushSendBuffer();
-            long endTime = System.nanoTime();
+            flushSendBuffer(trigger, false);
+            long endTime = clock.getAsLong();
             long latency = (endTime - startTime) / 1_000_000; // Convert to milliseconds
             // Update stats only when data is actually sent
             connection.updateStats(0, totalDataSize, latency);
             
-            // Update proxy-to-VNC latency (this measures the time to send data to VNC server)
-            connection.setProxyToVNCLatency(latency);
+            if (connection.serverRtt == null) {
+                // Without fence probes, the time to send data to the VNC server is all there is
+                connection.setProxyToVNCLatency(latency);
+            }
+        } else {
+            armTailFlush();
         }
         // Don't update stats here - only when data is actually sent
     }
     
+    /**
+     * Send complete key or pointer event messages. They overtake bulk messages that are still
+     * batched (clipboard, update requests) but keep their order among themselves, so a click
+     * never lands before the pointer motion that preceded it.
+     * @param urgent write now (key events, button changes); otherwise the input goes out on the
+     * same size and deadline triggers as batched data, or with the tail flush
+     */
+    public void sendInput(Buffer message, boolean urgent) {
+        if (offSessionLoop()) {
+            connection.context.runOnContext(v -> sendInput(message, urgent));
+            return;
+        }
+        if (connection.vncSocket == null) {
+            log.warn("Cannot send input to VNC server - socket is null for session: {}", sessionId);
+            return;
+        }
+        inputBuffer.appendBuffer(message);
+        if (!urgent) {
+            VNCBatchStats.Trigger trigger = flushTrigger(inputBuffer.length() - message.length(),
+                    message.length(), clock.getAsLong());
+            if (trigger != null) {
+                flushSendBuffer(trigger, true);
+            } else {
+                armTailFlush();
+            }
+            return;
+        }
+        int dataSize = inputBuffer.length();
+        writeInput();
+        connection.inputFastLaneWrites++;
+        connection.updateStats(0, dataSize);
+    }
+    
+    /**
+     * Whether the caller is on a thread other than the event loop that owns the server socket.
+     * The handler keeps no locks: its buffers and timer are only touched from that loop, and
+     * callers elsewhere (REST, admin) are handed over to the session's context.
+     */
+    private boolean offSessionLoop() {
+        Thread loop = connection.eventLoopThread;
+        Context context = connection.context;
+        return loop != null && loop != Thread.currentThread()
+                && context != null && context.isEventLoopContext();
+    }
+    
+    private void writeInput() {
+        if (inputBuffer.length() > 0 && connection.vncSocket != null) {
+            Buffer toSend = inputBuffer;
+            inputBuffer = Buffer.buffer();
+            lastSendNanos = clock.getAsLong();
+            connection.vncSocket.write(toSend);
+        }
+    }
+    
+    /**
+     * Make sure batched data goes out even if nothing else is sent after it. The timer fires on
+     * the session's context, so the flush runs on the event loop that owns the server socket.
+     */
+    private void armTailFlush() {
+        Context context = connection.context;
+        if (tailFlushTimer != -1 || context == null) {
+            return;
+        }
+        if (io.vertx.core.Vertx.currentContext() != context) {
+            tailFlushTimer = TAIL_FLUSH_ARMING;
+            context.runOnContext(v -> {
+                if (tailFlushTimer == TAIL_FLUSH_ARMING) {
+                    tailFlushTimer = context.owner().setTimer(BATCH_TIMEOUT_MS, id -> tailFlush());
+                }
+            });
+            return;
+        }
+        tailFlushTimer = context.owner().setTimer(BATCH_TIMEOUT_MS, id -> tailFlush());
+    }
+    
+    private void tailFlush() {
+        VNCSessionCost cost = connection.cost;
+        if (cost != null) {
+            cost.begin();
+        }
+        try {
+            tailFlushTimer = -1;
+            if (sendBuffer.length() > 0 || inputBuffer.length() > 0) {
+                connection.tailFlushes++;
+                flushSendBuffer(VNCBatchStats.Trigger.TIMER, true);
+            }
+        } finally {
+            if (cost != null) {
+                cost.end();
+            }
+        }
+    }
+    
     /**
      * Flush any pending data in the send buffer
      */
@@ -153,11 +299,38 @@ public class VNCServerHandler {
      * @param updateStats whether to update stats for this flush operation
      */
     public void flushSendBuffer(boolean updateStats) {
+        if (offSessionLoop()) {
+            connection.context.runOnContext(v -> flushSendBuffer(updateStats));
+            return;
+        }
+        flushSendBuffer(VNCBatchStats.Trigger.EXPLICIT, updateStats);
+    }
+    
+    private void flushSendBuffer(VNCBatchStats.Trigger trigger, boolean updateStats) {
+        assert !offSessionLoop() : "flush off the session's event loop";
+        if (updateStats && inputBuffer.length() > 0) {
+            connection.updateStats(0, inputBuffer.length());
+        }
+        // Input first: batched input would otherwise wait behind bulk data
+        writeInput();
         if (sendBuffer.length() > 0 && connection.vncSocket != null) {
             Buffer toSend = sendBuffer.copy();
             int dataSize = toSend.length();
             sendBuffer = Buffer.buffer(); // Reset buffer
-            lastSendTime = System.currentTimeMillis();
+            bufferedBytes = 0;
+            lastSendNanos = clock.getAsLong();
+            
+            long residency = lastSendNanos - batchStartNanos;
+            connection.serverBatches.record(trigger, dataSize, residency);
+            VNCFlushEvent event = new VNCFlushEvent();
+            if (event.isEnabled()) {
+                event.session = VNCFlightRecorder.sessionLabel(sessionId);
+                event.direction = "to-server";
+                event.trigger = trigger.getLabel();
+                event.bytes = dataSize;
+                event.residency = residency;
+                event.commit();
+            }
             
             connection.vncSocket.write(toSend);
             
@@ -176,35 +349,43 @@ public class VNCServerHandler {
     
     /**
      * Determine if we should send the buffer now based on size and timing
+     * @param buffered bytes already waiting in the buffer the new data goes to
+     * @return why the buffer should go out now, null if it should wait
      */
-    private boolean shouldSendNow(int newDataSize) {
-        long currentTime = System.currentTimeMillis();
-        
+    private VNCBatchStats.Trigger flushTrigger(int buffered, int newDataSize, long now) {
         // Send immediately if:
         // 1. Buffer is getting too large
-        if (sendBuffer.length() + newDataSize >= MAX_BATCH_SIZE) {
-            return true;
+        if (buffered + newDataSize >= MAX_BATCH_SIZE) {
+            return VNCBatchStats.Trigger.SIZE;
         }
         
         // 2. Enough time has passed since last send
-        if (currentTime - lastSendTime >= BATCH_TIMEOUT_MS) {
-            return true;
+        if (now - lastSendNanos >= BATCH_TIMEOUT_NANOS) {
+            return VNCBatchStats.Trigger.DEADLINE;
         }
         
         // 3. This is a large message (send immediately)
         if (newDataSize >= VNCConnection.BUFFER_THRESHOLD) {
-            return true;
+            return VNCBatchStats.Trigger.LARGE_MESSAGE;
         }
         
-        return false;
+        return null;
     }
     
     /**
      * Close the VNC server connection
      */
     public void close() {
+        if (offSessionLoop()) {
+            connection.context.runOnContext(v -> close());
+            return;
+        }
         // Flush any pending data before closing
-        flushSendBuffer(true);
+        flushSendBuffer(VNCBatchStats.Trigger.CLOSE, true);
+        if (tailFlushTimer >= 0) {
+            connection.context.owner().cancelTimer(tailFlushTimer);
+        }
+        tailFlushTimer = -1;
         
         if (connection.vncSocket != null) {
             try {
@@ -269,10 +450,10 @@ public class VNCServerHandler {
     }
     
     /**
-     * Get current buffer size
+     * Get current buffer size, safe to read from any thread
      */
     public int getBufferSize() {
-        return sendBuffer.length();
+        return bufferedBytes;
     }
     
     /**
@@ -281,7 +462,7 @@ public class VNCServerHandler {
     public String getPerformanceStats() {
         return String.format("VNC Server [%s]: Messages: %d, Avg Latency: %.2fms, Throughput: %.2f B/s, Buffer: %d bytes", 
                 sessionId, connection.messageCount, connection.getAverageLatency(), 
-                connection.getThroughput(), sendBuffer.length());
+                connection.getThroughput(), bufferedBytes);
     }
     
     /**
@@ -0,0 +1,84 @@
+package com.suko.vnc.websocket;
+
+import java.nio.charset.StandardCharsets;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Proxy-to-server round-trip time, measured with RFB Fence on the live connection.
+ *
+ * Once the server has shown it supports Fence (by sending one), the proxy periodically sends a
+ * ClientFence request carrying its own marker and a sequence number. The server answers it with
+ * a ServerFence echoing the payload after everything sent before it; that reply is taken out of
+ * the stream and the time in between is one sample. The path includes the server's input
+ * processing and whatever it was still writing, as input and updates would see it.
+ *
+ * One probe is outstanding at a time. Synchronized: probes go out from a timer, replies arrive on
+ * the server stream.
+ */
+public class VNCServerRttProbe {
+
+    private static final byte[] MARKER = "vnc-proxy-rtt".getBytes(StandardCharsets.US_ASCII);
+    private static final int PAYLOAD_LENGTH = MARKER.length + 8;
+    // A probe not answered by then is given up
+    private static final long LOST_NANOS = 30_000_000_000L;
+
+    private final long intervalNanos;
+    private final VNCRttEstimator rtt = new VNCRttEstimator();
+
+    private boolean serverSupported = false;
+    private long nextSequence = 1;
+    private long outstanding = 0;
+    private long sentAt;
+    private long lastSent;
+    private boolean sentAny = false;
+
+    public VNCServerRttProbe(long intervalMillis) {
+        this.intervalNanos = Math.max(1, intervalMillis) * 1_000_000L;
+    }
+
+    /**
+     * The next probe if one is due
+     * @return the ClientFence to send to the server, or null
+     */
+    public synchronized Buffer nextProbe(long now) {
+        if (!serverSupported || (sentAny && now - lastSent < intervalNanos)) {
+            return null;
+        }
+        if (outstanding != 0 && now - sentAt < LOST_NANOS) {
+            return null;
+        }
+        outstanding = nextSequence++;
+        sentAt = now;
+        lastSent = now;
+        sentAny = true;
+        Buffer payload = Buffer.buffer(PAYLOAD_LENGTH).appendBytes(MARKER).appendLong(outstanding);
+        return VNCContinuousUpdates.fence(VNCContinuousUpdates.FENCE_REQUEST, payload);
+    }
+
+    /**
+     * A complete ServerFence from the server
+     * @return true if it answers one of the proxy's probes, so nobody else must see it
+     */
+    public synchronized boolean onServerFence(Buffer message, long now) {
+        serverSupported = true;
+        if ((message.getInt(4) & VNCContinuousUpdates.FENCE_REQUEST) != 0
+                || message.getUnsignedByte(8) != PAYLOAD_LENGTH
+                || !message.getBuffer(9, 9 + MARKER.length).equals(Buffer.buffer(MARKER))) {
+            return false;
+        }
+        if (message.getLong(9 + MARKER.length) == outstanding) {
+            outstanding = 0;
+            rtt.record((now - sentAt) / 1000);
+        }
+        return true;
+    }
+
+    public synchronized boolean isServerSupported() {
+        return serverSupported;
+    }
+
+    public VNCRttEstimator getRtt() {
+        return rtt;
+    }
+}
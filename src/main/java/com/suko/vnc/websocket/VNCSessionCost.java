@@ -0,0 +1,144 @@
+package com.suko.vnc.websocket;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CPU time and heap allocation of one session, measured around its handlers with the running
+ * thread's CPU clock and allocation counter. Work a handler does for the session inline, such as
+ * encoding and flushing, is counted with it; a handler running inside another measured one is
+ * counted only once, with the outer one.
+ *
+ * Each begin must be followed by an end on the same thread.
+ */
+public class VNCSessionCost {
+
+    private static final Logger log = LoggerFactory.getLogger(VNCSessionCost.class);
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+    private static final boolean CPU = THREADS != null && THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+    private static final boolean ALLOCATION = THREADS != null && THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled();
+    // Recent cost is measured over the current window and the one before
+    private static final long WINDOW_NANOS = 60_000_000_000L;
+    // The measured handler running on each thread, if any
+    private static final ThreadLocal<Frame> FRAMES = ThreadLocal.withInitial(Frame::new);
+
+    private final long startMillis = System.currentTimeMillis();
+    private long cpuNanos = 0;
+    private long allocatedBytes = 0;
+    private long tasks = 0;
+    private long windowStart = System.nanoTime();
+    private long windowCpu = 0;
+    private long windowAllocated = 0;
+    private long previousCpu = 0;
+    private long previousAllocated = 0;
+    private long previousNanos = 0;
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return (com.sun.management.ThreadMXBean) threads;
+        }
+        log.warn("Thread CPU time and allocation are not available, session costs are not measured");
+        return null;
+    }
+
+    /**
+     * Whether this JVM can measure anything
+     */
+    public static boolean isSupported() {
+        return CPU || ALLOCATION;
+    }
+
+    /**
+     * A handler for this session starts on the current thread
+     */
+    public void begin() {
+        Frame frame = FRAMES.get();
+        if (frame.depth++ > 0) {
+            return;
+        }
+        frame.cpu = CPU ? THREADS.getCurrentThreadCpuTime() : 0;
+        frame.allocated = ALLOCATION ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * The handler started with {@link #begin} returned
+     */
+    public void end() {
+        Frame frame = FRAMES.get();
+        if (--frame.depth > 0) {
+            return;
+        }
+        long cpu = CPU ? THREADS.getCurrentThreadCpuTime() - frame.cpu : 0;
+        long allocated = ALLOCATION ? THREADS.getCurrentThreadAllocatedBytes() - frame.allocated : 0;
+        long now = System.nanoTime();
+        synchronized (this) {
+            cpuNanos += cpu;
+            allocatedBytes += allocated;
+            tasks++;
+            if (now - windowStart >= WINDOW_NANOS) {
+                previousCpu = windowCpu;
+                previousAllocated = windowAllocated;
+                previousNanos = now - windowStart;
+                windowStart = now;
+                windowCpu = 0;
+                windowAllocated = 0;
+            }
+            windowCpu += cpu;
+            windowAllocated += allocated;
+        }
+    }
+
+    public synchronized long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Share of one core used over the last one to two minutes, in percent
+     */
+    public synchronized double getRecentCpuPercent() {
+        return recentRate(windowCpu, previousCpu) / 1e7;
+    }
+
+    private double recentRate(long current, long previous) {
+        long elapsed = Math.max(1, System.nanoTime() - windowStart);
+        if (elapsed >= WINDOW_NANOS) {
+            // No handler ran to roll the window over: the previous one is too old to count
+            return current * 1e9 / elapsed;
+        }
+        return (current + previous) * 1e9 / (elapsed + previousNanos);
+    }
+
+    /**
+     * Totals, their rate over the session's lifetime and over the last minute or two, for JSON
+     * output
+     */
+    public synchronized Map<String, Object> toMap() {
+        double seconds = Math.max(1, System.currentTimeMillis() - startMillis) / 1000.0;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("cpuMillis", cpuNanos / 1_000_000);
+        // Share of one core
+        map.put("cpuPercent", Math.round(cpuNanos / 1e7 / seconds * 10) / 10.0);
+        map.put("allocatedBytes", allocatedBytes);
+        map.put("allocatedBytesPerSecond", (long) (allocatedBytes / seconds));
+        map.put("recentCpuPercent", Math.round(getRecentCpuPercent() * 10) / 10.0);
+        map.put("recentAllocatedBytesPerSecond", (long) recentRate(windowAllocated, previousAllocated));
+        map.put("handlerRuns", tasks);
+        return map;
+    }
+
+    private static final class Frame {
+        int depth = 0;
+        long cpu;
+        long allocated;
+    }
+}
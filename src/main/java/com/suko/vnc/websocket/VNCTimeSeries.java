@@ -0,0 +1,123 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed number of samples of a few metrics, kept in primitive arrays: the oldest sample is
+ * overwritten, so memory does not grow with uptime or traffic.
+ *
+ * Rates are averaged when samples are merged into fewer points; latencies, stored in
+ * microseconds and reported in milliseconds, keep the highest value so a spike is not averaged
+ * away. A latency of -1 means there were no samples in that interval.
+ */
+public class VNCTimeSeries {
+
+    private final String[] names;
+    private final boolean[] latency;
+    private final long[] times;
+    private final long[][] values;
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * @param names name of each metric
+     * @param latency which metrics are latencies
+     * @param capacity samples kept
+     */
+    public VNCTimeSeries(String[] names, boolean[] latency, int capacity) {
+        this.names = names;
+        this.latency = latency;
+        this.times = new long[capacity];
+        this.values = new long[names.length][capacity];
+    }
+
+    public int getCapacity() {
+        return times.length;
+    }
+
+    /**
+     * Add a sample, one value per metric
+     */
+    public synchronized void add(long timeMillis, long[] row) {
+        if (times.length == 0) {
+            return;
+        }
+        times[next] = timeMillis;
+        for (int i = 0; i < names.length; i++) {
+            values[i][next] = row[i];
+        }
+        next = (next + 1) % times.length;
+        size = Math.min(size + 1, times.length);
+    }
+
+    /**
+     * Samples since a time, merged into points of stepMillis each, for JSON output
+     */
+    public synchronized Map<String, Object> toMap(long sinceMillis, long stepMillis) {
+        List<Long> pointTimes = new ArrayList<>();
+        List<List<Number>> pointValues = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            pointValues.add(new ArrayList<>());
+        }
+        long[] sums = new long[names.length];
+        long[] counts = new long[names.length];
+        long bucket = Long.MIN_VALUE;
+        for (int n = 0; n < size; n++) {
+            int slot = (next - size + n + times.length) % times.length;
+            if (times[slot] < sinceMillis) {
+                continue;
+            }
+            long slotBucket = sinceMillis + (times[slot] - sinceMillis) / stepMillis * stepMillis;
+            if (slotBucket != bucket) {
+                if (bucket != Long.MIN_VALUE) {
+                    emit(bucket, sums, counts, pointTimes, pointValues);
+                }
+                bucket = slotBucket;
+            }
+            for (int i = 0; i < names.length; i++) {
+                long value = values[i][slot];
+                if (latency[i]) {
+                    if (value >= 0) {
+                        sums[i] = counts[i] == 0 ? value : Math.max(sums[i], value);
+                        counts[i] = 1;
+                    }
+                } else {
+                    sums[i] += value;
+                    counts[i]++;
+                }
+            }
+        }
+        if (bucket != Long.MIN_VALUE) {
+            emit(bucket, sums, counts, pointTimes, pointValues);
+        }
+        Map<String, Object> series = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            series.put(names[i], pointValues.get(i));
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("stepMillis", stepMillis);
+        map.put("times", pointTimes);
+        map.put("series", series);
+        return map;
+    }
+
+    private void emit(long bucket, long[] sums, long[] counts, List<Long> pointTimes, List<List<Number>> pointValues) {
+        pointTimes.add(bucket);
+        for (int i = 0; i < names.length; i++) {
+            Number value;
+            if (counts[i] == 0) {
+                value = null;
+            } else if (latency[i]) {
+                value = Math.round(sums[i] / 100.0) / 10.0;
+            } else {
+                value = sums[i] / counts[i];
+            }
+            pointValues.get(i).add(value);
+            sums[i] = 0;
+            counts[i] = 0;
+        }
+    }
+}
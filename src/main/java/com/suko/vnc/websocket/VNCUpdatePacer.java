@@ -0,0 +1,131 @@
+package com.suko.vnc.websocket;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Per-session cap on how often FramebufferUpdateRequests reach the VNC server.
+ *
+ * noVNC asks for the next incremental update as soon as it has drawn the previous one, which on
+ * a fast network means hundreds of requests a second and as many tiny updates for the server to
+ * encode. At most one request per interval is forwarded; incremental requests arriving in
+ * between are held and merged into their bounding rectangle, which is released when the
+ * interval is over. Non-incremental requests are explicit refreshes and always go through.
+ *
+ * What this saves the server is estimated from the session's request cycle: the time from
+ * forwarding a request to the client's next one, which is how often the server would be asked
+ * for an update without pacing. A request held for one cycle is one update the server did not
+ * encode; a request merged into a held one is one more.
+ *
+ * Synchronized: requests arrive on the client thread, held requests are released from a timer.
+ */
+public class VNCUpdatePacer {
+
+    private final int maxFps;
+    private final long intervalNanos;
+    private long lastForwardNanos;
+    private boolean forwarded = false;
+    private VNCRect held;
+    private long heldSinceNanos;
+    // Moving average of the unpaced request cycle, 0 until measured
+    private long cycleNanos = 0;
+    private long heldNanos = 0;
+    private long collapsed = 0;
+    private double updatesAvoided = 0;
+
+    public VNCUpdatePacer(int maxFps) {
+        this.maxFps = maxFps;
+        this.intervalNanos = 1_000_000_000L / maxFps;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    /**
+     * A client FramebufferUpdateRequest arrived
+     * @return 0 to forward it now, the delay in nanoseconds until the held request is due if it
+     * was held, or -1 if it was merged into a request that is already held
+     */
+    public synchronized long offer(VNCRect request, boolean incremental, long now) {
+        if (!incremental) {
+            lastForwardNanos = now;
+            forwarded = true;
+            return 0;
+        }
+        if (held != null) {
+            held = held.union(request);
+            collapsed++;
+            updatesAvoided++;
+            return -1;
+        }
+        if (forwarded) {
+            long cycle = now - lastForwardNanos;
+            cycleNanos = cycleNanos == 0 ? cycle : cycleNanos + (cycle - cycleNanos) / 8;
+        }
+        long due = lastForwardNanos + intervalNanos;
+        if (!forwarded || now - due >= 0) {
+            lastForwardNanos = now;
+            forwarded = true;
+            return 0;
+        }
+        held = request;
+        heldSinceNanos = now;
+        return due - now;
+    }
+
+    /**
+     * Take the held request once its interval is over
+     * @return null if nothing is held
+     */
+    public synchronized VNCRect release(long now) {
+        VNCRect request = held;
+        if (request != null) {
+            held = null;
+            lastForwardNanos = now;
+            long heldFor = now - heldSinceNanos;
+            heldNanos += heldFor;
+            if (cycleNanos > 0) {
+                updatesAvoided += (double) heldFor / cycleNanos;
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Total time requests were held back
+     */
+    public synchronized long getHeldNanos() {
+        return heldNanos;
+    }
+
+    /**
+     * Requests merged into one that was already held, never sent to the server
+     */
+    public synchronized long getCollapsedRequests() {
+        return collapsed;
+    }
+
+    /**
+     * Estimated FramebufferUpdates the server did not have to encode
+     */
+    public synchronized long getUpdatesAvoided() {
+        return (long) updatesAvoided;
+    }
+
+    /**
+     * Whether a client address is on the local network, for picking the LAN pacing tier.
+     * Only IP literals are classified, so this never triggers a DNS lookup.
+     */
+    public static boolean isLocalAddress(String clientIP) {
+        if (clientIP == null || clientIP.isEmpty() || !clientIP.matches("[0-9a-fA-F.:]+")) {
+            return false;
+        }
+        try {
+            InetAddress address = InetAddress.getByName(clientIP);
+            return address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
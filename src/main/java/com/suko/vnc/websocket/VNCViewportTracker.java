@@ -0,0 +1,92 @@
+package com.suko.vnc.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-session record of the framebuffer region the browser actually shows.
+ *
+ * The client reports its visible region in a control message. FramebufferUpdateRequests are
+ * narrowed to that region grown by a prefetch margin, so the server only encodes what can be
+ * seen. The area requested last is remembered as "covered": anything outside it may be stale,
+ * and is requested non-incrementally once it becomes visible again.
+ *
+ * All coordinates are client coordinates (after any downscaling). Reports and client requests
+ * are handled on the session's context; methods are synchronized because a DesktopSize from
+ * the server resets the tracker from the server socket's thread.
+ */
+public class VNCViewportTracker {
+
+    /**
+     * What to send upstream in place of one client FramebufferUpdateRequest
+     */
+    public static final class Requests {
+        /** Non-incremental requests for areas that were not kept up to date */
+        public final List<VNCRect> refresh;
+        /** The client's request narrowed to the visible region and margin */
+        public final VNCRect area;
+
+        Requests(List<VNCRect> refresh, VNCRect area) {
+            this.refresh = refresh;
+            this.area = area;
+        }
+    }
+
+    private final int margin;
+    private VNCRect visible;
+    private VNCRect covered;
+
+    public VNCViewportTracker(int margin) {
+        this.margin = margin;
+    }
+
+    /**
+     * The client reported a new visible region
+     * @return areas that just came into range and must be refreshed, empty if none
+     */
+    public synchronized List<VNCRect> setVisible(VNCRect region, int framebufferWidth, int framebufferHeight) {
+        visible = region;
+        if (covered == null) {
+            // No request narrowed yet, so the server still tracks the whole framebuffer
+            return new ArrayList<>();
+        }
+        VNCRect target = target(framebufferWidth, framebufferHeight);
+        List<VNCRect> exposed = target.subtract(covered);
+        covered = target;
+        return exposed;
+    }
+
+    public synchronized VNCRect getVisible() {
+        return visible;
+    }
+
+    /**
+     * Narrow a client FramebufferUpdateRequest
+     * @return null to forward the request unchanged
+     */
+    public synchronized Requests restrict(VNCRect request, boolean incremental, int framebufferWidth, int framebufferHeight) {
+        if (visible == null) {
+            return null;
+        }
+        VNCRect area = request.intersect(target(framebufferWidth, framebufferHeight));
+        if (area.isEmpty()) {
+            // Nothing of the request is visible; never turn a request into no request at all
+            return null;
+        }
+        // Before the first narrowed request the client's own requests covered everything
+        List<VNCRect> refresh = incremental && covered != null ? area.subtract(covered) : new ArrayList<>();
+        covered = area;
+        return new Requests(refresh, area);
+    }
+
+    /**
+     * The framebuffer changed size, so nothing requested so far is known to be current
+     */
+    public synchronized void reset() {
+        covered = null;
+    }
+
+    private VNCRect target(int framebufferWidth, int framebufferHeight) {
+        return visible.grow(margin).intersect(new VNCRect(0, 0, framebufferWidth, framebufferHeight));
+    }
+}
@@ -6,6 +6,7 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.suko.vnc.config.VNCProxyConfig;
 import com.suko.vnc.security.VNCAuthService;
 
 import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
@@ -14,11 +15,16 @@ import io.quarkus.websockets.next.OnBinaryMessage;
 import io.quarkus.websockets.next.OnClose;
 import io.quarkus.websockets.next.OnError;
 import io.quarkus.websockets.next.OnOpen;
+import io.quarkus.websockets.next.OnPongMessage;
 import io.quarkus.websockets.next.OnTextMessage;
 import io.quarkus.websockets.next.PathParam;
 import io.quarkus.websockets.next.WebSocket;
 import io.quarkus.websockets.next.WebSocketConnection;
+import io.smallrye.common.annotation.NonBlocking;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Context;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClientOptions;
 import io.vertx.mutiny.core.Vertx;
 import jakarta.inject.Inject;
 
@@ -46,49 +52,121 @@ public class VNCWebSocketProxy {
     @Inject
     VNCConnectionManager connectionManager;
     
+    @Inject
+    VNCProxyConfig proxyConfig;
+    
+    @Inject
+    VNCEncoderPool encoderPool;
+    
+    @Inject
+    VNCEgressScheduler egressScheduler;
+    
+    @Inject
+    VNCAdmissionController admissionController;
+    
+    @Inject
+    VNCEventLoopMonitor eventLoopMonitor;
+    
+    @Inject
+    VNCHandshakeStats handshakeStats;
+    
+    // Non-blocking: a session waiting for admission holds a timer, not a worker thread
     @OnOpen
-    public void onOpen(WebSocketConnection connection, @PathParam String sessionId) {
+    public Uni<Void> onOpen(WebSocketConnection connection, @PathParam String sessionId) {
         log.info("WebSocket connection opened id {} for session: {}", connection.id(), sessionId);
 
         VNCAuthService.VNCSession vncSession = authService.getSession(sessionId);
             
         if (vncSession == null) {
             log.warn("❌ Invalid or expired session: {}", sessionId);
-            connection.closeAndAwait(new CloseReason(WebSocketCloseStatus.ENDPOINT_UNAVAILABLE.code(), "Invalid or expired session"));
-            return;
+            return connection.close(new CloseReason(WebSocketCloseStatus.ENDPOINT_UNAVAILABLE.code(), "Invalid or expired session"));
         }
         
+        Context context = io.vertx.core.Vertx.currentContext();
+        if (!proxyConfig.isAdmissionEnabled()) {
+            startSession(connection, sessionId, vncSession, context);
+            return Uni.createFrom().voidItem();
+        }
+        // Hold back or turn away new sessions while the node is overloaded
+        return admissionController.admit(sessionId).chain(refusal -> {
+            if (refusal != null) {
+                return connection.close(new CloseReason(WebSocketCloseStatus.TRY_AGAIN_LATER.code(), refusal));
+            }
+            startSession(connection, sessionId, vncSession, context);
+            return Uni.createFrom().voidItem();
+        });
+    }
+    
+    private void startSession(WebSocketConnection connection, String sessionId, VNCAuthService.VNCSession vncSession,
+            Context context) {
         // Create connection and handlers
         VNCConnection vncConnection = connectionManager.createConnection(sessionId, vncSession);
         
         // Store the WebSocket connection for later cleanup
         vncConnection.setWebSocketConnection(connection);
         
+        // Viewport reported by the client (?viewport=WIDTHxHEIGHT), used to pick a scale factor
+        parseViewport(connection.handshakeRequest().query(), vncConnection);
+        
         VNCClientHandler clientHandler = new VNCClientHandler(connection, sessionId, vncConnection, vertx);
-        VNCServerHandler serverHandler = new VNCServerHandler(sessionId, vncConnection, vncServerHost, vncServerPort, vncServerPassword, vertx);
-        VNCProtocolHandler protocolHandler = new VNCProtocolHandler(sessionId, vncConnection, clientHandler, serverHandler);
+        VNCServerHandler serverHandler = new VNCServerHandler(sessionId, vncConnection, vncServerHost, vncServerPort,
+                vncServerPassword, vertx, upstreamOptions());
+        vncConnection.backend = vncServerHost + ":" + vncServerPort;
+        handshakeStats.track(sessionId, vncConnection);
+        VNCProtocolHandler protocolHandler = new VNCProtocolHandler(sessionId, vncConnection, clientHandler, serverHandler, proxyConfig, encoderPool);
         
         // Store handlers in the connection for reuse
         vncConnection.setHandlers(clientHandler, serverHandler, protocolHandler);
+        if (proxyConfig.isCompressionSamplingEnabled()) {
+            clientHandler.setCompressionSampler(new VNCCompressionSampler(proxyConfig.getCompressionSamplingLevel(),
+                    proxyConfig.getCompressionSamplingCpuShare(), proxyConfig.getCompressionSamplingEvery(),
+                    proxyConfig.getCompressionSamplingWorthwhileRatio()));
+        }
+        vncConnection.context = context;
+        if (proxyConfig.isFairSchedulingEnabled() && context != null) {
+            clientHandler.setEgressScheduler(egressScheduler, vncSession.getUserId(), context);
+        }
+        if (proxyConfig.isBrowserRttEnabled()) {
+            clientHandler.startRttProbes(proxyConfig.getBrowserRttIntervalMillis());
+        }
+        if (proxyConfig.isCostAccountingEnabled() && VNCSessionCost.isSupported()) {
+            vncConnection.cost = new VNCSessionCost();
+        }
         
         // Set up server data handler
         serverHandler.setServerDataHandler(buffer -> {
+            long task = eventLoopMonitor.beginTask("server-data", sessionId);
+            VNCSessionCost cost = vncConnection.cost;
+            if (cost != null) {
+                cost.begin();
+            }
             try {
                 protocolHandler.handleServerData(buffer);
             } catch (Exception e) {
                 log.error("Error handling server data for session: {}", sessionId, e);
                 closeConnection(sessionId, WebSocketCloseStatus.INTERNAL_SERVER_ERROR, "Error handling server data: " + e.getMessage());
+            } finally {
+                if (cost != null) {
+                    cost.end();
+                }
+                eventLoopMonitor.endTask(task);
             }
         });
         
         // Set up server close handler
         serverHandler.setServerCloseHandler(v -> {
-            log.info("VNC server closed connection for session: {}", sessionId);
-            closeConnection(sessionId, WebSocketCloseStatus.NORMAL_CLOSURE, "VNC server closed connection");
+            long task = eventLoopMonitor.beginTask("server-close", sessionId);
+            try {
+                log.info("VNC server closed connection for session: {}", sessionId);
+                closeConnection(sessionId, WebSocketCloseStatus.NORMAL_CLOSURE, "VNC server closed connection");
+            } finally {
+                eventLoopMonitor.endTask(task);
+            }
         });
         
-        // Connect to VNC server
-        serverHandler.connect(
+        // Connect to VNC server, on this WebSocket's event loop if affinity is on
+        Context eventLoop = proxyConfig.isEventLoopAffinity() ? context : null;
+        serverHandler.connect(eventLoop,
             () -> log.info("Successfully connected to VNC server for session: {}", sessionId),
             () -> {
                 log.error("Failed to connect to VNC server for session: {}", sessionId);
@@ -97,11 +175,31 @@ public class VNCWebSocketProxy {
         );
     }
 
+    // Non-blocking: client messages are handled on the WebSocket's event loop, which with affinity
+    // is also the VNC server socket's, instead of being handed to a worker thread
     @OnBinaryMessage
+    @NonBlocking
     public void onBinaryMessage(Buffer message, WebSocketConnection connection, @PathParam String sessionId) {
+        long task = eventLoopMonitor.beginTask("client-data", sessionId);
+        try {
+            handleBinaryMessage(message, sessionId);
+        } finally {
+            eventLoopMonitor.endTask(task);
+        }
+    }
+    
+    private void handleBinaryMessage(Buffer message, String sessionId) {
         VNCConnection vncConnection = connectionManager.getConnection(sessionId);
         
         if (vncConnection != null && vncConnection.protocolHandler != null) {
+            Thread eventLoopThread = vncConnection.eventLoopThread;
+            if (eventLoopThread != null && eventLoopThread != Thread.currentThread()) {
+                vncConnection.offLoopClientMessages++;
+            }
+            VNCSessionCost cost = vncConnection.cost;
+            if (cost != null) {
+                cost.begin();
+            }
             try {
                 log.debug("Processing binary message for session: {}, state: {}, vncSocket: {}, message length: {}", 
                          sessionId, vncConnection.state, vncConnection.vncSocket != null, message.length());
@@ -123,16 +221,42 @@ public class VNCWebSocketProxy {
             } catch(Exception e) {
                 log.error("Failed to process binary message for session: {}", sessionId, e);
                 closeConnection(sessionId, WebSocketCloseStatus.INTERNAL_SERVER_ERROR, "Failed to process binary message: " + e.getMessage());
+            } finally {
+                if (cost != null) {
+                    cost.end();
+                }
             }
         } else {
             log.warn("No VNC connection or handlers found for session: {}", sessionId);
         }
     }
 
+    @OnPongMessage
+    @NonBlocking
+    public void onPongMessage(Buffer data, WebSocketConnection connection, @PathParam String sessionId) {
+        VNCConnection vncConnection = connectionManager.getConnection(sessionId);
+        if (vncConnection != null && vncConnection.clientHandler != null) {
+            long task = eventLoopMonitor.beginTask("client-pong", sessionId);
+            try {
+                vncConnection.clientHandler.onPong(data);
+            } finally {
+                eventLoopMonitor.endTask(task);
+            }
+        }
+    }
+    
     @OnTextMessage
+    @NonBlocking
     public void onTextMessage(String message, WebSocketConnection connection, @PathParam String sessionId) {
         VNCConnection vncConnection = connectionManager.getConnection(sessionId);
 
+        if (VNCControlChannel.isControlMessage(message)) {
+            if (vncConnection != null) {
+                handleControlMessage(message, vncConnection, sessionId);
+            }
+            return;
+        }
+
         if (vncConnection != null && vncConnection.isConnected && vncConnection.vncSocket != null && vncConnection.serverHandler != null) {
             try {
                 // Reuse existing server handler instead of creating a new one
@@ -146,6 +270,32 @@ public class VNCWebSocketProxy {
         connectionManager.logData("WebSocket->VNC", sessionId, Buffer.buffer(message.getBytes()), false);
     }
 
+    /**
+     * Browser state sent next to the RFB stream, handled on the session's context like client
+     * data, so that requests it injects cannot race the client's own
+     */
+    private void handleControlMessage(String message, VNCConnection vncConnection, String sessionId) {
+        Context context = vncConnection.context;
+        if (context != null && io.vertx.core.Vertx.currentContext() != context) {
+            context.runOnContext(v -> handleControlMessage(message, vncConnection, sessionId));
+            return;
+        }
+        VNCProtocolHandler protocolHandler = vncConnection.protocolHandler;
+        if (protocolHandler == null) {
+            return;
+        }
+        long task = eventLoopMonitor.beginTask("client-control", sessionId);
+        try {
+            if (!VNCControlChannel.dispatch(message, vncConnection, protocolHandler)) {
+                log.debug("Ignoring malformed control message for session: {}", sessionId);
+            }
+        } catch (Exception e) {
+            log.error("Error processing control message for session: {}", sessionId, e);
+        } finally {
+            eventLoopMonitor.endTask(task);
+        }
+    }
+
     @OnClose
     public void onClose(WebSocketConnection connection, @PathParam String sessionId) {
         log.info("WebSocket connection closed for session: {}", sessionId);
@@ -158,6 +308,46 @@ public class VNCWebSocketProxy {
         closeConnection(sessionId, WebSocketCloseStatus.INTERNAL_SERVER_ERROR, "WebSocket error: " + throwable.getMessage());
     }
     
+    /**
+     * Socket options for the connection to the VNC server
+     */
+    private NetClientOptions upstreamOptions() {
+        NetClientOptions options = new NetClientOptions()
+                .setTcpNoDelay(proxyConfig.isUpstreamTcpNoDelay())
+                .setTcpKeepAlive(proxyConfig.isUpstreamTcpKeepAlive())
+                .setConnectTimeout(proxyConfig.getUpstreamConnectTimeoutMillis());
+        if (proxyConfig.getUpstreamSendBufferSize() > 0) {
+            options.setSendBufferSize(proxyConfig.getUpstreamSendBufferSize());
+        }
+        if (proxyConfig.getUpstreamReceiveBufferSize() > 0) {
+            options.setReceiveBufferSize(proxyConfig.getUpstreamReceiveBufferSize());
+        }
+        return options;
+    }
+    
+    /**
+     * Read the client viewport from the handshake query string, ignoring malformed values
+     */
+    private void parseViewport(String query, VNCConnection vncConnection) {
+        if (query == null) {
+            return;
+        }
+        for (String param : query.split("&")) {
+            if (!param.startsWith("viewport=")) {
+                continue;
+            }
+            String[] size = param.substring("viewport=".length()).split("x");
+            try {
+                if (size.length == 2) {
+                    vncConnection.viewportWidth = Math.max(0, Integer.parseInt(size[0]));
+                    vncConnection.viewportHeight = Math.max(0, Integer.parseInt(size[1]));
+                }
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring malformed viewport '{}'", param);
+            }
+        }
+    }
+    
     /**
      * Clean up and close a VNC connection for the given session
      * @param sessionId the session ID to close
@@ -4,6 +4,90 @@ import { useEffect, useRef, useState, useCallback, forwardRef, useImperativeHand
 import { Card } from "@/components/ui/card"
 import NoVncClient from "@novnc/novnc/lib/rfb"
 
+// Clipboard text longer than this goes as control messages rather than in one RFB cut-text
+// message, which would hold up updates and input until it is through
+const CLIPBOARD_INLINE_CHARS = 64 * 1024
+const CLIPBOARD_CHUNK_CHARS = 16 * 1024
+// Chunks wait while this much is still queued on the WebSocket
+const CONTROL_BUFFER_LIMIT = 256 * 1024
+
+// The RFB stream for noVNC and the proxy's control messages share one WebSocket: binary frames
+// are passed on to noVNC, text frames go to the control handler
+class MultiplexedChannel {
+  onopen: ((event: Event) => void) | null = null
+  onmessage: ((event: MessageEvent) => void) | null = null
+  onerror: ((event: Event) => void) | null = null
+  onclose: ((event: CloseEvent) => void) | null = null
+  protocol = ""
+  onControl: ((message: string) => void) | null = null
+
+  constructor(readonly socket: WebSocket) {
+    socket.binaryType = "arraybuffer"
+    socket.onopen = (event) => {
+      this.protocol = socket.protocol
+      // Tell the proxy this browser reads control messages
+      socket.send("hello")
+      this.onopen?.(event)
+    }
+    socket.onmessage = (event) => {
+      if (typeof event.data === "string") {
+        this.onControl?.(event.data)
+      } else {
+        this.onmessage?.(event)
+      }
+    }
+    socket.onerror = (event) => this.onerror?.(event)
+    socket.onclose = (event) => this.onclose?.(event)
+  }
+
+  get readyState() {
+    return this.socket.readyState
+  }
+
+  get binaryType() {
+    return this.socket.binaryType
+  }
+
+  set binaryType(type: BinaryType) {
+    this.socket.binaryType = type
+  }
+
+  send(data: ArrayBufferLike | ArrayBufferView | string) {
+    this.socket.send(data as ArrayBuffer)
+  }
+
+  close() {
+    this.socket.close()
+  }
+}
+
+// Send clipboard text in chunks, paced by what the WebSocket has yet to send
+const streamClipboard = (control: WebSocket, text: string) => {
+  const id = Date.now()
+  let offset = 0
+  control.send(`clipboard-begin ${id} ${text.length}`)
+  const pump = () => {
+    while (offset < text.length && control.readyState === WebSocket.OPEN) {
+      if (control.bufferedAmount > CONTROL_BUFFER_LIMIT) {
+        window.setTimeout(pump, 20)
+        return
+      }
+      let end = Math.min(text.length, offset + CLIPBOARD_CHUNK_CHARS)
+      const last = text.charCodeAt(end - 1)
+      if (end < text.length && last >= 0xd800 && last <= 0xdbff) {
+        // Keep surrogate pairs together
+        end++
+      }
+      control.send(`clipboard-chunk ${id} ${text.slice(offset, end)}`)
+      offset = end
+    }
+    if (control.readyState === WebSocket.OPEN) {
+      control.send(`clipboard-end ${id}`)
+    }
+  }
+  pump()
+}
+
 interface VNCCanvasProps {
   isConnected: boolean
   viewOnly: boolean
@@ -41,6 +125,8 @@ export const VNCCanvas = forwardRef<VNCCanvasRef, VNCCanvasProps>(({
 }, ref) => {
   const containerRef = useRef<HTMLDivElement>(null)
   const rfbRef = useRef<NoVncClient | null>(null)
+  const channelRef = useRef<MultiplexedChannel | null>(null)
+  const controlHandlerRef = useRef<((message: string) => void) | null>(null)
   const [connectionStatus, setConnectionStatus] = useState("Disconnected")
   // eslint-disable-next-line @typescript-eslint/no-unused-vars
   const [mousePosition, setMousePosition] = useState({ x: 0, y: 0 })
@@ -57,7 +143,11 @@ export const VNCCanvas = forwardRef<VNCCanvasRef, VNCCanvasProps>(({
     const wsPort = currentUrl.port || (protocol === 'wss' ? '443' : '80')
     const portSuffix = (wsPort === '443' && protocol === 'wss') || (wsPort === '80' && protocol === 'ws') ? '' : `:${wsPort}`
     
-    return `${protocol}://${wsHost}${portSuffix}/websockify/${sessionId}`
+    // Report the viewport in CSS pixels so the proxy can downscale for small screens
+    const viewportWidth = Math.round(containerRef.current?.clientWidth || window.innerWidth)
+    const viewportHeight = Math.round(containerRef.current?.clientHeight || window.innerHeight)
+
+    return `${protocol}://${wsHost}${portSuffix}/websockify/${sessionId}?viewport=${viewportWidth}x${viewportHeight}`
   }, [])
 
   // Expose methods and RFB instance to parent components
@@ -71,7 +161,10 @@ export const VNCCanvas = forwardRef<VNCCanvasRef, VNCCanvasProps>(({
       }
     },
     sendClipboard: (text: string) => {
-      if (rfbRef.current) {
+      const control = channelRef.current?.socket
+      if (text.length > CLIPBOARD_INLINE_CHARS && control && control.readyState === WebSocket.OPEN) {
+        streamClipboard(control, text)
+      } else if (rfbRef.current) {
         rfbRef.current.clipboardPasteFrom(text)
       }
     },
@@ -130,8 +223,11 @@ export const VNCCanvas = forwardRef<VNCCanvasRef, VNCCanvasProps>(({
           return
         }
 
-        // Create new RFB connection
-        const rfb = new RFB(containerRef.current, url, {
+        // Create new RFB connection, on a WebSocket that also carries control messages
+        const channel = new MultiplexedChannel(new WebSocket(url))
+        channel.onControl = (message) => controlHandlerRef.current?.(message)
+        channelRef.current = channel
+        const rfb = new RFB(containerRef.current, channel as unknown as WebSocket, {
           credentials: { 
             username: "",
             password: password || "",
@@ -187,9 +283,112 @@ export const VNCCanvas = forwardRef<VNCCanvasRef, VNCCanvasProps>(({
         rfbRef.current.disconnect()
         rfbRef.current = null
       }
+      channelRef.current = null
     }
   }, [isConnected, host, port, password, viewOnly, sessionId, onConnectionChange, buildWebSocketUrl])
 
+  // Report the visible part of the remote framebuffer in control messages, so the proxy only
+  // requests updates for what is on screen (zoomed in, scrolled, or pinch-zoomed)
+  useEffect(() => {
+    if (typeof window === "undefined" || !isConnected || !sessionId) return
+
+    let lastReport = ""
+    let frame = 0
+
+    const reportViewport = () => {
+      frame = 0
+      const container = containerRef.current
+      const canvas = container?.querySelector("canvas")
+      const control = channelRef.current?.socket
+      if (!container || !canvas || !canvas.width || !control || control.readyState !== WebSocket.OPEN) return
+
+      const canvasRect = canvas.getBoundingClientRect()
+      const containerRect = container.getBoundingClientRect()
+      const visual = window.visualViewport
+      const left = Math.max(canvasRect.left, containerRect.left, visual ? visual.offsetLeft : 0)
+      const top = Math.max(canvasRect.top, containerRect.top, visual ? visual.offsetTop : 0)
+      const right = Math.min(canvasRect.right, containerRect.right,
+        visual ? visual.offsetLeft + visual.width : window.innerWidth)
+      const bottom = Math.min(canvasRect.bottom, containerRect.bottom,
+        visual ? visual.offsetTop + visual.height : window.innerHeight)
+      if (right <= left || bottom <= top) return
+
+      // CSS pixels to framebuffer pixels
+      const scaleX = canvas.width / canvasRect.width
+      const scaleY = canvas.height / canvasRect.height
+      const x = Math.floor((left - canvasRect.left) * scaleX)
+      const y = Math.floor((top - canvasRect.top) * scaleY)
+      const width = Math.ceil((right - canvasRect.left) * scaleX) - x
+      const height = Math.ceil((bottom - canvasRect.top) * scaleY) - y
+      const report = `viewport ${x} ${y} ${width} ${height}`
+      if (report !== lastReport) {
+        lastReport = report
+        control.send(report)
+      }
+    }
+
+    const scheduleReport = () => {
+      if (!frame) {
+        frame = window.requestAnimationFrame(reportViewport)
+      }
+    }
+
+    // Large clipboard text from the remote desktop arrives in chunks
+    let incoming: { id: string, parts: string[] } | null = null
+    controlHandlerRef.current = (message: string) => {
+      const [type, id = ""] = message.split(" ", 2)
+      switch (type) {
+        case "clipboard-begin":
+          incoming = { id, parts: [] }
+          break
+        case "clipboard-chunk":
+          if (incoming?.id === id) {
+            // The text is everything after the ID, spaces included
+            incoming.parts.push(message.slice(type.length + id.length + 2))
+          }
+          break
+        case "clipboard-end":
+          if (incoming?.id === id) {
+            const text = incoming.parts.join("")
+            incoming = null
+            navigator.clipboard?.writeText(text).catch((error) => {
+              console.warn("Could not copy remote clipboard:", error)
+            })
+          }
+          break
+        case "clipboard-notice":
+          console.warn(message.slice(type.length + 1))
+          break
+      }
+    }
+    const observer = new ResizeObserver(scheduleReport)
+    if (containerRef.current) {
+      observer.observe(containerRef.current)
+    }
+    // noVNC replaces the canvas size on DesktopSize, which changes the mapping
+    const mutations = new MutationObserver(scheduleReport)
+    if (containerRef.current) {
+      mutations.observe(containerRef.current, { subtree: true, attributes: true, attributeFilter: ["width", "height", "style"] })
+    }
+    window.addEventListener("resize", scheduleReport)
+    window.addEventListener("scroll", scheduleReport, true)
+    window.visualViewport?.addEventListener("resize", scheduleReport)
+    window.visualViewport?.addEventListener("scroll", scheduleReport)
+
+    return () => {
+      if (frame) {
+        window.cancelAnimationFrame(frame)
+      }
+      observer.disconnect()
+      mutations.disconnect()
+      window.removeEventListener("resize", scheduleReport)
+      window.removeEventListener("scroll", scheduleReport, true)
+      window.visualViewport?.removeEventListener("resize", scheduleReport)
+      window.visualViewport?.removeEventListener("scroll", scheduleReport)
+      controlHandlerRef.current = null
+    }
+  }, [isConnected, sessionId])
+
   // Handle view-only mode changes
   useEffect(() => {
     if (rfbRef.current) {
@@ -82,7 +82,7 @@ export default function VNCClient({ username, onLogout, sessionId }: VNCClientPr
   const handlePaste = useCallback(async () => {
     try {
       const text = await navigator.clipboard.readText()
-      vncRef.current?.rfb?.clipboardPasteFrom(text)
+      vncRef.current?.sendClipboard(text)
     } catch (err) {
       console.error("Failed to paste to clipboard:", err)
     }
@@ -129,7 +129,7 @@ export default function VNCClient({ username, onLogout, sessionId }: VNCClientPr
       return
     }
 
-    // Start WebSocket-based latency measurement (now includes proxy-to-VNC latency)
+    // Report the latency the proxy measures (WebSocket ping/pong and RFB fences)
     latencyService.connect(sessionId, (measurement) => {
       setLatencyDetails(measurement)
       // Use total end-to-end latency as the primary latency value
@@ -0,0 +1,81 @@
+package com.suko.vnc.bench;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A chunk read on one event loop and forwarded: on the same loop (WebSocket and VNC server socket
+ * pinned together) versus handed to another loop first (sockets on different loops)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VNCEventLoopAffinityBenchmark {
+
+    private Vertx vertx;
+    private Context reader;
+    private Context writer;
+    private Buffer chunk;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(2));
+        reader = vertx.getOrCreateContext();
+        Thread readerThread = threadOf(reader);
+        do {
+            // Contexts are spread over the loops round-robin
+            writer = vertx.getOrCreateContext();
+        } while (threadOf(writer) == readerThread);
+        chunk = Buffer.buffer(new byte[16 * 1024]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public int sameLoop() {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        reader.runOnContext(v -> done.complete(forward(chunk)));
+        return done.join();
+    }
+
+    @Benchmark
+    public int crossLoop() {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        reader.runOnContext(v -> writer.runOnContext(w -> done.complete(forward(chunk))));
+        return done.join();
+    }
+
+    private static int forward(Buffer data) {
+        return data.getInt(0) + data.length();
+    }
+
+    private static Thread threadOf(Context context) throws Exception {
+        CompletableFuture<Thread> thread = new CompletableFuture<>();
+        context.runOnContext(v -> thread.complete(Thread.currentThread()));
+        return thread.get();
+    }
+}
@@ -0,0 +1,104 @@
+package com.suko.vnc.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.suko.vnc.pixel.VNCPixelKernels;
+import com.suko.vnc.rfb.VNCPixelFormat;
+
+/**
+ * Scalar versus vector pixel kernels over a full 1080p frame
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class VNCPixelKernelsBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int TILE = 64;
+    private static final int STRIDE = WIDTH * 4;
+
+    private static final VNCPixelFormat RGB888 = VNCPixelFormat.RGB888;
+    private static final VNCPixelFormat RGB565 = VNCPixelFormat.RGB565;
+    private static final VNCPixelFormat BGR233 = VNCPixelFormat.BGR233;
+
+    @Param({ "scalar", "vector" })
+    String kernels;
+
+    private VNCPixelKernels impl;
+    private byte[] frame;
+    private byte[] previous;
+    private byte[] reduced;
+    private byte[] out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        impl = "vector".equals(kernels) ? VNCPixelKernels.vector() : VNCPixelKernels.scalar();
+        frame = new byte[WIDTH * HEIGHT * 4];
+        new Random(7).nextBytes(frame);
+        previous = frame.clone();
+        reduced = frame.clone();
+        out = new byte[WIDTH * HEIGHT * 2];
+    }
+
+    @Benchmark
+    public byte[] convertTo16() {
+        impl.convert32To16(frame, 0, out, 0, WIDTH * HEIGHT, RGB888, RGB565);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] convertTo8() {
+        impl.convert32To8(frame, 0, out, 0, WIDTH * HEIGHT, RGB888, BGR233);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] reduceTo16BitColour() {
+        impl.reduce32(reduced, 0, WIDTH * HEIGHT, RGB888, RGB565);
+        return reduced;
+    }
+
+    @Benchmark
+    public void tileEquals(Blackhole bh) {
+        for (int y = 0; y + TILE <= HEIGHT; y += TILE) {
+            for (int x = 0; x + TILE <= WIDTH; x += TILE) {
+                int offset = y * STRIDE + x * 4;
+                bh.consume(impl.tileEquals(frame, offset, previous, offset, STRIDE, TILE * 4, TILE));
+            }
+        }
+    }
+
+    @Benchmark
+    public void tileHash(Blackhole bh) {
+        for (int y = 0; y + TILE <= HEIGHT; y += TILE) {
+            for (int x = 0; x + TILE <= WIDTH; x += TILE) {
+                bh.consume(impl.tileHash(frame, y * STRIDE + x * 4, STRIDE, TILE * 4, TILE));
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] downscale2x() {
+        impl.downscale2x(frame, 0, STRIDE, out, 0, WIDTH * 2, WIDTH / 2, HEIGHT / 2);
+        return out;
+    }
+}
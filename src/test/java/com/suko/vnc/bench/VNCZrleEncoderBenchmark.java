@@ -0,0 +1,92 @@
+package com.suko.vnc.bench;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.suko.vnc.rfb.VNCPixelFormat;
+import com.suko.vnc.rfb.VNCZrleEncoder;
+
+/**
+ * Full-screen 4K ZRLE encoding on the calling thread versus the encoder pool at 1/2/4/8 workers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VNCZrleEncoderBenchmark {
+
+    private static final int WIDTH = 3840;
+    private static final int HEIGHT = 2160;
+    private static final VNCPixelFormat FORMAT = new VNCPixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+
+    @Param({ "1", "2", "4", "8" })
+    int parallelism;
+
+    private byte[] pixels;
+    private ForkJoinPool pool;
+    private VNCZrleEncoder encoder;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pixels = desktopLikeFrame();
+        pool = new ForkJoinPool(parallelism);
+        encoder = new VNCZrleEncoder(2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] sequential() {
+        return encoder.encode(pixels, WIDTH, HEIGHT, FORMAT);
+    }
+
+    @Benchmark
+    public byte[] parallel() {
+        return encoder.encodeAsync(pixels, WIDTH, HEIGHT, FORMAT, pool).join();
+    }
+
+    /**
+     * Flat areas, gradients and noisy "photo" regions, roughly what a desktop looks like
+     */
+    private static byte[] desktopLikeFrame() {
+        Random random = new Random(42);
+        byte[] frame = new byte[WIDTH * HEIGHT * 4];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel;
+                if (y < 40 || x < 300) {
+                    pixel = 0x303030;
+                } else if (x > 2400 && y > 600 && y < 1800) {
+                    pixel = random.nextInt(0x1000000);
+                } else {
+                    pixel = (x / 8) << 16 | (y / 8) << 8 | 0x80;
+                }
+                int i = (y * WIDTH + x) * 4;
+                frame[i] = (byte) pixel;
+                frame[i + 1] = (byte) (pixel >> 8);
+                frame[i + 2] = (byte) (pixel >> 16);
+            }
+        }
+        return frame;
+    }
+}
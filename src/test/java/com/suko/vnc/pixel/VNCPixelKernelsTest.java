@@ -0,0 +1,161 @@
+package com.suko.vnc.pixel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.suko.vnc.rfb.VNCPixelFormat;
+
+/**
+ * Vector kernels against the scalar ones on random input with odd lengths, offsets and strides
+ */
+class VNCPixelKernelsTest {
+
+    private static final int RUNS = 300;
+
+    private static final VNCPixelFormat RGB888_BE = new VNCPixelFormat(32, 24, true, true, 255, 255, 255, 16, 8, 0);
+    private static final VNCPixelFormat BGR888 = new VNCPixelFormat(32, 24, false, true, 255, 255, 255, 0, 8, 16);
+    private static final VNCPixelFormat RGB565_BE = new VNCPixelFormat(16, 16, true, true, 31, 63, 31, 11, 5, 0);
+    private static final VNCPixelFormat RGB555 = new VNCPixelFormat(16, 15, false, true, 31, 31, 31, 10, 5, 0);
+
+    private static final VNCPixelFormat[] SOURCES = { VNCPixelFormat.RGB888, RGB888_BE, BGR888 };
+    private static final VNCPixelFormat[] TARGETS_16 = { VNCPixelFormat.RGB565, RGB565_BE, RGB555 };
+
+    private final Random random = new Random(1234);
+    private final VNCPixelKernels scalar = VNCPixelKernels.scalar();
+    private VNCPixelKernels vector;
+
+    @BeforeEach
+    void setUp() {
+        try {
+            vector = VNCPixelKernels.vector();
+        } catch (UnsupportedOperationException e) {
+            assumeTrue(false, e.getMessage());
+        }
+    }
+
+    @Test
+    void convert32To16MatchesInBothEndiannesses() {
+        for (int run = 0; run < RUNS; run++) {
+            VNCPixelFormat from = SOURCES[run % SOURCES.length];
+            VNCPixelFormat to = TARGETS_16[run / SOURCES.length % TARGETS_16.length];
+            int pixels = length();
+            int srcOffset = random.nextInt(7);
+            int dstOffset = random.nextInt(5);
+            byte[] src = bytes(srcOffset + pixels * 4 + random.nextInt(9));
+            byte[] expected = bytes(dstOffset + pixels * 2 + 3);
+            byte[] actual = expected.clone();
+            scalar.convert32To16(src, srcOffset, expected, dstOffset, pixels, from, to);
+            vector.convert32To16(src, srcOffset, actual, dstOffset, pixels, from, to);
+            assertArrayEquals(expected, actual, from + " -> " + to + ", " + pixels + " pixels");
+        }
+    }
+
+    @Test
+    void convert32To8MatchesInBothEndiannesses() {
+        for (int run = 0; run < RUNS; run++) {
+            VNCPixelFormat from = SOURCES[run % SOURCES.length];
+            int pixels = length();
+            int srcOffset = random.nextInt(7);
+            int dstOffset = random.nextInt(5);
+            byte[] src = bytes(srcOffset + pixels * 4 + random.nextInt(9));
+            byte[] expected = bytes(dstOffset + pixels + 3);
+            byte[] actual = expected.clone();
+            scalar.convert32To8(src, srcOffset, expected, dstOffset, pixels, from, VNCPixelFormat.BGR233);
+            vector.convert32To8(src, srcOffset, actual, dstOffset, pixels, from, VNCPixelFormat.BGR233);
+            assertArrayEquals(expected, actual, from + ", " + pixels + " pixels");
+        }
+    }
+
+    @Test
+    void reduce32Matches() {
+        VNCPixelFormat[] precisions = { VNCPixelFormat.RGB565, RGB555, VNCPixelFormat.BGR233 };
+        for (int run = 0; run < RUNS; run++) {
+            VNCPixelFormat format = SOURCES[run % SOURCES.length];
+            VNCPixelFormat precision = precisions[run / SOURCES.length % precisions.length];
+            int count = length();
+            int offset = random.nextInt(7);
+            byte[] expected = bytes(offset + count * 4 + random.nextInt(9));
+            byte[] actual = expected.clone();
+            scalar.reduce32(expected, offset, count, format, precision);
+            vector.reduce32(actual, offset, count, format, precision);
+            assertArrayEquals(expected, actual, format + " to " + precision + ", " + count + " pixels");
+        }
+    }
+
+    @Test
+    void tileEqualsMatchesWithADifferenceAnywhere() {
+        for (int run = 0; run < RUNS; run++) {
+            int rowBytes = 1 + random.nextInt(300);
+            int rows = 1 + random.nextInt(9);
+            int stride = rowBytes + random.nextInt(40);
+            int aOffset = random.nextInt(11);
+            int bOffset = random.nextInt(11);
+            byte[] a = bytes(aOffset + stride * rows);
+            byte[] b = bytes(bOffset + stride * rows);
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(a, aOffset + y * stride, b, bOffset + y * stride, rowBytes);
+            }
+            if (run % 3 != 0) {
+                // One changed byte, often in the scalar tail of a row
+                int x = run % 2 == 0 ? rowBytes - 1 - random.nextInt(Math.min(rowBytes, 32)) : random.nextInt(rowBytes);
+                b[bOffset + random.nextInt(rows) * stride + x] ^= (byte) (1 + random.nextInt(255));
+            }
+            boolean expected = scalar.tileEquals(a, aOffset, b, bOffset, stride, rowBytes, rows);
+            assertEquals(run % 3 == 0, expected);
+            assertEquals(expected, vector.tileEquals(a, aOffset, b, bOffset, stride, rowBytes, rows),
+                    rowBytes + " bytes x " + rows + " rows, stride " + stride);
+        }
+    }
+
+    @Test
+    void tileHashMatches() {
+        for (int run = 0; run < RUNS; run++) {
+            int rowBytes = random.nextInt(400);
+            int rows = 1 + random.nextInt(9);
+            int stride = rowBytes + random.nextInt(40);
+            int offset = random.nextInt(11);
+            byte[] pixels = bytes(offset + stride * rows);
+            assertEquals(scalar.tileHash(pixels, offset, stride, rowBytes, rows),
+                    vector.tileHash(pixels, offset, stride, rowBytes, rows),
+                    rowBytes + " bytes x " + rows + " rows, stride " + stride);
+        }
+    }
+
+    @Test
+    void downscale2xMatches() {
+        for (int run = 0; run < RUNS; run++) {
+            int dstWidth = random.nextInt(40);
+            int dstHeight = 1 + random.nextInt(6);
+            // Odd source sizes: the last column and row are dropped
+            int srcStride = (2 * dstWidth + random.nextInt(2)) * 4 + random.nextInt(13);
+            int dstStride = dstWidth * 4 + random.nextInt(13);
+            int srcOffset = random.nextInt(7);
+            int dstOffset = random.nextInt(7);
+            byte[] src = bytes(srcOffset + srcStride * (2 * dstHeight + random.nextInt(2)));
+            byte[] expected = bytes(dstOffset + dstStride * dstHeight);
+            byte[] actual = expected.clone();
+            scalar.downscale2x(src, srcOffset, srcStride, expected, dstOffset, dstStride, dstWidth, dstHeight);
+            vector.downscale2x(src, srcOffset, srcStride, actual, dstOffset, dstStride, dstWidth, dstHeight);
+            assertArrayEquals(expected, actual, dstWidth + "x" + dstHeight + ", strides " + srcStride + "/" + dstStride);
+        }
+    }
+
+    /**
+     * Pixel count with a vector part and a tail of any length, mostly odd
+     */
+    private int length() {
+        return random.nextInt(4) == 0 ? random.nextInt(8) : 1 + 2 * random.nextInt(100);
+    }
+
+    private byte[] bytes(int n) {
+        byte[] bytes = new byte[n];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
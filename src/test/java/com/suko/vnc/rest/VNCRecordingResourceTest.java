@@ -0,0 +1,86 @@
+package com.suko.vnc.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.suko.vnc.config.VNCProxyConfig;
+import com.suko.vnc.jfr.VNCFlightRecorder;
+import com.suko.vnc.security.VNCAuthService;
+
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Flight recordings cover every session on the node, so only operators may take them
+ */
+public class VNCRecordingResourceTest {
+
+    private static final String VIEWER_SESSION = "viewer-session";
+    private static final String OPERATOR_SESSION = "operator-session";
+
+    private VNCRecordingResource resource;
+
+    @BeforeEach
+    void setUp() {
+        resource = new VNCRecordingResource();
+        resource.authService = new VNCAuthService() {
+            @Override
+            public VNCSession getSession(String sessionId) {
+                switch (sessionId) {
+                    case VIEWER_SESSION: return new VNCSession(sessionId, "viewer", "127.0.0.1");
+                    case OPERATOR_SESSION: return new VNCSession(sessionId, "ops", "127.0.0.1");
+                    default: return null;
+                }
+            }
+        };
+        resource.config = new VNCProxyConfig() {
+            @Override
+            public boolean isJfrRecordingEnabled() {
+                return true;
+            }
+
+            @Override
+            public boolean isJfrOperator(String userId) {
+                return "ops".equals(userId);
+            }
+        };
+        resource.flightRecorder = new VNCFlightRecorder() {
+            @Override
+            public synchronized long start(long seconds) {
+                return 1;
+            }
+
+            @Override
+            public synchronized byte[] dump(long id) {
+                return new byte[0];
+            }
+
+            @Override
+            public synchronized Map<String, Object> status() {
+                return Map.of();
+            }
+        };
+    }
+
+    @Test
+    void nonOperatorSessionIsForbidden() {
+        assertEquals(403, resource.start(VIEWER_SESSION, 10L).getStatus());
+        assertEquals(403, resource.status(VIEWER_SESSION).getStatus());
+        assertEquals(403, resource.dump(1, VIEWER_SESSION).getStatus());
+    }
+
+    @Test
+    void invalidSessionIsUnauthorized() {
+        assertEquals(401, resource.status("expired").getStatus());
+    }
+
+    @Test
+    void operatorSessionMayRecord() {
+        Response started = resource.start(OPERATOR_SESSION, 10L);
+        assertEquals(200, started.getStatus());
+        assertEquals(200, resource.dump(1, OPERATOR_SESSION).getStatus());
+    }
+}
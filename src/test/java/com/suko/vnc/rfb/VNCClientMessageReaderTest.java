@@ -0,0 +1,140 @@
+package com.suko.vnc.rfb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Client stream framing when messages arrive split at arbitrary byte boundaries
+ */
+class VNCClientMessageReaderTest {
+
+    @Test
+    void everySingleSplitFramesTheSameMessages() {
+        Buffer stream = stream();
+        Recorder whole = feed(stream, new int[0]);
+        assertEquals(List.of(0, 2, 3, 4, 5, 4, 6, 248, 255, 255, 251, 150, 6), whole.types);
+        for (int cut = 1; cut < stream.length(); cut++) {
+            Recorder split = feed(stream, new int[] { cut });
+            assertEquals(whole.messages, split.messages, "split at " + cut);
+            assertEquals(whole.output, split.output, "split at " + cut);
+        }
+    }
+
+    @Test
+    void randomChunksFrameTheSameMessages() {
+        Buffer stream = stream();
+        Recorder whole = feed(stream, new int[0]);
+        Random random = new Random(11);
+        for (int run = 0; run < 200; run++) {
+            int[] cuts = random.ints(1 + random.nextInt(30), 1, stream.length()).sorted().distinct().toArray();
+            Recorder split = feed(stream, cuts);
+            assertEquals(whole.messages, split.messages, "run " + run);
+            assertEquals(whole.output, split.output, "run " + run);
+        }
+    }
+
+    @Test
+    void droppedAndRewrittenMessagesLeaveTheRestInOrder() {
+        Buffer stream = stream();
+        int[] cuts = new int[stream.length() - 1];
+        for (int i = 0; i < cuts.length; i++) {
+            cuts[i] = i + 1;
+        }
+        Recorder split = feed(stream, cuts);
+        Buffer expected = Buffer.buffer();
+        for (Buffer message : split.messages) {
+            int type = message.getUnsignedByte(0);
+            if (type == VNCClientMessageReader.POINTER_EVENT) {
+                continue;
+            }
+            expected.appendBuffer(type == VNCClientMessageReader.KEY_EVENT ? Recorder.rewritten(message) : message);
+        }
+        assertEquals(expected, split.output);
+    }
+
+    private static Recorder feed(Buffer stream, int[] cuts) {
+        Recorder recorder = new Recorder();
+        VNCClientMessageReader reader = new VNCClientMessageReader(recorder);
+        int start = 0;
+        for (int cut : cuts) {
+            reader.feed(stream.getBuffer(start, cut));
+            start = cut;
+        }
+        reader.feed(stream.getBuffer(start, stream.length()));
+        assertFalse(reader.isPassthrough());
+        return recorder;
+    }
+
+    private static Buffer stream() {
+        Buffer stream = Buffer.buffer();
+        VNCPixelFormat.RGB565.write(stream.appendUnsignedByte((short) VNCClientMessageReader.SET_PIXEL_FORMAT).appendBytes(new byte[3]));
+        stream.appendUnsignedByte((short) VNCClientMessageReader.SET_ENCODINGS).appendByte((byte) 0).appendUnsignedShort(3)
+                .appendInt(VNCEncodings.ZRLE).appendInt(VNCEncodings.RAW).appendInt(VNCEncodings.LAST_RECT);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.FRAMEBUFFER_UPDATE_REQUEST).appendByte((byte) 1)
+                .appendUnsignedShort(0).appendUnsignedShort(0).appendUnsignedShort(800).appendUnsignedShort(600);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.KEY_EVENT).appendByte((byte) 1).appendUnsignedShort(0).appendInt(0x61);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.POINTER_EVENT).appendByte((byte) 1)
+                .appendUnsignedShort(10).appendUnsignedShort(20);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.KEY_EVENT).appendByte((byte) 0).appendUnsignedShort(0).appendInt(0x61);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.CLIENT_CUT_TEXT).appendBytes(new byte[3])
+                .appendInt(5).appendString("paste");
+        stream.appendUnsignedByte((short) VNCClientMessageReader.CLIENT_FENCE).appendBytes(new byte[3])
+                .appendInt(0).appendUnsignedByte((short) 4).appendInt(0x12345678);
+        // QEMU extended key event and audio
+        stream.appendUnsignedByte((short) VNCClientMessageReader.QEMU).appendByte((byte) 0).appendUnsignedShort(1)
+                .appendInt(0x61).appendInt(30);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.QEMU).appendByte((byte) 1).appendUnsignedShort(0);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.SET_DESKTOP_SIZE).appendByte((byte) 0)
+                .appendUnsignedShort(1024).appendUnsignedShort(768).appendUnsignedByte((short) 1).appendByte((byte) 0)
+                .appendInt(0).appendUnsignedShort(0).appendUnsignedShort(0).appendUnsignedShort(1024)
+                .appendUnsignedShort(768).appendInt(0);
+        stream.appendUnsignedByte((short) VNCClientMessageReader.ENABLE_CONTINUOUS_UPDATES).appendByte((byte) 1)
+                .appendUnsignedShort(0).appendUnsignedShort(0).appendUnsignedShort(800).appendUnsignedShort(600);
+        // Extended clipboard sends a negative length
+        stream.appendUnsignedByte((short) VNCClientMessageReader.CLIENT_CUT_TEXT).appendBytes(new byte[3])
+                .appendInt(-4).appendInt(0x01000001);
+        return stream;
+    }
+
+    /**
+     * Drops pointer events and rewrites key events, forwarding everything else unchanged
+     */
+    private static class Recorder implements VNCClientMessageReader.Listener {
+
+        final List<Integer> types = new ArrayList<>();
+        final List<Buffer> messages = new ArrayList<>();
+        final Buffer output = Buffer.buffer();
+
+        @Override
+        public Buffer onMessage(int type, Buffer message) {
+            types.add(type);
+            messages.add(message.copy());
+            if (type == VNCClientMessageReader.POINTER_EVENT) {
+                return null;
+            }
+            return type == VNCClientMessageReader.KEY_EVENT ? rewritten(message) : message;
+        }
+
+        @Override
+        public void forward(Buffer data) {
+            output.appendBuffer(data);
+        }
+
+        @Override
+        public void onDesync(String reason) {
+            types.add(-1);
+        }
+
+        static Buffer rewritten(Buffer keyEvent) {
+            return keyEvent.copy().setInt(4, 0x62);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.suko.vnc.rfb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Server stream framing when messages arrive split at arbitrary byte boundaries
+ */
+class VNCServerMessageReaderTest {
+
+    @Test
+    void everySingleSplitFramesTheSameMessages() {
+        Buffer stream = stream();
+        Recorder whole = feed(stream, new int[0]);
+        assertEquals(stream, whole.output);
+        for (int cut = 1; cut < stream.length(); cut++) {
+            Recorder split = feed(stream, new int[] { cut });
+            assertEquals(whole.events, split.events, "split at " + cut);
+            assertEquals(stream, split.output, "split at " + cut);
+        }
+    }
+
+    @Test
+    void randomChunksFrameTheSameMessages() {
+        Buffer stream = stream();
+        Recorder whole = feed(stream, new int[0]);
+        Random random = new Random(7);
+        for (int run = 0; run < 200; run++) {
+            int[] cuts = random.ints(1 + random.nextInt(40), 1, stream.length()).sorted().distinct().toArray();
+            Recorder split = feed(stream, cuts);
+            assertEquals(whole.events, split.events, "run " + run);
+            assertEquals(stream, split.output, "run " + run);
+        }
+    }
+
+    @Test
+    void collectedRectangleIsReassembledFromSingleBytes() {
+        Buffer stream = stream();
+        Recorder whole = feed(stream, new int[0], true);
+        int[] cuts = new int[stream.length() - 1];
+        for (int i = 0; i < cuts.length; i++) {
+            cuts[i] = i + 1;
+        }
+        Recorder split = feed(stream, cuts, true);
+        assertEquals(whole.events, split.events);
+        assertEquals(stream, split.output);
+    }
+
+    private static Recorder feed(Buffer stream, int[] cuts) {
+        return feed(stream, cuts, false);
+    }
+
+    private static Recorder feed(Buffer stream, int[] cuts, boolean collectRaw) {
+        Recorder recorder = new Recorder(collectRaw);
+        VNCServerMessageReader reader = new VNCServerMessageReader(recorder);
+        int start = 0;
+        for (int cut : cuts) {
+            reader.feed(stream.getBuffer(start, cut));
+            start = cut;
+        }
+        reader.feed(stream.getBuffer(start, stream.length()));
+        assertFalse(reader.isPassthrough());
+        return recorder;
+    }
+
+    /**
+     * ServerInit followed by an update with one rectangle of each framing kind and a few other messages
+     */
+    private static Buffer stream() {
+        Random random = new Random(3);
+        Buffer stream = Buffer.buffer();
+        stream.appendUnsignedShort(800).appendUnsignedShort(600);
+        VNCPixelFormat.RGB888.write(stream);
+        stream.appendUnsignedInt(4).appendString("test");
+
+        stream.appendUnsignedByte((short) VNCServerMessageReader.FRAMEBUFFER_UPDATE).appendByte((byte) 0).appendUnsignedShort(8);
+        rect(stream, 5, 3, VNCEncodings.RAW).appendBytes(bytes(random, 5 * 3 * 4));
+        rect(stream, 10, 10, VNCEncodings.COPY_RECT).appendUnsignedShort(1).appendUnsignedShort(2);
+        rect(stream, 20, 20, VNCEncodings.ZRLE).appendUnsignedInt(33).appendBytes(bytes(random, 33));
+        // Two 16x16 hextile tiles: one raw, one with background and two coloured subrects
+        rect(stream, 32, 16, VNCEncodings.HEXTILE)
+                .appendByte((byte) 0x01).appendBytes(bytes(random, 16 * 16 * 4))
+                .appendByte((byte) (0x02 | 0x08 | 0x10)).appendBytes(bytes(random, 4)).appendByte((byte) 2)
+                .appendBytes(bytes(random, 2 * (4 + 2)));
+        // Tight fill, and basic compression with a compact length above 127
+        rect(stream, 64, 64, VNCEncodings.TIGHT).appendByte((byte) 0x80).appendBytes(bytes(random, 3));
+        rect(stream, 64, 64, VNCEncodings.TIGHT).appendByte((byte) 0x00)
+                .appendByte((byte) (200 & 0x7F | 0x80)).appendByte((byte) (200 >> 7)).appendBytes(bytes(random, 200));
+        rect(stream, 4, 2, VNCEncodings.CURSOR).appendBytes(bytes(random, 4 * 2 * 4 + 2));
+        rect(stream, 0, 0, VNCEncodings.LAST_RECT);
+
+        stream.appendUnsignedByte((short) VNCServerMessageReader.BELL);
+        stream.appendUnsignedByte((short) VNCServerMessageReader.SERVER_CUT_TEXT).appendBytes(new byte[3])
+                .appendInt(11).appendString("hello world");
+        stream.appendUnsignedByte((short) VNCServerMessageReader.SERVER_FENCE).appendBytes(new byte[3])
+                .appendInt(0).appendUnsignedByte((short) 5).appendBytes(bytes(random, 5));
+        stream.appendUnsignedByte((short) VNCServerMessageReader.FRAMEBUFFER_UPDATE).appendByte((byte) 0).appendUnsignedShort(1);
+        rect(stream, 3, 1, VNCEncodings.RAW).appendBytes(bytes(random, 3 * 4));
+        return stream;
+    }
+
+    private static Buffer rect(Buffer stream, int width, int height, int encoding) {
+        return stream.appendUnsignedShort(0).appendUnsignedShort(0)
+                .appendUnsignedShort(width).appendUnsignedShort(height).appendInt(encoding);
+    }
+
+    private static byte[] bytes(Random random, int n) {
+        byte[] bytes = new byte[n];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes ServerInit and collected payloads back in place so the output can be compared to the input
+     */
+    private static class Recorder implements VNCServerMessageReader.Listener {
+
+        final List<String> events = new ArrayList<>();
+        final Buffer output = Buffer.buffer();
+        private final boolean collectRaw;
+
+        Recorder(boolean collectRaw) {
+            this.collectRaw = collectRaw;
+        }
+
+        @Override
+        public void forward(Buffer data) {
+            output.appendBuffer(data);
+        }
+
+        @Override
+        public void onServerInit(Buffer message, VNCPixelFormat format, int width, int height) {
+            events.add("init " + width + "x" + height);
+            output.appendBuffer(message);
+        }
+
+        @Override
+        public VNCServerMessageReader.Action onUpdateBegin(int rectCount) {
+            events.add("update " + rectCount);
+            return VNCServerMessageReader.Action.FORWARD;
+        }
+
+        @Override
+        public VNCServerMessageReader.Action onRect(int x, int y, int width, int height, int encoding) {
+            events.add("rect " + width + "x" + height + " " + encoding);
+            if (collectRaw && encoding == VNCEncodings.RAW) {
+                return VNCServerMessageReader.Action.COLLECT;
+            }
+            return VNCServerMessageReader.Action.FORWARD;
+        }
+
+        @Override
+        public void onRectCollected(int x, int y, int width, int height, int encoding, Buffer payload) {
+            events.add("collected " + payload.length());
+            output.appendUnsignedShort(x).appendUnsignedShort(y).appendUnsignedShort(width)
+                    .appendUnsignedShort(height).appendInt(encoding).appendBuffer(payload);
+        }
+
+        @Override
+        public void onUpdateEnd() {
+            events.add("end");
+        }
+
+        @Override
+        public VNCServerMessageReader.Action onMessage(int type, long length) {
+            events.add("message " + type + " " + length);
+            return VNCServerMessageReader.Action.FORWARD;
+        }
+
+        @Override
+        public void onDesync(String reason) {
+            events.add("desync " + reason);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.suko.vnc.rfb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Consecutive ZRLE rectangles inflated as one zlib stream, the way a client decodes them
+ */
+class VNCZrleEncoderTest {
+
+    private final Random random = new Random(42);
+    private ForkJoinPool pool;
+    private Inflater inflater;
+
+    @BeforeEach
+    void setUp() {
+        pool = new ForkJoinPool(4);
+        inflater = new Inflater();
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+        inflater.end();
+    }
+
+    @Test
+    void consecutiveRectanglesDecodeThroughOneInflater() throws Exception {
+        VNCZrleEncoder encoder = new VNCZrleEncoder(6);
+        VNCPixelFormat format = VNCPixelFormat.RGB888;
+        // Partial tiles at the right and bottom edges, short rectangles that lean on the history
+        int[][] sizes = { { 150, 130 }, { 64, 64 }, { 300, 20 }, { 1, 1 }, { 97, 200 }, { 70, 3 } };
+        for (int i = 0; i < sizes.length; i++) {
+            int width = sizes[i][0];
+            int height = sizes[i][1];
+            byte[] pixels = pixels(width, height, format);
+            byte[] payload = i % 2 == 0
+                    ? encoder.encode(pixels, width, height, format)
+                    : encoder.encodeAsync(pixels, width, height, format, pool).get();
+            assertTiles(pixels, width, height, format, inflate(payload));
+        }
+        assertTrue(encoder.isStreamStarted());
+    }
+
+    @Test
+    void rectanglesLargerThanTheWindowKeepTheStreamInSync() throws Exception {
+        VNCZrleEncoder encoder = new VNCZrleEncoder(1);
+        VNCPixelFormat format = VNCPixelFormat.RGB565;
+        for (int i = 0; i < 3; i++) {
+            byte[] pixels = pixels(640, 400, format);
+            byte[] payload = i == 1
+                    ? encoder.encode(pixels, 640, 400, format)
+                    : encoder.encodeAsync(pixels, 640, 400, format, pool).get();
+            assertTiles(pixels, 640, 400, format, inflate(payload));
+        }
+    }
+
+    /**
+     * Random pixels with some solid tiles in between
+     */
+    private byte[] pixels(int width, int height, VNCPixelFormat format) {
+        int bpp = format.bytesPerPixel();
+        byte[] pixels = new byte[width * height * bpp];
+        random.nextBytes(pixels);
+        byte[] solid = new byte[bpp];
+        random.nextBytes(solid);
+        for (int top = 0; top < height; top += VNCZrleEncoder.TILE_SIZE) {
+            for (int left = 0; left < width; left += 2 * VNCZrleEncoder.TILE_SIZE) {
+                for (int y = top; y < Math.min(height, top + VNCZrleEncoder.TILE_SIZE); y++) {
+                    for (int x = left; x < Math.min(width, left + VNCZrleEncoder.TILE_SIZE); x++) {
+                        System.arraycopy(solid, 0, pixels, (y * width + x) * bpp, bpp);
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private byte[] inflate(byte[] payload) throws DataFormatException {
+        int length = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+        assertEquals(payload.length - 4, length);
+        inflater.setInput(payload, 4, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!inflater.needsInput()) {
+            int n = inflater.inflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Walk the decoded tiles (solid or raw only) and compare them with the input pixels
+     */
+    private static void assertTiles(byte[] pixels, int width, int height, VNCPixelFormat format, byte[] decoded) {
+        int bpp = format.bytesPerPixel();
+        int cpixel = format.compactPixelSize();
+        int offset = format.compactPixelOffset();
+        int o = 0;
+        for (int top = 0; top < height; top += VNCZrleEncoder.TILE_SIZE) {
+            int tileHeight = Math.min(VNCZrleEncoder.TILE_SIZE, height - top);
+            for (int left = 0; left < width; left += VNCZrleEncoder.TILE_SIZE) {
+                int tileWidth = Math.min(VNCZrleEncoder.TILE_SIZE, width - left);
+                int subencoding = decoded[o++];
+                assertTrue(subencoding == 0 || subencoding == 1, "subencoding " + subencoding);
+                for (int y = top; y < top + tileHeight; y++) {
+                    for (int x = left; x < left + tileWidth; x++) {
+                        int p = (y * width + x) * bpp + offset;
+                        int d = subencoding == 1 ? o : o + ((y - top) * tileWidth + x - left) * cpixel;
+                        assertArrayEquals(Arrays.copyOfRange(pixels, p, p + cpixel), Arrays.copyOfRange(decoded, d, d + cpixel),
+                                "pixel " + x + "," + y);
+                    }
+                }
+                o += subencoding == 1 ? cpixel : tileWidth * tileHeight * cpixel;
+            }
+        }
+        assertEquals(decoded.length, o);
+    }
+}
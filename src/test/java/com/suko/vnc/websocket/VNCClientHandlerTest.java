@@ -0,0 +1,101 @@
+package com.suko.vnc.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.websockets.next.WebSocketConnection;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mutiny.core.Vertx;
+
+/**
+ * Browser round trips measured with WebSocket pings
+ */
+public class VNCClientHandlerTest {
+
+    private Vertx vertx;
+    private VNCConnection connection;
+    private VNCClientHandler handler;
+    private final List<Buffer> pings = new ArrayList<>();
+    private long now = 1_000_000_000L;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        connection = new VNCConnection(null);
+        handler = new VNCClientHandler(pingRecordingConnection(), "test", connection, vertx);
+        handler.clock = () -> now;
+        // Probes are sent by the test, not the timer
+        handler.startRttProbes(Long.MAX_VALUE / 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        handler.close(1000, "test");
+        vertx.closeAndAwait();
+    }
+
+    @Test
+    void pongsAreSmoothedAsTcpDoes() {
+        assertEquals(20_000, roundTrip(20_000_000L));
+        assertEquals(20_000, connection.browserRtt.getSmoothedMicros());
+        assertEquals(10_000, connection.browserRtt.getJitterMicros());
+
+        // Gains 1/8 and 1/4: 20 + (100 - 20) / 8 and 10 + (80 - 10) / 4
+        roundTrip(100_000_000L);
+        assertEquals(30_000, connection.browserRtt.getSmoothedMicros());
+        assertEquals(27_500, connection.browserRtt.getJitterMicros());
+        assertEquals(100_000, connection.browserRtt.getLastMicros());
+        assertEquals(20_000, connection.browserRtt.getMinMicros());
+    }
+
+    @Test
+    void pongOfAnOlderPingIsIgnored() {
+        handler.sendPing();
+        Buffer stale = Buffer.buffer(8).appendLong(now - 1);
+        now += 5_000_000L;
+        handler.onPong(stale);
+        assertEquals(0, connection.browserRtt.getSmoothedMicros());
+
+        handler.onPong(lastPing());
+        assertEquals(5_000, connection.browserRtt.getSmoothedMicros());
+    }
+
+    /**
+     * Ping, let the given time pass and answer with the pong the browser would send
+     * @return the last recorded round trip in microseconds
+     */
+    private long roundTrip(long nanos) {
+        int before = pings.size();
+        handler.sendPing();
+        assertEquals(before + 1, pings.size(), "one ping sent");
+        now += nanos;
+        handler.onPong(lastPing());
+        return connection.browserRtt.getLastMicros();
+    }
+
+    private Buffer lastPing() {
+        return pings.get(pings.size() - 1).copy();
+    }
+
+    private WebSocketConnection pingRecordingConnection() {
+        return (WebSocketConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { WebSocketConnection.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendPing")) {
+                        pings.add(((Buffer) args[0]).copy());
+                    }
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    }
+                    return Uni.class.isAssignableFrom(type) ? Uni.createFrom().voidItem() : null;
+                });
+    }
+}
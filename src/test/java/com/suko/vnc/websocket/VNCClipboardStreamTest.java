@@ -0,0 +1,56 @@
+package com.suko.vnc.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Clipboard size limit and the conversions between text and cut-text messages
+ */
+public class VNCClipboardStreamTest {
+
+    private static final long MAX_BYTES = 10 * 1024 * 1024;
+
+    @Test
+    void limitOnlyAppliesWithStreaming() {
+        assertFalse(VNCClipboardStream.exceedsLimit(false, MAX_BYTES, 20 * 1024 * 1024), "passed on without streaming");
+        assertTrue(VNCClipboardStream.exceedsLimit(true, MAX_BYTES, 20 * 1024 * 1024));
+        assertFalse(VNCClipboardStream.exceedsLimit(true, MAX_BYTES, MAX_BYTES));
+        assertFalse(VNCClipboardStream.exceedsLimit(true, 0, 20 * 1024 * 1024), "0 means no limit");
+    }
+
+    @Test
+    void extendedClipboardCarriesTextOutsideLatin1() {
+        String text = "Grüße, 世界 😀";
+        assertFalse(VNCClipboardStream.isLatin1(text));
+
+        Buffer message = VNCClipboardStream.encodeClientCutText(text, true);
+        assertTrue(message.getInt(4) < 0, "extended messages have a negative length");
+        assertEquals(message.length() - 8, -message.getInt(4));
+        // Client and server cut text share the layout after the type
+        assertEquals(text, VNCClipboardStream.decodeServerCutText(message));
+    }
+
+    @Test
+    void plainClipboardIsLatin1() {
+        assertTrue(VNCClipboardStream.isLatin1("Grüße"));
+        Buffer message = VNCClipboardStream.encodeClientCutText("Grüße", false);
+        assertEquals(5, message.getInt(4));
+        assertEquals("Grüße", VNCClipboardStream.decodeServerCutText(message));
+    }
+
+    @Test
+    void capabilitiesAreRecognised() {
+        // Caps | provide | text, with the text size limit
+        Buffer caps = Buffer.buffer().appendByte((byte) 3).appendBytes(new byte[3]).appendInt(-8)
+                .appendInt(0x01000000 | 0x08000000 | 0x00000001).appendInt((int) MAX_BYTES);
+        assertTrue(VNCClipboardStream.isExtendedCapabilities(caps));
+
+        Buffer plain = Buffer.buffer().appendByte((byte) 3).appendBytes(new byte[3]).appendInt(4).appendString("text");
+        assertFalse(VNCClipboardStream.isExtendedCapabilities(plain));
+    }
+}
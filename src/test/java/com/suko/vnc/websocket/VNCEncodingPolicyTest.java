@@ -0,0 +1,40 @@
+package com.suko.vnc.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.suko.vnc.rfb.VNCEncodings;
+
+/**
+ * Rewrite of the client's SetEncodings by the encoding policy
+ */
+public class VNCEncodingPolicyTest {
+
+    private static VNCEncodingPolicy policy(int... inject) {
+        return new VNCEncodingPolicy(new int[0], inject, false, 1, 2, 0, 0);
+    }
+
+    @Test
+    void clientWithoutCursorOrDesktopSizeKeepsItsList() {
+        int[] client = {VNCEncodings.ZRLE, VNCEncodings.RAW};
+        assertArrayEquals(client, policy().apply(client));
+    }
+
+    @Test
+    void pseudoEncodingsTheProxyCannotTranslateAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> policy(VNCEncodings.CURSOR));
+        assertThrows(IllegalArgumentException.class, () -> policy(VNCEncodings.DESKTOP_SIZE));
+    }
+
+    @Test
+    void levelsAreOnlyInjectedWhenTheClientSentNone() {
+        int compress6 = VNCEncodings.parse("compress-level-6");
+        int[] bare = {VNCEncodings.ZRLE};
+        assertArrayEquals(new int[] {VNCEncodings.ZRLE, compress6}, policy(compress6).apply(bare));
+
+        int[] own = {VNCEncodings.ZRLE, VNCEncodings.COMPRESS_LEVEL_0 + 2};
+        assertArrayEquals(own, policy(compress6).apply(own));
+    }
+}
@@ -0,0 +1,35 @@
+package com.suko.vnc.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Choice of the downscale factor from the client's viewport in CSS pixels
+ */
+public class VNCFramebufferScalerTest {
+
+    @Test
+    void portraitPhoneOnALandscapeDesktopIsScaledByItsWidth() {
+        // 390x844 CSS pixels: the desktop is shown at about a fifth of its width
+        assertEquals(4, VNCFramebufferScaler.chooseFactor(1920, 1080, 390, 844, 4));
+        assertEquals(2, VNCFramebufferScaler.chooseFactor(1920, 1080, 390, 844, 2));
+    }
+
+    @Test
+    void landscapeTabletGetsTheFactorThatStillFillsIt() {
+        // 900x700: the desktop fits at 0.47, so half resolution loses nothing
+        assertEquals(2, VNCFramebufferScaler.chooseFactor(1920, 1080, 900, 700, 4));
+    }
+
+    @Test
+    void viewportNearTheDesktopSizeIsNotScaled() {
+        assertEquals(1, VNCFramebufferScaler.chooseFactor(1920, 1080, 1280, 1024, 4));
+        assertEquals(1, VNCFramebufferScaler.chooseFactor(1920, 1080, 2560, 1440, 4));
+    }
+
+    @Test
+    void unknownViewportIsNotScaled() {
+        assertEquals(1, VNCFramebufferScaler.chooseFactor(1920, 1080, 0, 0, 4));
+    }
+}
@@ -0,0 +1,202 @@
+package com.suko.vnc.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.mutiny.core.Vertx;
+
+/**
+ * Client-to-server scheduling: input overtakes batched bulk data and nothing is left batched
+ */
+public class VNCServerHandlerTest {
+
+    private static final int PASTE_SIZE = 4 * 1024 * 1024;
+
+    private Vertx vertx;
+    private VNCConnection connection;
+    private VNCServerHandler handler;
+    private final List<Buffer> writes = new ArrayList<>();
+    private final List<Thread> writeThreads = new ArrayList<>();
+    private final Map<Integer, CompletableFuture<Buffer>> pendingWrites = new HashMap<>();
+    private long now = 1_000_000_000L;
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        connection = new VNCConnection(null);
+        connection.vncSocket = recordingSocket();
+        // No Vert.x and no session context: nothing is flushed behind the test's back
+        handler = new VNCServerHandler("test", connection, "localhost", 5900, "", null);
+        handler.clock = () -> now;
+    }
+
+    @AfterEach
+    void tearDown() {
+        vertx.closeAndAwait();
+    }
+
+    @Test
+    void inputIsWrittenAheadOfAPaste() {
+        for (int i = 0; i < 50; i++) {
+            handler.sendData(cutText(PASTE_SIZE));
+            handler.sendData(updateRequest());
+            int before = writeCount();
+            handler.sendInput(keyEvent(i), true);
+            assertEquals(before + 1, writeCount(), "key event " + i + " is written before sendInput returns");
+            assertEquals(keyEvent(i), lastWrite());
+        }
+    }
+
+    @Test
+    void inputOvertakesBatchedBulkData() {
+        handler.sendData(cutText(PASTE_SIZE));
+        int before = writeCount();
+        handler.sendData(updateRequest());
+        assertEquals(before, writeCount(), "update request is batched");
+        handler.sendInput(keyEvent(1), true);
+
+        assertEquals(before + 1, writeCount());
+        assertEquals(keyEvent(1), lastWrite());
+        assertEquals(1, connection.inputFastLaneWrites);
+    }
+
+    @Test
+    void pointerMotionStaysInOrderWithTheClick() {
+        handler.sendData(updateRequest());
+        int before = writeCount();
+        handler.sendInput(pointerEvent(0, 10), false);
+        handler.sendInput(pointerEvent(0, 20), false);
+        assertEquals(before, writeCount(), "motion is batched");
+
+        handler.sendInput(pointerEvent(1, 20), true);
+        assertEquals(before + 1, writeCount());
+        assertEquals(pointerEvent(0, 10).appendBuffer(pointerEvent(0, 20)).appendBuffer(pointerEvent(1, 20)), lastWrite());
+    }
+
+    @Test
+    void pointerMotionGoesOutAtTheBatchDeadline() {
+        handler.sendData(updateRequest());
+        int before = writeCount();
+        handler.sendInput(pointerEvent(0, 10), false);
+        assertEquals(before, writeCount(), "motion is batched");
+
+        now += 2_000_000L;
+        handler.sendInput(pointerEvent(0, 20), false);
+        assertEquals(before + 1, writeCount(), "motion is written at the deadline without a timer");
+        assertEquals(pointerEvent(0, 10).appendBuffer(pointerEvent(0, 20)), lastWrite());
+    }
+
+    @Test
+    void batchedTailIsFlushedOnTheSessionContext() throws Exception {
+        Context context = vertx.getDelegate().getOrCreateContext();
+        connection.context = context;
+        handler = new VNCServerHandler("test", connection, "localhost", 5900, "", vertx);
+        handler.clock = () -> now;
+        // Batch on the context itself, so the timer cannot fire before the test has looked
+        CompletableFuture<Thread> contextThread = new CompletableFuture<>();
+        CompletableFuture<Integer> batched = new CompletableFuture<>();
+        context.runOnContext(v -> {
+            contextThread.complete(Thread.currentThread());
+            handler.sendData(cutText(PASTE_SIZE));
+            int writes = writeCount();
+            handler.sendData(updateRequest());
+            batched.complete(writeCount() == writes ? writes : -1);
+        });
+        int before = batched.get(5, TimeUnit.SECONDS);
+        assertTrue(before >= 0, "update request is batched");
+
+        Buffer tail = written(before).get(5, TimeUnit.SECONDS);
+        assertEquals(updateRequest(), tail);
+        assertEquals(1, connection.tailFlushes);
+        synchronized (writes) {
+            assertSame(contextThread.get(5, TimeUnit.SECONDS), writeThreads.get(before));
+        }
+    }
+
+    /**
+     * Completes with the write at this index once it happens
+     */
+    private CompletableFuture<Buffer> written(int index) {
+        CompletableFuture<Buffer> future = new CompletableFuture<>();
+        synchronized (writes) {
+            if (writes.size() > index) {
+                future.complete(writes.get(index));
+            } else {
+                pendingWrites.put(index, future);
+            }
+        }
+        return future;
+    }
+
+    private NetSocket recordingSocket() {
+        return (NetSocket) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { NetSocket.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("write") && args != null && args.length == 1 && args[0] instanceof Buffer) {
+                        synchronized (writes) {
+                            writeThreads.add(Thread.currentThread());
+                            writes.add(((Buffer) args[0]).copy());
+                            CompletableFuture<Buffer> pending = pendingWrites.remove(writes.size() - 1);
+                            if (pending != null) {
+                                pending.complete(writes.get(writes.size() - 1));
+                            }
+                        }
+                        return Future.succeededFuture();
+                    }
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    }
+                    if (type == int.class || type == long.class) {
+                        return 0;
+                    }
+                    return Future.class.isAssignableFrom(type) ? Future.succeededFuture() : null;
+                });
+    }
+
+    private int writeCount() {
+        synchronized (writes) {
+            return writes.size();
+        }
+    }
+
+    private Buffer lastWrite() {
+        synchronized (writes) {
+            return writes.get(writes.size() - 1);
+        }
+    }
+
+    private static Buffer keyEvent(int key) {
+        return Buffer.buffer().appendByte((byte) 4).appendByte((byte) 1).appendShort((short) 0).appendInt(key);
+    }
+
+    private static Buffer pointerEvent(int buttons, int x) {
+        return Buffer.buffer().appendByte((byte) 5).appendByte((byte) buttons).appendUnsignedShort(x).appendUnsignedShort(0);
+    }
+
+    private static Buffer updateRequest() {
+        return Buffer.buffer().appendByte((byte) 3).appendByte((byte) 1)
+                .appendUnsignedShort(0).appendUnsignedShort(0).appendUnsignedShort(100).appendUnsignedShort(100);
+    }
+
+    private static Buffer cutText(int length) {
+        return Buffer.buffer(8 + length).appendByte((byte) 6).appendBytes(new byte[3]).appendInt(length)
+                .appendBytes(new byte[length]);
+    }
+}
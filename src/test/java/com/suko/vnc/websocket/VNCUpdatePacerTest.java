@@ -0,0 +1,57 @@
+package com.suko.vnc.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * What pacing saves the server, from the client's request cycle
+ */
+public class VNCUpdatePacerTest {
+
+    private static final long MILLIS = 1_000_000;
+    private static final VNCRect SCREEN = new VNCRect(0, 0, 1920, 1080);
+
+    @Test
+    void heldRequestsCountTheUpdatesTheyAvoided() {
+        // 10 fps against a client that asks again 10 ms after each forwarded request
+        VNCUpdatePacer pacer = new VNCUpdatePacer(10);
+        long now = 0;
+        assertEquals(0, pacer.offer(SCREEN, true, now));
+        for (int i = 0; i < 10; i++) {
+            now += 10 * MILLIS;
+            long delay = pacer.offer(SCREEN, true, now);
+            assertEquals(90 * MILLIS, delay);
+            now += delay;
+            pacer.release(now);
+        }
+        // Each 90 ms hold is nine 10 ms cycles the server was not asked for
+        assertEquals(90, pacer.getUpdatesAvoided());
+        assertEquals(900, pacer.getHeldNanos() / MILLIS);
+        assertEquals(0, pacer.getCollapsedRequests());
+    }
+
+    @Test
+    void mergedRequestsAreAvoidedUpdates() {
+        VNCUpdatePacer pacer = new VNCUpdatePacer(10);
+        assertEquals(0, pacer.offer(SCREEN, true, 0));
+        pacer.offer(new VNCRect(0, 0, 10, 10), true, MILLIS);
+        assertEquals(-1, pacer.offer(new VNCRect(100, 100, 10, 10), true, 2 * MILLIS));
+        assertEquals(-1, pacer.offer(new VNCRect(200, 200, 10, 10), true, 3 * MILLIS));
+
+        VNCRect merged = pacer.release(100 * MILLIS);
+        assertEquals(210, merged.width);
+        assertEquals(210, merged.height);
+        assertEquals(2, pacer.getCollapsedRequests());
+        assertEquals(2 + 99, pacer.getUpdatesAvoided());
+    }
+
+    @Test
+    void unpacedRequestsAvoidNothing() {
+        VNCUpdatePacer pacer = new VNCUpdatePacer(10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, pacer.offer(SCREEN, true, i * 100 * MILLIS));
+        }
+        assertEquals(0, pacer.getUpdatesAvoided());
+    }
+}